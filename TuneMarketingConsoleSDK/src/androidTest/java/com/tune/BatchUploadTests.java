@@ -0,0 +1,138 @@
+package com.tune;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tune.http.TuneUrlRequester;
+import com.tune.http.UrlRequester;
+import com.tune.mocks.MockTuneServer;
+import com.tune.mocks.MockUrlRequester;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class BatchUploadTests extends TuneUnitTest {
+    private MockUrlRequester mockUrlRequester;
+    private MockTuneServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+
+        mockUrlRequester = new MockUrlRequester();
+        tune.setUrlRequester(mockUrlRequester);
+        tune.setBatchUploadEnabled(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null) {
+            server.shutDown();
+            server = null;
+        }
+
+        super.tearDown();
+    }
+
+    @Test
+    public void testQueuedEventsSentInOneBatch() {
+        tune.setOnline(false);
+        tune.measureEvent("event1");
+        tune.measureEvent("event2");
+        tune.measureEvent("event3");
+        sleep(TuneTestConstants.PARAMTEST_SLEEP);
+        assertEquals(3, queue.getQueueSize());
+
+        tune.setOnline(true);
+        tune.dumpQueue();
+        sleep(TuneTestConstants.SERVERTEST_SLEEP);
+
+        assertEquals("should have dequeued all requests", 0, queue.getQueueSize());
+        assertEquals("should have sent a single batch", 1, mockUrlRequester.getBatchRequestCount());
+    }
+
+    @Test
+    public void testFailedBatchItemRequeued() {
+        mockUrlRequester.setFailedBatchItems(Collections.singleton(1));
+
+        tune.setOnline(false);
+        tune.measureEvent("event1");
+        tune.measureEvent("event2");
+        tune.measureEvent("event3");
+        sleep(TuneTestConstants.PARAMTEST_SLEEP);
+        assertEquals(3, queue.getQueueSize());
+
+        tune.setOnline(true);
+        tune.dumpQueue();
+        sleep(TuneTestConstants.SERVERTEST_SLEEP);
+
+        assertEquals("only the failed request should remain", 1, queue.getQueueSize());
+        assertEquals("retry index should have been incremented", 1, queue.getQueueItemMetadata(1).getAttempts());
+    }
+
+    @Test
+    public void testRequesterWithoutBatchSupportSendsEachEvent() {
+        // An app supplied requester that only implements the original UrlRequester methods
+        tune.setUrlRequester(new UrlRequester() {
+            @Override
+            public void requestDeeplink(String deeplinkURL, String conversionKey, TuneDeeplinkListener listener) {
+                mockUrlRequester.requestDeeplink(deeplinkURL, conversionKey, listener);
+            }
+
+            @Override
+            public JSONObject requestUrl(String url, JSONObject json, boolean debugMode) {
+                return mockUrlRequester.requestUrl(url, json, debugMode);
+            }
+        });
+
+        tune.setOnline(false);
+        tune.measureEvent("event1");
+        tune.measureEvent("event2");
+        sleep(TuneTestConstants.PARAMTEST_SLEEP);
+        assertEquals(2, queue.getQueueSize());
+        int requestCount = mockUrlRequester.getRequestCount();
+
+        tune.setOnline(true);
+        tune.dumpQueue();
+        sleep(TuneTestConstants.SERVERTEST_SLEEP);
+
+        assertEquals("should have dequeued all requests", 0, queue.getQueueSize());
+        assertEquals("should not have sent a batch", 0, mockUrlRequester.getBatchRequestCount());
+        assertEquals(requestCount + 2, mockUrlRequester.getRequestCount());
+    }
+
+    @Test
+    public void testBatchRequestToServer() throws Exception {
+        server = new MockTuneServer();
+        server.failLinksContaining("event_name=fail");
+
+        JSONArray events = new JSONArray();
+        events.put(new JSONObject().put("link", server.getUrl() + "/serve?event_name=ok").put("data", "abc"));
+        events.put(new JSONObject().put("link", server.getUrl() + "/serve?event_name=fail").put("data", "def"));
+        JSONObject batch = new JSONObject().put(TuneConstants.BATCH_REQUEST_EVENTS, events);
+
+        JSONObject response = new TuneUrlRequester().requestBatch(server.getUrl() + "/serve_batch", batch, false);
+
+        assertNotNull(response);
+        JSONArray results = response.getJSONArray(TuneConstants.SERVER_RESPONSE_RESULTS);
+        assertEquals(2, results.length());
+        assertTrue(results.getJSONObject(0).has(TuneConstants.SERVER_RESPONSE_SUCCESS));
+        assertFalse(results.getJSONObject(1).has(TuneConstants.SERVER_RESPONSE_SUCCESS));
+
+        MockTuneServer.Request request = server.getRequests().get(0);
+        assertEquals("POST", request.method);
+        assertEquals("gzip", request.headers.get("content-encoding"));
+        assertEquals(2, new JSONObject(request.body).getJSONArray(TuneConstants.BATCH_REQUEST_EVENTS).length());
+    }
+}
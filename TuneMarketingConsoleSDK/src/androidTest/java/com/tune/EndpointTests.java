@@ -2,12 +2,22 @@ package com.tune;
 
 import android.support.test.runner.AndroidJUnit4;
 
+import com.tune.utils.TuneUtils;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
@@ -209,7 +219,7 @@ public class EndpointTests extends TuneUnitTest {
         TunePreloadData testPreloadData = new TunePreloadData("test");
 
         assertTrue(waitForTuneNotification(TuneTestConstants.ENDPOINTTEST_SLEEP));
-        String testLink = TuneUrlBuilder.buildLink(testParams, testEvent, testPreloadData, false);
+        String testLink = TuneUrlBuilder.buildLink(testParams, TuneParameters.ACTION_CONVERSION, testEvent, testPreloadData, false);
         assertFalse(testLink.contains("debug.engine.mobileapptracking.com"));
         assertFalse(testLink.contains("&debug=1"));
     }
@@ -221,11 +231,192 @@ public class EndpointTests extends TuneUnitTest {
         TunePreloadData testPreloadData = new TunePreloadData("test");
 
         assertTrue(waitForTuneNotification(TuneTestConstants.ENDPOINTTEST_SLEEP));
-        String testLink = TuneUrlBuilder.buildLink(testParams, testEvent, testPreloadData, true);
+        String testLink = TuneUrlBuilder.buildLink(testParams, TuneParameters.ACTION_CONVERSION, testEvent, testPreloadData, true);
         assertFalse(testLink.contains("debug.engine.mobileapptracking.com"));
         assertTrue(testLink.contains("&debug=1"));
     }
 
+    @Test
+    public void testCachedLinkPrefixFollowsParameterChanges() {
+        TuneParameters testParams = tune.getTuneParams();
+        TuneEvent testEvent = new TuneEvent("testEvent");
+        TunePreloadData testPreloadData = new TunePreloadData("test");
+
+        assertTrue(waitForTuneNotification(TuneTestConstants.ENDPOINTTEST_SLEEP));
+        String firstLink = TuneUrlBuilder.buildLink(testParams, TuneParameters.ACTION_CONVERSION, testEvent, testPreloadData, false);
+        String secondLink = TuneUrlBuilder.buildLink(testParams, TuneParameters.ACTION_CONVERSION, testEvent, testPreloadData, false);
+        assertFalse("each link should get its own transaction id", firstLink.equals(secondLink));
+        assertTrue(firstLink.contains("&publisher_id=test"));
+        assertFalse(firstLink.contains("&tracking_id="));
+        assertFalse(firstLink.contains("&offer_id="));
+
+        testParams.setTrackingId("trackingId");
+        testPreloadData.withOfferId("offerId");
+        String changedLink = TuneUrlBuilder.buildLink(testParams, TuneParameters.ACTION_CONVERSION, testEvent, testPreloadData, false);
+        assertTrue(changedLink.contains("&tracking_id=trackingId"));
+        assertTrue(changedLink.contains("&offer_id=offerId"));
+    }
+
+    @Test
+    public void testCachedDataFollowsParameterChanges() {
+        TuneParameters testParams = tune.getTuneParams();
+
+        assertTrue(waitForTuneNotification(TuneTestConstants.ENDPOINTTEST_SLEEP));
+        String firstData = TuneUrlBuilder.buildDataUnencrypted(testParams, new TuneEvent("testEvent").withRevenue(1.5));
+        String secondData = TuneUrlBuilder.buildDataUnencrypted(testParams, new TuneEvent("testEvent").withRevenue(2.5));
+        assertTrue(firstData.contains("&revenue=1.5"));
+        assertTrue(secondData.contains("&revenue=2.5"));
+        assertTrue("only the event params should differ", firstData.replace("&revenue=1.5", "").equals(secondData.replace("&revenue=2.5", "")));
+
+        testParams.setDeviceCarrier("testCarrier");
+        testParams.setGender(TuneGender.FEMALE);
+        String changedData = TuneUrlBuilder.buildDataUnencrypted(testParams, new TuneEvent("testEvent"));
+        assertTrue(changedData.contains("&device_carrier=testCarrier"));
+        assertTrue(changedData.contains("&gender=1"));
+    }
+
+    @Test
+    public void testConcurrentDataBuildsMatch() throws Exception {
+        final TuneParameters testParams = tune.getTuneParams();
+        final TuneEvent testEvent = new TuneEvent("testEvent").withRevenue(1.5);
+
+        assertTrue(waitForTuneNotification(TuneTestConstants.ENDPOINTTEST_SLEEP));
+        final String expected = TuneUrlBuilder.buildDataUnencrypted(testParams, testEvent);
+
+        final AtomicInteger mismatches = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 50; j++) {
+                        if (!expected.equals(TuneUrlBuilder.buildDataUnencrypted(testParams, testEvent))) {
+                            mismatches.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, mismatches.get());
+    }
+
+    @Test
+    public void testDataParamsMergesOnlyMissingKeys() {
+        TuneUrlBuilder.DataParams data = new TuneUrlBuilder.DataParams("connection_type=wifi&google_aid=abc&revenue=0.0");
+        assertTrue(data.contains(TuneUrlKeys.CONNECTION_TYPE));
+        assertTrue(data.contains(TuneUrlKeys.GOOGLE_AID));
+        assertFalse(data.contains(TuneUrlKeys.SYSTEM_DATE));
+
+        Set<String> redactKeys = Collections.singleton(TuneUrlKeys.LATITUDE);
+        data.put(redactKeys, TuneUrlKeys.SYSTEM_DATE, "1234");
+        data.put(redactKeys, TuneUrlKeys.LATITUDE, "1.0");
+        data.put(redactKeys, TuneUrlKeys.USER_AGENT, "");
+
+        assertTrue(data.contains(TuneUrlKeys.SYSTEM_DATE));
+        assertFalse(data.contains(TuneUrlKeys.LATITUDE));
+        assertFalse(data.contains(TuneUrlKeys.USER_AGENT));
+        assertEquals("connection_type=wifi&google_aid=abc&revenue=0.0&system_date=1234", data.toString());
+        assertEquals("", new TuneUrlBuilder.DataParams(null).toString());
+    }
+
+    @Test
+    public void testPreparedDataMatchesEncryptedData() throws Exception {
+        TuneParameters testParams = tune.getTuneParams();
+        assertTrue(waitForTuneNotification(TuneTestConstants.ENDPOINTTEST_SLEEP));
+        tune.setLocation(1.0, 2.0, 3.0);
+        TuneEncryption encryption = new TuneEncryption(TuneTestConstants.conversionKey, "heF9BATUfWuISyO8");
+        String data = "connection_type=wifi&revenue=0.0";
+
+        TuneUrlBuilder.PreparedData prepared = TuneUrlBuilder.prepareData(testParams, data, encryption);
+        StringBuilder preparedLink = new StringBuilder();
+        TuneUrlBuilder.appendPreparedData(preparedLink, prepared, testParams, data, encryption);
+        StringBuilder link = new StringBuilder();
+        TuneUrlBuilder.appendUpdatedAndEncryptedData(link, testParams, data, encryption);
+
+        // Equal unless the system date ticked over in between
+        String decrypted = new String(encryption.decrypt(preparedLink.toString())).trim();
+        assertTrue("location should be added at send time", decrypted.contains("&latitude=1.0"));
+        assertEquals(new String(encryption.decrypt(link.toString())).trim().replaceAll("system_date=\\d+", ""),
+                decrypted.replaceAll("system_date=\\d+", ""));
+    }
+
+    @Test
+    public void testDataKeepsParameterOrder() {
+        TuneParameters testParams = tune.getTuneParams();
+        assertTrue(waitForTuneNotification(TuneTestConstants.ENDPOINTTEST_SLEEP));
+        tune.setLocation(1.0, 2.0, 3.0);
+        tune.setUserId("orderUser");
+
+        String data = TuneUrlBuilder.buildDataUnencrypted(testParams, new TuneEvent("testEvent").withAttribute1("attribute1"));
+
+        // Order the data string has always been built in, the cached fragments must not change it
+        List<String> expectedOrder = Arrays.asList(
+                TuneUrlKeys.CONNECTION_TYPE, TuneUrlKeys.ANDROID_ID, TuneUrlKeys.ANDROID_ID_MD5, TuneUrlKeys.ANDROID_ID_SHA1,
+                TuneUrlKeys.ANDROID_ID_SHA256, TuneUrlKeys.APP_NAME, TuneUrlKeys.APP_VERSION, TuneUrlKeys.APP_VERSION_NAME, TuneUrlKeys.COUNTRY_CODE,
+                TuneUrlKeys.DEVICE_BRAND, TuneUrlKeys.DEVICE_BUILD, TuneUrlKeys.DEVICE_CARRIER, TuneUrlKeys.DEVICE_CPU_TYPE,
+                TuneUrlKeys.DEVICE_CPU_SUBTYPE, TuneUrlKeys.DEVICE_MODEL, TuneUrlKeys.DEVICE_ID, TuneUrlKeys.FIRE_AID, TuneUrlKeys.GOOGLE_AID,
+                TuneUrlKeys.INSTALL_DATE, TuneUrlKeys.INSTALL_BEGIN_TIMESTAMP, TuneUrlKeys.REFERRER_CLICK_TIMESTAMP, TuneUrlKeys.INSTALLER,
+                TuneUrlKeys.INSTALL_REFERRER, TuneUrlKeys.LANGUAGE, TuneUrlKeys.LAST_OPEN_LOG_ID, TuneUrlKeys.ALTITUDE, TuneUrlKeys.LATITUDE,
+                TuneUrlKeys.LONGITUDE, TuneUrlKeys.LOCALE, TuneUrlKeys.MAT_ID, TuneUrlKeys.MOBILE_COUNTRY_CODE, TuneUrlKeys.MOBILE_NETWORK_CODE,
+                TuneUrlKeys.OPEN_LOG_ID, TuneUrlKeys.OS_VERSION, TuneUrlKeys.SDK_PLUGIN, TuneUrlKeys.PLATFORM_AID, TuneUrlKeys.PURCHASE_STATUS,
+                TuneUrlKeys.REFERRER_DELAY, TuneUrlKeys.SCREEN_DENSITY, TuneUrlKeys.SCREEN_LAYOUT_SIZE, TuneUrlKeys.SDK_VERSION,
+                TuneUrlKeys.USER_AGENT, TuneUrlKeys.ATTRIBUTE1, TuneUrlKeys.ATTRIBUTE2, TuneUrlKeys.ATTRIBUTE3, TuneUrlKeys.ATTRIBUTE4,
+                TuneUrlKeys.ATTRIBUTE5, TuneUrlKeys.CONTENT_ID, TuneUrlKeys.CONTENT_TYPE, TuneUrlKeys.CURRENCY_CODE, TuneUrlKeys.DATE1,
+                TuneUrlKeys.DATE2, TuneUrlKeys.DEVICE_FORM, TuneUrlKeys.LEVEL, TuneUrlKeys.QUANTITY, TuneUrlKeys.RATING, TuneUrlKeys.REF_ID,
+                TuneUrlKeys.REVENUE, TuneUrlKeys.SEARCH_STRING, TuneUrlKeys.AGE, TuneUrlKeys.EXISTING_USER, TuneUrlKeys.FACEBOOK_USER_ID,
+                TuneUrlKeys.GENDER, TuneUrlKeys.GOOGLE_USER_ID, TuneUrlKeys.IS_PAYING_USER, TuneUrlKeys.TWITTER_USER_ID, TuneUrlKeys.USER_EMAIL_MD5,
+                TuneUrlKeys.USER_EMAIL_SHA1, TuneUrlKeys.USER_EMAIL_SHA256, TuneUrlKeys.USER_ID, TuneUrlKeys.USER_NAME_MD5,
+                TuneUrlKeys.USER_NAME_SHA1, TuneUrlKeys.USER_NAME_SHA256, TuneUrlKeys.USER_PHONE_MD5, TuneUrlKeys.USER_PHONE_SHA1,
+                TuneUrlKeys.USER_PHONE_SHA256, TuneUrlKeys.IS_COPPA, TuneUrlKeys.APP_AD_TRACKING, TuneUrlKeys.GOOGLE_AD_TRACKING_DISABLED,
+                TuneUrlKeys.FIRE_AD_TRACKING_DISABLED, TuneUrlKeys.PLATFORM_AD_TRACKING_DISABLED);
+        int previous = -1;
+        for (String pair : data.split("&")) {
+            String key = pair.substring(0, pair.indexOf('='));
+            int position = expectedOrder.indexOf(key);
+            assertTrue("unexpected key " + key, position >= 0);
+            assertTrue(key + " out of order in " + data, position > previous);
+            previous = position;
+        }
+        assertTrue(data.contains("&" + TuneUrlKeys.LONGITUDE + "=2.0&" + TuneUrlKeys.LOCALE + "="));
+    }
+
+    @Test
+    public void testSnapshotReplacedOnWrite() {
+        TuneParameters testParams = tune.getTuneParams();
+
+        assertTrue(waitForTuneNotification(TuneTestConstants.ENDPOINTTEST_SLEEP));
+        TuneParameters.Snapshot snapshot = testParams.getSnapshot();
+        // Reads without a write in between share the snapshot
+        assertSame(snapshot, testParams.getSnapshot());
+
+        // The action is passed per event and never replaces the snapshot
+        testParams.setAction(TuneParameters.ACTION_SESSION);
+        assertSame(snapshot, testParams.getSnapshot());
+
+        // A setter of several values publishes them together
+        testParams.setUserEmail("snapshot@tune.com");
+        TuneParameters.Snapshot emailSnapshot = testParams.getSnapshot();
+        assertEquals(TuneUtils.sha256("snapshot@tune.com"), emailSnapshot.userEmailSha256);
+        assertEquals(TuneUtils.md5("snapshot@tune.com"), emailSnapshot.userEmailMd5);
+        snapshot = emailSnapshot;
+
+        testParams.setUserId("snapshotUser");
+        TuneParameters.Snapshot changed = testParams.getSnapshot();
+        assertNotSame(snapshot, changed);
+        assertEquals("snapshotUser", changed.userId);
+        assertTrue(changed.userDataVersion != snapshot.userDataVersion);
+        assertEquals(snapshot.deviceDataVersion, changed.deviceDataVersion);
+        assertTrue(TuneUrlBuilder.buildDataUnencrypted(testParams, new TuneEvent("testEvent")).contains("&user_id=snapshotUser"));
+
+        // The snapshot taken earlier is never updated in place
+        assertFalse("snapshotUser".equals(snapshot.userId));
+    }
+
     @Test
     public void testEventRedactGender() {
         tune.setGender(TuneGender.MALE);
@@ -2,7 +2,13 @@ package com.tune;
 
 import android.support.test.runner.AndroidJUnit4;
 
+import com.tune.mocks.MockAsyncUrlRequester;
 import com.tune.mocks.MockUrlRequester;
+import com.tune.queue.TuneEvictionPolicy;
+import com.tune.queue.TuneQueuePriority;
+import com.tune.queue.TuneRetryMetadata;
+import com.tune.queue.TuneRetryPolicy;
+import com.tune.utils.TuneSharedPrefsDelegate;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -12,6 +18,13 @@ import org.junit.runner.RunWith;
 
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static android.support.test.InstrumentationRegistry.getContext;
 import static org.junit.Assert.assertEquals;
@@ -24,6 +37,7 @@ public class QueueTests extends TuneUnitTest implements ITuneListener {
     private ArrayList<JSONObject> successResponses;
     private MockUrlRequester mockUrlRequester;
     private String receivedDeeplink;
+    private final Map<String, Integer> evictedEvents = new HashMap<>();
 
     @Before
     public void setUp() throws Exception {
@@ -203,8 +217,8 @@ public class QueueTests extends TuneUnitTest implements ITuneListener {
             JSONObject item = queue.getQueueItem( 1 );
             String link = item.getString("link");
             assertTrue( "item in queue should be our request, but found " + link, link.contains( "statusCode%5Bcode%5D=500" ) );
-            assertFalse( "retry index should have been incremented", link.contains( "&sdk_retry_attempt=0&" ) );
-            assertTrue( "retry index should have been incremented", link.contains( "&sdk_retry_attempt=1&" ) );
+            assertEquals( "retry index should have been incremented", 1, queue.getQueueItemMetadata( 1 ).getAttempts() );
+            assertTrue( "link should be stored unchanged", link.contains( "&sdk_retry_attempt=0&" ) );
         } catch (JSONException e) {
             e.printStackTrace();
             assertTrue( "failed parsing queue item", false );
@@ -256,6 +270,469 @@ public class QueueTests extends TuneUnitTest implements ITuneListener {
         assertEquals("testing://allthethings?success=yes", receivedDeeplink);
     }
 
+    @Test
+    public void testAddNotBlockedByPendingRetry() {
+        tune.setOnline(true);
+        mockUrlRequester.setRequestUrlShouldSucceed(false);
+
+        tune.measureEvent("event1");
+        sleep(TuneTestConstants.PARAMTEST_SLEEP);
+        assertEquals("failed request should remain in queue", 1, queue.getQueueSize());
+
+        // The first retry is at least 30s away, the new event must still be persisted right away
+        tune.setOnline(false);
+        tune.measureEvent("event2");
+        sleep(TuneTestConstants.PARAMTEST_SLEEP);
+        assertEquals("should have enqueued second request while waiting to retry", 2, queue.getQueueSize());
+    }
+
+    @Test
+    public void testScheduledRetryDrainsQueue() {
+        queue.setRetryPolicy(new TuneRetryPolicy() {
+            @Override
+            public long getRetryDelay(int failures) {
+                return 200;
+            }
+        });
+        tune.setOnline(true);
+        mockUrlRequester.setRequestUrlShouldSucceed(false);
+
+        tune.measureEvent("registration");
+        sleep(TuneTestConstants.PARAMTEST_SLEEP);
+        assertEquals("failed request should remain in queue", 1, queue.getQueueSize());
+
+        // No explicit dump, the scheduled wake-up retries on its own
+        mockUrlRequester.setRequestUrlShouldSucceed(true);
+        sleep(TuneTestConstants.SERVERTEST_SLEEP);
+        assertEquals("should have dequeued request on retry", 0, queue.getQueueSize());
+    }
+
+    @Test
+    public void testTimeToFirstAckReported() {
+        assertEquals("nothing acknowledged yet", -1, tune.getTimeToFirstAck());
+
+        tune.setOnline(true);
+        tune.measureEvent("registration");
+        sleep(TuneTestConstants.SERVERTEST_SLEEP);
+
+        assertEquals("should have dequeued request", 0, queue.getQueueSize());
+        assertTrue(tune.getTimeToFirstAck() >= 0);
+    }
+
+    @Test
+    public void testServerBackpressureDefersQueue() {
+        // Without the server's wait, the queue would retry right away
+        queue.setRetryPolicy(new TuneRetryPolicy() {
+            @Override
+            public long getRetryDelay(int failures) {
+                return 0;
+            }
+        });
+        tune.setOnline(true);
+        mockUrlRequester.setRequestUrlShouldSucceed(false);
+        mockUrlRequester.setFailureStatus(503, 60 * 60 * 1000);
+
+        tune.measureEvent("event1");
+        sleep(TuneTestConstants.PARAMTEST_SLEEP);
+        assertEquals("failed request should remain in queue", 1, queue.getQueueSize());
+        int requests = mockUrlRequester.getRequestCount();
+
+        tune.measureEvent("event2");
+        tune.dumpQueue();
+        sleep(TuneTestConstants.PARAMTEST_SLEEP);
+
+        assertEquals("no request should go to the host before its Retry-After", requests, mockUrlRequester.getRequestCount());
+        assertEquals(2, queue.getQueueSize());
+        assertTrue("event should wait for the Retry-After", queue.getQueueItemMetadata(1).getNextEligibleTime() - System.currentTimeMillis() > 30 * 60 * 1000);
+    }
+
+    @Test
+    public void testRequestsSentInFlightWindow() {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        tune.setUrlRequester(new MockUrlRequester() {
+            @Override
+            public JSONObject requestUrl(String url, JSONObject json, boolean debugMode) {
+                int current = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), current));
+                }
+                sleep(200);
+                inFlight.decrementAndGet();
+                return super.requestUrl(url, json, debugMode);
+            }
+        });
+        tune.setMaxInFlightRequests(3);
+
+        tune.setOnline(false);
+        for (int i = 0; i < 6; i++) {
+            tune.measureEvent("event" + i);
+        }
+        sleep(TuneTestConstants.PARAMTEST_SLEEP);
+        assertEquals(6, queue.getQueueSize());
+
+        tune.setOnline(true);
+        tune.dumpQueue();
+        sleep(TuneTestConstants.SERVERTEST_SLEEP);
+
+        assertEquals("should have dequeued all requests", 0, queue.getQueueSize());
+        assertTrue("requests should overlap, max in flight was " + maxInFlight.get(), maxInFlight.get() > 1);
+        assertTrue("requests should stay within the window, max in flight was " + maxInFlight.get(), maxInFlight.get() <= 3);
+    }
+
+    @Test
+    public void testInvalidMaxInFlightRequestsRejected() {
+        boolean gotException = false;
+
+        try {
+            tune.setMaxInFlightRequests(0);
+        } catch (IllegalArgumentException e) {
+            gotException = true;
+        }
+
+        assertTrue(gotException);
+        assertEquals(TuneConstants.MAX_IN_FLIGHT_REQUESTS, queue.getMaxInFlightRequests());
+    }
+
+    @Test
+    public void testQueueDrainedThroughAsyncRequester() {
+        MockAsyncUrlRequester asyncUrlRequester = new MockAsyncUrlRequester();
+        asyncUrlRequester.holdRequests();
+        tune.setAsyncUrlRequester(asyncUrlRequester);
+        queue.setMaxInFlightRequests(3);
+
+        tune.setOnline(false);
+        for (int i = 0; i < 3; i++) {
+            tune.measureEvent("event" + i);
+        }
+        sleep(TuneTestConstants.PARAMTEST_SLEEP);
+
+        tune.setOnline(true);
+        tune.dumpQueue();
+        sleep(TuneTestConstants.PARAMTEST_SLEEP);
+
+        assertEquals("all requests should be in flight together", 3, asyncUrlRequester.getPendingCount());
+        assertEquals("events should stay queued until acknowledged", 3, queue.getQueueSize());
+
+        asyncUrlRequester.releaseRequests();
+        sleep(TuneTestConstants.SERVERTEST_SLEEP);
+
+        assertEquals("should have dequeued all requests", 0, queue.getQueueSize());
+        assertEquals(3, asyncUrlRequester.getRequestCount());
+    }
+
+    @Test
+    public void testRetryAttemptAddedAtSendTime() {
+        final ArrayList<String> requestedUrls = new ArrayList<>();
+        mockUrlRequester = new MockUrlRequester() {
+            @Override
+            public JSONObject requestUrl(String url, JSONObject json, boolean debugMode) {
+                requestedUrls.add(url);
+                return super.requestUrl(url, json, debugMode);
+            }
+        };
+        tune.setUrlRequester(mockUrlRequester);
+        queue.setRetryPolicy(new TuneRetryPolicy() {
+            @Override
+            public long getRetryDelay(int failures) {
+                return 200;
+            }
+        });
+        tune.setOnline(true);
+        mockUrlRequester.setRequestUrlShouldSucceed(false);
+
+        tune.measureEvent("registration");
+        sleep(TuneTestConstants.PARAMTEST_SLEEP);
+        mockUrlRequester.setRequestUrlShouldSucceed(true);
+        sleep(TuneTestConstants.SERVERTEST_SLEEP);
+        assertEquals("should have dequeued request on retry", 0, queue.getQueueSize());
+
+        assertTrue("should have sent the request at least twice", requestedUrls.size() >= 2);
+        assertTrue(requestedUrls.get(0).contains("&sdk_retry_attempt=0&"));
+        assertTrue(requestedUrls.get(1).contains("&sdk_retry_attempt=1&"));
+    }
+
+    @Test
+    public void testLegacyQueueMigrated() throws Exception {
+        String link = "https://877.engine.mobileapptracking.com/serve?ver=4.0&sdk_retry_attempt=2&action=conversion";
+        JSONObject event = new JSONObject();
+        event.put("link", link);
+        event.put("data", "");
+        event.put("post_body", new JSONObject());
+        event.put("first_session", false);
+
+        TuneSharedPrefsDelegate legacyQueue = new TuneSharedPrefsDelegate(getContext(), TuneConstants.PREFS_QUEUE);
+        legacyQueue.putInt("queuesize", 1);
+        legacyQueue.putString("1", event.toString());
+
+        TuneTestQueue migratedQueue = new TuneTestQueue(getContext(), tune);
+        assertFalse("constructing the queue should not touch the disk", legacyQueue.getAll().isEmpty());
+        migratedQueue.new Open(getContext()).run();
+        assertEquals(1, migratedQueue.getQueueSize());
+        assertEquals(2, migratedQueue.getQueueItemMetadata(1).getAttempts());
+        assertEquals("https://877.engine.mobileapptracking.com/serve?ver=4.0&action=conversion", migratedQueue.getQueueItem(1).getString("link"));
+        assertTrue("legacy queue should be cleared", legacyQueue.getAll().isEmpty());
+    }
+
+    @Test
+    public void testInFlightEventRecoveredOnRestart() throws Exception {
+        queue.addItemToQueue(queuedEvent("action=conversion&transaction_id=abc"), TuneQueuePriority.NORMAL);
+        TuneRetryMetadata metadata = queue.getQueueItemMetadata(1);
+        queue.setMetadata(Collections.singletonList(metadata.sendStarted(System.currentTimeMillis())), queue.peekEntries(1));
+        assertTrue(queue.getQueueItemMetadata(1).isInFlight());
+
+        // Simulate a restart while the request was in flight
+        TuneTestQueue restartedQueue = new TuneTestQueue(getContext(), tune);
+        restartedQueue.new Open(getContext()).run();
+        assertEquals(1, restartedQueue.getQueueSize());
+        assertFalse(restartedQueue.getQueueItemMetadata(1).isInFlight());
+        assertEquals("interrupted send should count as an attempt", 1, restartedQueue.getQueueItemMetadata(1).getAttempts());
+        assertEquals("eligible right away", 0, restartedQueue.getQueueItemMetadata(1).getNextEligibleTime());
+    }
+
+    @Test
+    public void testDumpStopsOnUnremovableEvent() throws Exception {
+        TuneTestQueue stuckQueue = new TuneTestQueue(getContext(), tune) {
+            @Override
+            protected synchronized boolean removeItemFromQueue(QueueEntry entry) {
+                // Simulate a disk that can't take the removal
+                return false;
+            }
+        };
+        stuckQueue.new Open(getContext()).run();
+        stuckQueue.addItemToQueue(new JSONObject().put("link", "unreadable"), TuneQueuePriority.NORMAL);
+
+        Thread dump = new Thread(stuckQueue.new Dump());
+        dump.start();
+        dump.join(TuneTestConstants.SERVERTEST_SLEEP);
+        assertFalse("dump should give up on an event it can't remove", dump.isAlive());
+        assertEquals(1, stuckQueue.getQueueSize());
+    }
+
+    @Test
+    public void testTransactionIdSavedBeforeFirstSend() throws Exception {
+        mockUrlRequester.setRequestUrlShouldSucceed(false);
+        queue.addItemToQueue(queuedEvent("action=conversion"), TuneQueuePriority.NORMAL);
+
+        tune.dumpQueue();
+        sleep(TuneTestConstants.SERVERTEST_SLEEP);
+
+        assertEquals(1, queue.getQueueSize());
+        String link = queue.getQueueItem(1).getString("link");
+        assertTrue("queued link should carry a transaction ID for resends", link.contains("&transaction_id="));
+        assertFalse("no longer in flight", queue.getQueueItemMetadata(1).isInFlight());
+    }
+
+    @Test
+    public void testEncryptedDataReusedAcrossRetries() throws Exception {
+        final ArrayList<String> requestedUrls = new ArrayList<>();
+        mockUrlRequester = new MockUrlRequester() {
+            @Override
+            public JSONObject requestUrl(String url, JSONObject json, boolean debugMode) {
+                synchronized (requestedUrls) {
+                    requestedUrls.add(url);
+                }
+                return super.requestUrl(url, json, debugMode);
+            }
+        };
+        tune.setUrlRequester(mockUrlRequester);
+        queue.setRetryPolicy(new TuneRetryPolicy() {
+            @Override
+            public long getRetryDelay(int failures) {
+                return 1100;
+            }
+        });
+        mockUrlRequester.setRequestUrlShouldSucceed(false);
+        queue.addItemToQueue(queuedEvent("action=conversion&transaction_id=abc"), TuneQueuePriority.NORMAL);
+        String queued = queue.getQueueItem(1).toString();
+
+        tune.dumpQueue();
+        sleep(TuneTestConstants.SERVERTEST_SLEEP);
+        String first;
+        String last;
+        synchronized (requestedUrls) {
+            assertTrue("should have retried", requestedUrls.size() >= 2);
+            first = decryptedDataOf(requestedUrls.get(0));
+            last = decryptedDataOf(requestedUrls.get(requestedUrls.size() - 1));
+        }
+
+        // Only the system date differs, and it is the date of each attempt
+        assertEquals(first.substring(0, first.indexOf("&system_date=")), last.substring(0, last.indexOf("&system_date=")));
+        assertTrue("retry should have its own system date", systemDateOf(last) > systemDateOf(first));
+        assertEquals("retries should not rewrite the queued event", queued, queue.getQueueItem(1).toString());
+
+        // A late-bound parameter changing means the data has to be prepared again
+        tune.setFacebookUserId("testFacebookUserId");
+        sleep(TuneTestConstants.SERVERTEST_SLEEP / 2);
+        synchronized (requestedUrls) {
+            assertTrue(decryptedDataOf(requestedUrls.get(requestedUrls.size() - 1)).contains("facebook_user_id=testFacebookUserId"));
+        }
+    }
+
+    private static String decryptedDataOf(String url) throws Exception {
+        String data = url.substring(url.indexOf("&data=") + "&data=".length());
+        return new String(new TuneEncryption(TuneTestConstants.conversionKey, "heF9BATUfWuISyO8").decrypt(data)).trim();
+    }
+
+    private static long systemDateOf(String data) {
+        Matcher matcher = Pattern.compile("system_date=(\\d+)").matcher(data);
+        assertTrue(matcher.find());
+        return Long.parseLong(matcher.group(1));
+    }
+
+    @Test
+    public void testRevenueEventQueuedAhead() throws JSONException {
+        tune.setOnline(false);
+        tune.measureEvent("registration");
+        tune.measureEvent("level_complete");
+        tune.measureEvent(new TuneEvent("purchase").withRevenue(0.99));
+        sleep(TuneTestConstants.PARAMTEST_SLEEP);
+        assertEquals(3, queue.getQueueSize());
+
+        assertEquals(1, queue.getQueueSize(TuneQueuePriority.HIGH));
+        assertTrue("purchase should be sent first", queue.getQueueItem(1).getString("link").contains("site_event_name=purchase"));
+        assertTrue(queue.getQueueItem(2).getString("link").contains("site_event_name=registration"));
+    }
+
+    @Test
+    public void testPriorityEventNameQueuedAhead() throws JSONException {
+        tune.setPriorityEventNames(Collections.singleton("tutorial_complete"));
+
+        tune.setOnline(false);
+        tune.measureEvent("registration");
+        tune.measureEvent("tutorial_complete");
+        sleep(TuneTestConstants.PARAMTEST_SLEEP);
+        assertEquals(2, queue.getQueueSize());
+
+        assertTrue("priority event should be sent first", queue.getQueueItem(1).getString("link").contains("site_event_name=tutorial_complete"));
+    }
+
+    @Test
+    public void testLaneCapacityDropsOldest() throws JSONException {
+        queue.setLaneCapacity(TuneQueuePriority.NORMAL, 2);
+
+        tune.setOnline(false);
+        tune.measureEvent("event1");
+        tune.measureEvent("event2");
+        tune.measureEvent("event3");
+        sleep(TuneTestConstants.PARAMTEST_SLEEP);
+
+        assertEquals(2, queue.getQueueSize());
+        assertTrue(queue.getQueueItem(1).getString("link").contains("site_event_name=event2"));
+    }
+
+    @Test
+    public void testMeasureEventsQueuedInOrder() throws JSONException {
+        tune.setOnline(false);
+        tune.measureEvent("event1");
+        tune.measureEvents(Arrays.asList(new TuneEvent("event2"), new TuneEvent(TuneEvent.NAME_SESSION), new TuneEvent("purchase").withRevenue(0.99)));
+        sleep(TuneTestConstants.PARAMTEST_SLEEP);
+
+        assertEquals(4, queue.getQueueSize());
+        assertTrue("revenue event should be queued ahead", queue.getQueueItem(1).getString("link").contains("site_event_name=purchase"));
+        assertTrue(queue.getQueueItem(2).getString("link").contains("site_event_name=event1"));
+        assertTrue(queue.getQueueItem(3).getString("link").contains("site_event_name=event2"));
+        assertTrue(queue.getQueueItem(4).getString("link").contains("action=session"));
+    }
+
+    @Test
+    public void testMeasureEventsMarksPayingUserWithinBatch() throws JSONException {
+        tune.setOnline(false);
+        tune.setPayingUser(false);
+        tune.measureEvents(Arrays.asList(new TuneEvent("event1"), new TuneEvent("purchase").withRevenue(0.99), new TuneEvent("event2")));
+        sleep(TuneTestConstants.PARAMTEST_SLEEP);
+
+        assertEquals(3, queue.getQueueSize());
+        assertTrue(queue.getQueueItem(1).getString("link").contains("site_event_name=purchase"));
+        assertTrue(queue.getQueueItem(1).getString("data").contains("is_paying_user=1"));
+        assertTrue(queue.getQueueItem(2).getString("data").contains("is_paying_user=0"));
+        assertTrue("events after the purchase should see the paying user", queue.getQueueItem(3).getString("data").contains("is_paying_user=1"));
+        assertTrue(tune.isPayingUser());
+    }
+
+    @Test
+    public void testByteBudgetDropsOldestSessionFirst() throws Exception {
+        tune.setListener(this);
+        queue.addItemToQueue(queuedEvent("action=session&session=1"), TuneQueuePriority.NORMAL);
+        queue.addItemToQueue(queuedEvent("action=conversion&site_event_name=event1"), TuneQueuePriority.NORMAL);
+        queue.addItemToQueue(queuedEvent("action=session&session=2"), TuneQueuePriority.NORMAL);
+
+        tune.setQueueByteBudget(queue.getQueueByteSize());
+        queue.addItemToQueue(queuedEvent("action=conversion&site_event_name=event2"), TuneQueuePriority.NORMAL);
+
+        assertEquals(3, queue.getQueueSize());
+        assertTrue("oldest session should have been dropped", queue.getQueueItem(1).getString("link").contains("site_event_name=event1"));
+        assertTrue(queue.getQueueItem(2).getString("link").contains("session=2"));
+        assertEquals(1, getEvictedEvents(TuneEventQueue.EVICTED_OVER_BUDGET));
+    }
+
+    @Test
+    public void testByteBudgetDropsLowestPriority() throws Exception {
+        tune.setListener(this);
+        tune.setQueueEvictionPolicy(TuneEvictionPolicy.DROP_LOWEST_PRIORITY);
+        queue.addItemToQueue(queuedEvent("action=conversion&site_event_name=purchase1"), TuneQueuePriority.HIGH);
+        queue.addItemToQueue(queuedEvent("action=session&session=1"), TuneQueuePriority.NORMAL);
+
+        tune.setQueueByteBudget(queue.getQueueByteSize());
+        queue.addItemToQueue(queuedEvent("action=conversion&site_event_name=purchase2"), TuneQueuePriority.HIGH);
+
+        assertEquals(2, queue.getQueueSize(TuneQueuePriority.HIGH));
+        assertEquals(0, queue.getQueueSize(TuneQueuePriority.NORMAL));
+        assertEquals(1, getEvictedEvents(TuneEventQueue.EVICTED_OVER_BUDGET));
+    }
+
+    @Test
+    public void testByteBudgetRejectsNew() throws Exception {
+        tune.setListener(this);
+        tune.setQueueEvictionPolicy(TuneEvictionPolicy.REJECT_NEW);
+        queue.addItemToQueue(queuedEvent("action=session&session=1"), TuneQueuePriority.NORMAL);
+        queue.addItemToQueue(queuedEvent("action=conversion&site_event_name=event1"), TuneQueuePriority.NORMAL);
+
+        tune.setQueueByteBudget(queue.getQueueByteSize());
+        queue.addItemToQueue(queuedEvent("action=conversion&site_event_name=event2"), TuneQueuePriority.HIGH);
+
+        assertEquals(2, queue.getQueueSize());
+        assertEquals(0, queue.getQueueSize(TuneQueuePriority.HIGH));
+        assertEquals(1, getEvictedEvents(TuneEventQueue.EVICTED_REJECTED));
+    }
+
+    @Test
+    public void testExpiredEventsDropped() throws Exception {
+        tune.setListener(this);
+        queue.addItemToQueue(queuedEvent("action=session&session=1"), TuneQueuePriority.NORMAL);
+        queue.addItemToQueue(queuedEvent("action=conversion&site_event_name=event1"), TuneQueuePriority.HIGH);
+        sleep(10);
+
+        tune.setQueueMaxAge(1);
+        queue.removeExpiredItems();
+
+        assertEquals(0, queue.getQueueSize());
+        assertEquals(2, getEvictedEvents(TuneEventQueue.EVICTED_EXPIRED));
+    }
+
+    @Test
+    public void testInvalidQueueLimitsRejected() {
+        int rejected = 0;
+
+        try {
+            tune.setQueueByteBudget(0);
+        } catch (IllegalArgumentException e) {
+            rejected++;
+        }
+        try {
+            tune.setQueueMaxAge(-1);
+        } catch (IllegalArgumentException e) {
+            rejected++;
+        }
+        try {
+            tune.setQueueEvictionPolicy(null);
+        } catch (IllegalArgumentException e) {
+            rejected++;
+        }
+
+        assertEquals(3, rejected);
+    }
+
     @Test
     public void testFailureRequeuedOrderMaintained() {
         // TODO: add request to our failure endpoint, add a second request, assert that the failed request is still first in the queue and blocks the second request
@@ -276,4 +753,23 @@ public class QueueTests extends TuneUnitTest implements ITuneListener {
     public void didFailWithError(String url, JSONObject error) {
         Log("fail with error " + error);
     }
+
+    @Override
+    public synchronized void didEvictEvents(int count, String reason) {
+        evictedEvents.put(reason, getEvictedEvents(reason) + count);
+    }
+
+    private synchronized int getEvictedEvents(String reason) {
+        Integer count = evictedEvents.get(reason);
+        return count == null ? 0 : count;
+    }
+
+    private static JSONObject queuedEvent(String query) throws JSONException {
+        JSONObject event = new JSONObject();
+        event.put("link", "https://877.engine.mobileapptracking.com/serve?ver=4.0&" + query);
+        event.put("data", "");
+        event.put("post_body", new JSONObject());
+        event.put("first_session", false);
+        return event;
+    }
 }
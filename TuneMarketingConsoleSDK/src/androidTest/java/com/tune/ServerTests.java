@@ -216,4 +216,9 @@ public class ServerTests extends TuneUnitTest implements ITuneListener {
             mWaitObject.notify();
         }
     }
+
+    @Override
+    public void didEvictEvents(int count, String reason) {
+        Log("evicted " + count + " events, " + reason);
+    }
 }
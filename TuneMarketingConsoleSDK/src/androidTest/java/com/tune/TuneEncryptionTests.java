@@ -0,0 +1,230 @@
+package com.tune;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.tune.utils.TuneUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TuneEncryptionTests {
+    private static final String logTag = "TUNE Tests";
+    private static final String IV = "heF9BATUfWuISyO8";
+
+    private TuneEncryption encryption;
+
+    @Before
+    public void setUp() throws Exception {
+        encryption = new TuneEncryption(TuneTestConstants.conversionKey, IV);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        String plainText = "connection_type=wifi&revenue=0.0";
+
+        byte[] encrypted = encryption.encrypt(plainText);
+        String decrypted = new String(encryption.decrypt(TuneUtils.bytesToHex(encrypted)));
+
+        assertEquals(0, encrypted.length % 16);
+        assertEquals(plainText, decrypted.trim());
+    }
+
+    @Test
+    public void testMatchesSharedCipher() throws Exception {
+        SharedCipherEncryption shared = new SharedCipherEncryption(TuneTestConstants.conversionKey, IV);
+
+        for (int size : new int[] {1, 15, 16, 17, 1024}) {
+            String plainText = payload(size);
+            assertArrayEquals(shared.encrypt(plainText), encryption.encrypt(plainText));
+            // Reusing the cipher must not carry any state over from the previous call
+            assertArrayEquals(shared.encrypt(plainText), encryption.encrypt(plainText));
+        }
+    }
+
+    @Test
+    public void testEncryptToHexMatchesEncrypt() throws Exception {
+        for (int size : new int[] {1, 15, 16, 17, 1024, 8 * 1024, 40 * 1024, 100}) {
+            String plainText = payload(size);
+            StringBuilder link = new StringBuilder("https://example.com/serve?action=session&data=");
+            String prefix = link.toString();
+
+            encryption.encryptToHex(plainText, link);
+
+            assertEquals(prefix + legacyHex(encryption.encrypt(plainText)), link.toString());
+        }
+
+        // Non-ASCII text does not map one char to one byte and takes the general path,
+        // sixteen two-byte chars keep its byte length a whole number of blocks
+        String accented = payload(16).replaceAll(".", "\u00e9");
+        StringBuilder link = new StringBuilder();
+        encryption.encryptToHex(accented, link);
+        assertEquals(legacyHex(encryption.encrypt(accented)), link.toString());
+    }
+
+    @Test
+    public void testEncryptedPrefixCompletesToEncryptToHex() throws Exception {
+        for (int size : new int[] {1, 15, 16, 17, 100, 1024}) {
+            String plainText = payload(size);
+            for (int split : new int[] {0, 1, size / 2, size - 1}) {
+                TuneEncryption.Prefix prefix = encryption.encryptPrefix(plainText.substring(0, split));
+                StringBuilder link = new StringBuilder();
+                encryption.appendEncryptedHex(prefix, plainText.substring(split), link);
+
+                StringBuilder expected = new StringBuilder();
+                encryption.encryptToHex(plainText, expected);
+                assertEquals("size " + size + " split at " + split, expected.toString(), link.toString());
+            }
+        }
+
+        // The same prefix completes with any text after it
+        TuneEncryption.Prefix prefix = encryption.encryptPrefix(payload(40));
+        StringBuilder link = new StringBuilder();
+        encryption.appendEncryptedHex(prefix, "&system_date=2", link);
+        StringBuilder expected = new StringBuilder();
+        encryption.encryptToHex(payload(40) + "&system_date=2", expected);
+        assertEquals(expected.toString(), link.toString());
+    }
+
+    @Test
+    public void testEncryptToHexLeavesBuilderOnFailure() throws Exception {
+        StringBuilder link = new StringBuilder("prefix");
+        boolean gotException = false;
+        try {
+            encryption.encryptToHex("", link);
+        } catch (Exception e) {
+            gotException = true;
+        }
+
+        assertTrue(gotException);
+        assertEquals("prefix", link.toString());
+    }
+
+    @Test
+    public void testConcurrentEncryptMatchesSerial() throws Exception {
+        final String[] plainTexts = {payload(100), payload(1024), payload(8 * 1024)};
+        final byte[][] expected = new byte[plainTexts.length][];
+        for (int i = 0; i < plainTexts.length; i++) {
+            expected[i] = encryption.encrypt(plainTexts[i]);
+        }
+
+        final AtomicInteger mismatches = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int offset = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        int index = (offset + j) % plainTexts.length;
+                        try {
+                            if (!Arrays.equals(expected[index], encryption.encrypt(plainTexts[index]))) {
+                                mismatches.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            mismatches.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, mismatches.get());
+    }
+
+    @Test
+    public void testThroughputBenchmark() throws Exception {
+        SharedCipherEncryption shared = new SharedCipherEncryption(TuneTestConstants.conversionKey, IV);
+
+        for (int size : new int[] {1024, 8 * 1024}) {
+            String plainText = payload(size);
+            int iterations = 2 * 1024 * 1024 / size;
+
+            // Warm up both paths before timing them
+            for (int i = 0; i < 50; i++) {
+                shared.encrypt(plainText);
+                encryption.encrypt(plainText);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                shared.encrypt(plainText);
+            }
+            long sharedNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                encryption.encrypt(plainText);
+            }
+            long threadLocalNanos = System.nanoTime() - start;
+
+            Log.d(logTag, "encrypt " + size + " bytes x " + iterations
+                    + ": shared cipher " + sharedNanos / iterations + " ns/op"
+                    + ", per-thread cipher " + threadLocalNanos / iterations + " ns/op");
+            assertTrue(sharedNanos > 0 && threadLocalNanos > 0);
+        }
+    }
+
+    // The previous TuneUtils.bytesToHex, to check the lookup table encoding against
+    private static String legacyHex(byte[] data) {
+        StringBuilder str = new StringBuilder();
+        for (byte dataByte : data) {
+            if ((dataByte & 0xFF) < 16) {
+                str.append("0").append(Integer.toHexString(dataByte & 0xFF));
+            } else {
+                str.append(Integer.toHexString(dataByte & 0xFF));
+            }
+        }
+        return str.toString();
+    }
+
+    private static String payload(int size) {
+        StringBuilder builder = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The previous encryption path: one cipher, initialized on every call under a lock.
+     */
+    private static class SharedCipherEncryption {
+        private final IvParameterSpec ivspec;
+        private final SecretKeySpec keyspec;
+        private final Cipher cipher;
+
+        SharedCipherEncryption(String secretKey, String iv) throws Exception {
+            ivspec = new IvParameterSpec(iv.getBytes());
+            keyspec = new SecretKeySpec(secretKey.getBytes(), "AES");
+            cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        }
+
+        synchronized byte[] encrypt(String plainText) throws Exception {
+            cipher.init(Cipher.ENCRYPT_MODE, keyspec, ivspec);
+
+            StringBuilder padded = new StringBuilder(plainText);
+            for (int i = plainText.length() % 16; i < 16; i++) {
+                padded.append(' ');
+            }
+            return cipher.doFinal(padded.toString().getBytes());
+        }
+    }
+}
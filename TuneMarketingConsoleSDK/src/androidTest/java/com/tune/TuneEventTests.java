@@ -0,0 +1,63 @@
+package com.tune;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TuneEventTests {
+
+    @Test
+    public void testJsonRoundTrip() throws Exception {
+        TuneEvent event = new TuneEvent("purchase")
+                .withRevenue(12.34)
+                .withCurrencyCode("USD")
+                .withAdvertiserRefId("ref")
+                .withEventItems(Arrays.asList(new TuneEventItem("item").withQuantity(2).withUnitPrice(1.5).withAttribute3("hat")))
+                .withReceipt("receiptData", "receiptSignature")
+                .withLevel(3)
+                .withRating(4.5)
+                .withDate1(new Date(1000000))
+                .withAttribute5("attribute5");
+
+        // Spilled events are written as a string and read back
+        TuneEvent copy = TuneEvent.fromJson(new JSONObject(event.toJson().toString()));
+
+        assertEquals("purchase", copy.getEventName());
+        assertEquals(12.34, copy.getRevenue(), 0);
+        assertEquals("USD", copy.getCurrencyCode());
+        assertEquals("ref", copy.getRefId());
+        assertEquals("receiptData", copy.getReceiptData());
+        assertEquals("receiptSignature", copy.getReceiptSignature());
+        assertEquals(3, copy.getLevel());
+        assertEquals(4.5, copy.getRating(), 0);
+        assertEquals(new Date(1000000), copy.getDate1());
+        assertNull(copy.getDate2());
+        assertNull(copy.getContentId());
+        assertEquals("attribute5", copy.getAttribute5());
+
+        assertEquals(1, copy.getEventItems().size());
+        assertEquals(event.getEventItems().get(0).toJson().toString(), copy.getEventItems().get(0).toJson().toString());
+    }
+
+    @Test
+    public void testJsonWithoutNameRejected() throws Exception {
+        boolean gotException = false;
+        try {
+            TuneEvent.fromJson(new JSONObject());
+        } catch (Exception e) {
+            gotException = true;
+        }
+
+        assertTrue(gotException);
+    }
+}
@@ -116,6 +116,11 @@ public class TuneMakeRequestTests extends TuneUnitTest {
             public void didFailWithError(String url, JSONObject error) {
 
             }
+
+            @Override
+            public void didEvictEvents(int count, String reason) {
+
+            }
         });
 
         try {
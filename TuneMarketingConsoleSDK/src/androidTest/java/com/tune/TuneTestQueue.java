@@ -2,6 +2,8 @@ package com.tune;
 
 import android.content.Context;
 
+import com.tune.queue.TuneRetryMetadata;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -20,8 +22,13 @@ public class TuneTestQueue extends TuneEventQueue {
     }
     
     public synchronized JSONObject getQueueItem( int index ) throws JSONException {
-        String key = Integer.toString(index);
-        String eventJson = getKeyFromQueue(key);
+        // Queue positions in tests are 1-based, oldest first
+        String eventJson = getItemFromQueue(index - 1);
         return new JSONObject(eventJson);
     }
+
+    public synchronized TuneRetryMetadata getQueueItemMetadata( int index ) {
+        // Queue positions in tests are 1-based, oldest first
+        return getItemMetadata(index - 1);
+    }
 }
@@ -5,6 +5,7 @@ import android.accounts.AccountManager;
 import android.content.Context;
 
 import com.tune.location.TuneLocationListener;
+import com.tune.queue.TuneQueuePriority;
 import com.tune.utils.TuneSharedPrefsDelegate;
 
 import org.json.JSONObject;
@@ -41,6 +42,7 @@ public class TuneTestWrapper extends TuneInternal {
 
         tune.locationListener = new TuneLocationListener(context);
         tune.eventQueue = new TuneTestQueue(context, tune);
+        tune.openEventQueue(context);
 
         tune.disableLocationAutoCollection();
 
@@ -81,8 +83,13 @@ public class TuneTestWrapper extends TuneInternal {
     }
 
     @Override
-    public void addEventToQueue(String link, String data, JSONObject postBody, boolean firstSession) {
-        super.addEventToQueue(link, data, postBody, false);
+    public void addEventToQueue(String link, String data, JSONObject postBody, boolean firstSession, TuneQueuePriority priority) {
+        super.addEventToQueue(link, data, postBody, false, priority);
+    }
+
+    @Override
+    protected void addEventToBatch(TuneEventQueue.Add batch, String link, String data, JSONObject postBody, boolean firstSession, TuneQueuePriority priority) {
+        super.addEventToBatch(batch, link, data, postBody, false, priority);
     }
 
     @Override
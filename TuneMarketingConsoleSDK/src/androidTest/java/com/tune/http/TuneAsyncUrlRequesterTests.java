@@ -0,0 +1,129 @@
+package com.tune.http;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tune.TuneConstants;
+import com.tune.mocks.MockUrlRequester;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TuneAsyncUrlRequesterTests {
+
+    @Test
+    public void testCallbackReceivesResponse() throws Exception {
+        TuneAsyncUrlRequester requester = new TuneAsyncUrlRequester(new MockUrlRequester());
+        final AtomicReference<JSONObject> response = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        TuneRequest request = requester.requestUrl("https://some.url", null, false, new TuneRequestCallback() {
+            @Override
+            public void onResponse(JSONObject result) {
+                response.set(result);
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception error) {
+                done.countDown();
+            }
+        });
+
+        assertTrue("callback should be called", done.await(1, TimeUnit.SECONDS));
+        assertEquals(TuneConstants.STRING_TRUE, response.get().getString(TuneConstants.SERVER_RESPONSE_SUCCESS));
+        assertFalse(request.isCancelled());
+        requester.shutdown();
+    }
+
+    @Test
+    public void testCancelledRequestDoesNotCallBack() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        TuneAsyncUrlRequester requester = new TuneAsyncUrlRequester(new MockUrlRequester() {
+            @Override
+            public synchronized JSONObject requestUrl(String url, JSONObject json, boolean debugMode) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // Cancelled, answer anyway like a blocking read would
+                }
+                return super.requestUrl(url, json, debugMode);
+            }
+        });
+        final AtomicReference<JSONObject> response = new AtomicReference<>();
+
+        TuneRequest request = requester.requestUrl("https://some.url", null, false, new TuneRequestCallback() {
+            @Override
+            public void onResponse(JSONObject result) {
+                response.set(result);
+            }
+
+            @Override
+            public void onFailure(Exception error) {
+            }
+        });
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        request.cancel();
+        release.countDown();
+        Thread.sleep(200);
+
+        assertTrue(request.isCancelled());
+        assertNull("cancelled request should not call back", response.get());
+        requester.shutdown();
+    }
+
+    @Test
+    public void testShutDownRequesterCallsOnFailure() throws Exception {
+        TuneAsyncUrlRequester requester = new TuneAsyncUrlRequester(new MockUrlRequester());
+        requester.shutdown();
+
+        assertFailure(requester);
+    }
+
+    @Test
+    public void testThrowingRequesterCallsOnFailure() throws Exception {
+        TuneAsyncUrlRequester requester = new TuneAsyncUrlRequester(new MockUrlRequester() {
+            @Override
+            public synchronized JSONObject requestUrl(String url, JSONObject json, boolean debugMode) {
+                throw new IllegalStateException("broken requester");
+            }
+        });
+
+        assertFailure(requester);
+        requester.shutdown();
+    }
+
+    private void assertFailure(TuneAsyncUrlRequester requester) throws Exception {
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        requester.requestUrl("https://some.url", null, false, new TuneRequestCallback() {
+            @Override
+            public void onResponse(JSONObject result) {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception error) {
+                failure.set(error);
+                done.countDown();
+            }
+        });
+
+        assertTrue("callback should be called", done.await(1, TimeUnit.SECONDS));
+        assertNotNull("request should fail", failure.get());
+    }
+}
@@ -0,0 +1,86 @@
+package com.tune.http;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TuneCircuitBreakerTests {
+    private static final String HOST = "12345.engine.mobileapptracking.com";
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        TuneCircuitBreaker breaker = new TuneCircuitBreaker(3, 60000);
+
+        breaker.recordFailure(HOST);
+        breaker.recordFailure(HOST);
+        breaker.recordSuccess(HOST);
+        breaker.recordFailure(HOST);
+        breaker.recordFailure(HOST);
+        assertEquals("a success should reset the failure count", TuneCircuitBreaker.State.CLOSED, breaker.getState(HOST));
+        assertTrue(breaker.allowRequest(HOST));
+
+        breaker.recordFailure(HOST);
+        assertEquals(TuneCircuitBreaker.State.OPEN, breaker.getState(HOST));
+        assertFalse("requests should fail fast while open", breaker.allowRequest(HOST));
+        assertTrue("other hosts should not be affected", breaker.allowRequest("deeplink.mobileapptracking.com"));
+    }
+
+    @Test
+    public void testHalfOpenLetsOneProbeThrough() throws Exception {
+        TuneCircuitBreaker breaker = new TuneCircuitBreaker(1, 100);
+        breaker.recordFailure(HOST);
+        assertFalse(breaker.allowRequest(HOST));
+
+        Thread.sleep(150);
+        assertTrue("a probe should be let through", breaker.allowRequest(HOST));
+        assertEquals(TuneCircuitBreaker.State.HALF_OPEN, breaker.getState(HOST));
+        assertFalse("only one probe at a time", breaker.allowRequest(HOST));
+
+        breaker.recordSuccess(HOST);
+        assertEquals(TuneCircuitBreaker.State.CLOSED, breaker.getState(HOST));
+        assertTrue(breaker.allowRequest(HOST));
+    }
+
+    @Test
+    public void testFailedProbeReopens() throws Exception {
+        TuneCircuitBreaker breaker = new TuneCircuitBreaker(1, 100);
+        breaker.recordFailure(HOST);
+        Thread.sleep(150);
+        assertTrue(breaker.allowRequest(HOST));
+
+        breaker.recordFailure(HOST);
+        assertEquals(TuneCircuitBreaker.State.OPEN, breaker.getState(HOST));
+        assertFalse("reopened circuit should wait again before probing", breaker.allowRequest(HOST));
+    }
+
+    @Test
+    public void testStateChangesObservable() throws Exception {
+        final List<String> changes = new ArrayList<>();
+        TuneCircuitBreaker breaker = new TuneCircuitBreaker(1, 100);
+        breaker.setListener(new TuneCircuitBreaker.Listener() {
+            @Override
+            public void onStateChanged(String host, TuneCircuitBreaker.State previous, TuneCircuitBreaker.State state) {
+                changes.add(host + ": " + previous + " -> " + state);
+            }
+        });
+
+        breaker.recordFailure(HOST);
+        Thread.sleep(150);
+        breaker.allowRequest(HOST);
+        breaker.recordSuccess(HOST);
+
+        assertEquals(3, changes.size());
+        assertEquals(HOST + ": CLOSED -> OPEN", changes.get(0));
+        assertEquals(HOST + ": OPEN -> HALF_OPEN", changes.get(1));
+        assertEquals(HOST + ": HALF_OPEN -> CLOSED", changes.get(2));
+    }
+}
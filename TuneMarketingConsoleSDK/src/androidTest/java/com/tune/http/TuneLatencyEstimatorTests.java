@@ -0,0 +1,99 @@
+package com.tune.http;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tune.TuneConstants;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TuneLatencyEstimatorTests {
+
+    @Test
+    public void testInitialTimeout() {
+        TuneLatencyEstimator estimator = new TuneLatencyEstimator();
+        assertEquals(TuneConstants.TIMEOUT_INITIAL, estimator.getTimeout("wifi"));
+        assertTrue(estimator.getEstimates().isEmpty());
+    }
+
+    @Test
+    public void testTimeoutFollowsLatency() {
+        TuneLatencyEstimator estimator = new TuneLatencyEstimator(100, 60000);
+        estimator.recordLatency("wifi", 1000);
+
+        // First sample: latency 1000, variation 500, timeout 1000 + 4 * 500
+        assertEquals(3000, estimator.getTimeout("wifi"));
+
+        for (int i = 0; i < 50; i++) {
+            estimator.recordLatency("wifi", 1000);
+        }
+        TuneLatencyEstimate estimate = estimator.getEstimates().get("wifi");
+        assertEquals(1000, estimate.getSmoothedLatency());
+        assertTrue("variation should decay for steady latency", estimate.getLatencyVariation() < 10);
+        assertEquals(51, estimate.getSampleCount());
+        assertTrue(estimator.getTimeout("wifi") < 1100);
+    }
+
+    @Test
+    public void testTimeoutsKeptWithinBounds() {
+        TuneLatencyEstimator estimator = new TuneLatencyEstimator(2000, 10000);
+        estimator.recordLatency("wifi", 10);
+        estimator.recordLatency("mobile_edge", 30000);
+
+        assertEquals(2000, estimator.getTimeout("wifi"));
+        assertEquals(10000, estimator.getTimeout("mobile_edge"));
+
+        estimator.setBounds(1000, 5000);
+        assertEquals(1000, estimator.getTimeout("wifi"));
+        assertEquals(5000, estimator.getTimeout("mobile_edge"));
+    }
+
+    @Test
+    public void testInvalidBoundsRejected() {
+        boolean gotException = false;
+
+        try {
+            new TuneLatencyEstimator(5000, 1000);
+        } catch (IllegalArgumentException e) {
+            gotException = true;
+        }
+
+        assertTrue(gotException);
+    }
+
+    @Test
+    public void testTimeoutBacksOffUntilResponse() {
+        TuneLatencyEstimator estimator = new TuneLatencyEstimator(100, 60000);
+        estimator.recordLatency("wifi", 1000);
+        assertEquals(3000, estimator.getTimeout("wifi"));
+
+        estimator.recordTimeout("wifi");
+        assertEquals(6000, estimator.getTimeout("wifi"));
+        estimator.recordTimeout("wifi");
+        assertEquals(12000, estimator.getTimeout("wifi"));
+        for (int i = 0; i < 10; i++) {
+            estimator.recordTimeout("wifi");
+        }
+        assertEquals("backoff should stop at the ceiling", 60000, estimator.getTimeout("wifi"));
+
+        estimator.recordLatency("wifi", 1000);
+        assertEquals("a response should end the backoff", 0, estimator.getEstimates().get("wifi").getTimeoutCount());
+        assertTrue(estimator.getTimeout("wifi") < 6000);
+    }
+
+    @Test
+    public void testNetworksEstimatedSeparately() {
+        TuneLatencyEstimator estimator = new TuneLatencyEstimator(100, 60000);
+        estimator.recordLatency("wifi", 200);
+        estimator.recordTimeout("mobile_lte");
+
+        assertEquals(600, estimator.getTimeout("wifi"));
+        assertEquals(2 * TuneConstants.TIMEOUT_INITIAL, estimator.getTimeout("mobile_lte"));
+        assertEquals(TuneConstants.TIMEOUT_INITIAL, estimator.getTimeout("wifi_unseen"));
+        assertEquals(2, estimator.getEstimates().size());
+    }
+}
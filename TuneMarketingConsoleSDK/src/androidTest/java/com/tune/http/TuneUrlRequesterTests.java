@@ -0,0 +1,219 @@
+package com.tune.http;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tune.TuneConstants;
+import com.tune.mocks.MockTuneServer;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TuneUrlRequesterTests {
+    private MockTuneServer server;
+    private TuneUrlRequester requester;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockTuneServer();
+        requester = new TuneUrlRequester();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutDown();
+    }
+
+    @Test
+    public void testSmallBodySentUncompressed() throws Exception {
+        JSONObject body = new JSONObject().put("key", "value");
+        JSONObject response = requester.requestUrl(server.getUrl() + "/serve?action=conversion", body, false);
+
+        assertTrue(response.has(TuneConstants.SERVER_RESPONSE_SUCCESS));
+        MockTuneServer.Request request = server.getRequests().get(0);
+        assertNull(request.headers.get("content-encoding"));
+        assertEquals(body.toString(), request.body);
+    }
+
+    @Test
+    public void testLargeBodySentCompressed() throws Exception {
+        JSONObject body = largeBody();
+        JSONObject response = requester.requestUrl(server.getUrl() + "/serve?action=conversion", body, false);
+
+        assertTrue(response.has(TuneConstants.SERVER_RESPONSE_SUCCESS));
+        MockTuneServer.Request request = server.getRequests().get(0);
+        assertEquals("gzip", request.headers.get("content-encoding"));
+        assertEquals("body should be streamed without a length", "chunked", request.headers.get("transfer-encoding"));
+        assertEquals(body.toString(), request.body);
+    }
+
+    @Test
+    public void testCompressionCanBeDisabled() throws Exception {
+        requester.setCompressionEnabled(false);
+
+        JSONObject body = largeBody();
+        requester.requestUrl(server.getUrl() + "/serve?action=conversion", body, false);
+
+        MockTuneServer.Request request = server.getRequests().get(0);
+        assertNull(request.headers.get("content-encoding"));
+        assertEquals(body.toString(), request.body);
+    }
+
+    @Test
+    public void testFallsBackWhenServerRejectsCompression() throws Exception {
+        server.rejectCompressedBodies();
+
+        JSONObject body = largeBody();
+        JSONObject response = requester.requestUrl(server.getUrl() + "/serve?action=conversion", body, false);
+        assertTrue("uncompressed resend should succeed", response.has(TuneConstants.SERVER_RESPONSE_SUCCESS));
+
+        requester.requestUrl(server.getUrl() + "/serve?action=conversion", body, false);
+
+        List<MockTuneServer.Request> requests = server.getRequests();
+        assertEquals(3, requests.size());
+        assertEquals("gzip", requests.get(0).headers.get("content-encoding"));
+        assertFalse(requests.get(1).headers.containsKey("content-encoding"));
+        assertFalse("server should be remembered as not reading compressed bodies", requests.get(2).headers.containsKey("content-encoding"));
+    }
+
+    @Test
+    public void testCompressedResponseRead() throws Exception {
+        JSONObject response = requester.requestUrl(server.getUrl() + "/serve?action=conversion", null, false);
+
+        assertEquals("gzip", server.getRequests().get(0).headers.get("accept-encoding"));
+        assertEquals(TuneConstants.STRING_TRUE, response.getString(TuneConstants.SERVER_RESPONSE_SUCCESS));
+    }
+
+    @Test
+    public void testUnusedResponseFieldsDropped() throws Exception {
+        server.padResponses(1000);
+
+        JSONObject response = requester.requestUrl(server.getUrl() + "/serve?action=conversion", null, false);
+
+        assertTrue(response.has(TuneConstants.SERVER_RESPONSE_SUCCESS));
+        assertFalse(response.has("padding"));
+    }
+
+    @Test
+    public void testOversizedResponseRetried() throws Exception {
+        server.padResponses(2 * TuneConstants.MAX_RESPONSE_SIZE);
+
+        JSONObject response = requester.requestUrl(server.getUrl() + "/serve?action=conversion", null, false);
+
+        assertNotNull("oversized response should not drop the request", response);
+        assertFalse(response.has(TuneConstants.SERVER_RESPONSE_SUCCESS));
+    }
+
+    @Test
+    public void testLatencyRecorded() throws Exception {
+        server.setResponseDelay(300);
+
+        requester.requestUrl(server.getUrl() + "/serve?action=conversion", null, false);
+
+        TuneLatencyEstimate estimate = requester.getLatencyEstimator().getEstimates().get(TuneLatencyEstimator.NETWORK_UNKNOWN);
+        assertEquals(1, estimate.getSampleCount());
+        assertTrue("latency should include the server delay, was " + estimate.getSmoothedLatency(), estimate.getSmoothedLatency() >= 300);
+    }
+
+    @Test
+    public void testSlowServerTimesOutAfterAdaptedTimeout() throws Exception {
+        requester = new TuneUrlRequester(new TuneLatencyEstimator(200, 1000));
+        requester.requestUrl(server.getUrl() + "/serve?action=conversion", null, false);
+        assertEquals("a fast response should bring the timeout down to the floor", 200, requester.getLatencyEstimator().getTimeout(TuneLatencyEstimator.NETWORK_UNKNOWN));
+
+        server.setResponseDelay(2000);
+        long start = System.currentTimeMillis();
+        JSONObject response = requester.requestUrl(server.getUrl() + "/serve?action=conversion", null, false);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertFalse("timed out request should be retried", response.has(TuneConstants.SERVER_RESPONSE_SUCCESS));
+        assertTrue("request should give up well before the server answers, took " + elapsed, elapsed < 1500);
+        TuneLatencyEstimate estimate = requester.getLatencyEstimator().getEstimates().get(TuneLatencyEstimator.NETWORK_UNKNOWN);
+        assertEquals(1, estimate.getTimeoutCount());
+        assertEquals("timeout should back off", 400, estimate.getTimeout());
+    }
+
+    @Test
+    public void testBackpressureStatusPassedOn() throws Exception {
+        server.failWithStatus(503, "120");
+
+        JSONObject response = requester.requestUrl(server.getUrl() + "/serve?action=conversion", null, false);
+
+        assertFalse(response.has(TuneConstants.SERVER_RESPONSE_SUCCESS));
+        assertEquals(503, response.getInt(TuneConstants.SERVER_RESPONSE_HTTP_STATUS));
+        assertEquals(120 * 1000, response.getLong(TuneConstants.SERVER_RESPONSE_RETRY_AFTER));
+    }
+
+    @Test
+    public void testStatusPassedOnWithoutRetryAfter() throws Exception {
+        server.failWithStatus(429, null);
+
+        JSONObject response = requester.requestUrl(server.getUrl() + "/serve?action=conversion", null, false);
+
+        assertEquals(429, response.getInt(TuneConstants.SERVER_RESPONSE_HTTP_STATUS));
+        assertFalse(response.has(TuneConstants.SERVER_RESPONSE_RETRY_AFTER));
+    }
+
+    @Test
+    public void testOpenCircuitFailsFastWithoutSending() throws Exception {
+        requester = new TuneUrlRequester(new TuneLatencyEstimator(), new TuneCircuitBreaker(2, 60000));
+        server.failWithStatus(500, null);
+
+        requester.requestUrl(server.getUrl() + "/serve?action=conversion", null, false);
+        requester.requestUrl(server.getUrl() + "/serve?action=conversion", null, false);
+        assertEquals(TuneCircuitBreaker.State.OPEN, requester.getCircuitBreaker().getState("127.0.0.1"));
+
+        JSONObject response = requester.requestUrl(server.getUrl() + "/serve?action=conversion", null, false);
+
+        assertFalse("request should be retried later", response.has(TuneConstants.SERVER_RESPONSE_SUCCESS));
+        assertEquals("request should not have reached the server", 2, server.getRequests().size());
+    }
+
+    @Test
+    public void testWarmUpConnects() throws Exception {
+        assertTrue(requester.warmUp(server.getUrl() + "/", false));
+
+        MockTuneServer.Request request = server.getRequests().get(0);
+        assertEquals("HEAD", request.method);
+        assertEquals("/", request.path);
+    }
+
+    @Test
+    public void testWarmUpFailureReported() throws Exception {
+        server.shutDown();
+
+        assertFalse(requester.warmUp(server.getUrl() + "/", false));
+    }
+
+    @Test
+    public void testWarmUpRespectsOpenCircuit() throws Exception {
+        TuneCircuitBreaker breaker = new TuneCircuitBreaker(1, 60000);
+        requester = new TuneUrlRequester(new TuneLatencyEstimator(), breaker);
+        server.failWithStatus(500, null);
+
+        assertTrue("warm-up should reach the failing server", requester.warmUp(server.getUrl() + "/", false));
+        assertEquals("server error should count as a failure", TuneCircuitBreaker.State.OPEN, breaker.getState("127.0.0.1"));
+
+        assertFalse(requester.warmUp(server.getUrl() + "/", false));
+        assertEquals("warm-up should not have reached the server", 1, server.getRequests().size());
+    }
+
+    private static JSONObject largeBody() throws Exception {
+        StringBuilder receipt = new StringBuilder();
+        while (receipt.length() < 2 * TuneConstants.GZIP_THRESHOLD) {
+            receipt.append("receipt data ");
+        }
+        return new JSONObject().put("store_iap_data", receipt.toString());
+    }
+}
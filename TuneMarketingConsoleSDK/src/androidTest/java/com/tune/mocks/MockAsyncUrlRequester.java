@@ -0,0 +1,155 @@
+package com.tune.mocks;
+
+import com.tune.TuneDeeplinkListener;
+import com.tune.http.AsyncUrlRequester;
+import com.tune.http.TuneRequest;
+import com.tune.http.TuneRequestCallback;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Async twin of {@link MockUrlRequester}.
+ * <br>
+ * Answers with the responses of a {@link MockUrlRequester}, each on its own thread.  While held,
+ * requests stay in flight until released, so tests can look at the SDK with requests outstanding.
+ */
+public class MockAsyncUrlRequester implements AsyncUrlRequester {
+    private final MockUrlRequester responses;
+    private final List<PendingRequest> pending = new ArrayList<>();
+    private boolean holdRequests;
+    private int requestCount;
+    private int cancelledCount;
+
+    public MockAsyncUrlRequester() {
+        this(new MockUrlRequester());
+    }
+
+    public MockAsyncUrlRequester(MockUrlRequester responses) {
+        this.responses = responses;
+    }
+
+    public MockUrlRequester getResponses() {
+        return responses;
+    }
+
+    @Override
+    public TuneRequest requestDeeplink(final String deeplinkURL, final String conversionKey, final TuneDeeplinkListener listener) {
+        return start(new Runnable() {
+            @Override
+            public void run() {
+                responses.requestDeeplink(deeplinkURL, conversionKey, listener);
+            }
+        });
+    }
+
+    @Override
+    public TuneRequest requestUrl(final String url, final JSONObject json, final boolean debugMode, final TuneRequestCallback callback) {
+        return start(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResponse(responses.requestUrl(url, json, debugMode));
+            }
+        });
+    }
+
+    @Override
+    public TuneRequest requestBatch(final String url, final JSONObject batch, final boolean debugMode, final TuneRequestCallback callback) {
+        return start(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResponse(responses.requestBatch(url, batch, debugMode));
+            }
+        });
+    }
+
+    /**
+     * Keeps requests in flight until {@link #releaseRequests()} is called.
+     */
+    public synchronized void holdRequests() {
+        holdRequests = true;
+    }
+
+    /**
+     * Completes every held request, and stops holding new ones.
+     */
+    public void releaseRequests() {
+        List<PendingRequest> released;
+        synchronized (this) {
+            holdRequests = false;
+            released = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (PendingRequest request : released) {
+            request.complete();
+        }
+    }
+
+    public synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public synchronized int getCancelledCount() {
+        return cancelledCount;
+    }
+
+    private TuneRequest start(Runnable response) {
+        PendingRequest request = new PendingRequest(response);
+        synchronized (this) {
+            requestCount++;
+            if (holdRequests) {
+                pending.add(request);
+                return request;
+            }
+        }
+        request.complete();
+        return request;
+    }
+
+    private class PendingRequest implements TuneRequest {
+        private final Runnable response;
+        private boolean cancelled;
+
+        PendingRequest(Runnable response) {
+            this.response = response;
+        }
+
+        void complete() {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (MockAsyncUrlRequester.this) {
+                        if (cancelled) {
+                            return;
+                        }
+                    }
+                    response.run();
+                }
+            }).start();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (MockAsyncUrlRequester.this) {
+                if (!cancelled) {
+                    cancelled = true;
+                    cancelledCount++;
+                    pending.remove(this);
+                }
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            synchronized (MockAsyncUrlRequester.this) {
+                return cancelled;
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.tune.mocks;
+
+import com.tune.TuneConstants;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local stand-in for the TUNE measurement server.
+ * <br>
+ * Answers {@code /serve} requests with a success response, and {@code /serve_batch} requests with
+ * one result per event in the batch.  Events whose link contains one of the configured failure
+ * markers get an empty result, which the SDK treats as a retryable failure.  Responses are gzipped
+ * for clients that accept it.
+ */
+public class MockTuneServer {
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+    private final List<String> failLinksContaining = new ArrayList<>();
+    private final List<Request> requests = new ArrayList<>();
+    private boolean rejectCompressedBodies;
+    private int responsePadding;
+    private long responseDelay;
+    private int failureStatus;
+    private String failureRetryAfter;
+
+    /**
+     * A request received by the server.
+     */
+    public static class Request {
+        public final String method;
+        public final String path;
+        public final Map<String, String> headers;
+        // Request body, decompressed if it was sent gzipped
+        public final String body;
+
+        Request(String method, String path, Map<String, String> headers, String body) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    public MockTuneServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        handle(serverSocket.accept());
+                    } catch (IOException e) {
+                        // server closed
+                    }
+                }
+            }
+        }, "MockTuneServer");
+        acceptThread.start();
+    }
+
+    /**
+     * @return base url of the server, without a trailing slash
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * Fail every event whose link contains the given string.
+     * @param marker Substring of the link
+     */
+    public synchronized void failLinksContaining(String marker) {
+        failLinksContaining.add(marker);
+    }
+
+    /**
+     * Answer requests with a gzip-compressed body with HTTP 415, like a server that can't read them.
+     */
+    public synchronized void rejectCompressedBodies() {
+        rejectCompressedBodies = true;
+    }
+
+    /**
+     * Pads each response with an unused field of the given length.
+     * @param length Number of characters to pad responses with
+     */
+    public synchronized void padResponses(int length) {
+        responsePadding = length;
+    }
+
+    /**
+     * Waits the given time after reading each request before answering it, like a slow network.
+     * @param delay Delay in milliseconds
+     */
+    public synchronized void setResponseDelay(long delay) {
+        responseDelay = delay;
+    }
+
+    /**
+     * Answers every request with the given HTTP status, like a server under load.
+     * @param status HTTP status
+     * @param retryAfter Value of the Retry-After header, or null for none
+     */
+    public synchronized void failWithStatus(int status, String retryAfter) {
+        failureStatus = status;
+        failureRetryAfter = retryAfter;
+    }
+
+    public synchronized List<Request> getRequests() {
+        return new ArrayList<>(requests);
+    }
+
+    public void shutDown() {
+        try {
+            serverSocket.close();
+            acceptThread.join();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            String[] requestLine = readLine(in).split(" ");
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = readLine(in)).length() > 0) {
+                int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH), line.substring(colon + 1).trim());
+            }
+
+            byte[] body = new byte[0];
+            if (headers.containsKey("content-length")) {
+                body = new byte[Integer.parseInt(headers.get("content-length"))];
+                in.readFully(body);
+            } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                body = readChunked(in);
+            }
+            boolean compressed = "gzip".equals(headers.get("content-encoding"));
+            if (compressed) {
+                body = gunzip(body);
+            }
+
+            String path = requestLine[1];
+            int query = path.indexOf('?');
+            if (query >= 0) {
+                path = path.substring(0, query);
+            }
+
+            Request request = new Request(requestLine[0], path, headers, new String(body, "UTF-8"));
+            synchronized (this) {
+                requests.add(request);
+            }
+
+            boolean acceptsGzip = headers.containsKey("accept-encoding") && headers.get("accept-encoding").contains("gzip");
+            long delay;
+            synchronized (this) {
+                delay = responseDelay;
+            }
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            synchronized (this) {
+                if (compressed && rejectCompressedBodies) {
+                    respond(socket.getOutputStream(), 415, "{}", false);
+                    return;
+                }
+                if (failureStatus != 0) {
+                    respond(socket.getOutputStream(), failureStatus, "{}", false, failureRetryAfter != null ? "Retry-After: " + failureRetryAfter + "\r\n" : "");
+                    return;
+                }
+            }
+            respond(socket.getOutputStream(), 200, buildResponse(request, requestLine[1]).toString(), acceptsGzip);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private synchronized JSONObject buildResponse(Request request, String target) throws JSONException {
+        if ("/serve_batch".equals(request.path)) {
+            JSONArray events = new JSONObject(request.body).getJSONArray(TuneConstants.BATCH_REQUEST_EVENTS);
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < events.length(); i++) {
+                results.put(buildResult(events.getJSONObject(i).getString("link")));
+            }
+            JSONObject response = new JSONObject();
+            response.put(TuneConstants.SERVER_RESPONSE_RESULTS, results);
+            return pad(response);
+        }
+        return pad(buildResult(target));
+    }
+
+    private JSONObject pad(JSONObject response) throws JSONException {
+        if (responsePadding > 0) {
+            StringBuilder padding = new StringBuilder(responsePadding);
+            while (padding.length() < responsePadding) {
+                padding.append('x');
+            }
+            response.put("padding", padding.toString());
+        }
+        return response;
+    }
+
+    private JSONObject buildResult(String link) throws JSONException {
+        JSONObject result = new JSONObject();
+        for (String marker : failLinksContaining) {
+            if (link.contains(marker)) {
+                return result;
+            }
+        }
+        result.put(TuneConstants.SERVER_RESPONSE_SUCCESS, TuneConstants.STRING_TRUE);
+        return result;
+    }
+
+    private static void respond(OutputStream out, int status, String body, boolean gzip) throws IOException {
+        respond(out, status, body, gzip, "");
+    }
+
+    private static void respond(OutputStream out, int status, String body, boolean gzip, String extraHeaders) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        if (gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream gzipOut = new GZIPOutputStream(compressed);
+            gzipOut.write(bytes);
+            gzipOut.close();
+            bytes = compressed.toByteArray();
+        }
+        String head = "HTTP/1.1 " + status + " OK\r\n"
+                + "Content-Type: application/json\r\n"
+                + (gzip ? "Content-Encoding: gzip\r\n" : "")
+                + extraHeaders
+                + "Content-Length: " + bytes.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        out.write(head.getBytes("UTF-8"));
+        out.write(bytes);
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static byte[] readChunked(DataInputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String sizeLine = readLine(in);
+            int extension = sizeLine.indexOf(';');
+            int size = Integer.parseInt((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16);
+            if (size == 0) {
+                // Skip trailers up to the closing empty line
+                while (readLine(in).length() > 0) {
+                    // ignore
+                }
+                return body.toByteArray();
+            }
+            byte[] chunk = new byte[size];
+            in.readFully(chunk);
+            body.write(chunk);
+            readLine(in);
+        }
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
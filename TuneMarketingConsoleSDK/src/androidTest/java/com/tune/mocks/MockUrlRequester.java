@@ -2,18 +2,27 @@ package com.tune.mocks;
 
 import com.tune.TuneConstants;
 import com.tune.TuneDeeplinkListener;
-import com.tune.http.UrlRequester;
+import com.tune.http.BatchUrlRequester;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * Created by gowie on 2/8/16.
  */
-public class MockUrlRequester implements UrlRequester {
+public class MockUrlRequester implements BatchUrlRequester {
 
     private boolean requestUrlShouldSucceed;
     private JSONObject fakeResponse = new JSONObject();
+    private Set<Integer> failedBatchItems = new HashSet<>();
+    private int batchRequestCount;
+    private int requestCount;
+    private int failureStatus;
+    private long failureRetryAfter = -1;
 
     public MockUrlRequester() {
         requestUrlShouldSucceed = true;
@@ -33,12 +42,20 @@ public class MockUrlRequester implements UrlRequester {
     }
 
     @Override
-    public JSONObject requestUrl(String url, JSONObject json, boolean debugMode) {
+    public synchronized JSONObject requestUrl(String url, JSONObject json, boolean debugMode) {
         JSONObject response = fakeResponse;
+        requestCount++;
 
         try {
             if (requestUrlShouldSucceed) {
                 response.put(TuneConstants.SERVER_RESPONSE_SUCCESS, TuneConstants.STRING_TRUE);
+            } else if (failureStatus != 0) {
+                // Failed with an HTTP status, like TuneUrlRequester reports it
+                response = new JSONObject();
+                response.put(TuneConstants.SERVER_RESPONSE_HTTP_STATUS, failureStatus);
+                if (failureRetryAfter >= 0) {
+                    response.put(TuneConstants.SERVER_RESPONSE_RETRY_AFTER, failureRetryAfter);
+                }
             } else {
                 response.put("error", "error");
             }
@@ -49,14 +66,61 @@ public class MockUrlRequester implements UrlRequester {
         return response;
     }
 
+    @Override
+    public JSONObject requestBatch(String url, JSONObject batch, boolean debugMode) {
+        batchRequestCount++;
+
+        JSONObject response = new JSONObject();
+        try {
+            JSONArray events = batch.getJSONArray(TuneConstants.BATCH_REQUEST_EVENTS);
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < events.length(); i++) {
+                JSONObject result = new JSONObject();
+                if (requestUrlShouldSucceed && !failedBatchItems.contains(i)) {
+                    result.put(TuneConstants.SERVER_RESPONSE_SUCCESS, TuneConstants.STRING_TRUE);
+                } else {
+                    result.put("error", "error");
+                }
+                results.put(result);
+            }
+            response.put(TuneConstants.SERVER_RESPONSE_RESULTS, results);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        return response;
+    }
+
     public void setRequestUrlShouldSucceed(boolean requestUrlShouldSucceed) {
         this.requestUrlShouldSucceed = requestUrlShouldSucceed;
     }
 
+    /**
+     * Makes failed requests report an HTTP status, and optionally a Retry-After wait.
+     * @param status HTTP status
+     * @param retryAfter Wait in milliseconds, or a negative value for none
+     */
+    public synchronized void setFailureStatus(int status, long retryAfter) {
+        this.failureStatus = status;
+        this.failureRetryAfter = retryAfter;
+    }
+
+    public synchronized int getRequestCount() {
+        return requestCount;
+    }
+
     public void includeInFakeResponse(String key, String value) throws Exception {
         fakeResponse.put(key, value);
     }
 
+    public void setFailedBatchItems(Set<Integer> failedBatchItems) {
+        this.failedBatchItems = failedBatchItems;
+    }
+
+    public int getBatchRequestCount() {
+        return batchRequestCount;
+    }
+
     public void clearFakeResponse() {
         this.fakeResponse = new JSONObject();
     }
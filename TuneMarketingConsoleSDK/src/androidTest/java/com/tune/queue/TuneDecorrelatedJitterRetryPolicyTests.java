@@ -0,0 +1,63 @@
+package com.tune.queue;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TuneDecorrelatedJitterRetryPolicyTests {
+
+    @Test
+    public void testDelaysStayWithinBounds() {
+        TuneDecorrelatedJitterRetryPolicy policy = new TuneDecorrelatedJitterRetryPolicy(1000, 60000);
+        for (int failures = 1; failures <= 50; failures++) {
+            long delay = policy.getRetryDelay(failures);
+            assertTrue("delay " + delay + " below base", delay >= 1000);
+            assertTrue("delay " + delay + " above max", delay <= 60000);
+        }
+    }
+
+    @Test
+    public void testNextDelayAtMostTriplesPrevious() {
+        Random random = new Random(42);
+        long previous = 1000;
+        for (int i = 0; i < 100; i++) {
+            long delay = TuneDecorrelatedJitterRetryPolicy.nextDelay(random, 1000, Long.MAX_VALUE / 4, previous);
+            assertTrue(delay >= 1000);
+            assertTrue(delay <= 3 * previous);
+            previous = delay;
+        }
+    }
+
+    @Test
+    public void testDelaysSpreadAcrossDevices() {
+        // Devices that failed at the same time should not all retry at the same time
+        Set<Long> delays = new HashSet<>();
+        for (int device = 0; device < 20; device++) {
+            TuneDecorrelatedJitterRetryPolicy policy = new TuneDecorrelatedJitterRetryPolicy(1000, 60000);
+            policy.getRetryDelay(1);
+            delays.add(policy.getRetryDelay(2));
+        }
+        assertTrue("retries should be spread out, got " + delays, delays.size() > 10);
+    }
+
+    @Test
+    public void testBackoffResumedAfterRestart() {
+        // A fresh policy picking up at the 6th failure shouldn't start over from the base delay
+        TuneDecorrelatedJitterRetryPolicy policy = new TuneDecorrelatedJitterRetryPolicy(1000, 10 * 60 * 1000);
+        long delay = policy.getRetryDelay(6);
+        assertTrue("delay " + delay + " should continue the backoff", delay >= 1000);
+        long total = 0;
+        for (int i = 0; i < 20; i++) {
+            total += new TuneDecorrelatedJitterRetryPolicy(1000, 10 * 60 * 1000).getRetryDelay(6);
+        }
+        assertTrue("average delay " + total / 20 + " should be well above the base", total / 20 > 8000);
+    }
+}
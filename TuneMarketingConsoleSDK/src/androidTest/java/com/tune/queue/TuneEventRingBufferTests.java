@@ -0,0 +1,89 @@
+package com.tune.queue;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TuneEventRingBufferTests {
+    @Test
+    public void testCapacityRoundedUp() {
+        assertEquals(8, new TuneEventRingBuffer<String>(5).capacity());
+        assertEquals(8, new TuneEventRingBuffer<String>(8).capacity());
+    }
+
+    @Test
+    public void testFifoAndFull() {
+        TuneEventRingBuffer<String> buffer = new TuneEventRingBuffer<>(2);
+        assertTrue(buffer.isEmpty());
+        assertTrue(buffer.offer("first"));
+        assertTrue(buffer.offer("second"));
+        assertFalse("buffer should be full", buffer.offer("third"));
+
+        assertEquals("first", buffer.poll());
+        assertTrue(buffer.offer("third"));
+        assertEquals("second", buffer.poll());
+        assertEquals("third", buffer.poll());
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 4;
+        final int perProducer = 10000;
+        final TuneEventRingBuffer<Integer> buffer = new TuneEventRingBuffer<>(64);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        Integer value = producer * perProducer + i;
+                        while (!buffer.offer(value)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        start.countDown();
+
+        // Every element arrives exactly once, and each producer's elements arrive in order
+        int[] next = new int[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            Integer value = buffer.poll();
+            if (value == null) {
+                Thread.yield();
+                continue;
+            }
+            int producer = value / perProducer;
+            assertEquals(next[producer], value % perProducer);
+            next[producer]++;
+            received++;
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(buffer.isEmpty());
+    }
+}
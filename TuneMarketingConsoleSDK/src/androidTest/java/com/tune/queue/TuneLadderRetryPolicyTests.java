@@ -0,0 +1,24 @@
+package com.tune.queue;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TuneLadderRetryPolicyTests {
+
+    @Test
+    public void testDelaysFollowLadder() {
+        TuneLadderRetryPolicy policy = new TuneLadderRetryPolicy();
+        long[] expected = {30, 90, 10 * 60, 60 * 60, 6 * 60 * 60, 24 * 60 * 60, 24 * 60 * 60};
+        for (int i = 0; i < expected.length; i++) {
+            long delay = policy.getRetryDelay(i + 1);
+            long step = expected[i] * 1000;
+            assertTrue("delay " + delay + " below step " + step, delay >= step);
+            assertTrue("delay " + delay + " above 10% jitter of step " + step, delay <= step * 11 / 10);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.tune.queue;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static android.support.test.InstrumentationRegistry.getContext;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TuneQueueLogTests {
+    private File directory;
+    private TuneQueueLog log;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(getContext().getFilesDir(), "tune_queue_test");
+        log = new TuneQueueLog(directory);
+        log.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        log.clear();
+        log.close();
+    }
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        long first = log.append(bytes("first"));
+        long second = log.append(bytes("second"));
+
+        assertEquals(2, log.size());
+        assertArrayEquals(bytes("first"), log.read(first));
+        assertArrayEquals(bytes("second"), log.read(second));
+
+        List<Long> head = log.peek(10);
+        assertEquals(2, head.size());
+        assertEquals(first, (long) head.get(0));
+        assertEquals(second, (long) head.get(1));
+    }
+
+    @Test
+    public void testUpdateKeepsOrder() throws Exception {
+        long first = log.append(bytes("first"));
+        log.append(bytes("second"));
+
+        log.update(first, bytes("first, retried"));
+
+        assertEquals(2, log.size());
+        assertEquals(first, (long) log.peek(1).get(0));
+        assertArrayEquals(bytes("first, retried"), log.read(first));
+    }
+
+    @Test
+    public void testRemoveOutOfOrder() throws Exception {
+        long first = log.append(bytes("first"));
+        long second = log.append(bytes("second"));
+        long third = log.append(bytes("third"));
+
+        log.remove(second);
+
+        assertEquals(2, log.size());
+        assertNull(log.read(second));
+        List<Long> head = log.peek(10);
+        assertEquals(first, (long) head.get(0));
+        assertEquals(third, (long) head.get(1));
+    }
+
+    @Test
+    public void testRecoversAfterReopen() throws Exception {
+        long first = log.append(bytes("first"));
+        long second = log.append(bytes("second"));
+        log.update(second, bytes("second, retried"));
+        log.remove(first);
+        log.close();
+
+        TuneQueueLog reopened = new TuneQueueLog(directory);
+        assertEquals(1, reopened.size());
+        assertArrayEquals(bytes("second, retried"), reopened.read(second));
+
+        // Sequence numbers are never reused
+        long third = reopened.append(bytes("third"));
+        assertTrue(third > second);
+        reopened.close();
+    }
+
+    @Test
+    public void testMetadataSurvivesReopen() throws Exception {
+        long first = log.append(bytes("first"), new TuneRetryMetadata(0, 1000, 0).toBytes());
+        log.setMetadata(first, new TuneRetryMetadata(3, 1000, 5000).toBytes());
+        log.close();
+
+        TuneQueueLog reopened = new TuneQueueLog(directory);
+        TuneRetryMetadata metadata = TuneRetryMetadata.fromBytes(reopened.readMetadata(first));
+        assertEquals(3, metadata.getAttempts());
+        assertEquals(1000, metadata.getFirstEnqueueTime());
+        assertEquals(5000, metadata.getNextEligibleTime());
+        assertArrayEquals("payload should be untouched", bytes("first"), reopened.read(first));
+
+        reopened.remove(first);
+        assertNull(reopened.readMetadata(first));
+        reopened.close();
+    }
+
+    @Test
+    public void testAppendAll() throws Exception {
+        log.close();
+        log = new TuneQueueLog(directory, 64);
+
+        long[] sequences = log.appendAll(
+                Arrays.asList(bytes("first record"), bytes("second record"), bytes("third record")),
+                Arrays.asList(new TuneRetryMetadata(0, 1000, 0).toBytes(), null, new TuneRetryMetadata(0, 2000, 0).toBytes()));
+        assertEquals(3, sequences.length);
+        assertTrue("records should have spilled into a second segment", new File(directory, "segment-1.log").exists());
+
+        log.close();
+        TuneQueueLog reopened = new TuneQueueLog(directory, 64);
+        assertEquals(3, reopened.size());
+        assertArrayEquals(bytes("second record"), reopened.read(sequences[1]));
+        assertNull(reopened.readMetadata(sequences[1]));
+        assertEquals(2000, TuneRetryMetadata.fromBytes(reopened.readMetadata(sequences[2])).getFirstEnqueueTime());
+        assertEquals(sequences[0], (long) reopened.peek(1).get(0));
+        reopened.close();
+    }
+
+    @Test
+    public void testDeletesDrainedSegments() throws Exception {
+        log.close();
+        log = new TuneQueueLog(directory, 64);
+
+        long first = log.append(bytes("a record that fills most of a segment"));
+        log.append(bytes("a record that starts a new segment"));
+        assertTrue(new File(directory, "segment-0.log").exists());
+
+        log.remove(first);
+        assertTrue(!new File(directory, "segment-0.log").exists());
+        assertEquals(1, log.size());
+
+        log.close();
+        TuneQueueLog reopened = new TuneQueueLog(directory, 64);
+        assertEquals(1, reopened.size());
+        reopened.close();
+    }
+
+    @Test
+    public void testCompactsSegmentPinnedByOldRecord() throws Exception {
+        log.close();
+        log = new TuneQueueLog(directory, 64);
+
+        long pinned = log.append(bytes("pinned"), new TuneRetryMetadata(0, 1000, 0).toBytes());
+        // Fills the first segment, so the updated metadata goes to a later one
+        byte[] updated = new TuneRetryMetadata(2, 1000, 5000).toBytes();
+        log.setMetadata(pinned, updated);
+
+        boolean reopenedAfterCompaction = false;
+        for (int i = 0; i < 100; i++) {
+            log.remove(log.append(bytes("record " + i)));
+            assertTrue("disk size should stay bounded, was " + log.diskSize(), log.diskSize() <= 4 * 64);
+
+            if (!reopenedAfterCompaction && !new File(directory, "segment-0.log").exists()) {
+                // The record has moved past its metadata, which must still be found on replay
+                log.close();
+                log = new TuneQueueLog(directory, 64);
+                assertMetadata(updated, log.readMetadata(pinned));
+                reopenedAfterCompaction = true;
+            }
+        }
+
+        assertTrue("pinned segment should have been reclaimed", reopenedAfterCompaction);
+        assertEquals(1, log.size());
+        assertEquals(TuneQueueLog.recordSize(bytes("pinned").length, updated.length), log.byteSize());
+
+        log.close();
+        TuneQueueLog reopened = new TuneQueueLog(directory, 64);
+        assertArrayEquals(bytes("pinned"), reopened.read(pinned));
+        assertMetadata(updated, reopened.readMetadata(pinned));
+        assertEquals(log.byteSize(), reopened.byteSize());
+        reopened.close();
+    }
+
+    @Test
+    public void testTruncatesTornTail() throws Exception {
+        long first = log.append(bytes("first"));
+        log.append(bytes("second"));
+        log.close();
+
+        // Simulate a write cut short by chopping the last few bytes off the segment
+        File segment = new File(directory, "segment-0.log");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        TuneQueueLog reopened = new TuneQueueLog(directory);
+        assertEquals(1, reopened.size());
+        assertArrayEquals(bytes("first"), reopened.read(first));
+
+        // New records go after the last intact record
+        long third = reopened.append(bytes("third"));
+        reopened.close();
+        reopened = new TuneQueueLog(directory);
+        assertEquals(2, reopened.size());
+        assertArrayEquals(bytes("third"), reopened.read(third));
+        reopened.close();
+    }
+
+    @Test
+    public void testFailedWriteDoesNotHideLaterRecords() throws Exception {
+        log.close();
+        final boolean[] failNextWrite = {false};
+        log = new TuneQueueLog(directory) {
+            @Override
+            FileOutputStream openSegment(File file) throws IOException {
+                return new FileOutputStream(file, true) {
+                    @Override
+                    public void write(byte[] b) throws IOException {
+                        write(b, 0, b.length);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        if (failNextWrite[0]) {
+                            failNextWrite[0] = false;
+                            // Only part of the record reaches the file
+                            super.write(b, off, len / 2);
+                            throw new IOException("No space left on device");
+                        }
+                        super.write(b, off, len);
+                    }
+                };
+            }
+        };
+
+        long first = log.append(bytes("first"));
+        failNextWrite[0] = true;
+        boolean gotException = false;
+        try {
+            log.append(bytes("torn"));
+        } catch (IOException e) {
+            gotException = true;
+        }
+        assertTrue(gotException);
+        long third = log.append(bytes("third"));
+        assertEquals(2, log.size());
+        log.close();
+
+        TuneQueueLog reopened = new TuneQueueLog(directory);
+        assertEquals("record written after the failed one should survive reopening", 2, reopened.size());
+        assertArrayEquals(bytes("first"), reopened.read(first));
+        assertArrayEquals(bytes("third"), reopened.read(third));
+        assertEquals(reopened.byteSize(), reopened.diskSize());
+        reopened.close();
+    }
+
+    private static void assertMetadata(byte[] expected, byte[] actual) {
+        TuneRetryMetadata metadata = TuneRetryMetadata.fromBytes(actual);
+        assertNotNull("metadata should survive reopening", metadata);
+        assertEquals(TuneRetryMetadata.fromBytes(expected).getAttempts(), metadata.getAttempts());
+        assertEquals(TuneRetryMetadata.fromBytes(expected).getNextEligibleTime(), metadata.getNextEligibleTime());
+    }
+
+    private static byte[] bytes(String value) throws Exception {
+        return value.getBytes("UTF-8");
+    }
+}
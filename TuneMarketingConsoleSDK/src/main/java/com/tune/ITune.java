@@ -4,6 +4,19 @@ import android.location.Location;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import com.tune.http.AsyncUrlRequester;
+import com.tune.http.TuneCircuitBreaker;
+import com.tune.http.TuneLatencyEstimate;
+import com.tune.queue.TuneDecorrelatedJitterRetryPolicy;
+import com.tune.queue.TuneEvictionPolicy;
+import com.tune.queue.TuneLadderRetryPolicy;
+import com.tune.queue.TuneOverflowPolicy;
+import com.tune.queue.TuneRetryPolicy;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Public Interface to the Tune SDK.
  * To create an instance of the Tune singleton, use the appropriate init methods from {@link Tune}.
@@ -26,6 +39,14 @@ public interface ITune {
      */
     void measureEvent(final TuneEvent eventData);
 
+    /**
+     * Event measurement function that measures several events at once, e.g. when replaying
+     * events recorded while offline.  The events are measured exactly as if each was passed to
+     * {@link #measureEvent(TuneEvent)} in turn, but are saved and sent more efficiently.
+     * @param events events to measure, in order
+     */
+    void measureEvents(List<TuneEvent> events);
+
 
     /* ========================================================================================== */
     /* Public Getters                                                                             */
@@ -434,6 +455,116 @@ public interface ITune {
      */
     void setFacebookEventLogging(boolean logging, boolean limitEventAndDataUsage);
 
+    /**
+     * Sets the names of events that are queued ahead of regular events, like sessions.
+     * Events with revenue are always queued ahead, whatever their name.
+     * @param eventNames Names of priority events, or null for none
+     */
+    void setPriorityEventNames(Set<String> eventNames);
+
+    /**
+     * Whether to send queued events to the server in batches instead of one request per event.
+     * When enabled, up to 25 queued events are compressed into a single request, and events
+     * that fail within a batch stay in the queue to be retried on their own.
+     * A custom {@link com.tune.http.UrlRequester} has to implement {@link com.tune.http.BatchUrlRequester}
+     * for its events to be batched, otherwise they are still sent one request per event.
+     * @param enabled Whether to send queued events in batches
+     */
+    void setBatchUploadEnabled(boolean enabled);
+
+    /**
+     * Whether to gzip-compress request bodies.  Enabled by default, which compresses larger
+     * request bodies and batch requests; a server that can't read them gets uncompressed ones.
+     * @param enabled Whether to compress request bodies
+     */
+    void setRequestCompressionEnabled(boolean enabled);
+
+    /**
+     * Sends SDK requests through the given requester instead of the SDK's own HTTP client, e.g.
+     * to reuse an OkHttp, Cronet or other HTTP stack the app already has warmed up.
+     * @param urlRequester Requester to send requests with
+     */
+    void setAsyncUrlRequester(AsyncUrlRequester urlRequester);
+
+    /**
+     * Sets the range request timeouts are kept in.  Timeouts adapt to the latency seen on each type
+     * of network, starting at 15 seconds; by default they stay between 5 and 60 seconds.
+     * @param floorMs Min connect and read timeout in milliseconds
+     * @param ceilingMs Max connect and read timeout in milliseconds
+     */
+    void setRequestTimeoutBounds(int floorMs, int ceilingMs);
+
+    /**
+     * Gets the request latency observed on each type of network, and the timeouts derived from it.
+     * Only requests sent by the SDK's own HTTP client are measured.
+     * @return Latency estimates keyed by network type
+     */
+    Map<String, TuneLatencyEstimate> getLatencyEstimates();
+
+    /**
+     * Sets a listener notified when requests to a host start or stop failing fast.  After several
+     * consecutive failures, requests to a host fail without being sent until a probe request to the
+     * host gets through.  Only requests sent by the SDK's own HTTP client are covered.
+     * @param listener Listener for circuit breaker state changes, or null for none
+     */
+    void setCircuitBreakerListener(TuneCircuitBreaker.Listener listener);
+
+    /**
+     * Gets the time from init to the first request the server acknowledged, to measure the effect
+     * of {@link Tune#setConnectionWarmUpEnabled(boolean)}.
+     * @return Time in milliseconds, or -1 if no request has been acknowledged yet
+     */
+    long getTimeToFirstAck();
+
+    /**
+     * Sets what measuring an event does when events are measured faster than they can be queued.
+     * By default, the events that don't fit in memory are written to disk.
+     * @param policy Overflow policy
+     * @param timeoutMs Max time to wait for room, in milliseconds, with {@link TuneOverflowPolicy#BLOCK}
+     */
+    void setEventBufferOverflowPolicy(TuneOverflowPolicy policy, long timeoutMs);
+
+    /**
+     * Sets the policy choosing how long queued events wait before they are retried after a failed request.
+     * By default, retries step through 30s, 90s, 10m, 1h, 6h and then 24h with {@link TuneLadderRetryPolicy}.
+     * Use {@link TuneDecorrelatedJitterRetryPolicy} to spread out retries from devices that failed together.
+     * @param policy Retry policy
+     */
+    void setRetryPolicy(TuneRetryPolicy policy);
+
+    /**
+     * Sets how many queued events may be in flight at once when they are sent as individual requests.
+     * By default, up to 4 requests are in flight at once.  Has no effect on batch uploads.
+     * @param maxInFlightRequests Maximum number of concurrent requests, greater than 0
+     * @throws IllegalArgumentException if maxInFlightRequests is not greater than 0
+     */
+    void setMaxInFlightRequests(int maxInFlightRequests);
+
+    /**
+     * Sets the max bytes the event queue keeps on disk across all priority lanes.
+     * By default, the queue keeps up to 2 MB.  Once over it, events are dropped according to the
+     * policy set with {@link #setQueueEvictionPolicy(TuneEvictionPolicy)}.
+     * @param byteBudget Max bytes, greater than 0
+     * @throws IllegalArgumentException if byteBudget is not greater than 0
+     */
+    void setQueueByteBudget(long byteBudget);
+
+    /**
+     * Sets what the event queue drops once it is over its byte budget.
+     * By default, the oldest queued sessions are dropped first, see {@link TuneEvictionPolicy#DROP_OLDEST_SESSIONS}.
+     * @param policy Eviction policy
+     * @throws IllegalArgumentException if policy is null
+     */
+    void setQueueEvictionPolicy(TuneEvictionPolicy policy);
+
+    /**
+     * Sets how long an event may stay queued before it is dropped unsent.
+     * By default, events are kept for 30 days.
+     * @param maxAgeMs Max age in milliseconds, greater than 0
+     * @throws IllegalArgumentException if maxAgeMs is not greater than 0
+     */
+    void setQueueMaxAge(long maxAgeMs);
+
     /**
      * Disable auto collection of device location data.
      * Note that location data is auto-collected at initialization if not explicitly disabled.
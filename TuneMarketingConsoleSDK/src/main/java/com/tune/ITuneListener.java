@@ -27,4 +27,11 @@ interface ITuneListener {
      * @param error TUNE server response for a failed request, with error data.
      */
     void didFailWithError(String url, JSONObject error);
+
+    /**
+     * Callback for when queued events were dropped without being sent.
+     * @param count Number of events dropped.
+     * @param reason Why they were dropped, e.g. because they expired or the queue was over its byte budget.
+     */
+    void didEvictEvents(int count, String reason);
 }
@@ -61,6 +61,16 @@ public class Tune {
         TuneInternal.setDebugMode(debug);
     }
 
+    /**
+     * Turns connection warm-up at init on or off, off by default.  When on, init connects to the
+     * TUNE measurement host in the background, so that the first session's request doesn't pay for
+     * the DNS lookup, TCP connect and TLS handshake.  Call before {@link #init}.
+     * @param enabled whether to warm up the connection at init
+     */
+    public static void setConnectionWarmUpEnabled(boolean enabled) {
+        TuneInternal.setConnectionWarmUpEnabled(enabled);
+    }
+
     /**
      * Noninstantiable Tune class.
      */
@@ -3,8 +3,12 @@ package com.tune;
 public class TuneConstants {
     // SharedPreferences filename for TUNE
     public static final String PREFS_TUNE = "com.mobileapptracking";
-    // SharedPreferences filename for queued events
+    // SharedPreferences filename for queued events (legacy storage, migrated into QUEUE_DIRECTORY)
     static final String PREFS_QUEUE = "mat_queue";
+    // Directory under the app files dir holding the event queue log; other priority lanes use it as a prefix
+    static final String QUEUE_DIRECTORY = "tune_queue";
+    // Directory under the app files dir holding events measured while the event buffer was full
+    static final String SPILL_DIRECTORY = "tune_spill";
 
     // Key for install referrer
     static final String KEY_REFERRER = "mat_referrer";
@@ -46,6 +50,14 @@ public class TuneConstants {
     public static final String STRING_FALSE = "false";
 
     public static final String SERVER_RESPONSE_SUCCESS = "success";
+    // Key of the per-event results array in a batch response
+    public static final String SERVER_RESPONSE_RESULTS = "results";
+    // Key of the events array in a batch request
+    public static final String BATCH_REQUEST_EVENTS = "events";
+    // Keys added to the response of a failed request: its HTTP status, and the wait the server
+    // asked for in a Retry-After header, in milliseconds
+    public static final String SERVER_RESPONSE_HTTP_STATUS = "http_status";
+    public static final String SERVER_RESPONSE_RETRY_AFTER = "retry_after";
 
     public static final String PREF_UNSET = "0";
     public static final String PREF_SET = "1";
@@ -55,8 +67,37 @@ public class TuneConstants {
 
     // Max number of events to dump when queued
     static final int MAX_DUMP_SIZE = 50;
-    // Set a network timeout time of 60s
+    // Max number of events to send in one batch request
+    static final int MAX_BATCH_SIZE = 25;
+    // Shortest and longest wait, in milliseconds, before retrying failed requests
+    public static final long RETRY_BASE_DELAY = 30 * 1000;
+    public static final long RETRY_MAX_DELAY = 24L * 60 * 60 * 1000;
+    // Default max number of event requests in flight at once when dumping the queue
+    static final int MAX_IN_FLIGHT_REQUESTS = 4;
+    // Default max bytes the event queue keeps on disk, across all priority lanes
+    static final long QUEUE_BYTE_BUDGET = 2 * 1024 * 1024;
+    // Default max age of a queued event, in milliseconds, after which it is dropped unsent
+    static final long QUEUE_MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+    // Number of measured events buffered in memory before they are built and queued
+    static final int EVENT_BUFFER_SIZE = 256;
+    // Default max time, in milliseconds, measureEvent waits for room in a full event buffer
+    static final long EVENT_BUFFER_TIMEOUT = 100;
+    // Set a network timeout time of 60s, the default ceiling of adaptive timeouts
     public static final int TIMEOUT = 60000;
+    // Default floor of adaptive network timeouts
+    public static final int TIMEOUT_FLOOR = 5000;
+    // Network timeout used on a network no request has completed on yet
+    public static final int TIMEOUT_INITIAL = 15000;
+    // Consecutive failed requests to a host after which requests to it fail fast
+    public static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+    // Time, in milliseconds, requests to a failing host fail fast before one is let through to probe it
+    public static final long CIRCUIT_OPEN_TIME = 30000;
+    // Request bodies of at least this many characters are gzip-compressed
+    public static final int GZIP_THRESHOLD = 1024;
+    // Max bytes of a server response read, after decompression
+    public static final int MAX_RESPONSE_SIZE = 64 * 1024;
+    // Max time, in milliseconds, to wait for a request to call back before cancelling it
+    static final int REQUEST_COMPLETION_TIMEOUT = 2 * TIMEOUT;
     // Request delay time of 60s
     static final int DELAY = 60000;
 
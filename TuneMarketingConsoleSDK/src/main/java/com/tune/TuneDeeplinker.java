@@ -3,7 +3,7 @@ package com.tune;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 
-import com.tune.http.UrlRequester;
+import com.tune.http.AsyncUrlRequester;
 
 import java.util.HashSet;
 import java.util.Set;
@@ -56,7 +56,7 @@ public class TuneDeeplinker {
         this.listener = listener;
     }
 
-    void requestDeferredDeeplink(String userAgent, final UrlRequester urlRequester) {
+    void requestDeferredDeeplink(String userAgent, final AsyncUrlRequester urlRequester) {
         setUserAgent(userAgent);
         checkForDeferredDeeplink(urlRequester);
     }
@@ -89,7 +89,7 @@ public class TuneDeeplinker {
         return uri.build().toString();
     }
 
-    private void checkForDeferredDeeplink(final UrlRequester urlRequester) {
+    private void checkForDeferredDeeplink(final AsyncUrlRequester urlRequester) {
         // If we have already checked, don't check again, if no one is listening, don't check
         if (listener == null) {
             return;
@@ -113,13 +113,7 @@ public class TuneDeeplinker {
 
         haveRequestedDeferredDeeplink = true;
 
-        final TuneDeeplinkListener listenerRefForNewThread = listener;
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                urlRequester.requestDeeplink(buildDeferredDeepLinkRequestURL(), conversionKey, listenerRefForNewThread);
-            }
-        }).start();
+        urlRequester.requestDeeplink(buildDeferredDeepLinkRequestURL(), conversionKey, listener);
     }
 
     void handleFailedExpandedTuneLink(String errorMessage) {
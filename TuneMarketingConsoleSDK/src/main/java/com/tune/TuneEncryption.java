@@ -3,17 +3,45 @@ package com.tune;
 import com.tune.utils.TuneStringUtils;
 import com.tune.utils.TuneUtils;
 
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 
 import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public class TuneEncryption {
+    private static final String TRANSFORMATION = "AES/CBC/NoPadding";
+    private static final int BLOCK_SIZE = 16;
+    // Largest work buffer a thread keeps around between calls
+    private static final int MAX_RETAINED_BUFFER = 32 * 1024;
+
     private final IvParameterSpec ivspec;
     private final SecretKeySpec keyspec;
-    private Cipher cipher;
+
+    // Cipher is stateful and not thread safe, so every thread gets its own, initialized once.
+    // doFinal resets a cipher to its initialized state, so it can be reused for the next call as is.
+    private final ThreadLocal<Cipher> encryptCipher = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            return createCipher(Cipher.ENCRYPT_MODE);
+        }
+    };
+    // Initialized again for every text it continues, with the last block of the text's prefix as IV
+    private final ThreadLocal<Cipher> chainCipher = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            return createCipher(Cipher.ENCRYPT_MODE);
+        }
+    };
+    private final ThreadLocal<Cipher> decryptCipher = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            return createCipher(Cipher.DECRYPT_MODE);
+        }
+    };
+
+    private final ThreadLocal<byte[]> buffer = new ThreadLocal<byte[]>();
 
     /**
      * Constructor.
@@ -24,14 +52,17 @@ public class TuneEncryption {
         ivspec = new IvParameterSpec(iv.getBytes());
 
         keyspec = new SecretKeySpec(secretKey.getBytes(), "AES");
+    }
 
+    private Cipher createCipher(int mode) {
         try {
-            cipher = Cipher.getInstance("AES/CBC/NoPadding");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (NoSuchPaddingException e) {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(mode, keyspec, ivspec);
+            return cipher;
+        } catch (GeneralSecurityException e) {
             e.printStackTrace();
         }
+        return null;
     }
 
     /**
@@ -48,9 +79,7 @@ public class TuneEncryption {
         byte[] encrypted;
 
         try {
-            cipher.init(Cipher.ENCRYPT_MODE, keyspec, ivspec);
-
-            encrypted = cipher.doFinal(padString(plainText).getBytes());
+            encrypted = doFinal(encryptCipher, padString(plainText).getBytes());
         } catch (Exception e) {
             throw new Exception("[encrypt] " + e.getMessage());
         }
@@ -58,6 +87,150 @@ public class TuneEncryption {
         return encrypted;
     }
 
+    /**
+     * Encrypt text and append it hex encoded, without the intermediate strings and arrays of {@link #encrypt(String)}.
+     * The text is padded into a reused buffer and encrypted in place; the result is the same as
+     * {@code TuneUtils.bytesToHex(encrypt(plainText))}.
+     * @param plainText Text to encrypt
+     * @param out Builder the hex string is appended to
+     * @throws Exception if the text cannot be encrypted, in which case out is left unchanged.
+     */
+    void encryptToHex(CharSequence plainText, StringBuilder out) throws Exception {
+        if (plainText == null || plainText.length() == 0) {
+            throw new Exception("Empty string");
+        }
+
+        int length = plainText.length();
+        int paddedLength = length + BLOCK_SIZE - length % BLOCK_SIZE;
+        byte[] bytes = buffer.get();
+        if (bytes == null || bytes.length < paddedLength) {
+            bytes = new byte[paddedLength];
+            if (paddedLength <= MAX_RETAINED_BUFFER) {
+                buffer.set(bytes);
+            }
+        }
+
+        for (int i = 0; i < length; i++) {
+            char c = plainText.charAt(i);
+            if (c > 0x7F) {
+                // Only ASCII is one byte per char, leave anything else to the general path
+                byte[] encrypted = encrypt(plainText.toString());
+                TuneUtils.appendHex(out, encrypted, 0, encrypted.length);
+                return;
+            }
+            bytes[i] = (byte) c;
+        }
+        Arrays.fill(bytes, length, paddedLength, (byte) ' ');
+
+        try {
+            doFinal(encryptCipher, bytes, paddedLength);
+        } catch (Exception e) {
+            throw new Exception("[encrypt] " + e.getMessage());
+        }
+
+        TuneUtils.appendHex(out, bytes, 0, paddedLength);
+    }
+
+    /**
+     * Encrypt text up to its last full block, to be completed later with {@link #appendEncryptedHex(Prefix, CharSequence, StringBuilder)}.
+     * AES/CBC encrypts one block after the other, so the blocks of a prefix stay the same whatever text follows it.
+     * @param plainText Text to encrypt
+     * @return the encrypted prefix
+     * @throws Exception if the text cannot be encrypted.
+     */
+    Prefix encryptPrefix(CharSequence plainText) throws Exception {
+        int length = plainText.length();
+        int blocksLength = length - length % BLOCK_SIZE;
+        byte[] bytes = new byte[blocksLength];
+        for (int i = 0; i < length; i++) {
+            char c = plainText.charAt(i);
+            if (c > 0x7F) {
+                // Keep the whole text for the general path
+                return new Prefix("", null, plainText.toString());
+            }
+            if (i < blocksLength) {
+                bytes[i] = (byte) c;
+            }
+        }
+        if (blocksLength == 0) {
+            return new Prefix("", null, plainText.toString());
+        }
+
+        byte[] encrypted;
+        try {
+            encrypted = doFinal(encryptCipher, bytes);
+        } catch (Exception e) {
+            throw new Exception("[encrypt] " + e.getMessage());
+        }
+
+        StringBuilder hex = new StringBuilder(2 * blocksLength);
+        TuneUtils.appendHex(hex, encrypted, 0, blocksLength);
+        return new Prefix(hex.toString(), Arrays.copyOfRange(encrypted, blocksLength - BLOCK_SIZE, blocksLength),
+                plainText.subSequence(blocksLength, length).toString());
+    }
+
+    /**
+     * Encrypt the rest of a text whose prefix is already encrypted, and append the whole text hex encoded.
+     * The result is the same as {@link #encryptToHex(CharSequence, StringBuilder)} of the prefix and suffix
+     * together, but only the blocks after the prefix are encrypted.
+     * @param prefix Encrypted start of the text
+     * @param suffix Rest of the text
+     * @param out Builder the hex string is appended to
+     * @throws Exception if the text cannot be encrypted, in which case out is left unchanged.
+     */
+    void appendEncryptedHex(Prefix prefix, CharSequence suffix, StringBuilder out) throws Exception {
+        StringBuilder rest = new StringBuilder(prefix.tail.length() + suffix.length()).append(prefix.tail).append(suffix);
+        if (prefix.chainIv == null) {
+            encryptToHex(rest, out);
+            return;
+        }
+
+        int length = rest.length();
+        int paddedLength = length + BLOCK_SIZE - length % BLOCK_SIZE;
+        byte[] bytes = new byte[paddedLength];
+        for (int i = 0; i < length; i++) {
+            char c = rest.charAt(i);
+            if (c > 0x7F) {
+                throw new Exception("[encrypt] Text after an encrypted prefix must be ASCII");
+            }
+            bytes[i] = (byte) c;
+        }
+        Arrays.fill(bytes, length, paddedLength, (byte) ' ');
+
+        try {
+            Cipher cipher = chainCipher.get();
+            if (cipher == null) {
+                throw new GeneralSecurityException("cipher unavailable");
+            }
+            // Carry on the chain from the last block of the prefix
+            cipher.init(Cipher.ENCRYPT_MODE, keyspec, new IvParameterSpec(prefix.chainIv));
+            doFinal(chainCipher, bytes, paddedLength);
+        } catch (GeneralSecurityException e) {
+            throw new Exception("[encrypt] " + e.getMessage());
+        }
+
+        out.append(prefix.hex);
+        TuneUtils.appendHex(out, bytes, 0, paddedLength);
+    }
+
+    /**
+     * Start of a text, encrypted up to its last full block.
+     */
+    static final class Prefix {
+        // Encrypted full blocks, hex encoded
+        private final String hex;
+        // Last encrypted block, which the blocks after it are chained to, null if there are no full blocks
+        private final byte[] chainIv;
+        // Text after the last full block, not encrypted yet
+        private final String tail;
+
+        private Prefix(String hex, byte[] chainIv, String tail) {
+            this.hex = hex;
+            this.chainIv = chainIv;
+            this.tail = tail;
+        }
+    }
+
     /**
      * Decrypt an encrypted string.
      * @param encryptedText Encrypted string to decrypt
@@ -72,15 +245,43 @@ public class TuneEncryption {
         byte[] decrypted;
 
         try {
-            cipher.init(Cipher.DECRYPT_MODE, keyspec, ivspec);
-
-            decrypted = cipher.doFinal(TuneUtils.hexToBytes(encryptedText));
+            decrypted = doFinal(decryptCipher, TuneUtils.hexToBytes(encryptedText));
         } catch (Exception e) {
             throw new Exception("[decrypt] " + e.getMessage());
         }
         return decrypted;
     }
+
+    private static byte[] doFinal(ThreadLocal<Cipher> threadCipher, byte[] input) throws GeneralSecurityException {
+        Cipher cipher = threadCipher.get();
+        if (cipher == null) {
+            throw new GeneralSecurityException("cipher unavailable");
+        }
+
+        try {
+            return cipher.doFinal(input);
+        } catch (GeneralSecurityException e) {
+            // A failed call can leave the cipher in an unknown state, start over with a fresh one
+            threadCipher.remove();
+            throw e;
+        }
+    }
     
+    private static void doFinal(ThreadLocal<Cipher> threadCipher, byte[] inOut, int length) throws GeneralSecurityException {
+        Cipher cipher = threadCipher.get();
+        if (cipher == null) {
+            throw new GeneralSecurityException("cipher unavailable");
+        }
+
+        try {
+            // Cipher is copy-safe, so the output may overwrite the input it came from
+            cipher.doFinal(inOut, 0, length, inOut, 0);
+        } catch (GeneralSecurityException e) {
+            threadCipher.remove();
+            throw e;
+        }
+    }
+
     /**
      * Pad an encrypted string to the correct block size.
      * @param source String that requires padding
@@ -2,8 +2,13 @@ package com.tune;
 
 import android.text.TextUtils;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.Serializable;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -351,4 +356,85 @@ public class TuneEvent implements Serializable {
     public String getDeviceForm() {
         return deviceForm;
     }
+
+    /**
+     * @return the event values as JSON, under the keys they are sent with
+     * @throws JSONException if a value can't be represented, like a NaN revenue
+     */
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(TuneUrlKeys.EVENT_NAME, eventName);
+        json.put(TuneUrlKeys.REVENUE, revenue);
+        json.put(TuneUrlKeys.CURRENCY_CODE, currencyCode);
+        json.put(TuneUrlKeys.REF_ID, refId);
+        if (eventItems != null) {
+            JSONArray items = new JSONArray();
+            for (TuneEventItem item : eventItems) {
+                items.put(item.toJson());
+            }
+            json.put(TuneUrlKeys.EVENT_ITEMS, items);
+        }
+        json.put(TuneUrlKeys.RECEIPT_DATA, receiptData);
+        json.put(TuneUrlKeys.RECEIPT_SIGNATURE, receiptSignature);
+        json.put(TuneUrlKeys.CONTENT_TYPE, contentType);
+        json.put(TuneUrlKeys.CONTENT_ID, contentId);
+        json.put(TuneUrlKeys.LEVEL, level);
+        json.put(TuneUrlKeys.QUANTITY, quantity);
+        json.put(TuneUrlKeys.SEARCH_STRING, searchString);
+        json.put(TuneUrlKeys.RATING, rating);
+        if (date1 != null) {
+            json.put(TuneUrlKeys.DATE1, date1.getTime());
+        }
+        if (date2 != null) {
+            json.put(TuneUrlKeys.DATE2, date2.getTime());
+        }
+        json.put(TuneUrlKeys.ATTRIBUTE1, attribute1);
+        json.put(TuneUrlKeys.ATTRIBUTE2, attribute2);
+        json.put(TuneUrlKeys.ATTRIBUTE3, attribute3);
+        json.put(TuneUrlKeys.ATTRIBUTE4, attribute4);
+        json.put(TuneUrlKeys.ATTRIBUTE5, attribute5);
+        json.put(TuneUrlKeys.DEVICE_FORM, deviceForm);
+        return json;
+    }
+
+    /**
+     * @param json event values, as written by {@link #toJson()}
+     * @return the event
+     * @throws JSONException if the event name is missing
+     * @throws InvalidParameterException if the event name is empty
+     */
+    static TuneEvent fromJson(JSONObject json) throws JSONException {
+        TuneEvent event = new TuneEvent(json.getString(TuneUrlKeys.EVENT_NAME));
+        event.revenue = json.optDouble(TuneUrlKeys.REVENUE, 0);
+        event.currencyCode = json.optString(TuneUrlKeys.CURRENCY_CODE, null);
+        event.refId = json.optString(TuneUrlKeys.REF_ID, null);
+        JSONArray items = json.optJSONArray(TuneUrlKeys.EVENT_ITEMS);
+        if (items != null) {
+            event.eventItems = new ArrayList<>(items.length());
+            for (int i = 0; i < items.length(); i++) {
+                event.eventItems.add(TuneEventItem.fromJson(items.getJSONObject(i)));
+            }
+        }
+        event.receiptData = json.optString(TuneUrlKeys.RECEIPT_DATA, null);
+        event.receiptSignature = json.optString(TuneUrlKeys.RECEIPT_SIGNATURE, null);
+        event.contentType = json.optString(TuneUrlKeys.CONTENT_TYPE, null);
+        event.contentId = json.optString(TuneUrlKeys.CONTENT_ID, null);
+        event.level = json.optInt(TuneUrlKeys.LEVEL, 0);
+        event.quantity = json.optInt(TuneUrlKeys.QUANTITY, 0);
+        event.searchString = json.optString(TuneUrlKeys.SEARCH_STRING, null);
+        event.rating = json.optDouble(TuneUrlKeys.RATING, 0);
+        if (json.has(TuneUrlKeys.DATE1)) {
+            event.date1 = new Date(json.getLong(TuneUrlKeys.DATE1));
+        }
+        if (json.has(TuneUrlKeys.DATE2)) {
+            event.date2 = new Date(json.getLong(TuneUrlKeys.DATE2));
+        }
+        event.attribute1 = json.optString(TuneUrlKeys.ATTRIBUTE1, null);
+        event.attribute2 = json.optString(TuneUrlKeys.ATTRIBUTE2, null);
+        event.attribute3 = json.optString(TuneUrlKeys.ATTRIBUTE3, null);
+        event.attribute4 = json.optString(TuneUrlKeys.ATTRIBUTE4, null);
+        event.attribute5 = json.optString(TuneUrlKeys.ATTRIBUTE5, null);
+        event.deviceForm = json.optString(TuneUrlKeys.DEVICE_FORM, null);
+        return event;
+    }
 }
@@ -179,4 +179,20 @@ public class TuneEventItem implements Serializable {
 
         return new JSONObject(mapValues);
     }
+
+    /**
+     * @param json item values, as written by {@link #toJson()}
+     * @return the event item
+     */
+    static TuneEventItem fromJson(JSONObject json) {
+        return new TuneEventItem(json.optString(ITEM, null))
+                .withQuantity(json.optInt(QUANTITY, 0))
+                .withUnitPrice(json.optDouble(UNIT_PRICE, 0))
+                .withRevenue(json.optDouble(REVENUE, 0))
+                .withAttribute1(json.optString(ATTRIBUTE1, null))
+                .withAttribute2(json.optString(ATTRIBUTE2, null))
+                .withAttribute3(json.optString(ATTRIBUTE3, null))
+                .withAttribute4(json.optString(ATTRIBUTE4, null))
+                .withAttribute5(json.optString(ATTRIBUTE5, null));
+    }
 }
@@ -1,33 +1,170 @@
 package com.tune;
 
 import android.content.Context;
+import android.os.SystemClock;
 
+import com.tune.http.TuneRequest;
+import com.tune.queue.TuneEvictionPolicy;
+import com.tune.queue.TuneLadderRetryPolicy;
+import com.tune.queue.TuneQueueLog;
+import com.tune.queue.TuneQueuePriority;
+import com.tune.queue.TuneRetryMetadata;
+import com.tune.queue.TuneRetryPolicy;
 import com.tune.utils.TuneSharedPrefsDelegate;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class TuneEventQueue {
-    // SharedPreferences for storing events that were not fired
-    private TuneSharedPrefsDelegate eventQueue;
-    
+    // Reasons reported to the listener when queued events are dropped unsent
+    static final String EVICTED_EXPIRED = "expired";
+    static final String EVICTED_OVER_BUDGET = "over_budget";
+    static final String EVICTED_REJECTED = "rejected";
+    static final String EVICTED_LANE_FULL = "lane_full";
+    static final String EVICTED_BUFFER_FULL = "buffer_full";
+
+    // Longest wait honored for a queued event's next eligible time, longer than any retry delay;
+    // anything further out means the wall clock was changed and the event is sent right away
+    private static final long MAX_ELIGIBLE_WAIT = 48 * 60 * 60 * 1000;
+
+    // Retry attempt parameter stored inside links queued by earlier SDK versions
+    private static final Pattern LEGACY_RETRY_ATTEMPT = Pattern.compile("&" + TuneUrlKeys.SDK_RETRY_ATTEMPT + "=(\\d+)");
+
+    // On-disk logs of events that were not fired, one per priority lane, in drain order
+    private final EnumMap<TuneQueuePriority, TuneQueueLog> lanes = new EnumMap<>(TuneQueuePriority.class);
+
+    // Max number of events kept in each priority lane
+    private final EnumMap<TuneQueuePriority, Integer> laneCapacities = new EnumMap<>(TuneQueuePriority.class);
+
+    // Max bytes kept on disk across all lanes, and what is dropped once over it
+    private long byteBudget = TuneConstants.QUEUE_BYTE_BUDGET;
+    private TuneEvictionPolicy evictionPolicy = TuneEvictionPolicy.DROP_OLDEST_SESSIONS;
+
+    // Max age of a queued event, in milliseconds
+    private long maxAge = TuneConstants.QUEUE_MAX_AGE;
+
     // Binary semaphore for controlling adding to queue/dumping queue
     private Semaphore queueAvailable;
-    
+
     // Instance of tune to make getLink call on (can't use getInstance during testing)
     private TuneInternal tune;
-    
-    // current retry timeout, in seconds
-    private static long retryTimeout = 0;
-    
+
+    // Policy choosing the wait before retrying after a failure
+    private TuneRetryPolicy retryPolicy = new TuneLadderRetryPolicy();
+
+    // Data prepared for the events last sent, reused when they are retried.  Only kept in memory,
+    // and only touched by Dump while it holds the queue lock
+    private final Map<QueueEntry, PreparedEvent> preparedEvents = new HashMap<>();
+
+    // Number of consecutive failed dump attempts
+    private int failures = 0;
+
+    // Time (SystemClock.elapsedRealtime) before which the queue is not retried
+    private long nextRetryTime = 0;
+
+    // Maximum number of individual requests in flight at once while dumping
+    private int maxInFlightRequests = TuneConstants.MAX_IN_FLIGHT_REQUESTS;
+
+    // Counted down once Open has opened the lanes, nothing reads them before then
+    private final CountDownLatch opened = new CountDownLatch(1);
+
+    /**
+     * Creates the queue without touching the disk.  The lanes are opened by {@link Open}, which the
+     * caller runs on the same executor as {@link Add} and {@link Dump}, ahead of either.
+     * @param context Context
+     * @param tune TuneInternal instance
+     */
     public TuneEventQueue(Context context, TuneInternal tune) {
-        eventQueue = new TuneSharedPrefsDelegate(context, TuneConstants.PREFS_QUEUE);
+        for (TuneQueuePriority priority : TuneQueuePriority.values()) {
+            laneCapacities.put(priority, Integer.MAX_VALUE);
+        }
         queueAvailable = new Semaphore(1, true);
         this.tune = tune;
     }
 
+    /**
+     * Returns the priority lanes, waiting for {@link Open} to have opened them.
+     * @return Lanes in drain order
+     */
+    private EnumMap<TuneQueuePriority, TuneQueueLog> lanes() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                opened.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return lanes;
+    }
+
+    /**
+     * Position of an event in the queue.
+     */
+    protected static class QueueEntry {
+        final TuneQueuePriority priority;
+        final long sequence;
+
+        QueueEntry(TuneQueuePriority priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof QueueEntry)) {
+                return false;
+            }
+            QueueEntry other = (QueueEntry) o;
+            return priority == other.priority && sequence == other.sequence;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * priority.hashCode() + (int) (sequence ^ (sequence >>> 32));
+        }
+    }
+
+    /**
+     * Data prepared for a queued event, along with the version of the late-bound parameters it was prepared with.
+     */
+    private static class PreparedEvent {
+        final String version;
+        final TuneUrlBuilder.PreparedData data;
+
+        PreparedEvent(String version, TuneUrlBuilder.PreparedData data) {
+            this.version = version;
+            this.data = data;
+        }
+    }
+
+    private static String getLaneDirectory(TuneQueuePriority priority) {
+        if (priority == TuneQueuePriority.NORMAL) {
+            return TuneConstants.QUEUE_DIRECTORY;
+        }
+        return TuneConstants.QUEUE_DIRECTORY + "_" + priority.name().toLowerCase(Locale.ENGLISH);
+    }
+
     public void acquireLock() throws InterruptedException {
         queueAvailable.acquire();
     }
@@ -35,64 +172,546 @@ public class TuneEventQueue {
     public void releaseLock() {
         queueAvailable.release();
     }
-    
+
+    /**
+     * Moves events queued by earlier SDK versions, which kept each event as its own key in the
+     * {@link TuneConstants#PREFS_QUEUE} SharedPreferences file, into the queue log.
+     * The SharedPreferences file is cleared once every event has been appended, so this only runs once.
+     * @param context Context
+     */
+    private void migrateSharedPreferencesQueue(Context context) {
+        TuneSharedPrefsDelegate legacyQueue = new TuneSharedPrefsDelegate(context, TuneConstants.PREFS_QUEUE);
+        Map<String, ?> entries = legacyQueue.getAll();
+        if (entries == null || entries.isEmpty()) {
+            return;
+        }
+
+        // Events were keyed "1".."queuesize" in the order they were added
+        List<Integer> keys = new ArrayList<>();
+        for (String key : entries.keySet()) {
+            try {
+                keys.add(Integer.parseInt(key));
+            } catch (NumberFormatException e) {
+                // "queuesize" and any other bookkeeping keys
+            }
+        }
+        Collections.sort(keys);
+
+        int migrated = 0;
+        for (Integer key : keys) {
+            Object eventJson = entries.get(Integer.toString(key));
+            if (eventJson instanceof String) {
+                try {
+                    // Old links carry the retry attempt inline, move it into the record metadata
+                    int attempts = 0;
+                    String migratedJson = (String) eventJson;
+                    try {
+                        JSONObject event = new JSONObject(migratedJson);
+                        String link = event.getString("link");
+                        Matcher matcher = LEGACY_RETRY_ATTEMPT.matcher(link);
+                        if (matcher.find()) {
+                            attempts = Integer.parseInt(matcher.group(1));
+                            event.put("link", matcher.replaceFirst(""));
+                            migratedJson = event.toString();
+                        }
+                    } catch (JSONException | NumberFormatException e) {
+                        // Keep the event as it was, Dump drops it if it can't be rebuilt
+                    }
+
+                    TuneRetryMetadata metadata = new TuneRetryMetadata(attempts, System.currentTimeMillis(), 0);
+                    lanes.get(TuneQueuePriority.NORMAL).append(migratedJson.getBytes("UTF-8"), metadata.toBytes());
+                    migrated++;
+                } catch (IOException e) {
+                    // Leave the old queue in place and try again on the next launch
+                    TuneDebugLog.e("Failed migrating queued events", e);
+                    return;
+                }
+            }
+        }
+
+        legacyQueue.clearSharedPreferences();
+        TuneDebugLog.d("Migrated " + migrated + " queued events");
+    }
+
+    /**
+     * Settles events whose request was in flight when the app was last stopped.
+     * Whether or not the server got such a request is unknown, so it counts as a failed attempt and
+     * the event is sent again right away; its link keeps the same transaction ID, so the server can
+     * tell the resend apart from a new event.
+     */
+    private void recoverInFlightItems() {
+        int recovered = 0;
+        for (Map.Entry<TuneQueuePriority, TuneQueueLog> lane : lanes.entrySet()) {
+            List<Long> sequences = new ArrayList<>();
+            List<byte[]> metadata = new ArrayList<>();
+            for (Long sequence : lane.getValue().peek(Integer.MAX_VALUE)) {
+                TuneRetryMetadata current = TuneRetryMetadata.fromBytes(lane.getValue().readMetadata(sequence));
+                if (current != null && current.isInFlight()) {
+                    sequences.add(sequence);
+                    metadata.add(current.failedAttempt(0).toBytes());
+                }
+            }
+            if (sequences.isEmpty()) {
+                continue;
+            }
+            try {
+                lane.getValue().setMetadataAll(sequences, metadata);
+                recovered += sequences.size();
+            } catch (IOException e) {
+                // Still marked in flight, so this is retried on the next launch
+                TuneDebugLog.w("Failed recovering queued events", e);
+            }
+        }
+
+        if (recovered > 0) {
+            TuneDebugLog.d("Recovered " + recovered + " queued events that were in flight");
+        }
+    }
+
+    /**
+     * Sets the policy choosing the wait before retrying after a failure.
+     * @param retryPolicy Retry policy
+     */
+    protected synchronized void setRetryPolicy(TuneRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets how many queued events may be in flight at once when they are sent as individual requests.
+     * @param maxInFlightRequests Maximum number of concurrent requests, at least 1
+     */
+    protected synchronized void setMaxInFlightRequests(int maxInFlightRequests) {
+        this.maxInFlightRequests = Math.max(1, maxInFlightRequests);
+    }
+
+    protected synchronized int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * Sets how many events a priority lane keeps. Once a lane is full, its oldest event is dropped
+     * to make room for a new one.
+     * @param priority Priority lane
+     * @param capacity Max number of events, at least 1
+     */
+    protected synchronized void setLaneCapacity(TuneQueuePriority priority, int capacity) {
+        laneCapacities.put(priority, Math.max(1, capacity));
+    }
+
+    /**
+     * Sets the max bytes the queue keeps on disk across all priority lanes.
+     * @param byteBudget Max bytes
+     */
+    protected synchronized void setByteBudget(long byteBudget) {
+        this.byteBudget = byteBudget;
+    }
+
     /**
-     * Sets the event queue size to value.
-     * @param size the new queue size
+     * Sets what the queue drops once it is over its byte budget.
+     * @param evictionPolicy Eviction policy
      */
-    protected synchronized void setQueueSize(int size) {
-        if (size < 0) size = 0;
-        eventQueue.putInt("queuesize", size);
+    protected synchronized void setEvictionPolicy(TuneEvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
     }
-    
+
+    /**
+     * Sets how long an event may stay queued before it is dropped unsent.
+     * @param maxAge Max age in milliseconds
+     */
+    protected synchronized void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Closes the open segment of each lane.  A lane reopens it if it is written to again.
+     */
+    protected synchronized void close() {
+        if (opened.getCount() > 0) {
+            // Never opened, there is nothing to close
+            return;
+        }
+        for (TuneQueueLog lane : lanes.values()) {
+            lane.close();
+        }
+    }
+
+    /**
+     * Returns the bytes taken by queued events, counted against the byte budget.
+     * @return the event queue size in bytes
+     */
+    protected synchronized long getQueueByteSize() {
+        long size = 0;
+        for (TuneQueueLog lane : lanes().values()) {
+            size += lane.byteSize();
+        }
+        return size;
+    }
+
     /**
      * Returns the current event queue size.
      * @return the event queue size
      */
     protected synchronized int getQueueSize() {
-        return eventQueue.getInt("queuesize", 0);
+        int size = 0;
+        for (TuneQueueLog lane : lanes().values()) {
+            size += lane.size();
+        }
+        return size;
     }
-    
+
     /**
-     * Removes a specific item from the queue.
-     * @param key The name of the item to remove.
+     * Returns the number of events in one priority lane.
+     * @param priority Priority lane
+     * @return the lane size
      */
-    protected synchronized void removeKeyFromQueue(String key) {
-        setQueueSize(getQueueSize() - 1);
-        eventQueue.remove(key);
+    protected synchronized int getQueueSize(TuneQueuePriority priority) {
+        return lanes().get(priority).size();
     }
 
     /**
-     * Remove all keys from the queue, including the queue size (effectively making the size zero).
+     * Remove all items from the queue.
      */
     protected synchronized void clearQueue() {
-        eventQueue.clearSharedPreferences();
+        for (TuneQueueLog lane : lanes().values()) {
+            lane.clear();
+        }
+    }
+
+    /**
+     * Returns the positions of the next events to send, in drain order.
+     * @param max Maximum number of positions to return
+     * @return List of queue entries
+     */
+    protected synchronized List<QueueEntry> peekEntries(int max) {
+        List<QueueEntry> entries = new ArrayList<>();
+        for (Map.Entry<TuneQueuePriority, TuneQueueLog> lane : lanes().entrySet()) {
+            if (entries.size() >= max) {
+                break;
+            }
+            for (Long sequence : lane.getValue().peek(max - entries.size())) {
+                entries.add(new QueueEntry(lane.getKey(), sequence));
+            }
+        }
+        return entries;
     }
-    
+
     /**
-     * Returns a specific item from the queue, without deleting the item.
-     * @param key The name of the item to retrieve.
-     * @return JSONObject of the item
+     * Returns an item from the queue by position, without removing it.
+     * @param position Zero-based position of the item, in drain order
+     * @return JSON string of the item, or null if there is no such item
      */
-    protected synchronized String getKeyFromQueue(String key) {
-        return eventQueue.getString(key, null);
+    protected synchronized String getItemFromQueue(int position) {
+        List<QueueEntry> entries = peekEntries(position + 1);
+        if (entries.size() <= position) {
+            return null;
+        }
+        return readItem(entries.get(position));
     }
-    
+
     /**
-     * Sets the values for a particular queue key.
-     * @param item The new value for the item.
-     * @param key The key to modify.
+     * Appends an item to the end of its priority lane.
+     * Expired items are dropped first.  If the lane is full, its oldest item is dropped, and if the
+     * queue is over its byte budget, items are dropped according to the eviction policy.
+     * @param item The item to append
+     * @param priority Priority lane of the item
+     * @throws IOException if the item could not be written
      */
-    protected synchronized void setQueueItemForKey(JSONObject item, String key) {
-        eventQueue.putString(key, item.toString());
+    protected synchronized void addItemToQueue(JSONObject item, TuneQueuePriority priority) throws IOException {
+        addItemsToQueue(Collections.singletonList(item), Collections.singletonList(priority));
     }
-    
+
+    /**
+     * Appends items to the end of their priority lanes, with a single write per lane.
+     * Expired items are dropped first.  If a lane is full, its oldest items are dropped, and if the
+     * queue is over its byte budget, items are dropped according to the eviction policy.
+     * @param items The items to append, in order
+     * @param priorities Priority lane of each item
+     * @throws IOException if the items could not be written
+     */
+    protected synchronized void addItemsToQueue(List<JSONObject> items, List<TuneQueuePriority> priorities) throws IOException {
+        removeExpiredItems();
+
+        Map<TuneQueuePriority, List<byte[]>> payloads = new EnumMap<>(TuneQueuePriority.class);
+        Map<TuneQueuePriority, List<byte[]>> metadata = new EnumMap<>(TuneQueuePriority.class);
+        long queueByteSize = getQueueByteSize();
+        int rejected = 0;
+        for (int i = 0; i < items.size(); i++) {
+            byte[] payload = items.get(i).toString().getBytes("UTF-8");
+            byte[] itemMetadata = TuneRetryMetadata.newlyQueued().toBytes();
+            long recordSize = TuneQueueLog.recordSize(payload.length, itemMetadata.length);
+            if (evictionPolicy == TuneEvictionPolicy.REJECT_NEW && queueByteSize + recordSize > byteBudget) {
+                rejected++;
+                continue;
+            }
+            queueByteSize += recordSize;
+
+            TuneQueuePriority priority = priorities.get(i);
+            if (!payloads.containsKey(priority)) {
+                payloads.put(priority, new ArrayList<byte[]>());
+                metadata.put(priority, new ArrayList<byte[]>());
+            }
+            payloads.get(priority).add(payload);
+            metadata.get(priority).add(itemMetadata);
+        }
+        if (rejected > 0) {
+            TuneDebugLog.w("Queue is over its byte budget, dropping " + rejected + " new events");
+            reportEvicted(rejected, EVICTED_REJECTED);
+        }
+
+        for (Map.Entry<TuneQueuePriority, List<byte[]>> lanePayloads : payloads.entrySet()) {
+            TuneQueuePriority priority = lanePayloads.getKey();
+            TuneQueueLog lane = lanes().get(priority);
+            lane.appendAll(lanePayloads.getValue(), metadata.get(priority));
+
+            int overflow = lane.size() - laneCapacities.get(priority);
+            if (overflow > 0) {
+                TuneDebugLog.w("Queue lane " + priority + " is full, dropping " + overflow + " oldest events");
+                for (Long sequence : lane.peek(overflow)) {
+                    lane.remove(sequence);
+                }
+                reportEvicted(overflow, EVICTED_LANE_FULL);
+            }
+        }
+
+        int evicted = 0;
+        while (getQueueByteSize() > byteBudget) {
+            QueueEntry entry = findEvictionCandidate();
+            if (entry == null) {
+                break;
+            }
+            lanes().get(entry.priority).remove(entry.sequence);
+            evicted++;
+        }
+        if (evicted > 0) {
+            TuneDebugLog.w("Queue is over its byte budget, dropped " + evicted + " events");
+            reportEvicted(evicted, EVICTED_OVER_BUDGET);
+        }
+    }
+
+    /**
+     * Drops items that have been queued for longer than the max age.
+     */
+    protected synchronized void removeExpiredItems() {
+        long oldestAllowed = System.currentTimeMillis() - maxAge;
+        int expired = 0;
+        try {
+            for (TuneQueueLog lane : lanes().values()) {
+                // Items are appended in the order they are queued, so only the head of a lane can have expired.
+                // An item without metadata can't tell its age, it is stepped over rather than ending the scan
+                List<Long> expiredItems = new ArrayList<>();
+                for (Long sequence : lane.peek(lane.size())) {
+                    TuneRetryMetadata metadata = TuneRetryMetadata.fromBytes(lane.readMetadata(sequence));
+                    if (metadata == null) {
+                        continue;
+                    }
+                    if (metadata.getFirstEnqueueTime() >= oldestAllowed) {
+                        break;
+                    }
+                    expiredItems.add(sequence);
+                }
+                for (Long sequence : expiredItems) {
+                    lane.remove(sequence);
+                }
+                expired += expiredItems.size();
+            }
+        } catch (IOException e) {
+            TuneDebugLog.w("Failed removing expired events", e);
+        }
+
+        if (expired > 0) {
+            TuneDebugLog.w("Dropped " + expired + " expired events from queue");
+            reportEvicted(expired, EVICTED_EXPIRED);
+        }
+    }
+
+    /**
+     * Picks the next item to drop while the queue is over its byte budget.
+     * @return position of the item, or null if the queue is empty
+     */
+    private QueueEntry findEvictionCandidate() {
+        if (evictionPolicy == TuneEvictionPolicy.DROP_OLDEST_SESSIONS) {
+            // Sessions are only ever queued in the normal lane, the first one excepted
+            TuneQueueLog lane = lanes().get(TuneQueuePriority.NORMAL);
+            for (Long sequence : lane.peek(TuneConstants.MAX_DUMP_SIZE)) {
+                QueueEntry entry = new QueueEntry(TuneQueuePriority.NORMAL, sequence);
+                if (isSession(readItem(entry))) {
+                    return entry;
+                }
+            }
+        }
+
+        TuneQueuePriority[] priorities = TuneQueuePriority.values();
+        for (int i = priorities.length - 1; i >= 0; i--) {
+            List<Long> head = lanes().get(priorities[i]).peek(1);
+            if (!head.isEmpty()) {
+                return new QueueEntry(priorities[i], head.get(0));
+            }
+        }
+        return null;
+    }
+
+    private static boolean isSession(String eventJson) {
+        if (eventJson == null) {
+            return false;
+        }
+        try {
+            String link = new JSONObject(eventJson).getString("link");
+            String action = "&" + TuneUrlKeys.ACTION + "=" + TuneParameters.ACTION_SESSION;
+            return link.contains(action + "&") || link.endsWith(action);
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    private void reportEvicted(int count, String reason) {
+        if (tune != null) {
+            tune.reportEvictedEvents(count, reason);
+        }
+    }
+
+    /**
+     * Returns the retry metadata of an item in the queue by position.
+     * @param position Zero-based position of the item, in drain order
+     * @return retry metadata of the item, or null if there is no such item
+     */
+    protected synchronized TuneRetryMetadata getItemMetadata(int position) {
+        List<QueueEntry> entries = peekEntries(position + 1);
+        if (entries.size() <= position) {
+            return null;
+        }
+        return readMetadata(entries.get(position));
+    }
+
+    /**
+     * Reads the retry metadata of a specific item in the queue.
+     * @param entry The position of the item
+     * @return retry metadata, never null
+     */
+    protected synchronized TuneRetryMetadata readMetadata(QueueEntry entry) {
+        TuneRetryMetadata metadata = TuneRetryMetadata.fromBytes(lanes().get(entry.priority).readMetadata(entry.sequence));
+        return metadata != null ? metadata : new TuneRetryMetadata(0, 0, 0);
+    }
+
+    /**
+     * Sets the retry metadata of a specific item in the queue, leaving the item itself as is.
+     * @param metadata The new retry metadata
+     * @param entry The position of the item to modify
+     */
+    protected synchronized void setMetadata(TuneRetryMetadata metadata, QueueEntry entry) {
+        try {
+            lanes().get(entry.priority).setMetadata(entry.sequence, metadata.toBytes());
+        } catch (IOException e) {
+            TuneDebugLog.w("Failed updating queued event", e);
+        }
+    }
+
+    /**
+     * Sets the retry metadata of several items in the queue, with a single write per lane.
+     * @param metadata The new retry metadata of each item
+     * @param entries The positions of the items to modify
+     * @throws IOException if the metadata could not be written
+     */
+    protected synchronized void setMetadata(List<TuneRetryMetadata> metadata, List<QueueEntry> entries) throws IOException {
+        Map<TuneQueuePriority, List<Long>> sequences = new EnumMap<>(TuneQueuePriority.class);
+        Map<TuneQueuePriority, List<byte[]>> values = new EnumMap<>(TuneQueuePriority.class);
+        for (int i = 0; i < entries.size(); i++) {
+            TuneQueuePriority priority = entries.get(i).priority;
+            if (!sequences.containsKey(priority)) {
+                sequences.put(priority, new ArrayList<Long>());
+                values.put(priority, new ArrayList<byte[]>());
+            }
+            sequences.get(priority).add(entries.get(i).sequence);
+            values.get(priority).add(metadata.get(i).toBytes());
+        }
+        for (Map.Entry<TuneQueuePriority, List<Long>> lane : sequences.entrySet()) {
+            lanes().get(lane.getKey()).setMetadataAll(lane.getValue(), values.get(lane.getKey()));
+        }
+    }
+
+    /**
+     * Reads a specific item from the queue, without deleting the item.
+     * @param entry The position of the item to retrieve
+     * @return JSON string of the item, or null if it could not be read
+     */
+    protected synchronized String readItem(QueueEntry entry) {
+        byte[] payload = lanes().get(entry.priority).read(entry.sequence);
+        if (payload == null) {
+            return null;
+        }
+        try {
+            return new String(payload, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sets the values for a particular queue item.
+     * @param item The new value for the item
+     * @param entry The position of the item to modify
+     */
+    protected synchronized void setQueueItem(JSONObject item, QueueEntry entry) {
+        try {
+            lanes().get(entry.priority).update(entry.sequence, item.toString().getBytes("UTF-8"));
+        } catch (IOException e) {
+            TuneDebugLog.w("Failed updating queued event", e);
+        }
+    }
+
+    /**
+     * Removes a specific item from the queue.
+     * @param entry The position of the item to remove
+     * @return true if the item was removed, false if it is still queued
+     */
+    protected synchronized boolean removeItemFromQueue(QueueEntry entry) {
+        try {
+            lanes().get(entry.priority).remove(entry.sequence);
+            return true;
+        } catch (IOException e) {
+            TuneDebugLog.w("Failed removing queued event", e);
+            return false;
+        }
+    }
+
+    /**
+     * Opens the priority lanes, replaying their logs, then moves over events queued by earlier SDK
+     * versions and settles events that were in flight.  Runs once, before the first {@link Add} or {@link Dump}.
+     * Until it is done, other threads touching the queue wait for it; neither the lock nor the
+     * monitor is taken here, so none of them can hold up the opening.
+     */
+    protected class Open implements Runnable {
+        private final Context context;
+
+        protected Open(Context context) {
+            this.context = context;
+        }
+
+        public void run() {
+            TuneDebugLog.d("Open() started");
+            try {
+                for (TuneQueuePriority priority : TuneQueuePriority.values()) {
+                    lanes.put(priority, TuneQueueLog.open(new File(context.getFilesDir(), getLaneDirectory(priority))));
+                }
+                migrateSharedPreferencesQueue(context);
+                recoverInFlightItems();
+            } finally {
+                opened.countDown();
+            }
+            TuneDebugLog.d("Open() complete");
+        }
+    }
+
     protected class Add implements Runnable {
-        private String link = null;
-        private String data = null;
-        private JSONObject postBody = null;
-        private boolean firstSession = false;
-        
+        private final List<JSONObject> events = new ArrayList<>();
+        private final List<TuneQueuePriority> priorities = new ArrayList<>();
+
+        /**
+         * Saves a batch of events to the queue.  Events are added with {@link #add}.
+         */
+        protected Add() {
+            TuneDebugLog.d("Add() created");
+        }
+
         /**
          * Saves an event to the queue.
          * @param link URL of the event postback
@@ -101,12 +720,54 @@ public class TuneEventQueue {
          * @param firstSession whether event should wait for advertising ID/referrer to be received
          */
         protected Add(String link, String data, JSONObject postBody, boolean firstSession) {
-            TuneDebugLog.d("Add() created");
+            this(link, data, postBody, firstSession, TuneQueuePriority.NORMAL);
+        }
 
-            this.link = link;
-            this.data = data;
-            this.postBody = postBody;
-            this.firstSession = firstSession;
+        /**
+         * Saves an event to the queue.
+         * @param link URL of the event postback
+         * @param data URL data
+         * @param postBody the body of the POST request
+         * @param firstSession whether event should wait for advertising ID/referrer to be received,
+         *                     first session events always go in the {@link TuneQueuePriority#FIRST_SESSION} lane
+         * @param priority priority lane of the event
+         */
+        protected Add(String link, String data, JSONObject postBody, boolean firstSession, TuneQueuePriority priority) {
+            this();
+            add(link, data, postBody, firstSession, priority);
+        }
+
+        /**
+         * Adds an event to the batch.
+         * @param link URL of the event postback
+         * @param data URL data
+         * @param postBody the body of the POST request
+         * @param firstSession whether event should wait for advertising ID/referrer to be received,
+         *                     first session events always go in the {@link TuneQueuePriority#FIRST_SESSION} lane
+         * @param priority priority lane of the event
+         */
+        protected void add(String link, String data, JSONObject postBody, boolean firstSession, TuneQueuePriority priority) {
+            // JSON-serialize the link and json to store in the queue log
+            JSONObject jsonEvent = new JSONObject();
+            try {
+                jsonEvent.put("link", link);
+                jsonEvent.put("data", data);
+                jsonEvent.put("post_body", postBody);
+                jsonEvent.put("first_session", firstSession);
+            } catch (JSONException e) {
+                TuneDebugLog.w("Failed creating event for queueing");
+                e.printStackTrace();
+                return;
+            }
+            events.add(jsonEvent);
+            priorities.add(firstSession ? TuneQueuePriority.FIRST_SESSION : priority);
+        }
+
+        /**
+         * @return Number of events in the batch
+         */
+        protected int size() {
+            return events.size();
         }
 
         public void run() {
@@ -115,26 +776,13 @@ public class TuneEventQueue {
 
                 // Acquire semaphore before modifying queue
                 acquireLock();
-                
-                // JSON-serialize the link and json to store in Shared Preferences as a string
-                JSONObject jsonEvent = new JSONObject();
-                try {
-                    jsonEvent.put("link", link);
-                    jsonEvent.put("data", data);
-                    jsonEvent.put("post_body", postBody);
-                    jsonEvent.put("first_session", firstSession);
-                } catch (JSONException e) {
-                    TuneDebugLog.w("Failed creating event for queueing");
-                    e.printStackTrace();
-                    return;
-                }
-                int count = getQueueSize() + 1;
-                setQueueSize(count);
-                String eventIndex = Integer.toString(count);
-                setQueueItemForKey(jsonEvent, eventIndex);
+
+                addItemsToQueue(events, priorities);
             } catch (InterruptedException e) {
                 TuneDebugLog.w("Interrupted adding event to queue");
                 e.printStackTrace();
+            } catch (IOException e) {
+                TuneDebugLog.w("Failed writing event to queue", e);
             } finally {
                 releaseLock();
             }
@@ -142,7 +790,192 @@ public class TuneEventQueue {
             TuneDebugLog.d("Add() complete");
         }
     }
-    
+
+    /**
+     * Schedules a wake-up for the next step of the retry backoff.
+     * The queue is not dumped before then, but events can still be added while waiting.
+     * @param attempts Highest failed attempt count among the events that just failed
+     * @param minDelayMs Shortest delay, e.g. the wait a server asked for
+     * @return Delay before the retry, in milliseconds
+     */
+    private synchronized long scheduleRetry(int attempts, long minDelayMs) {
+        // Continue the backoff where a failing event left off, even across restarts
+        failures = Math.max(failures + 1, attempts);
+        long delayMs = Math.max(retryPolicy.getRetryDelay(failures), minDelayMs);
+        scheduleWakeUp(delayMs);
+        return delayMs;
+    }
+
+    /**
+     * Skips dumps until the delay has passed, and dumps the queue once it has.
+     * @param delayMs Delay in milliseconds
+     */
+    private synchronized void scheduleWakeUp(long delayMs) {
+        nextRetryTime = SystemClock.elapsedRealtime() + delayMs;
+
+        TuneDebugLog.d("Dump() retrying in " + delayMs + " milliseconds");
+        tune.scheduleDumpQueue(delayMs);
+    }
+
+    /**
+     * Resets the retry backoff after a successful dump.
+     */
+    private synchronized void resetRetry() {
+        failures = 0;
+        nextRetryTime = 0;
+    }
+
+    /**
+     * @return true if a retry is scheduled and its time hasn't come yet
+     */
+    private synchronized boolean isWaitingForRetry() {
+        return SystemClock.elapsedRealtime() < nextRetryTime;
+    }
+
+    /**
+     * Reads and parses a queued event.
+     * @param entry The position of the event
+     * @return the event, or null if it can't be rebuilt
+     */
+    private JSONObject readEvent(QueueEntry entry) {
+        String eventJson = readItem(entry);
+        if (eventJson == null) {
+            // queued event value was lost somehow
+            TuneDebugLog.d("Null request skipped from queue");
+            return null;
+        }
+
+        try {
+            // De-serialize the stored string from the queue and check the URL and json values
+            JSONObject event = new JSONObject(eventJson);
+            event.getString("link");
+            event.getString("data");
+            event.getJSONObject("post_body");
+            event.getBoolean("first_session");
+            return event;
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Sends events as individual requests, with all of them in flight at once.
+     * Blocks until every request has completed or timed out.
+     * @param events Events to send
+     * @param prepared Prepared data of each event
+     * @return for each event, true if it was acknowledged and should be removed from queue
+     */
+    private boolean[] sendInFlight(List<JSONObject> events, List<TuneUrlBuilder.PreparedData> prepared) {
+        final boolean[] success = new boolean[events.size()];
+        final CountDownLatch done = new CountDownLatch(events.size());
+        List<TuneRequest> requests = new ArrayList<>(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            final int index = i;
+            JSONObject event = events.get(i);
+            requests.add(tune.sendRequest(event.optString("link"), event.optString("data"), prepared.get(i), event.optJSONObject("post_body"), new TuneInternal.SendCallback() {
+                @Override
+                public void onSent(boolean[] removeFromQueue) {
+                    synchronized (success) {
+                        success[index] = removeFromQueue[0];
+                    }
+                    done.countDown();
+                }
+            }));
+        }
+
+        // Requests that time out are cancelled and stay in the queue
+        TuneInternal.awaitRequests(done, requests);
+        synchronized (success) {
+            return success.clone();
+        }
+    }
+
+    /**
+     * Sends events in one batch request.
+     * Blocks until the request has completed or timed out.
+     * @param events Events to send
+     * @param prepared Prepared data of each event
+     * @return for each event, true if it was acknowledged and should be removed from queue
+     */
+    private boolean[] sendBatch(List<JSONObject> events, List<TuneUrlBuilder.PreparedData> prepared) {
+        final boolean[] success = new boolean[events.size()];
+        final CountDownLatch done = new CountDownLatch(1);
+        TuneRequest request = tune.sendBatchRequest(events, prepared, new TuneInternal.SendCallback() {
+            @Override
+            public void onSent(boolean[] removeFromQueue) {
+                synchronized (success) {
+                    System.arraycopy(removeFromQueue, 0, success, 0, success.length);
+                }
+                done.countDown();
+            }
+        });
+
+        TuneInternal.awaitRequests(done, Collections.singletonList(request));
+        synchronized (success) {
+            return success.clone();
+        }
+    }
+
+    /**
+     * Makes sure a queued event carries a transaction ID, which the server uses to recognize a
+     * resent event.  Links built by this SDK always have one; an event without one (e.g. queued
+     * by a very old version) gets one saved before its first send, so every resend reuses it.
+     * @param event The queued event
+     * @param entry The position of the event
+     */
+    private void ensureTransactionId(JSONObject event, QueueEntry entry) {
+        try {
+            String link = event.getString("link");
+            if (link.contains("&" + TuneUrlKeys.TRANSACTION_ID + "=") || link.contains("?" + TuneUrlKeys.TRANSACTION_ID + "=")) {
+                return;
+            }
+            event.put("link", link + "&" + TuneUrlKeys.TRANSACTION_ID + "=" + UUID.randomUUID().toString());
+            setQueueItem(event, entry);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Prepares the data of events about to be sent.  Data prepared for an earlier attempt is reused as
+     * long as the late-bound parameters it was prepared with haven't changed; otherwise it is prepared
+     * again for this attempt and the next.  Only the location and system date are added at every attempt.
+     * @param events The queued events
+     * @param entries The positions of the events
+     * @return the prepared data of each event
+     */
+    private List<TuneUrlBuilder.PreparedData> prepareData(List<JSONObject> events, List<QueueEntry> entries) {
+        // Forget events that aren't being sent anymore, they were sent or dropped
+        preparedEvents.keySet().retainAll(entries);
+
+        String version = tune.getLateBoundDataVersion();
+        List<TuneUrlBuilder.PreparedData> prepared = new ArrayList<>(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            PreparedEvent preparedEvent = preparedEvents.get(entries.get(i));
+            if (preparedEvent == null || !version.equals(preparedEvent.version)) {
+                preparedEvent = new PreparedEvent(version, tune.prepareData(events.get(i).optString("data")));
+                preparedEvents.put(entries.get(i), preparedEvent);
+            }
+            prepared.add(preparedEvent.data);
+        }
+        return prepared;
+    }
+
+    /**
+     * Adds the retry attempt to the link of an event about to be sent.
+     * Only the in-memory copy is changed, the queued event keeps its original link.
+     * @param event The queued event
+     * @param metadata Retry metadata of the event
+     */
+    private static void addRetryAttempt(JSONObject event, TuneRetryMetadata metadata) {
+        try {
+            event.put("link", event.getString("link") + "&" + TuneUrlKeys.SDK_RETRY_ATTEMPT + "=" + metadata.getAttempts());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
     protected class Dump implements Runnable {
         public Dump() {
             TuneDebugLog.d("Dump() created");
@@ -156,117 +989,158 @@ public class TuneEventQueue {
 
                     acquireLock();
 
-                    int index = 1;
-                    if (size > TuneConstants.MAX_DUMP_SIZE) {
-                        index = 1 + (size - TuneConstants.MAX_DUMP_SIZE);
+                    if (tune == null) {
+                        TuneDebugLog.d("Dropping queued requests because no TUNE object was found");
+                        clearQueue();
+                        return;
                     }
 
-                    // Iterate through events and do postbacks for each, using GetLink
-                    for (; index <= size; index++) {
-                        String key = Integer.toString(index);
-                        String eventJson = getKeyFromQueue(key);
+                    removeExpiredItems();
 
-                        if (eventJson != null) {
-                            String link = null;
-                            String data = null;
-                            JSONObject postBody = null;
-                            boolean firstSession = false;
-                            try {
-                                // De-serialize the stored string from the queue to get URL and json values
-                                JSONObject event = new JSONObject(eventJson);
-                                link = event.getString("link");
-                                data = event.getString("data");
-                                postBody = event.getJSONObject("post_body");
-                                firstSession = event.getBoolean("first_session");
-                            } catch (JSONException e) {
-                                e.printStackTrace();
-                                // Can't rebuild saved request, remove from queue and return
-                                removeKeyFromQueue(key);
-                                return;
+                    if (isWaitingForRetry()) {
+                        TuneDebugLog.d("Dump() skipped, waiting for scheduled retry");
+                        return;
+                    }
+
+                    // Send at most MAX_DUMP_SIZE events per dump, oldest first
+                    int sent = 0;
+                    while (sent < TuneConstants.MAX_DUMP_SIZE) {
+                        boolean batchUpload = tune.isBatchUploadEnabled();
+                        int windowSize = Math.min(batchUpload ? TuneConstants.MAX_BATCH_SIZE : getMaxInFlightRequests(), TuneConstants.MAX_DUMP_SIZE - sent);
+                        List<QueueEntry> entries = peekEntries(windowSize);
+                        if (entries.isEmpty()) {
+                            break;
+                        }
+
+                        List<QueueEntry> batchEntries = new ArrayList<>(entries.size());
+                        List<JSONObject> batchEvents = new ArrayList<>(entries.size());
+                        List<TuneRetryMetadata> batchMetadata = new ArrayList<>(entries.size());
+                        boolean firstSession = false;
+                        boolean stuck = false;
+                        long waitMs = 0;
+                        long now = System.currentTimeMillis();
+                        for (QueueEntry entry : entries) {
+                            JSONObject event = readEvent(entry);
+                            if (event == null) {
+                                // Can't rebuild saved request, remove from queue and move on
+                                if (removeItemFromQueue(entry)) {
+                                    continue;
+                                }
+                                // Still queued, so peeking again would only find it again
+                                TuneDebugLog.w("Unreadable queued event could not be removed, stopping dump");
+                                stuck = true;
+                                break;
                             }
+                            TuneRetryMetadata metadata = readMetadata(entry);
+                            if (metadata.getNextEligibleTime() > now && metadata.getNextEligibleTime() - now <= MAX_ELIGIBLE_WAIT) {
+                                // Not due yet (e.g. still backing off from before a restart), and
+                                // nothing queued after it goes first
+                                waitMs = metadata.getNextEligibleTime() - now;
+                                break;
+                            }
+                            boolean eventFirstSession = event.optBoolean("first_session");
+                            if (!batchUpload && eventFirstSession && !batchEvents.isEmpty()) {
+                                // A first session event goes out on its own, and must be
+                                // acknowledged before anything queued after it is sent
+                                break;
+                            }
+
+                            ensureTransactionId(event, entry);
+                            addRetryAttempt(event, metadata);
+                            batchEntries.add(entry);
+                            batchEvents.add(event);
+                            batchMetadata.add(metadata);
+                            firstSession |= eventFirstSession;
 
-                            // For first session, try to wait for Google AID and install referrer before sending
-                            if (firstSession) {
-                                tune.waitForFirstRunData(TuneConstants.DELAY);
+                            if (!batchUpload && eventFirstSession) {
+                                break;
+                            }
+                        }
+                        if (batchEvents.isEmpty()) {
+                            if (waitMs > 0) {
+                                scheduleWakeUp(waitMs);
+                                break;
                             }
+                            if (stuck) {
+                                break;
+                            }
+                            continue;
+                        }
 
-                            if (tune != null) {
-                                boolean success = tune.makeRequest(link, data, postBody);
-
-                                if (success) {
-                                    removeKeyFromQueue(key);
-                                    retryTimeout = 0; // reset retry timeout after success
-                                } else {
-                                    // repeat this call
-                                    index--;
-                                    // update retry parameter
-                                    // maybe try a regex parse instead...
-                                    final String paramString = "&" + TuneUrlKeys.SDK_RETRY_ATTEMPT + "=";
-                                    int retryStart = link.indexOf(paramString);
-                                    if (retryStart > 0) {
-                                        // find the longest substring that legally parses as an int
-                                        int attempt = -1;
-                                        int parseStart = retryStart + paramString.length();
-                                        int parseEnd = parseStart + 1;
-                                        while (true) {
-                                            String attemptString = null;
-                                            try {
-                                                attemptString = link.substring(parseStart, parseEnd);
-                                            } catch (StringIndexOutOfBoundsException e) {
-                                                break; // use last successfully parsed value
-                                            }
-                                            try {
-                                                attempt = Integer.parseInt(attemptString);
-                                                parseEnd++;
-                                            } catch (NumberFormatException e) {
-                                                break; // use last successfully parsed value
-                                            }
-                                        }
-                                        attempt++;
-                                        // 'attempt' will always be at least 0 here
-                                        link = link.replaceFirst(paramString + "\\d+", paramString + attempt);
-
-                                        // save updated link back to queue
-                                        try {
-                                            JSONObject event = new JSONObject(eventJson);
-                                            event.put("link", link);
-                                            setQueueItemForKey(event, key);
-                                        } catch (JSONException e) {
-                                            // error saving modified retry parameter, ignore
-                                            e.printStackTrace();
-                                        }
-                                    }
-                                    // choose new retry timeout, in seconds
-                                    if (retryTimeout == 0) {
-                                        retryTimeout = 30;
-                                    } else if (retryTimeout <= 30) {
-                                        retryTimeout = 90;
-                                    } else if (retryTimeout <= 90) {
-                                        retryTimeout = 10 * 60;
-                                    } else if (retryTimeout <= 10 * 60) {
-                                        retryTimeout = 60 * 60;
-                                    } else if (retryTimeout <= 60 * 60) {
-                                        retryTimeout = 6 * 60 * 60;
-                                    } else {
-                                        retryTimeout = 24 * 60 * 60;
-                                    }
-                                    // randomize and convert to milliseconds
-                                    double timeoutMs = (1 + 0.1 * Math.random()) * retryTimeout * 1000.;
-                                    // sleep this thread for awhile
-                                    try {
-                                        TuneDebugLog.d("Dump() Sleeping " + timeoutMs + " milliseconds");
-                                        Thread.sleep((long) timeoutMs);
-                                    } catch (InterruptedException e) {
-                                    }
-                                }
+                        // Hold everything for a host that asked clients to back off
+                        long backoffMs = tune.getHostBackoffDelay(batchEvents, batchUpload);
+                        if (backoffMs > 0) {
+                            TuneDebugLog.d("Dump() deferred, server asked to back off");
+                            scheduleWakeUp(backoffMs);
+                            break;
+                        }
+
+                        // For first session, try to wait for Google AID and install referrer before sending
+                        if (firstSession) {
+                            tune.waitForFirstRunData(TuneConstants.DELAY);
+                        }
+
+                        // Encrypt once, after the late-bound parameters had their chance to arrive
+                        List<TuneUrlBuilder.PreparedData> batchPrepared = prepareData(batchEvents, batchEntries);
+
+                        // Record that the requests are going out, so that a crash before the
+                        // outcome is recorded is settled on the next launch
+                        long sendStartTime = System.currentTimeMillis();
+                        List<TuneRetryMetadata> sendingMetadata = new ArrayList<>(batchMetadata.size());
+                        for (TuneRetryMetadata metadata : batchMetadata) {
+                            sendingMetadata.add(metadata.sendStarted(sendStartTime));
+                        }
+                        try {
+                            setMetadata(sendingMetadata, batchEntries);
+                        } catch (IOException e) {
+                            TuneDebugLog.w("Failed marking queued events as sent, retrying later", e);
+                            scheduleRetry(0, 0);
+                            break;
+                        }
+
+                        boolean[] success;
+                        if (!batchUpload) {
+                            success = sendInFlight(batchEvents, batchPrepared);
+                        } else {
+                            success = sendBatch(batchEvents, batchPrepared);
+                        }
+
+                        // Events that failed stay in the queue individually and are retried
+                        List<Integer> failed = new ArrayList<>();
+                        int maxAttempts = 0;
+                        for (int i = 0; i < success.length; i++) {
+                            if (success[i]) {
+                                removeItemFromQueue(batchEntries.get(i));
+                                sent++;
                             } else {
-                                TuneDebugLog.d("Dropping queued request because no TUNE object was found");
-                                removeKeyFromQueue(key);
+                                failed.add(i);
+                                maxAttempts = Math.max(maxAttempts, batchMetadata.get(i).getAttempts() + 1);
+                            }
+                        }
+
+                        if (!failed.isEmpty()) {
+                            // Stop here and release the queue; a wake-up is scheduled for the retry
+                            long failedTime = System.currentTimeMillis();
+                            long nextEligibleTime = failedTime + scheduleRetry(maxAttempts, tune.getHostBackoffDelay(batchEvents, batchUpload));
+                            List<TuneRetryMetadata> failedMetadata = new ArrayList<>(failed.size());
+                            List<QueueEntry> failedEntries = new ArrayList<>(failed.size());
+                            for (int i : failed) {
+                                failedMetadata.add(batchMetadata.get(i).failedAttempt(nextEligibleTime));
+                                failedEntries.add(batchEntries.get(i));
                             }
+                            try {
+                                setMetadata(failedMetadata, failedEntries);
+                            } catch (IOException e) {
+                                // Still marked in flight, which the next launch counts as a failed attempt
+                                TuneDebugLog.w("Failed updating queued events", e);
+                            }
+                            break;
                         } else {
-                            // eventJson null, queued event value was lost somehow
-                            TuneDebugLog.d("Null request skipped from queue");
-                            removeKeyFromQueue(key);
+                            resetRetry(); // reset retry timeout after success
+                        }
+
+                        if (stuck) {
+                            break;
                         }
                     } // for each item in queue
                 } catch (InterruptedException e) {
@@ -277,6 +1151,6 @@ public class TuneEventQueue {
             }
             TuneDebugLog.d("Dump() complete");
         }
-        
+
     }
 }
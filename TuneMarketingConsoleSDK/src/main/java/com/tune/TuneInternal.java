@@ -14,15 +14,30 @@ import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Patterns;
 import android.widget.Toast;
 
+import com.tune.http.AsyncUrlRequester;
+import com.tune.http.TuneAsyncUrlRequester;
+import com.tune.http.TuneCircuitBreaker;
+import com.tune.http.TuneLatencyEstimate;
+import com.tune.http.TuneLatencyEstimator;
+import com.tune.http.TuneRequest;
+import com.tune.http.TuneRequestCallback;
 import com.tune.http.TuneUrlRequester;
 import com.tune.http.UrlRequester;
 import com.tune.integrations.facebook.TuneFBBridge;
 import com.tune.location.TuneLocationListener;
+import com.tune.queue.TuneEventRingBuffer;
+import com.tune.queue.TuneEvictionPolicy;
+import com.tune.queue.TuneHostBackoff;
+import com.tune.queue.TuneOverflowPolicy;
+import com.tune.queue.TuneRetryPolicy;
+import com.tune.queue.TuneQueueLog;
+import com.tune.queue.TuneQueuePriority;
 import com.tune.utils.TuneOptional;
 import com.tune.utils.TuneStringUtils;
 import com.tune.utils.TuneUtils;
@@ -31,15 +46,30 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * @author andyp@tune.com
@@ -74,15 +104,25 @@ public class TuneInternal implements ITune {
     private TunePreloadData mPreloadData;
 
     // Interface for making url requests
-    private UrlRequester urlRequester;
+    private volatile AsyncUrlRequester urlRequester;
     // Encryptor for url
     private TuneEncryption encryption;
+    // Changes with every new encryptor and parameter set, so data encrypted before it can't be mistaken as current
+    private String encryptionEpoch;
     // Interface for reading platform response to tracking calls
     private ITuneListener tuneListener;
 
     // Whether to show debug output
     private static boolean debugMode;
 
+    // Whether to connect to the measurement host at init, ahead of the first request
+    private static volatile boolean connectionWarmUp;
+
+    // Time (SystemClock.elapsedRealtime) that SDK was initialized
+    private long initElapsedTime;
+    // Time from init to the first request acknowledged by the server, in milliseconds, -1 until then
+    private final AtomicLong timeToFirstAck = new AtomicLong(-1);
+
     // TODO: REFACTOR into FirstRun Logic
     // If this is the first session of the app lifecycle, wait for the advertising ID and referrer
     private boolean firstSession;
@@ -102,8 +142,49 @@ public class TuneInternal implements ITune {
     // Whether we're invoking FB event logging
     private boolean fbLogging;
 
+    // Whether queued events are sent to the batch endpoint
+    private volatile boolean batchUpload;
+
+    // Whether request bodies are gzip-compressed
+    private volatile boolean requestCompression = true;
+    // Request timeouts, adapted to the latency seen on each type of network
+    private final TuneLatencyEstimator latencyEstimator = new TuneLatencyEstimator();
+    // Fails requests fast to hosts that keep failing
+    private final TuneCircuitBreaker circuitBreaker = new TuneCircuitBreaker();
+    // Backoff from hosts that asked clients to slow down
+    private final TuneHostBackoff hostBackoff = new TuneHostBackoff();
+
+    // Names of events queued ahead of regular events
+    private volatile Set<String> priorityEventNames = Collections.emptySet();
+
     // Thread pool for running the request Runnables
     private final ExecutorService pool;
+    // Threads sending requests through a blocking UrlRequester, shared by every requester set
+    private final ExecutorService requestExecutor = Executors.newCachedThreadPool();
+
+    // How long a producer waits between attempts to add to a full event buffer
+    private static final long BUFFER_POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // Measured events waiting for the pubQueue to build and queue them
+    private final TuneEventRingBuffer<TuneEvent> eventBuffer = new TuneEventRingBuffer<>(TuneConstants.EVENT_BUFFER_SIZE);
+    // Whether a drain of the event buffer is pending on the pubQueue
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    // Events measured while the event buffer was full, when spilling to disk.  Opened on first use, see getSpillLog()
+    private volatile TuneQueueLog spillLog;
+    // Set while the spill log holds events, new events then go behind them on disk to keep their order
+    private volatile boolean spillPending;
+    // Guards spillPending, so no event is spilled between the drain finding the spill log empty and clearing it
+    private final Object spillLock = new Object();
+    // Thread running the pubQueue, the only consumer of the event buffer
+    private volatile Thread pubQueueThread;
+    // What measureEvent does when the event buffer is full
+    private volatile TuneOverflowPolicy overflowPolicy = TuneOverflowPolicy.SPILL_TO_DISK;
+    private volatile long overflowTimeoutMs = TuneConstants.EVENT_BUFFER_TIMEOUT;
+
+    // Timer for waking the queue up when a retry is due, created on first use
+    private ScheduledExecutorService retryScheduler;
+    // Pending retry wake-up, if any
+    private ScheduledFuture<?> scheduledDump;
 
     private static volatile TuneInternal sTuneInstance = null;
 
@@ -162,6 +243,9 @@ public class TuneInternal implements ITune {
             synchronized (pool) {
                 pool.notifyAll();
                 pool.shutdown();
+                if (retryScheduler != null) {
+                    retryScheduler.shutdownNow();
+                }
             }
 
             try {
@@ -175,6 +259,16 @@ public class TuneInternal implements ITune {
             }
 
             pubQueue.shutdownNow();
+            // Requests already sent finish, any made later fail straight away
+            requestExecutor.shutdown();
+
+            // Release the open segment files, the logs reopen them if written to again
+            eventQueue.close();
+            synchronized (spillLock) {
+                if (spillLog != null) {
+                    spillLog.close();
+                }
+            }
         } else {
             TuneDebugLog.d("Tune already shut down");
         }
@@ -206,7 +300,7 @@ public class TuneInternal implements ITune {
         if (sTuneInstance == null) {
             sTuneInstance = tune;
 
-            sTuneInstance.pubQueue = Executors.newSingleThreadExecutor();
+            sTuneInstance.pubQueue = Executors.newSingleThreadExecutor(sTuneInstance.pubQueueThreadFactory);
             sTuneInstance.initLocal(advertiserId, conversionKey, packageName);
 
             // Location listener init (default to true)
@@ -238,11 +332,14 @@ public class TuneInternal implements ITune {
         initLocalVariables(conversionKey);
 
         eventQueue = new TuneEventQueue(context, this);
+        openEventQueue(context);
+        runQueue("openSpillLog", openSpillLog);
 
         // Set up connectivity listener so we dump the queue when re-connected to Internet
         BroadcastReceiver networkStateReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
+                updateNetworkType();
                 if (isRegistered) {
                     dumpQueue();
                 }
@@ -262,6 +359,11 @@ public class TuneInternal implements ITune {
         IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
         context.registerReceiver(networkStateReceiver, filter);
         isRegistered = true;
+        updateNetworkType();
+
+        if (connectionWarmUp) {
+            warmUpConnection();
+        }
 
         if (!params.hasInstallFlagBeenSet()) {
             isFirstInstall = true;
@@ -274,10 +376,14 @@ public class TuneInternal implements ITune {
      * @param key the conversion key
      */
     private void initLocalVariables(String key) {
-        urlRequester = new TuneUrlRequester();
+        TuneUrlRequester tuneUrlRequester = new TuneUrlRequester(latencyEstimator, circuitBreaker);
+        tuneUrlRequester.setCompressionEnabled(requestCompression);
+        urlRequester = new TuneAsyncUrlRequester(tuneUrlRequester, requestExecutor);
         encryption = new TuneEncryption(key.trim(), IV);
+        encryptionEpoch = UUID.randomUUID().toString();
 
         initTime = System.currentTimeMillis();
+        initElapsedTime = SystemClock.elapsedRealtime();
         firstSession = true;
         isRegistered = false;
         fbLogging = false;
@@ -306,6 +412,66 @@ public class TuneInternal implements ITune {
         return false;
     }
 
+    /**
+     * Connects to the measurement host on a request thread, so that the first session's request
+     * finds DNS resolved and a kept-alive connection or TLS session ready.  This runs while the first
+     * session is still waiting for the advertising ID and install referrer.
+     */
+    private void warmUpConnection() {
+        final TuneUrlRequester requester = getTuneUrlRequester();
+        if (requester == null) {
+            return;
+        }
+        final String link = TuneUrlBuilder.buildWarmUpLink(params);
+        requestExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                requester.warmUp(link, debugMode);
+            }
+        });
+    }
+
+    /**
+     * @return the SDK's own HTTP client, null if requests are sent through another requester
+     */
+    private TuneUrlRequester getTuneUrlRequester() {
+        AsyncUrlRequester requester = urlRequester;
+        if (requester instanceof TuneAsyncUrlRequester && ((TuneAsyncUrlRequester) requester).getUrlRequester() instanceof TuneUrlRequester) {
+            return (TuneUrlRequester) ((TuneAsyncUrlRequester) requester).getUrlRequester();
+        }
+        return null;
+    }
+
+    /**
+     * Records the time from init to the first acknowledged request, once.
+     */
+    private void recordFirstAck() {
+        long elapsed = SystemClock.elapsedRealtime() - initElapsedTime;
+        if (timeToFirstAck.compareAndSet(-1, elapsed)) {
+            TuneDebugLog.i("First request acknowledged " + elapsed + "ms after init" + (connectionWarmUp ? ", connection warmed up" : ""));
+        }
+    }
+
+    /**
+     * Points request timeouts at the latency estimate of the active network, e.g. "wifi" or "mobile_lte".
+     */
+    private void updateNetworkType() {
+        String networkType = TuneLatencyEstimator.NETWORK_UNKNOWN;
+        Context context = mApplicationReference.get();
+        if (context != null) {
+            ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo activeNetworkInfo = connectivityManager != null ? connectivityManager.getActiveNetworkInfo() : null;
+            if (activeNetworkInfo != null) {
+                networkType = activeNetworkInfo.getTypeName().toLowerCase(Locale.ENGLISH);
+                if (activeNetworkInfo.getType() == ConnectivityManager.TYPE_MOBILE && !TuneStringUtils.isNullOrEmpty(activeNetworkInfo.getSubtypeName())) {
+                    // Latency differs a lot between generations of mobile networks
+                    networkType += "_" + activeNetworkInfo.getSubtypeName().toLowerCase(Locale.ENGLISH);
+                }
+            }
+        }
+        latencyEstimator.setNetworkType(networkType);
+    }
+
     protected ExecutorService getPubQueue() {
         return pubQueue;
     }
@@ -318,17 +484,59 @@ public class TuneInternal implements ITune {
         return AccountManager.get(context);
     }
 
-    protected synchronized void addEventToQueue(String link, String data, JSONObject postBody, boolean firstSession) {
+    protected void addEventToQueue(String link, String data, JSONObject postBody, boolean firstSession) {
+        addEventToQueue(link, data, postBody, firstSession, TuneQueuePriority.NORMAL);
+    }
+
+    protected void addEventToQueue(String link, String data, JSONObject postBody, boolean firstSession, TuneQueuePriority priority) {
+        addEventsToQueue(eventQueue.new Add(link, data, postBody, firstSession, priority));
+    }
+
+    /**
+     * Opens the event queue on the pool, so its disk reads happen off the calling thread and ahead
+     * of any event saved to the queue or dump of it.
+     * @param context Context
+     */
+    protected void openEventQueue(Context context) {
+        TuneEventQueue.Open open = eventQueue.new Open(context);
+        synchronized (pool) {
+            if (!pool.isShutdown()) {
+                pool.execute(open);
+                return;
+            }
+        }
+        // Nothing else runs on the pool any more, but the queue can still be read
+        open.run();
+    }
+
+    /**
+     * Adds an event to a batch that is later saved to the queue with {@link #addEventsToQueue}.
+     * @param batch batch of events
+     * @param link URL of the event postback
+     * @param data URL data
+     * @param postBody the body of the POST request
+     * @param firstSession whether event should wait for advertising ID/referrer to be received
+     * @param priority priority lane of the event
+     */
+    protected void addEventToBatch(TuneEventQueue.Add batch, String link, String data, JSONObject postBody, boolean firstSession, TuneQueuePriority priority) {
+        batch.add(link, data, postBody, firstSession, priority);
+    }
+
+    /**
+     * Saves a batch of events to the queue, taking the queue lock once for the whole batch.
+     * @param batch batch of events
+     */
+    protected void addEventsToQueue(TuneEventQueue.Add batch) {
         synchronized (pool) {
             if (pool.isShutdown()) {
                 return;
             }
 
-            pool.execute(eventQueue.new Add(link, data, postBody, firstSession));
+            pool.execute(batch);
         }
     }
 
-    protected synchronized void dumpQueue() {
+    protected void dumpQueue() {
         if (!isOnline()) {
             return;
         }
@@ -342,6 +550,32 @@ public class TuneInternal implements ITune {
         }
     }
 
+    /**
+     * Schedules a queue dump after a delay, replacing any dump scheduled earlier.
+     * This method is called exclusively by TuneEventQueue, so that a retry backoff never holds up the pool.
+     * @param delayMs Delay before dumping the queue (in milliseconds)
+     */
+    void scheduleDumpQueue(long delayMs) {
+        synchronized (pool) {
+            if (pool.isShutdown()) {
+                return;
+            }
+
+            if (retryScheduler == null) {
+                retryScheduler = Executors.newSingleThreadScheduledExecutor();
+            }
+            if (scheduledDump != null) {
+                scheduledDump.cancel(false);
+            }
+            scheduledDump = retryScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    dumpQueue();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
     /**
      * Measure new session.
      * Tune Android SDK plugins may use this method to trigger session measurement events.
@@ -406,6 +640,45 @@ public class TuneInternal implements ITune {
         measure(eventData);
     }
 
+    /**
+     * Measures several events at once.
+     * The events are queued exactly as if each was passed to {@link #measureEvent(TuneEvent)} in
+     * turn, but their links and data are all built from one snapshot of the parameters, they are saved
+     * to the queue in a single write, and the queue is dumped once.
+     * @param events events to measure, in order
+     */
+    @Override
+    public void measureEvents(final List<TuneEvent> events) {
+        if (events == null || events.isEmpty()) {
+            return;
+        }
+        updateLocation();
+
+        final List<TuneEvent> eventsCopy = new ArrayList<>(events);
+        runQueue("measureEvents", new Runnable() {
+            public void run() {
+                if (sTuneInstance == null) {
+                    TuneDebugLog.e("TUNE is not initialized");
+                    return;
+                }
+
+                dumpQueue();
+
+                // Events measured one at a time before this call go first
+                TuneEventQueue.Add batch = drainBufferedEvents();
+
+                // Setters on other threads neither wait for the batch nor show up halfway through it
+                TuneParameters.Snapshot snapshot = params.getSnapshot();
+                for (TuneEvent eventData : eventsCopy) {
+                    snapshot = buildEvent(eventData, batch, snapshot);
+                }
+
+                addEventsToQueue(batch);
+                dumpQueue();
+            }
+        });
+    }
+
     private void runQueue(String tag, Runnable runnable) {
         if (pubQueue != null) {
             TuneDebugLog.d("Run Queue: " + tag);
@@ -429,100 +702,674 @@ public class TuneInternal implements ITune {
                 }
 
                 // Send the Tune Link click request immediately
-                makeRequest(link, data, postBody);
+                sendRequest(link, data, postBody, null);
             }
         });
     }
 
-    private synchronized void measure(final TuneEvent eventData) {
-        // Go Asynchronous
-        runQueue("measure", new Runnable() {
-            public void run() {
-                if (sTuneInstance == null) {
-                    TuneDebugLog.e("TUNE is not initialized");
-                    return;
+    /**
+     * Hands a measured event over to the pubQueue thread, which builds and queues it.
+     * Called from any thread; this neither locks nor allocates unless the event buffer is full.
+     * @param eventData event being measured
+     */
+    private void measure(TuneEvent eventData) {
+        boolean kept;
+        if (spillPending) {
+            kept = spillBehindPendingEvents(eventData);
+        } else {
+            kept = eventBuffer.offer(eventData) || handleBufferOverflow(eventData);
+        }
+        if (kept) {
+            scheduleEventDrain();
+        }
+    }
+
+    /**
+     * Writes an event to the spill log behind the events already there, which the drain picks up
+     * after everything in the event buffer.
+     * @param eventData event being measured
+     * @return true if the event was kept
+     */
+    private boolean spillBehindPendingEvents(TuneEvent eventData) {
+        synchronized (spillLock) {
+            if (spillPending) {
+                return spillEvent(eventData) || dropEvent(eventData);
+            }
+        }
+        // The drain caught up with the spill log in the meantime
+        return eventBuffer.offer(eventData) || handleBufferOverflow(eventData);
+    }
+
+    /**
+     * Applies the overflow policy to an event that didn't fit in the event buffer.
+     * @param eventData event being measured
+     * @return true if the event was kept, either in the buffer or spilled to disk
+     */
+    private boolean handleBufferOverflow(TuneEvent eventData) {
+        switch (overflowPolicy) {
+            case BLOCK:
+                // Only the pubQueue makes room in the buffer, so it spills rather than wait on itself
+                if (Thread.currentThread() != pubQueueThread) {
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(overflowTimeoutMs);
+                    do {
+                        scheduleEventDrain();
+                        LockSupport.parkNanos(BUFFER_POLL_INTERVAL_NANOS);
+                        if (eventBuffer.offer(eventData)) {
+                            return true;
+                        }
+                    } while (System.nanoTime() < deadline);
+                    break;
+                }
+                // fall through
+            case SPILL_TO_DISK:
+                if (spillEvent(eventData)) {
+                    return true;
                 }
+                break;
+            default:
+                break;
+        }
 
-                dumpQueue();
+        return dropEvent(eventData);
+    }
 
-                params.setAction(TuneParameters.ACTION_CONVERSION); // Default to conversion
-                if (eventData.getEventName() != null) {
-                    String eventName = eventData.getEventName();
-                    if (fbLogging) {
-                        TuneFBBridge.logEvent(params, eventData);
-                    }
-                    if (TuneEvent.NAME_CLOSE.equals(eventName)) {
-                        return; // Don't send close events
-                    } else if (TuneEvent.NAME_OPEN.equals(eventName)
-                            || TuneEvent.NAME_INSTALL.equals(eventName)
-                            || TuneEvent.NAME_UPDATE.equals(eventName)
-                            || TuneEvent.NAME_SESSION.equals(eventName)) {
-                        params.setAction(TuneParameters.ACTION_SESSION);
-                    }
+    /**
+     * Drops an event that could not be kept.
+     * @param eventData event being measured
+     * @return false, the event was not kept
+     */
+    private boolean dropEvent(TuneEvent eventData) {
+        TuneDebugLog.w("Event buffer is full, dropping event " + eventData.getEventName());
+        reportEvictedEvents(1, TuneEventQueue.EVICTED_BUFFER_FULL);
+        return false;
+    }
+
+    /**
+     * Writes an event that didn't fit in the event buffer to the spill log, as JSON.
+     * @param eventData event being measured
+     * @return true if the event was written
+     */
+    private boolean spillEvent(TuneEvent eventData) {
+        TuneQueueLog log = getSpillLog();
+        if (log == null) {
+            return false;
+        }
+        try {
+            byte[] bytes = eventData.toJson().toString().getBytes("UTF-8");
+            synchronized (spillLock) {
+                log.append(bytes);
+                spillPending = true;
+            }
+            return true;
+        } catch (IOException | JSONException e) {
+            TuneDebugLog.w("Failed spilling event to disk", e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the spill log, opening it the first time it is needed.  Opening replays the log from
+     * disk, so this happens on the pubQueue at init, unless the event buffer overflows before then.
+     * @return the spill log, or null if there is no Context to open it with
+     */
+    private TuneQueueLog getSpillLog() {
+        TuneQueueLog log = spillLog;
+        if (log != null) {
+            return log;
+        }
+        synchronized (spillLock) {
+            if (spillLog == null) {
+                Context context = mApplicationReference.get();
+                if (context == null) {
+                    return null;
                 }
+                spillLog = TuneQueueLog.open(new File(context.getFilesDir(), TuneConstants.SPILL_DIRECTORY));
+            }
+            return spillLog;
+        }
+    }
 
-                if (eventData.getRevenue() > 0) {
-                    params.setPayingUser(TuneConstants.PREF_SET);
+    /**
+     * Opens the spill log on the pubQueue, ahead of the first drain, and picks up any events
+     * spilled before the app was last stopped.
+     */
+    private final Runnable openSpillLog = new Runnable() {
+        public void run() {
+            TuneQueueLog log = getSpillLog();
+            if (log == null) {
+                return;
+            }
+            synchronized (spillLock) {
+                if (log.size() == 0) {
+                    return;
                 }
+                // Events spilled before the app was last stopped
+                spillPending = true;
+            }
+            scheduleEventDrain();
+        }
+    };
 
-                String link = TuneUrlBuilder.buildLink(params, eventData, mPreloadData, debugMode);
-                String data = TuneUrlBuilder.buildDataUnencrypted(params, eventData);
-                JSONArray eventItemsJson = new JSONArray();
-                if (eventData.getEventItems() != null) {
-                    for (int i = 0; i < eventData.getEventItems().size(); i++) {
-                        eventItemsJson.put(eventData.getEventItems().get(i).toJson());
-                    }
+    /**
+     * Makes sure a drain of the event buffer is pending on the pubQueue.
+     */
+    private void scheduleEventDrain() {
+        if (!drainScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        if (pubQueue == null) {
+            TuneDebugLog.e("Run Queue NULL: measure");
+            drainScheduled.set(false);
+            return;
+        }
+        runQueue("measure", drainEventBuffer);
+    }
+
+    /**
+     * Builds every buffered and spilled event, and queues them in batches.
+     * Runs on the pubQueue, which is the only consumer of the event buffer.
+     */
+    private final Runnable drainEventBuffer = new Runnable() {
+        public void run() {
+            // Events offered from here on schedule another drain
+            drainScheduled.set(false);
+
+            if (sTuneInstance == null) {
+                TuneDebugLog.e("TUNE is not initialized");
+                while (eventBuffer.poll() != null) {
+                    // drop
                 }
-                JSONObject postBody =
-                        TuneUrlBuilder.buildBody(eventItemsJson, eventData.getReceiptData(), eventData.getReceiptSignature(), params.getUserEmails());
+                return;
+            }
 
-                if (tuneRequest != null) {
-                    tuneRequest.constructedRequest(link, data, postBody);
+            dumpQueue();
+
+            TuneEventQueue.Add batch = drainBufferedEvents();
+            if (batch.size() > 0) {
+                addEventsToQueue(batch);
+            }
+            dumpQueue();
+        }
+    };
+
+    /**
+     * Builds every buffered and spilled event, queueing them in batches as they fill up.
+     * Must only be called on the pubQueue.
+     * @return the last, partially filled batch, which the caller adds to the queue
+     */
+    private TuneEventQueue.Add drainBufferedEvents() {
+        TuneEventQueue.Add batch = eventQueue.new Add();
+        TuneEvent eventData;
+        while (true) {
+            while ((eventData = eventBuffer.poll()) != null) {
+                batch = addToBatch(eventData, batch);
+            }
+            TuneQueueLog log = spillLog;
+            if (log == null) {
+                return batch;
+            }
+
+            // While the spill log holds events, new events are spilled behind them rather than
+            // buffered, so whatever was in the buffer was measured before anything on disk
+            for (Long sequence : log.peek(Integer.MAX_VALUE)) {
+                TuneEvent spilled = readSpilledEvent(sequence);
+                if (spilled != null) {
+                    batch = addToBatch(spilled, batch);
+                }
+                try {
+                    log.remove(sequence);
+                } catch (IOException e) {
+                    // Left for a later drain, new events keep going behind it
+                    TuneDebugLog.w("Failed removing spilled event", e);
+                    return batch;
                 }
+            }
 
-                addEventToQueue(link, data, postBody, firstSession);
-                // Mark firstSession false
-                firstSession = false;
-                dumpQueue();
+            synchronized (spillLock) {
+                if (log.size() == 0) {
+                    spillPending = false;
+                    return batch;
+                }
             }
-        });
+        }
+    }
+
+    /**
+     * Builds an event into a batch, and queues the batch once it is full.
+     * @return the batch to add the next event to
+     */
+    private TuneEventQueue.Add addToBatch(TuneEvent eventData, TuneEventQueue.Add batch) {
+        buildEvent(eventData, batch, params.getSnapshot());
+        if (batch.size() >= TuneConstants.MAX_BATCH_SIZE) {
+            addEventsToQueue(batch);
+            return eventQueue.new Add();
+        }
+        return batch;
+    }
+
+    private TuneEvent readSpilledEvent(long sequence) {
+        byte[] bytes = spillLog.read(sequence);
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            return TuneEvent.fromJson(new JSONObject(new String(bytes, "UTF-8")));
+        } catch (IOException | JSONException | InvalidParameterException e) {
+            TuneDebugLog.w("Dropping unreadable spilled event", e);
+            return null;
+        }
+    }
+
+    // Names the pubQueue thread, so an overflowing event measured on it is never made to wait
+    private final ThreadFactory pubQueueThreadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+            pubQueueThread = thread;
+            return thread;
+        }
+    };
+
+    /**
+     * Builds the request for a measured event and adds it to a batch for the queue.
+     * @param eventData event being measured
+     * @param batch batch of events to add to the queue
+     * @param snapshot parameters to build the event from
+     * @return the parameters to build the next event of the batch from, including any change this event made
+     */
+    private TuneParameters.Snapshot buildEvent(TuneEvent eventData, TuneEventQueue.Add batch, TuneParameters.Snapshot snapshot) {
+        String action = TuneParameters.ACTION_CONVERSION; // Default to conversion
+        params.setAction(action);
+        if (eventData.getEventName() != null) {
+            String eventName = eventData.getEventName();
+            if (fbLogging) {
+                TuneFBBridge.logEvent(params, eventData);
+            }
+            if (TuneEvent.NAME_CLOSE.equals(eventName)) {
+                return snapshot; // Don't send close events
+            } else if (TuneEvent.NAME_OPEN.equals(eventName)
+                    || TuneEvent.NAME_INSTALL.equals(eventName)
+                    || TuneEvent.NAME_UPDATE.equals(eventName)
+                    || TuneEvent.NAME_SESSION.equals(eventName)) {
+                action = TuneParameters.ACTION_SESSION;
+                params.setAction(action);
+            }
+        }
+
+        if (eventData.getRevenue() > 0) {
+            params.setPayingUser(TuneConstants.PREF_SET);
+            snapshot = snapshot.withPayingUser(TuneConstants.PREF_SET);
+        }
+
+        // Link, data and body all come from one snapshot, whatever setters run on other threads meanwhile
+        String link = TuneUrlBuilder.buildLink(params, snapshot, action, eventData, mPreloadData, debugMode);
+        String data = TuneUrlBuilder.buildDataUnencrypted(params, snapshot, eventData);
+        JSONArray eventItemsJson = new JSONArray();
+        if (eventData.getEventItems() != null) {
+            for (int i = 0; i < eventData.getEventItems().size(); i++) {
+                eventItemsJson.put(eventData.getEventItems().get(i).toJson());
+            }
+        }
+        JSONObject postBody =
+                TuneUrlBuilder.buildBody(eventItemsJson, eventData.getReceiptData(), eventData.getReceiptSignature(), snapshot.userEmails);
+
+        if (tuneRequest != null) {
+            tuneRequest.constructedRequest(link, data, postBody);
+        }
+
+        addEventToBatch(batch, link, data, postBody, firstSession, getQueuePriority(eventData));
+        // Mark firstSession false
+        firstSession = false;
+        return snapshot;
+    }
+
+    /**
+     * Chooses the queue lane of an event: events with revenue, or with a name set through
+     * {@link #setPriorityEventNames(Set)}, jump ahead of everything else except the first session.
+     * @param eventData event being measured
+     * @return queue priority of the event
+     */
+    private TuneQueuePriority getQueuePriority(TuneEvent eventData) {
+        if (eventData.getRevenue() > 0 || priorityEventNames.contains(eventData.getEventName())) {
+            return TuneQueuePriority.HIGH;
+        }
+        return TuneQueuePriority.NORMAL;
+    }
+
+    /**
+     * Receives the outcome of requests sent to the server.
+     */
+    interface SendCallback {
+        /**
+         * @param removeFromQueue For each event sent, true if it was sent successfully and should be removed from queue
+         */
+        void onSent(boolean[] removeFromQueue);
     }
 
     /**
      * Helper function for making single request and displaying response.
+     * Blocks until the request completes, see {@link #sendRequest} for the non-blocking version.
      * @param link Url address
      * @param data Url link data
      * @param postBody Url post body
      * @return true if request was sent successfully and should be removed from queue
      */
     protected boolean makeRequest(String link, String data, JSONObject postBody) {
+        final boolean[] removeFromQueue = new boolean[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        TuneRequest request = sendRequest(link, data, postBody, new SendCallback() {
+            @Override
+            public void onSent(boolean[] result) {
+                removeFromQueue[0] = result[0];
+                done.countDown();
+            }
+        });
+        awaitRequests(done, Collections.singletonList(request));
+        return removeFromQueue[0];
+    }
+
+    /**
+     * Helper function for sending a single request without waiting for the response.
+     * @param link Url address
+     * @param data Url link data
+     * @param postBody Url post body
+     * @param callback Called with whether the request should be removed from queue, may be null
+     * @return the request in flight, null if it completed without being sent
+     */
+    protected TuneRequest sendRequest(final String link, String data, JSONObject postBody, final SendCallback callback) {
+        return sendRequest(link, data, null, postBody, callback);
+    }
+
+    /**
+     * Helper function for sending a single request without waiting for the response.
+     * @param link Url address
+     * @param data Url link data
+     * @param prepared Url link data already prepared by {@link #prepareData}, null to encrypt data now
+     * @param postBody Url post body
+     * @param callback Called with whether the request should be removed from queue, may be null
+     * @return the request in flight, null if it completed without being sent
+     */
+    protected TuneRequest sendRequest(final String link, String data, TuneUrlBuilder.PreparedData prepared, JSONObject postBody, final SendCallback callback) {
         TuneDebugLog.d("Sending event to server...");
 
         final boolean removeRequestFromQueue = true;
-        final boolean retryRequestInQueue = false;
 
         if (link == null) { // This is an internal method and link should always be set, but for customer stability we will prevent NPEs
             TuneDebugLog.e("CRITICAL internal Tune request link is null");
             safeReportFailureToTuneListener("", "Internal Tune request link is null");
-            return removeRequestFromQueue;
+            complete(callback, removeRequestFromQueue);
+            return null;
         }
 
         updateLocation(); // If location not set before sending, try to get location again
 
-        String encData = TuneUrlBuilder.updateAndEncryptData(params, data, encryption);
-        String fullLink = link + "&data=" + encData;
+        // Encrypt straight into the link, hex takes two chars per byte of data
+        StringBuilder fullLinkBuilder = new StringBuilder(link.length() + 2 * (data == null ? 0 : data.length()) + 512);
+        fullLinkBuilder.append(link).append("&data=");
+        appendEncryptedData(fullLinkBuilder, data, prepared);
+        final String fullLink = fullLinkBuilder.toString();
 
         if (tuneListener != null) {
             tuneListener.enqueuedRequest(fullLink, postBody);
         }
 
-        JSONObject response = urlRequester.requestUrl(fullLink, postBody, debugMode);
+        return urlRequester.requestUrl(fullLink, postBody, debugMode, new TuneRequestCallback() {
+            @Override
+            public void onResponse(JSONObject response) {
+                if (response == null) { // The only way we get null from TuneUrlRequester is if *our server* returned HTTP 400. Do not retry.
+                    safeReportFailureToTuneListener(fullLink, "Error 400 response from Tune");
+                    complete(callback, removeRequestFromQueue);
+                    return;
+                }
+
+                complete(callback, handleResponse(link, fullLink, response));
+            }
+
+            @Override
+            public void onFailure(Exception error) {
+                safeReportFailureToTuneListener(fullLink, error.toString());
+                complete(callback, false);
+            }
+        });
+    }
+
+    /**
+     * Identifies the values that updating and encrypting event data depends on: the encryptor, and
+     * the parameters merged into the data at send time. Changes whenever one of them does.
+     * @return version of the late-bound data
+     */
+    protected String getLateBoundDataVersion() {
+        // Location and system date are added to the data at every attempt, they don't count here
+        return encryptionEpoch + ":" + params.getLinkVersion() + ":" + params.getDeviceDataVersion() + ":" + params.getUserDataVersion()
+                + ":" + params.isPrivacyProtectedDueToAge();
+    }
+
+    /**
+     * Merges the late-bound parameters into queued event data and encrypts as much of it as can be
+     * reused by later attempts.  Call {@link #getLateBoundDataVersion()} first, so the version it
+     * returns matches the result.
+     * @param data Url link data
+     * @return prepared data, null if it cannot be prepared
+     */
+    protected TuneUrlBuilder.PreparedData prepareData(String data) {
+        return TuneUrlBuilder.prepareData(params, data, encryption);
+    }
+
+    private void appendEncryptedData(StringBuilder link, String data, TuneUrlBuilder.PreparedData prepared) {
+        if (prepared != null) {
+            TuneUrlBuilder.appendPreparedData(link, prepared, params, data, encryption);
+        } else {
+            TuneUrlBuilder.appendUpdatedAndEncryptedData(link, params, data, encryption);
+        }
+    }
+
+    private static void complete(SendCallback callback, boolean removeFromQueue) {
+        if (callback != null) {
+            callback.onSent(new boolean[] {removeFromQueue});
+        }
+    }
+
+    /**
+     * Helper function for sending several queued events in a single batch request, without waiting for the response.
+     * Each event is a JSONObject in the same format as stored in the event queue.
+     * @param events Events to send, in queue order
+     * @param callback Called with, for each event, whether it was sent successfully and should be removed from queue
+     * @return the request in flight
+     */
+    protected TuneRequest sendBatchRequest(final List<JSONObject> events, final SendCallback callback) {
+        return sendBatchRequest(events, null, callback);
+    }
 
-        if (response == null) { // The only way we get null from TuneUrlRequester is if *our server* returned HTTP 400. Do not retry.
-            safeReportFailureToTuneListener(fullLink, "Error 400 response from Tune");
-            return removeRequestFromQueue;
+    /**
+     * Helper function for sending several queued events in a single batch request, without waiting for the response.
+     * Each event is a JSONObject in the same format as stored in the event queue.
+     * @param events Events to send, in queue order
+     * @param prepared For each event, its data already prepared by {@link #prepareData} or null to encrypt it now; null to encrypt all
+     * @param callback Called with, for each event, whether it was sent successfully and should be removed from queue
+     * @return the request in flight
+     */
+    protected TuneRequest sendBatchRequest(final List<JSONObject> events, List<TuneUrlBuilder.PreparedData> prepared, final SendCallback callback) {
+        TuneDebugLog.d("Sending " + events.size() + " events to server in one batch...");
+
+        updateLocation(); // If location not set before sending, try to get location again
+
+        final String[] links = new String[events.size()];
+        final String[] fullLinks = new String[events.size()];
+        JSONArray batchEvents = new JSONArray();
+        for (int i = 0; i < events.size(); i++) {
+            JSONObject event = events.get(i);
+            links[i] = event.optString("link");
+            JSONObject postBody = event.optJSONObject("post_body");
+
+            String data = event.optString("data");
+            StringBuilder fullLinkBuilder = new StringBuilder(links[i].length() + 2 * data.length() + 512);
+            fullLinkBuilder.append(links[i]).append("&data=");
+            int dataStart = fullLinkBuilder.length();
+            appendEncryptedData(fullLinkBuilder, data, prepared == null ? null : prepared.get(i));
+            fullLinks[i] = fullLinkBuilder.toString();
+            String encData = fullLinks[i].substring(dataStart);
+
+            if (tuneListener != null) {
+                tuneListener.enqueuedRequest(fullLinks[i], postBody);
+            }
+
+            JSONObject batchEvent = new JSONObject();
+            try {
+                batchEvent.put("link", links[i]);
+                batchEvent.put("data", encData);
+                if (postBody != null && postBody.length() > 0) {
+                    batchEvent.put("post_body", postBody);
+                }
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+            batchEvents.put(batchEvent);
         }
 
+        JSONObject batch = new JSONObject();
+        try {
+            batch.put(TuneConstants.BATCH_REQUEST_EVENTS, batchEvents);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        final String batchLink = TuneUrlBuilder.buildBatchLink(params);
+        return urlRequester.requestBatch(batchLink, batch, debugMode, new TuneRequestCallback() {
+            @Override
+            public void onResponse(JSONObject response) {
+                callback.onSent(handleBatchResponse(batchLink, links, fullLinks, response));
+            }
+
+            @Override
+            public void onFailure(Exception error) {
+                // Not sent, every event stays queued
+                for (String fullLink : fullLinks) {
+                    safeReportFailureToTuneListener(fullLink, error.toString());
+                }
+                callback.onSent(new boolean[links.length]);
+            }
+        });
+    }
+
+    /**
+     * Helper function for handling the server response to a batch request.
+     * @param batchLink Url address the batch was sent to
+     * @param links Url addresses of the events, without data
+     * @param fullLinks Url addresses of the events that were sent
+     * @param response Server response for the batch
+     * @return for each event, true if it should be removed from queue
+     */
+    private boolean[] handleBatchResponse(String batchLink, String[] links, String[] fullLinks, JSONObject response) {
+        boolean[] removeFromQueue = new boolean[links.length];
+        updateHostBackoff(batchLink, response);
+
+        if (response == null) { // Our server returned HTTP 400 for the whole batch. Do not retry.
+            for (int i = 0; i < links.length; i++) {
+                safeReportFailureToTuneListener(fullLinks[i], "Error 400 response from Tune");
+                removeFromQueue[i] = true;
+            }
+            return removeFromQueue;
+        }
+
+        JSONArray results = response.optJSONArray(TuneConstants.SERVER_RESPONSE_RESULTS);
+        if (results == null || results.length() != links.length) { // batch didn't go through, all events should be requeued
+            TuneDebugLog.e("Batch request failed, events will remain in queue");
+            for (int i = 0; i < links.length; i++) {
+                safeReportFailureToTuneListener(fullLinks[i], response);
+            }
+            return removeFromQueue;
+        }
+
+        for (int i = 0; i < links.length; i++) {
+            JSONObject result = results.optJSONObject(i);
+            removeFromQueue[i] = handleResponse(links[i], fullLinks[i], result != null ? result : new JSONObject());
+        }
+
+        return removeFromQueue;
+    }
+
+    /**
+     * Waits for requests to complete.  Requests still in flight after
+     * {@link TuneConstants#REQUEST_COMPLETION_TIMEOUT} are cancelled, and so never call back.
+     * @param done Counted down as the requests complete
+     * @param requests Requests to cancel if they don't complete in time, null entries are skipped
+     * @return true if every request completed
+     */
+    static boolean awaitRequests(CountDownLatch done, List<TuneRequest> requests) {
+        try {
+            if (done.await(TuneConstants.REQUEST_COMPLETION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            TuneDebugLog.w("Requests timed out, cancelling");
+        } catch (InterruptedException e) {
+            TuneDebugLog.w("Interrupted waiting for requests, cancelling", e);
+            Thread.currentThread().interrupt();
+        }
+        for (TuneRequest request : requests) {
+            if (request != null) {
+                request.cancel();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Backs off from the host of a request if it pushed back with HTTP 429 or 503, and ends the
+     * backoff once it accepts a request.
+     * @param link Url address that was requested
+     * @param response Server response, null if the server rejected the request
+     */
+    private void updateHostBackoff(String link, JSONObject response) {
+        if (response == null) {
+            return;
+        }
+        String host = getHost(link);
+        int status = response.optInt(TuneConstants.SERVER_RESPONSE_HTTP_STATUS);
+        if (TuneHostBackoff.isBackpressure(status)) {
+            long delay = hostBackoff.defer(host, response.optLong(TuneConstants.SERVER_RESPONSE_RETRY_AFTER, -1));
+            TuneDebugLog.w("Server " + host + " returned " + status + ", holding requests to it for " + delay + " milliseconds");
+        } else if (response.has(TuneConstants.SERVER_RESPONSE_SUCCESS) || response.has(TuneConstants.SERVER_RESPONSE_RESULTS)) {
+            hostBackoff.reset(host);
+        }
+    }
+
+    /**
+     * @param link Url address
+     * @return host of the address, empty if it has none
+     */
+    static String getHost(String link) {
+        String host = Uri.parse(link).getHost();
+        return host != null ? host : "";
+    }
+
+    /**
+     * @param events Queued events about to be sent
+     * @param batchUpload Whether they are sent in one batch request
+     * @return the remaining wait before the events may be sent, 0 if none of the hosts they go to is backed off
+     */
+    protected long getHostBackoffDelay(List<JSONObject> events, boolean batchUpload) {
+        if (batchUpload) {
+            return hostBackoff.getRemainingDelay(getHost(TuneUrlBuilder.buildBatchLink(params)));
+        }
+        long delay = 0;
+        for (JSONObject event : events) {
+            delay = Math.max(delay, hostBackoff.getRemainingDelay(getHost(event.optString("link"))));
+        }
+        return delay;
+    }
+
+    /**
+     * Helper function for handling the server response to a single event.
+     * @param link Url address, without data
+     * @param fullLink Url address that was requested
+     * @param response Server response for the event
+     * @return true if the event should be removed from queue
+     */
+    private boolean handleResponse(String link, String fullLink, JSONObject response) {
+        final boolean removeRequestFromQueue = true;
+        final boolean retryRequestInQueue = false;
+
+        updateHostBackoff(link, response);
         if (!response.has(TuneConstants.SERVER_RESPONSE_SUCCESS)) { // if response is empty, it should be requeued
             TuneDebugLog.e("Request failed, event will remain in queue");
             safeReportFailureToTuneListener(fullLink, response);
@@ -542,6 +1389,7 @@ public class TuneInternal implements ITune {
         }
 
         safeReportSuccessOrFailureToTuneListener(fullLink, response, success);
+        recordFirstAck();
         saveOpenLogId(response);
 
         return removeRequestFromQueue;
@@ -567,6 +1415,17 @@ public class TuneInternal implements ITune {
         }
     }
 
+    /**
+     * Reports queued events that were dropped without being sent.
+     * @param count Number of events dropped
+     * @param reason Why they were dropped, one of the {@code TuneEventQueue.EVICTED_*} reasons
+     */
+    void reportEvictedEvents(int count, String reason) {
+        if (tuneListener != null) {
+            tuneListener.didEvictEvents(count, reason);
+        }
+    }
+
     private void safeReportFailureToTuneListener(String url, String errorMessage) {
         Map<String, String> errors = new HashMap<>();
         errors.put("error", errorMessage);
@@ -1103,6 +1962,15 @@ public class TuneInternal implements ITune {
         }
     }
 
+    static void setConnectionWarmUpEnabled(boolean enabled) {
+        connectionWarmUp = enabled;
+    }
+
+    @Override
+    public long getTimeToFirstAck() {
+        return timeToFirstAck.get();
+    }
+
     static void setDebugMode(boolean debug) {
         debugMode = debug;
 
@@ -1170,6 +2038,101 @@ public class TuneInternal implements ITune {
         }
     }
 
+    @Override
+    public void setPriorityEventNames(Set<String> eventNames) {
+        if (eventNames == null) {
+            priorityEventNames = Collections.emptySet();
+        } else {
+            priorityEventNames = Collections.unmodifiableSet(new HashSet<>(eventNames));
+        }
+    }
+
+    @Override
+    public void setBatchUploadEnabled(boolean enabled) {
+        batchUpload = enabled;
+    }
+
+    @Override
+    public void setRequestCompressionEnabled(boolean enabled) {
+        requestCompression = enabled;
+        TuneUrlRequester requester = getTuneUrlRequester();
+        if (requester != null) {
+            requester.setCompressionEnabled(enabled);
+        }
+    }
+
+    @Override
+    public void setRequestTimeoutBounds(int floorMs, int ceilingMs) {
+        latencyEstimator.setBounds(floorMs, ceilingMs);
+    }
+
+    @Override
+    public Map<String, TuneLatencyEstimate> getLatencyEstimates() {
+        return latencyEstimator.getEstimates();
+    }
+
+    @Override
+    public void setCircuitBreakerListener(TuneCircuitBreaker.Listener listener) {
+        circuitBreaker.setListener(listener);
+    }
+
+    @Override
+    public void setEventBufferOverflowPolicy(TuneOverflowPolicy policy, long timeoutMs) {
+        overflowPolicy = policy;
+        overflowTimeoutMs = timeoutMs;
+    }
+
+    @Override
+    public void setRetryPolicy(TuneRetryPolicy policy) {
+        eventQueue.setRetryPolicy(policy);
+    }
+
+    @Override
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        if (maxInFlightRequests <= 0) {
+            throw new IllegalArgumentException("maxInFlightRequests must be greater than 0");
+        }
+        eventQueue.setMaxInFlightRequests(maxInFlightRequests);
+    }
+
+    @Override
+    public void setQueueByteBudget(long byteBudget) {
+        if (byteBudget <= 0) {
+            throw new IllegalArgumentException("byteBudget must be greater than 0");
+        }
+        eventQueue.setByteBudget(byteBudget);
+    }
+
+    @Override
+    public void setQueueEvictionPolicy(TuneEvictionPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        eventQueue.setEvictionPolicy(policy);
+    }
+
+    @Override
+    public void setQueueMaxAge(long maxAgeMs) {
+        if (maxAgeMs <= 0) {
+            throw new IllegalArgumentException("maxAgeMs must be greater than 0");
+        }
+        eventQueue.setMaxAge(maxAgeMs);
+    }
+
+    /**
+     * Whether queued events should be sent in batch requests.
+     * @return true if batch upload was enabled with {@link #setBatchUploadEnabled(boolean)}
+     * and the requester in use can send batches
+     */
+    protected boolean isBatchUploadEnabled() {
+        if (!batchUpload) {
+            return false;
+        }
+        // An app supplied UrlRequester may not implement batching, its events then go one request each
+        AsyncUrlRequester requester = urlRequester;
+        return !(requester instanceof TuneAsyncUrlRequester) || ((TuneAsyncUrlRequester) requester).supportsBatchRequests();
+    }
+
     @Override
     public void disableLocationAutoCollection() {
         collectLocation = false;
@@ -1213,6 +2176,13 @@ public class TuneInternal implements ITune {
         @Override
         public void didFailWithError(String url, JSONObject error) {
         }
+
+        @Override
+        public void didEvictEvents(int count, String reason) {
+            if (debugMode) {
+                TuneDebugLog.d("Dropped " + count + " queued events (" + reason + ")");
+            }
+        }
     };
 
     /* ========================================================================================== */
@@ -1256,6 +2226,14 @@ public class TuneInternal implements ITune {
      * @param urlRequester UrlRequester
      */
     protected void setUrlRequester(final UrlRequester urlRequester) {
+        this.urlRequester = new TuneAsyncUrlRequester(urlRequester, requestExecutor);
+    }
+
+    @Override
+    public void setAsyncUrlRequester(AsyncUrlRequester urlRequester) {
+        if (urlRequester == null) {
+            throw new IllegalArgumentException("urlRequester must not be null");
+        }
         this.urlRequester = urlRequester;
     }
 
@@ -28,6 +28,7 @@ import org.json.JSONException;
 
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Locale;
 import java.util.Set;
@@ -37,6 +38,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class TuneParameters {
     // Tune SDK instance
@@ -53,6 +55,19 @@ public class TuneParameters {
     private TuneSharedPrefsDelegate mPrefs;
     private CountDownLatch initializationComplete;
 
+    // Bumped whenever a value baked into the cached link prefix changes
+    private volatile int mLinkVersion;
+    // Bumped whenever a value baked into the cached device or user part of the data changes
+    private volatile int mDeviceDataVersion;
+    private volatile int mUserDataVersion;
+    // Consistent copy of the values the URL builders read, rebuilt by the first read after a change
+    private final AtomicReference<Snapshot> mSnapshot = new AtomicReference<>();
+    // Counts changes to the values in the snapshot, odd while a setter of several values is halfway through.
+    // Written holding the lock, read without it
+    private volatile int mChanges;
+    // Nesting of setters of several values, guarded by this
+    private int mUpdateDepth;
+
     TuneParameters() {
     }
     
@@ -67,6 +82,7 @@ public class TuneParameters {
         INSTANCE.initializationComplete = new CountDownLatch(2);
 
         INSTANCE.mPrefs = new TuneSharedPrefsDelegate(context, TuneConstants.PREFS_TUNE);
+        INSTANCE.loadSavedParams();
         INSTANCE.populateParams(context, advertiserId, conversionKey, packageName);
 
         INSTANCE.initializationComplete.countDown();
@@ -119,6 +135,8 @@ public class TuneParameters {
             return;
         }
 
+        // Publish one snapshot once everything is set
+        beginUpdate();
         try {
             // Strip the whitespace from advertiser id and key
             setAdvertiserId(advertiserId.trim());
@@ -217,9 +235,27 @@ public class TuneParameters {
         } catch (Exception e) {
             TuneDebugLog.d("MobileAppTracking params initialization failed");
             e.printStackTrace();
+        } finally {
+            endUpdate();
         }
     }
     
+    /**
+     * Reads the values saved by earlier sessions, so that neither getters nor snapshots go to the shared preferences.
+     */
+    private synchronized void loadSavedParams() {
+        mInstallBeginTimestampSeconds = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_INSTALL_BEGIN_TIMESTAMP, null);
+        mReferrerClickTimestampSeconds = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_REFERRER_CLICK_TIMESTAMP, null);
+        mInstallReferrer = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_REFERRER, null);
+        mIsPayingUser = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_PAYING_USER, null);
+        mLastOpenLogId = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_LAST_LOG_ID, null);
+        mMatId = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_TUNE_ID, null);
+        mOpenLogId = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_LOG_ID, null);
+        mUserId = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_USER_ID, null);
+        mUserEmails = readUserEmails();
+        changed();
+    }
+
     /**
      * Determine the device's user agent and set the corresponding field.
      */
@@ -355,27 +391,29 @@ public class TuneParameters {
      * Param storage
      */
 
-    private String mAction = null;
-    public synchronized String getAction() {
+    private volatile String mAction = null;
+    public String getAction() {
         return mAction;
     }
-    public synchronized void setAction(String action) {
+    // Passed to the URL builders with each event, so it is not part of the snapshot
+    public void setAction(String action) {
         mAction = action;
     }
 
-    private String mAdvertiserId = null;
-    public synchronized String getAdvertiserId() {
+    private volatile String mAdvertiserId = null;
+    public String getAdvertiserId() {
         return mAdvertiserId;
     }
     public synchronized void setAdvertiserId(String advertiserId) {
         mAdvertiserId = advertiserId;
+        linkChanged();
     }
     
-    private String mAge = null;
-    public synchronized String getAge() {
+    private volatile String mAge = null;
+    public String getAge() {
         return mAge;
     }
-    public synchronized int getAgeNumeric() {
+    public int getAgeNumeric() {
         String ageString = getAge();
         int age = 0;
         if (ageString != null) {
@@ -392,47 +430,57 @@ public class TuneParameters {
     public synchronized void setAge(String age) {
         mAge = age;
         savePrivacyProtectionState();
+        userDataChanged();
     }
     
-    private String mAndroidId = null;
-    public synchronized String getAndroidId() {
+    private volatile String mAndroidId = null;
+    public String getAndroidId() {
         return mAndroidId;
     }
 
     // We don't want to persist the AndroidId to local storage, because we don't want to
     // use it if we can collect a better ID later.
     public synchronized void setAndroidId(String androidId) {
-        mAndroidId = androidId;
-
-        // Also set the hash variations
-        setAndroidIdMd5(TuneUtils.md5(androidId));
-        setAndroidIdSha1(TuneUtils.sha1(androidId));
-        setAndroidIdSha256(TuneUtils.sha256(androidId));
+        beginUpdate();
+        try {
+            mAndroidId = androidId;
+
+            // Also set the hash variations
+            setAndroidIdMd5(TuneUtils.md5(androidId));
+            setAndroidIdSha1(TuneUtils.sha1(androidId));
+            setAndroidIdSha256(TuneUtils.sha256(androidId));
+            deviceDataChanged();
+        } finally {
+            endUpdate();
+        }
     }
     
-    private String mAndroidIdMd5 = null;
-    public synchronized String getAndroidIdMd5() { return mAndroidIdMd5; }
+    private volatile String mAndroidIdMd5 = null;
+    public String getAndroidIdMd5() { return mAndroidIdMd5; }
     public synchronized void setAndroidIdMd5(String androidIdMd5) {
         mAndroidIdMd5 = androidIdMd5;
+        deviceDataChanged();
     }
     
-    private String mAndroidIdSha1 = null;
-    public synchronized String getAndroidIdSha1() {
+    private volatile String mAndroidIdSha1 = null;
+    public String getAndroidIdSha1() {
         return mAndroidIdSha1;
     }
     public synchronized void setAndroidIdSha1(String androidIdSha1) {
         mAndroidIdSha1 = androidIdSha1;
+        deviceDataChanged();
     }
     
-    private String mAndroidIdSha256 = null;
-    public synchronized String getAndroidIdSha256() {
+    private volatile String mAndroidIdSha256 = null;
+    public String getAndroidIdSha256() {
         return mAndroidIdSha256;
     }
     public synchronized void setAndroidIdSha256(String androidIdSha256) {
         mAndroidIdSha256 = androidIdSha256;
+        deviceDataChanged();
     }
     
-    private String mAppAdTracking = null;
+    private volatile String mAppAdTracking = null;
 
     // Need to know if AppAdTracking was ever set, because the server default is "true" if undefined.
     public boolean isAppAdTrackingSet() {
@@ -440,58 +488,64 @@ public class TuneParameters {
     }
 
     // COPPA rules apply
-    public synchronized boolean getAppAdTrackingEnabled() {
-        if (!isAppAdTrackingSet()) {
+    public boolean getAppAdTrackingEnabled() {
+        String appAdTracking = mAppAdTracking;
+        if (TuneStringUtils.isNullOrEmpty(appAdTracking)) {
             return false;
         }
 
         int adTrackingEnabled = 0;
         try {
-            adTrackingEnabled = Integer.parseInt(mAppAdTracking);
+            adTrackingEnabled = Integer.parseInt(appAdTracking);
         } catch (NumberFormatException e) {
-            TuneDebugLog.e("Error parsing adTrackingEnabled value " + mAppAdTracking, e);
+            TuneDebugLog.e("Error parsing adTrackingEnabled value " + appAdTracking, e);
         }
 
         return (!isPrivacyProtectedDueToAge() && adTrackingEnabled != 0);
     }
     public synchronized void setAppAdTrackingEnabled(String adTrackingEnabled) {
         mAppAdTracking = adTrackingEnabled;
+        userDataChanged();
     }
 
-    private String mAppName = null;
-    public synchronized String getAppName() {
+    private volatile String mAppName = null;
+    public String getAppName() {
         return mAppName;
     }
     public synchronized void setAppName(String app_name) {
         mAppName = app_name;
+        deviceDataChanged();
     }
 
-    private String mAppVersion = null;
-    public synchronized String getAppVersion() {
+    private volatile String mAppVersion = null;
+    public String getAppVersion() {
         return mAppVersion;
     }
     public synchronized void setAppVersion(String appVersion) {
         mAppVersion = appVersion;
+        deviceDataChanged();
     }
 
-    private String mAppVersionName = null;
-    public synchronized String getAppVersionName() {
+    private volatile String mAppVersionName = null;
+    public String getAppVersionName() {
         return mAppVersionName;
     }
     public synchronized void setAppVersionName(String appVersionName) {
         mAppVersionName = appVersionName;
+        deviceDataChanged();
     }
 
-    private String mConnectionType = null;
-    public synchronized String getConnectionType() {
+    private volatile String mConnectionType = null;
+    public String getConnectionType() {
         return mConnectionType;
     }
     public synchronized void setConnectionType(String connection_type) {
         mConnectionType = connection_type;
+        deviceDataChanged();
     }
 
-    private String mConversionKey = null;
-    public synchronized String getConversionKey() {
+    private volatile String mConversionKey = null;
+    public String getConversionKey() {
         return mConversionKey;
     }
     public synchronized void setConversionKey(String conversionKey) {
@@ -499,102 +553,113 @@ public class TuneParameters {
         //NOTE: We don't need to track this for TMA + it isn't used as a URL param for MAT
     }
 
-    private String mCountryCode = null;
-    public synchronized String getCountryCode() {
+    private volatile String mCountryCode = null;
+    public String getCountryCode() {
         return mCountryCode;
     }
     public synchronized void setCountryCode(String countryCode) {
         mCountryCode = countryCode;
+        deviceDataChanged();
     }
 
-    private String mDeviceBrand = null;
-    public synchronized String getDeviceBrand() {
+    private volatile String mDeviceBrand = null;
+    public String getDeviceBrand() {
         return mDeviceBrand;
     }
     public synchronized void setDeviceBrand(String deviceBrand) {
         mDeviceBrand = deviceBrand;
+        deviceDataChanged();
     }
 
-    private String mDeviceBuild = null;
-    public synchronized String getDeviceBuild() {
+    private volatile String mDeviceBuild = null;
+    public String getDeviceBuild() {
         return mDeviceBuild;
     }
     public synchronized void setDeviceBuild(String deviceBuild) {
         mDeviceBuild = deviceBuild;
+        deviceDataChanged();
     }
 
-    private String mDeviceCarrier = null;
-    public synchronized String getDeviceCarrier() {
+    private volatile String mDeviceCarrier = null;
+    public String getDeviceCarrier() {
         return mDeviceCarrier;
     }
     public synchronized void setDeviceCarrier(String carrier) {
         mDeviceCarrier = carrier;
+        deviceDataChanged();
     }
 
-    private String mDeviceCpuType = null;
-    public synchronized String getDeviceCpuType() {
+    private volatile String mDeviceCpuType = null;
+    public String getDeviceCpuType() {
         return mDeviceCpuType;
     }
     public synchronized void setDeviceCpuType(String cpuType) {
         mDeviceCpuType = cpuType;
+        deviceDataChanged();
     }
 
-    private String mDeviceCpuSubtype = null;
-    public synchronized String getDeviceCpuSubtype() {
+    private volatile String mDeviceCpuSubtype = null;
+    public String getDeviceCpuSubtype() {
         return mDeviceCpuSubtype;
     }
 
     public synchronized void setDeviceCpuSubtype(String cpuType) {
         mDeviceCpuSubtype = cpuType;
+        deviceDataChanged();
     }
 
-    private String mDeviceId = null;
-    public synchronized String getDeviceId() {
+    private volatile String mDeviceId = null;
+    public String getDeviceId() {
         return mDeviceId;
     }
     public synchronized void setDeviceId(String deviceId) {
         mDeviceId = deviceId;
+        deviceDataChanged();
     }
     
-    private String mDeviceModel = null;
-    public synchronized String getDeviceModel() {
+    private volatile String mDeviceModel = null;
+    public String getDeviceModel() {
         return mDeviceModel;
     }
     public synchronized void setDeviceModel(String model) {
         mDeviceModel = model;
+        deviceDataChanged();
     }
 
-    private String mExistingUser = null;
-    public synchronized String getExistingUser() {
+    private volatile String mExistingUser = null;
+    public String getExistingUser() {
         return mExistingUser;
     }
     public synchronized void setExistingUser(String existingUser) {
         mExistingUser = existingUser;
+        userDataChanged();
     }
     
-    private String mFbUserId = null;
-    public synchronized String getFacebookUserId() {
+    private volatile String mFbUserId = null;
+    public String getFacebookUserId() {
         return mFbUserId;
     }
     public synchronized void setFacebookUserId(String fb_user_id) {
         mFbUserId = fb_user_id;
+        userDataChanged();
     }
 
-    @Deprecated private String mFireAdvertisingId = null;
-    @Deprecated synchronized String getFireAdvertisingId() {
+    @Deprecated private volatile String mFireAdvertisingId = null;
+    @Deprecated String getFireAdvertisingId() {
         return mFireAdvertisingId;
     }
     @Deprecated synchronized void setFireAdvertisingId(String adId) {
         // Retain FIRE_AID until fully deprecated.
         mFireAdvertisingId = adId;
+        deviceDataChanged();
     }
 
     @Deprecated synchronized void setFireAdTrackingLimited(String limited) {
         // Retain FIRE_AD_TRACKING Limited until fully deprecated.
     }
 
-    private String mGender = null;
-    public synchronized String getGender() {
+    private volatile String mGender = null;
+    public String getGender() {
         return mGender;
     }
     public synchronized void setGender(TuneGender gender) {
@@ -609,43 +674,43 @@ public class TuneParameters {
                 mGender = "";
                 break;
         }
+        userDataChanged();
     }
 
-    @Deprecated private String mGaid = null;
-    @Deprecated synchronized String getGoogleAdvertisingId() {
+    @Deprecated private volatile String mGaid = null;
+    @Deprecated String getGoogleAdvertisingId() {
         return mGaid;
     }
     @Deprecated synchronized void setGoogleAdvertisingId(String adId) {
         // Retain GOOGLE_AID until fully deprecated.
         mGaid = adId;
+        deviceDataChanged();
     }
 
     @Deprecated synchronized void setGoogleAdTrackingLimited(String limited) {
         // Retain GOOGLE_AD_TRACKING_DISABLED Limited until fully deprecated.
     }
     
-    private String mGgUserId = null;
-    public synchronized String getGoogleUserId() {
+    private volatile String mGgUserId = null;
+    public String getGoogleUserId() {
         return mGgUserId;
     }
     public synchronized void setGoogleUserId(String google_user_id) {
         mGgUserId = google_user_id;
+        userDataChanged();
     }
 
-    private String mInstallDate = null;
-    public synchronized String getInstallDate() {
+    private volatile String mInstallDate = null;
+    public String getInstallDate() {
         return mInstallDate;
     }
     public synchronized void setInstallDate(String installDate) {
         mInstallDate = installDate;
+        deviceDataChanged();
     }
 
-    private String mInstallBeginTimestampSeconds = null;
-    public synchronized String getInstallBeginTimestampSeconds() {
-        if (mInstallBeginTimestampSeconds == null) {
-            mInstallBeginTimestampSeconds = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_INSTALL_BEGIN_TIMESTAMP, null);
-        }
-
+    private volatile String mInstallBeginTimestampSeconds = null;
+    public String getInstallBeginTimestampSeconds() {
         return mInstallBeginTimestampSeconds;
     }
     public synchronized void setInstallBeginTimestampSeconds(long timestampSeconds) {
@@ -655,39 +720,34 @@ public class TuneParameters {
             mPrefs.saveToSharedPreferences(TuneConstants.KEY_INSTALL_BEGIN_TIMESTAMP, mInstallBeginTimestampSeconds);
             }
         });
+        deviceDataChanged();
     }
 
-    private String mReferrerClickTimestampSeconds = null;
-    public synchronized String getReferrerClickTimestampSeconds() {
-        if (mReferrerClickTimestampSeconds == null) {
-            mReferrerClickTimestampSeconds = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_REFERRER_CLICK_TIMESTAMP, null);
-        }
-
+    private volatile String mReferrerClickTimestampSeconds = null;
+    public String getReferrerClickTimestampSeconds() {
         return mReferrerClickTimestampSeconds;
     }
     public synchronized void setReferrerClickTimestampSeconds(long timestampSeconds) {
-        mInstallBeginTimestampSeconds = Long.toString(timestampSeconds);
+        mReferrerClickTimestampSeconds = Long.toString(timestampSeconds);
         mExecutor.execute(new Runnable() {
             public void run() {
-                mPrefs.saveToSharedPreferences(TuneConstants.KEY_REFERRER_CLICK_TIMESTAMP, mInstallBeginTimestampSeconds);
+                mPrefs.saveToSharedPreferences(TuneConstants.KEY_REFERRER_CLICK_TIMESTAMP, mReferrerClickTimestampSeconds);
             }
         });
+        deviceDataChanged();
     }
 
-    private String mInstallerPackage = null;
-    public synchronized String getInstaller() {
+    private volatile String mInstallerPackage = null;
+    public String getInstaller() {
         return mInstallerPackage;
     }
     public synchronized void setInstaller(String installer) {
         mInstallerPackage = installer;
+        deviceDataChanged();
     }
 
-    private String mInstallReferrer;
-    public synchronized String getInstallReferrer() {
-        if (mInstallReferrer == null) {
-            mInstallReferrer = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_REFERRER, null);
-        }
-
+    private volatile String mInstallReferrer;
+    public String getInstallReferrer() {
         return mInstallReferrer;
     }
     public synchronized void setInstallReferrer(final String installReferrer) {
@@ -697,6 +757,7 @@ public class TuneParameters {
                 mPrefs.saveToSharedPreferences(TuneConstants.KEY_REFERRER, installReferrer);
             }
         });
+        deviceDataChanged();
     }
 
     private Boolean mHasInstallFlagBeenSet;
@@ -716,11 +777,8 @@ public class TuneParameters {
         });
     }
 
-    private String mIsPayingUser;
-    public synchronized String isPayingUser() {
-        if (mIsPayingUser == null) {
-            mIsPayingUser = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_PAYING_USER, null);
-        }
+    private volatile String mIsPayingUser;
+    public String isPayingUser() {
         return mIsPayingUser;
     }
     public synchronized void setPayingUser(final String isPayingUser) {
@@ -730,21 +788,20 @@ public class TuneParameters {
                 mPrefs.saveToSharedPreferences(TuneConstants.KEY_PAYING_USER, isPayingUser);
             }
         });
+        userDataChanged();
     }
 
-    private String mLanguage = null;
-    public synchronized String getLanguage() {
+    private volatile String mLanguage = null;
+    public String getLanguage() {
         return mLanguage;
     }
     public synchronized void setLanguage(String language) {
         mLanguage = language;
+        deviceDataChanged();
     }
 
-    private String mLastOpenLogId = null;
-    public synchronized String getLastOpenLogId() {
-        if (mLastOpenLogId == null) {
-            mLastOpenLogId = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_LAST_LOG_ID, null);
-        }
+    private volatile String mLastOpenLogId = null;
+    public String getLastOpenLogId() {
         return mLastOpenLogId;
     }
     public synchronized void setLastOpenLogId(final String logId) {
@@ -754,51 +811,64 @@ public class TuneParameters {
                 mPrefs.saveToSharedPreferences(TuneConstants.KEY_LAST_LOG_ID, logId);
             }
         });
+        deviceDataChanged();
     }
 
-    private String mLocale = null;
-    public synchronized String getLocale() {
+    private volatile String mLocale = null;
+    public String getLocale() {
         return mLocale;
     }
     public synchronized void setLocale(String locale) {
         mLocale = locale;
+        deviceDataChanged();
     }
 
-    private Location mLocation = null;
-    private void createLocationIfMissing() {
-        if (mLocation == null) {
-            mLocation = new Location("");
+    private volatile Location mLocation = null;
+
+    public synchronized void setLocation(final Location location) {
+        Location previous = mLocation;
+        mLocation = new Location(location);
+        // The location is refreshed before every send, only an actual move needs a new snapshot.
+        // It is kept out of the data versions, so a move doesn't invalidate data prepared for queued events
+        if (!hasSameCoordinates(previous, location.getLatitude(), location.getLongitude(), location.getAltitude())) {
+            changed();
         }
     }
 
-    public void setLocation(final Location location) {
-        mLocation = new Location(location);
+    public synchronized void setLocation(double latitude, double longitude, double altitude) {
+        if (hasSameCoordinates(mLocation, latitude, longitude, altitude)) {
+            return;
+        }
+        // Replaced rather than updated in place, so a snapshot being taken never sees half of a move
+        Location location = (mLocation == null ? new Location("") : new Location(mLocation));
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        location.setAltitude(altitude);
+        mLocation = location;
+        changed();
     }
 
-    public void setLocation(double latitude, double longitude, double altitude) {
-        createLocationIfMissing();
-        mLocation.setLatitude(latitude);
-        mLocation.setLongitude(longitude);
-        mLocation.setAltitude(altitude);
+    private static boolean hasSameCoordinates(Location location, double latitude, double longitude, double altitude) {
+        return location != null
+                && location.getLatitude() == latitude
+                && location.getLongitude() == longitude
+                && location.getAltitude() == altitude;
     }
 
     public final Location getLocation() {
         return mLocation;
     }
 
-    private String mMacAddress = null;
-    public synchronized String getMacAddress() {
+    private volatile String mMacAddress = null;
+    public String getMacAddress() {
         return mMacAddress;
     }
     public synchronized void setMacAddress(String mac_address) {
         mMacAddress = mac_address;
     }
 
-    private String mMatId = null;
-    public synchronized String getMatId() {
-        if (mMatId == null) {
-            mMatId = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_TUNE_ID, null);
-        }
+    private volatile String mMatId = null;
+    public String getMatId() {
         return mMatId;
     }
     public synchronized void setMatId(final String matId) {
@@ -808,53 +878,57 @@ public class TuneParameters {
                 mPrefs.saveToSharedPreferences(TuneConstants.KEY_TUNE_ID, matId);
             }
         });
+        deviceDataChanged();
     }
 
-    private String mMCC = null;
-    public synchronized String getMCC() {
+    private volatile String mMCC = null;
+    public String getMCC() {
         return mMCC;
     }
     public synchronized void setMCC(String mcc) {
         mMCC = mcc;
+        deviceDataChanged();
     }
 
-    private String mMNC = null;
-    public synchronized String getMNC() {
+    private volatile String mMNC = null;
+    public String getMNC() {
         return mMNC;
     }
     public synchronized void setMNC(String mnc) {
         mMNC = mnc;
+        deviceDataChanged();
     }
 
-    private String mOpenLogId = null;
-    public synchronized String getOpenLogId() {
-        if (mOpenLogId == null) {
-            mOpenLogId = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_LOG_ID, null);
-        }
+    private volatile String mOpenLogId = null;
+    public String getOpenLogId() {
         return mOpenLogId;
     }
     public synchronized void setOpenLogId(final String logId) {
+        mOpenLogId = logId;
         mExecutor.execute(new Runnable() {
             public void run() {
                 mPrefs.saveToSharedPreferences(TuneConstants.KEY_LOG_ID, logId);
             }
         });
+        deviceDataChanged();
     }
 
-    private String mOsVersion = null;
-    public synchronized String getOsVersion() {
+    private volatile String mOsVersion = null;
+    public String getOsVersion() {
         return mOsVersion;
     }
     public synchronized void setOsVersion(String osVersion) {
         mOsVersion = osVersion;
+        deviceDataChanged();
     }
 
-    private String mPackageName = null;
-    public synchronized String getPackageName() {
+    private volatile String mPackageName = null;
+    public String getPackageName() {
         return mPackageName;
     }
     private synchronized void setPackageName(String packageName) {
         mPackageName = packageName;
+        linkChanged();
     }
 
     private String mPhoneNumber = null;
@@ -868,9 +942,14 @@ public class TuneParameters {
         mPhoneNumber = normalizePhoneNumber(phoneNumber);
 
         // Also set the hash variations
-        setPhoneNumberMd5(TuneUtils.md5(mPhoneNumber));
-        setPhoneNumberSha1(TuneUtils.sha1(mPhoneNumber));
-        setPhoneNumberSha256(TuneUtils.sha256(mPhoneNumber));
+        beginUpdate();
+        try {
+            setPhoneNumberMd5(TuneUtils.md5(mPhoneNumber));
+            setPhoneNumberSha1(TuneUtils.sha1(mPhoneNumber));
+            setPhoneNumberSha256(TuneUtils.sha256(mPhoneNumber));
+        } finally {
+            endUpdate();
+        }
 
         mExecutor.execute(new Runnable() {
             public void run() {
@@ -896,41 +975,45 @@ public class TuneParameters {
         return phoneNumber;
     }
     
-    private String mPhoneNumberMd5;
-    public synchronized String getPhoneNumberMd5() {
+    private volatile String mPhoneNumberMd5;
+    public String getPhoneNumberMd5() {
         return mPhoneNumberMd5;
     }
     public synchronized void setPhoneNumberMd5(String phoneNumberMd5) {
         mPhoneNumberMd5 = phoneNumberMd5;
+        userDataChanged();
     }
     
-    private String mPhoneNumberSha1;
-    public synchronized String getPhoneNumberSha1() {
+    private volatile String mPhoneNumberSha1;
+    public String getPhoneNumberSha1() {
         return mPhoneNumberSha1;
     }
     public synchronized void setPhoneNumberSha1(String phoneNumberSha1) {
         mPhoneNumberSha1 = phoneNumberSha1;
+        userDataChanged();
     }
     
-    private String mPhoneNumberSha256;
-    public synchronized String getPhoneNumberSha256() {
+    private volatile String mPhoneNumberSha256;
+    public String getPhoneNumberSha256() {
         return mPhoneNumberSha256;
     }
     public synchronized void setPhoneNumberSha256(String phoneNumberSha256) {
         mPhoneNumberSha256 = phoneNumberSha256;
+        userDataChanged();
     }
 
-    private String mPlatformAdvertisingId = null;
-    public synchronized String getPlatformAdvertisingId() {
+    private volatile String mPlatformAdvertisingId = null;
+    public String getPlatformAdvertisingId() {
         return mPlatformAdvertisingId;
     }
     public synchronized void setPlatformAdvertisingId(String adId) {
         mPlatformAdvertisingId = adId;
+        deviceDataChanged();
     }
 
-    private String mPlatformAdTrackingLimited = null;
+    private volatile String mPlatformAdTrackingLimited = null;
     // COPPA rules apply
-    public synchronized boolean getPlatformAdTrackingLimited() {
+    public boolean getPlatformAdTrackingLimited() {
         String platformAdTrackingLimitedString = getPlatformAdTrackingLimitedParameter();
         if (TuneStringUtils.isNullOrEmpty(platformAdTrackingLimitedString)) {
             return false;
@@ -945,37 +1028,41 @@ public class TuneParameters {
 
         return (!isPrivacyProtectedDueToAge() && platformAdTrackingLimited != 0);
     }
-    private synchronized String getPlatformAdTrackingLimitedParameter() {
+    private String getPlatformAdTrackingLimitedParameter() {
         return mPlatformAdTrackingLimited;
     }
     public synchronized void setPlatformAdTrackingLimited(String limited) {
         mPlatformAdTrackingLimited = limited;
+        userDataChanged();
     }
 
-    private String mPluginName = null;
-    public synchronized String getPluginName() {
+    private volatile String mPluginName = null;
+    public String getPluginName() {
         return mPluginName;
     }
     public synchronized void setPluginName(String pluginName) {
         mPluginName = pluginName;
+        deviceDataChanged();
     }
 
-    private boolean mPrivacyExplicitlySetAsProtected = false;
-    private synchronized boolean isPrivacyExplicitlySetAsProtected() {
+    private volatile boolean mPrivacyExplicitlySetAsProtected = false;
+    private boolean isPrivacyExplicitlySetAsProtected() {
         return mPrivacyExplicitlySetAsProtected;
     }
     public synchronized void setPrivacyExplicitlySetAsProtected(boolean isSet) {
         mPrivacyExplicitlySetAsProtected = isSet;
         savePrivacyProtectionState();
+        userDataChanged();
     }
     private synchronized void loadPrivacyProtectedSetting() {
         mPrivacyExplicitlySetAsProtected = mPrefs.getBooleanFromSharedPreferences(TuneConstants.KEY_COPPA);
+        userDataChanged();
     }
 
     /**
      * @return True if COPPA rules apply
      */
-    public synchronized boolean isPrivacyProtectedDueToAge() {
+    public boolean isPrivacyProtectedDueToAge() {
         int age = getAgeNumeric();
         boolean isCoppaAgeRestricted = (age > 0 && age < TuneConstants.COPPA_MINIMUM_AGE);
 
@@ -994,36 +1081,40 @@ public class TuneParameters {
         });
     }
 
-    private String mPurchaseStatus = null;
-    public synchronized String getPurchaseStatus() {
+    private volatile String mPurchaseStatus = null;
+    public String getPurchaseStatus() {
         return mPurchaseStatus;
     }
     public synchronized void setPurchaseStatus(String purchaseStatus) {
         mPurchaseStatus = purchaseStatus;
+        deviceDataChanged();
     }
 
-    private String mReferralSource = null;
-    public synchronized String getReferralSource() {
+    private volatile String mReferralSource = null;
+    public String getReferralSource() {
         return mReferralSource;
     }
     public synchronized void setReferralSource(String referralPackage) {
         mReferralSource = referralPackage;
+        linkChanged();
     }
 
-    private String mReferralUrl = null;
-    public synchronized String getReferralUrl() {
+    private volatile String mReferralUrl = null;
+    public String getReferralUrl() {
         return mReferralUrl;
     }
     public synchronized void setReferralUrl(String referralUrl) {
         mReferralUrl = referralUrl;
+        linkChanged();
     }
 
-    private String mReferrerDelay = null;
-    public synchronized String getReferrerDelay() {
+    private volatile String mReferrerDelay = null;
+    public String getReferrerDelay() {
         return mReferrerDelay;
     }
     public synchronized void setReferrerDelay(long referrerDelay) {
         mReferrerDelay = Long.toString(referrerDelay);
+        deviceDataChanged();
     }
 
     enum SDKTYPE {
@@ -1036,40 +1127,44 @@ public class TuneParameters {
         }
     }
 
-    private SDKTYPE mSDKType = SDKTYPE.ANDROID;
-    public synchronized SDKTYPE getSDKType() {
+    private volatile SDKTYPE mSDKType = SDKTYPE.ANDROID;
+    public SDKTYPE getSDKType() {
         return mSDKType;
     }
     public synchronized void setSDKType(SDKTYPE sdkType) {
         mSDKType = sdkType;
+        linkChanged();
     }
 
-    private String mScreenDensity = null;
-    public synchronized String getScreenDensity() {
+    private volatile String mScreenDensity = null;
+    public String getScreenDensity() {
         return mScreenDensity;
     }
     public synchronized void setScreenDensity(String density) {
         mScreenDensity = density;
+        deviceDataChanged();
     }
 
-    private String mScreenHeight = null;
-    public synchronized String getScreenHeight() {
+    private volatile String mScreenHeight = null;
+    public String getScreenHeight() {
         return mScreenHeight;
     }
     public synchronized void setScreenHeight(String screenheight) {
         mScreenHeight = screenheight;
+        deviceDataChanged();
     }
 
-    private String mScreenWidth = null;
-    public synchronized String getScreenWidth() {
+    private volatile String mScreenWidth = null;
+    public String getScreenWidth() {
         return mScreenWidth;
     }
     public synchronized void setScreenWidth(String screenwidth) {
         mScreenWidth = screenwidth;
+        deviceDataChanged();
     }
 
-    private String mTimeZone = null;
-    public synchronized String getTimeZone() {
+    private volatile String mTimeZone = null;
+    public String getTimeZone() {
         return mTimeZone;
     }
     public synchronized void setTimeZone(String timeZone) {
@@ -1077,36 +1172,39 @@ public class TuneParameters {
         //TODO: Only Crosspromo uses this, and we track our own timezone stuff through minutesFromGMT
     }
 
-    private String mTrackingId = null;
-    public synchronized String getTrackingId() {
+    private volatile String mTrackingId = null;
+    public String getTrackingId() {
         return mTrackingId;
     }
     public synchronized void setTrackingId(String trackingId) {
         mTrackingId = trackingId;
+        linkChanged();
     }
 
-    private String mTrusteId = null;
-    public synchronized String getTRUSTeId() {
+    private volatile String mTrusteId = null;
+    public String getTRUSTeId() {
         return mTrusteId;
     }
     public synchronized void setTRUSTeId(String tpid) {
         mTrusteId = tpid;
     }
     
-    private String mTwUserId = null;
-    public synchronized String getTwitterUserId() {
+    private volatile String mTwUserId = null;
+    public String getTwitterUserId() {
         return mTwUserId;
     }
     public synchronized void setTwitterUserId(String twitter_user_id) {
         mTwUserId = twitter_user_id;
+        userDataChanged();
     }
 
-    private String mUserAgent = null;
-    public synchronized String getUserAgent() {
+    private volatile String mUserAgent = null;
+    public String getUserAgent() {
         return mUserAgent;
     }
     private synchronized void setUserAgent(String userAgent) {
         mUserAgent = userAgent;
+        deviceDataChanged();
     }
 
     private String mUserEmail = null;
@@ -1120,9 +1218,14 @@ public class TuneParameters {
         mUserEmail = userEmail;
 
         // Also set the hash variations
-        setUserEmailMd5(TuneUtils.md5(userEmail));
-        setUserEmailSha1(TuneUtils.sha1(userEmail));
-        setUserEmailSha256(TuneUtils.sha256(userEmail));
+        beginUpdate();
+        try {
+            setUserEmailMd5(TuneUtils.md5(userEmail));
+            setUserEmailSha1(TuneUtils.sha1(userEmail));
+            setUserEmailSha256(TuneUtils.sha256(userEmail));
+        } finally {
+            endUpdate();
+        }
 
         mExecutor.execute(new Runnable() {
             public void run() {
@@ -1132,9 +1235,14 @@ public class TuneParameters {
     }
     public synchronized void clearUserEmail() {
         mUserEmail = null;
-        clearUserEmailMd5();
-        clearUserEmailSha1();
-        clearUserEmailSha256();
+        beginUpdate();
+        try {
+            clearUserEmailMd5();
+            clearUserEmailSha1();
+            clearUserEmailSha256();
+        } finally {
+            endUpdate();
+        }
 
         mExecutor.execute(new Runnable() {
             public void run() {
@@ -1143,61 +1251,75 @@ public class TuneParameters {
         });
     }
     
-    private String mUserEmailMd5;
-    public synchronized String getUserEmailMd5() {
+    private volatile String mUserEmailMd5;
+    public String getUserEmailMd5() {
         return mUserEmailMd5;
     }
     public synchronized void setUserEmailMd5(String userEmailMd5) {
         mUserEmailMd5 = userEmailMd5;
+        userDataChanged();
     }
 
     public synchronized void clearUserEmailMd5() {
         mUserEmailMd5 = null;
+        userDataChanged();
     }
     
-    private String mUserEmailSha1;
-    public synchronized String getUserEmailSha1() {
+    private volatile String mUserEmailSha1;
+    public String getUserEmailSha1() {
         return mUserEmailSha1;
     }
     public synchronized void setUserEmailSha1(String userEmailSha1) {
         mUserEmailSha1 = userEmailSha1;
+        userDataChanged();
     }
 
     public synchronized void clearUserEmailSha1() {
         mUserEmailSha1 = null;
+        userDataChanged();
     }
     
-    private String mUserEmailSha256;
-    public synchronized String getUserEmailSha256() {
+    private volatile String mUserEmailSha256;
+    public String getUserEmailSha256() {
         return mUserEmailSha256;
     }
 
     public synchronized void setUserEmailSha256(String userEmailSha256) {
         mUserEmailSha256 = userEmailSha256;
+        userDataChanged();
     }
 
     public synchronized void clearUserEmailSha256() {
         mUserEmailSha256 = null;
+        userDataChanged();
     }
     
-    private JSONArray mUserEmails = null;
+    private volatile JSONArray mUserEmails = null;
 
     public synchronized JSONArray getUserEmails() {
-        String userEmailsString = "";
         if (mUserEmails == null) {
-            userEmailsString = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_USER_EMAILS);
+            // The emails may have been saved after the parameters were loaded
+            JSONArray userEmails = readUserEmails();
+            if (userEmails != null) {
+                mUserEmails = userEmails;
+                changed();
+            }
         }
+        return mUserEmails;
+    }
 
+    private JSONArray readUserEmails() {
+        String userEmailsString = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_USER_EMAILS);
         if (TuneStringUtils.isNullOrEmpty(userEmailsString)) {
-            return mUserEmails;
+            return null;
         }
 
         try {
-            mUserEmails = new JSONArray(userEmailsString);
+            return new JSONArray(userEmailsString);
         } catch (JSONException e) {
 //            Don't need to do anything with e
         }
-        return mUserEmails;
+        return null;
     }
 
     public synchronized void setUserEmails(String[] emails) {
@@ -1206,27 +1328,31 @@ public class TuneParameters {
             return;
         }
 
-        mUserEmails = new JSONArray();
+        // Filled before it is published, snapshots share it
+        final JSONArray userEmails = new JSONArray();
         for (String email : emails) {
             if (!TuneStringUtils.isNullOrEmpty(email)) {
-                mUserEmails.put(email);
+                userEmails.put(email);
             }
         }
 
-        if (mUserEmails.length() == 0) {
+        if (userEmails.length() == 0) {
             clearUserEmails();
             return;
         }
+        mUserEmails = userEmails;
+        changed();
 
         mExecutor.execute(new Runnable() {
                 public void run() {
-                    mPrefs.saveToSharedPreferences(TuneConstants.KEY_USER_EMAILS, mUserEmails.toString());
+                    mPrefs.saveToSharedPreferences(TuneConstants.KEY_USER_EMAILS, userEmails.toString());
                 }
             });
     }
 
     public synchronized void clearUserEmails() {
         mUserEmails = null;
+        changed();
 
         mExecutor.execute(new Runnable() {
             public void run() {
@@ -1235,11 +1361,8 @@ public class TuneParameters {
         });
     }
 
-    private String mUserId = null;
-    public synchronized String getUserId() {
-        if (mUserId == null) {
-            mUserId = mPrefs.getStringFromSharedPreferences(TuneConstants.KEY_USER_ID, null);
-        }
+    private volatile String mUserId = null;
+    public String getUserId() {
         return mUserId;
     }
     public synchronized void setUserId(final String user_id) {
@@ -1249,6 +1372,7 @@ public class TuneParameters {
                 mPrefs.saveToSharedPreferences(TuneConstants.KEY_USER_ID, user_id);
             }
         });
+        userDataChanged();
     }
 
     private String mUserName = null;
@@ -1262,9 +1386,14 @@ public class TuneParameters {
         mUserName = userName;
 
         // Also set the hash variations
-        setUserNameMd5(TuneUtils.md5(userName));
-        setUserNameSha1(TuneUtils.sha1(userName));
-        setUserNameSha256(TuneUtils.sha256(userName));
+        beginUpdate();
+        try {
+            setUserNameMd5(TuneUtils.md5(userName));
+            setUserNameSha1(TuneUtils.sha1(userName));
+            setUserNameSha256(TuneUtils.sha256(userName));
+        } finally {
+            endUpdate();
+        }
 
         mExecutor.execute(new Runnable() {
             public void run() {
@@ -1273,31 +1402,389 @@ public class TuneParameters {
         });
     }
     
-    private String mUserNameMd5;
-    public synchronized String getUserNameMd5() {
+    private volatile String mUserNameMd5;
+    public String getUserNameMd5() {
         return mUserNameMd5;
     }
     public synchronized void setUserNameMd5(String userNameMd5) {
         mUserNameMd5 = userNameMd5;
+        userDataChanged();
     }
     
-    private String mUserNameSha1;
-    public synchronized String getUserNameSha1() {
+    private volatile String mUserNameSha1;
+    public String getUserNameSha1() {
         return mUserNameSha1;
     }
     public synchronized void setUserNameSha1(String userNameSha1) {
         mUserNameSha1 = userNameSha1;
+        userDataChanged();
     }
     
-    private String mUserNameSha256;
-    public synchronized String getUserNameSha256() {
+    private volatile String mUserNameSha256;
+    public String getUserNameSha256() {
         return mUserNameSha256;
     }
     public synchronized void setUserNameSha256(String userNameSha256) {
         mUserNameSha256 = userNameSha256;
+        userDataChanged();
     }
 
 
+    /**
+     * Version of the values the link prefix is built from, changes whenever one of them is set.
+     * @return current link version
+     */
+    int getLinkVersion() {
+        return mLinkVersion;
+    }
+
+    /**
+     * Version of the device and app values in the data string, changes whenever one of them is set.
+     * @return current device data version
+     */
+    int getDeviceDataVersion() {
+        return mDeviceDataVersion;
+    }
+
+    /**
+     * Version of the user and privacy values in the data string, changes whenever one of them is set.
+     * @return current user data version
+     */
+    int getUserDataVersion() {
+        return mUserDataVersion;
+    }
+
+    private void linkChanged() {
+        mLinkVersion++;
+        changed();
+    }
+
+    private void deviceDataChanged() {
+        mDeviceDataVersion++;
+        changed();
+    }
+
+    private void userDataChanged() {
+        mUserDataVersion++;
+        changed();
+    }
+
+    /**
+     * Marks the snapshot stale after a value in it was set.  Called holding the lock; inside
+     * {@link #beginUpdate()} the snapshot stays stale until the matching {@link #endUpdate()}.
+     */
+    private void changed() {
+        if (mUpdateDepth == 0) {
+            mChanges += 2;
+        }
+    }
+
+    /**
+     * Starts setting several values that should show up together in the next snapshot.
+     * Must be called holding the lock, and followed by {@link #endUpdate()} in a finally block.
+     */
+    private void beginUpdate() {
+        if (mUpdateDepth++ == 0) {
+            mChanges++;
+        }
+    }
+
+    private void endUpdate() {
+        if (--mUpdateDepth == 0) {
+            mChanges++;
+        }
+    }
+
+    /**
+     * Values the link and data are built from, all taken at one point in time.
+     * Setters only mark the snapshot stale; the next read rebuilds it from the volatile fields without
+     * taking the lock, unless a setter of several values is halfway through.
+     * @return current snapshot of the parameters
+     */
+    Snapshot getSnapshot() {
+        Snapshot current = mSnapshot.get();
+        int changes = mChanges;
+        if (current != null && current.changes == changes) {
+            return current;
+        }
+
+        if ((changes & 1) == 0) {
+            Snapshot fresh = new Snapshot(this, changes);
+            // Only good if no setter finished while it was being built
+            if (mChanges == changes) {
+                mSnapshot.compareAndSet(current, fresh);
+                return fresh;
+            }
+        }
+        return takeSnapshot();
+    }
+
+    private synchronized Snapshot takeSnapshot() {
+        // Setters hold the lock until they are done, so nothing changes while this is built
+        Snapshot fresh = new Snapshot(this, mChanges);
+        mSnapshot.set(fresh);
+        return fresh;
+    }
+
+    /**
+     * Immutable copy of the parameters read by TuneUrlBuilder.
+     * Built from the volatile fields of TuneParameters, see {@link TuneParameters#getSnapshot()}.
+     */
+    static final class Snapshot {
+        private static final Set<String> REDACTED_KEYS = Collections.unmodifiableSet(TuneUrlKeys.getRedactedUrlKeys());
+
+        final int changes;
+        final int linkVersion;
+        final int deviceDataVersion;
+        final int userDataVersion;
+        final Set<String> redactKeys;
+
+        // Link values
+        final String advertiserId;
+        final String packageName;
+        final String referralSource;
+        final String referralUrl;
+        final SDKTYPE sdkType;
+        final String trackingId;
+
+        // Device and app values
+        final String androidId;
+        final String androidIdMd5;
+        final String androidIdSha1;
+        final String androidIdSha256;
+        final String appName;
+        final String appVersion;
+        final String appVersionName;
+        final String connectionType;
+        final String countryCode;
+        final String deviceBrand;
+        final String deviceBuild;
+        final String deviceCarrier;
+        final String deviceCpuType;
+        final String deviceCpuSubtype;
+        final String deviceId;
+        final String deviceModel;
+        final String fireAdvertisingId;
+        final String googleAdvertisingId;
+        final String installDate;
+        final String installBeginTimestampSeconds;
+        final String referrerClickTimestampSeconds;
+        final String installer;
+        final String installReferrer;
+        final String language;
+        final String lastOpenLogId;
+        final Location location;
+        final String locale;
+        final String matId;
+        final String mcc;
+        final String mnc;
+        final String openLogId;
+        final String osVersion;
+        final String pluginName;
+        final String platformAdvertisingId;
+        final String purchaseStatus;
+        final String referrerDelay;
+        final String screenDensity;
+        final String screenHeight;
+        final String screenWidth;
+        final String userAgent;
+
+        // User and privacy values
+        final String age;
+        final String existingUser;
+        final String facebookUserId;
+        final String gender;
+        final String googleUserId;
+        final String payingUser;
+        final String twitterUserId;
+        final String userEmailMd5;
+        final String userEmailSha1;
+        final String userEmailSha256;
+        final String userId;
+        final String userNameMd5;
+        final String userNameSha1;
+        final String userNameSha256;
+        final String phoneNumberMd5;
+        final String phoneNumberSha1;
+        final String phoneNumberSha256;
+        final boolean privacyProtectedDueToAge;
+        final boolean appAdTrackingSet;
+        final boolean appAdTrackingEnabled;
+        final boolean platformAdTrackingLimited;
+        final JSONArray userEmails;
+
+        /**
+         * Copy of this snapshot as if the paying user flag had been set along with it.
+         * Lets the events of a batch built against one snapshot follow the flag set by an earlier event of the batch.
+         * @param payingUser paying user flag
+         * @return snapshot with the flag set
+         */
+        Snapshot withPayingUser(String payingUser) {
+            if (payingUser.equals(this.payingUser)) {
+                return this;
+            }
+            return new Snapshot(this, payingUser);
+        }
+
+        private Snapshot(Snapshot base, String payingUser) {
+            changes = base.changes;
+            linkVersion = base.linkVersion;
+            deviceDataVersion = base.deviceDataVersion;
+            // Never a version of the parameters themselves, so the user data cached for them is not reused
+            userDataVersion = ~base.userDataVersion;
+            redactKeys = base.redactKeys;
+            advertiserId = base.advertiserId;
+            packageName = base.packageName;
+            referralSource = base.referralSource;
+            referralUrl = base.referralUrl;
+            sdkType = base.sdkType;
+            trackingId = base.trackingId;
+            androidId = base.androidId;
+            androidIdMd5 = base.androidIdMd5;
+            androidIdSha1 = base.androidIdSha1;
+            androidIdSha256 = base.androidIdSha256;
+            appName = base.appName;
+            appVersion = base.appVersion;
+            appVersionName = base.appVersionName;
+            connectionType = base.connectionType;
+            countryCode = base.countryCode;
+            deviceBrand = base.deviceBrand;
+            deviceBuild = base.deviceBuild;
+            deviceCarrier = base.deviceCarrier;
+            deviceCpuType = base.deviceCpuType;
+            deviceCpuSubtype = base.deviceCpuSubtype;
+            deviceId = base.deviceId;
+            deviceModel = base.deviceModel;
+            fireAdvertisingId = base.fireAdvertisingId;
+            googleAdvertisingId = base.googleAdvertisingId;
+            installDate = base.installDate;
+            installBeginTimestampSeconds = base.installBeginTimestampSeconds;
+            referrerClickTimestampSeconds = base.referrerClickTimestampSeconds;
+            installer = base.installer;
+            installReferrer = base.installReferrer;
+            language = base.language;
+            lastOpenLogId = base.lastOpenLogId;
+            location = base.location;
+            locale = base.locale;
+            matId = base.matId;
+            mcc = base.mcc;
+            mnc = base.mnc;
+            openLogId = base.openLogId;
+            osVersion = base.osVersion;
+            pluginName = base.pluginName;
+            platformAdvertisingId = base.platformAdvertisingId;
+            purchaseStatus = base.purchaseStatus;
+            referrerDelay = base.referrerDelay;
+            screenDensity = base.screenDensity;
+            screenHeight = base.screenHeight;
+            screenWidth = base.screenWidth;
+            userAgent = base.userAgent;
+            age = base.age;
+            existingUser = base.existingUser;
+            facebookUserId = base.facebookUserId;
+            gender = base.gender;
+            googleUserId = base.googleUserId;
+            this.payingUser = payingUser;
+            twitterUserId = base.twitterUserId;
+            userEmailMd5 = base.userEmailMd5;
+            userEmailSha1 = base.userEmailSha1;
+            userEmailSha256 = base.userEmailSha256;
+            userId = base.userId;
+            userNameMd5 = base.userNameMd5;
+            userNameSha1 = base.userNameSha1;
+            userNameSha256 = base.userNameSha256;
+            phoneNumberMd5 = base.phoneNumberMd5;
+            phoneNumberSha1 = base.phoneNumberSha1;
+            phoneNumberSha256 = base.phoneNumberSha256;
+            privacyProtectedDueToAge = base.privacyProtectedDueToAge;
+            appAdTrackingSet = base.appAdTrackingSet;
+            appAdTrackingEnabled = base.appAdTrackingEnabled;
+            platformAdTrackingLimited = base.platformAdTrackingLimited;
+            userEmails = base.userEmails;
+        }
+
+        private Snapshot(TuneParameters params, int changes) {
+            this.changes = changes;
+            linkVersion = params.mLinkVersion;
+            deviceDataVersion = params.mDeviceDataVersion;
+            userDataVersion = params.mUserDataVersion;
+
+            advertiserId = params.getAdvertiserId();
+            packageName = params.getPackageName();
+            referralSource = params.getReferralSource();
+            referralUrl = params.getReferralUrl();
+            sdkType = params.getSDKType();
+            trackingId = params.getTrackingId();
+
+            androidId = params.getAndroidId();
+            androidIdMd5 = params.getAndroidIdMd5();
+            androidIdSha1 = params.getAndroidIdSha1();
+            androidIdSha256 = params.getAndroidIdSha256();
+            appName = params.getAppName();
+            appVersion = params.getAppVersion();
+            appVersionName = params.getAppVersionName();
+            connectionType = params.getConnectionType();
+            countryCode = params.getCountryCode();
+            deviceBrand = params.getDeviceBrand();
+            deviceBuild = params.getDeviceBuild();
+            deviceCarrier = params.getDeviceCarrier();
+            deviceCpuType = params.getDeviceCpuType();
+            deviceCpuSubtype = params.getDeviceCpuSubtype();
+            deviceId = params.getDeviceId();
+            deviceModel = params.getDeviceModel();
+            fireAdvertisingId = params.getFireAdvertisingId();
+            googleAdvertisingId = params.getGoogleAdvertisingId();
+            installDate = params.getInstallDate();
+            installBeginTimestampSeconds = params.getInstallBeginTimestampSeconds();
+            referrerClickTimestampSeconds = params.getReferrerClickTimestampSeconds();
+            installer = params.getInstaller();
+            installReferrer = params.getInstallReferrer();
+            language = params.getLanguage();
+            lastOpenLogId = params.getLastOpenLogId();
+            // setLocation updates the location in place, so keep a copy of it
+            location = (params.getLocation() == null ? null : new Location(params.getLocation()));
+            locale = params.getLocale();
+            matId = params.getMatId();
+            mcc = params.getMCC();
+            mnc = params.getMNC();
+            openLogId = params.getOpenLogId();
+            osVersion = params.getOsVersion();
+            pluginName = params.getPluginName();
+            platformAdvertisingId = params.getPlatformAdvertisingId();
+            purchaseStatus = params.getPurchaseStatus();
+            referrerDelay = params.getReferrerDelay();
+            screenDensity = params.getScreenDensity();
+            screenHeight = params.getScreenHeight();
+            screenWidth = params.getScreenWidth();
+            userAgent = params.getUserAgent();
+
+            age = params.getAge();
+            existingUser = params.getExistingUser();
+            facebookUserId = params.getFacebookUserId();
+            gender = params.getGender();
+            googleUserId = params.getGoogleUserId();
+            payingUser = params.isPayingUser();
+            twitterUserId = params.getTwitterUserId();
+            userEmailMd5 = params.getUserEmailMd5();
+            userEmailSha1 = params.getUserEmailSha1();
+            userEmailSha256 = params.getUserEmailSha256();
+            userId = params.getUserId();
+            userNameMd5 = params.getUserNameMd5();
+            userNameSha1 = params.getUserNameSha1();
+            userNameSha256 = params.getUserNameSha256();
+            phoneNumberMd5 = params.getPhoneNumberMd5();
+            phoneNumberSha1 = params.getPhoneNumberSha1();
+            phoneNumberSha256 = params.getPhoneNumberSha256();
+            privacyProtectedDueToAge = params.isPrivacyProtectedDueToAge();
+            appAdTrackingSet = params.isAppAdTrackingSet();
+            appAdTrackingEnabled = params.getAppAdTrackingEnabled();
+            platformAdTrackingLimited = params.getPlatformAdTrackingLimited();
+            userEmails = params.mUserEmails;
+
+            redactKeys = (privacyProtectedDueToAge ? REDACTED_KEYS : Collections.<String>emptySet());
+        }
+    }
+
     public static Set<String> getRedactedKeys() {
         Set<String> redactKeys = new HashSet<>();
         if (Tune.getInstance().isPrivacyProtectedDueToAge()) {
@@ -26,6 +26,9 @@ public class TunePreloadData {
     private String advertiserSubPublisher;
     private String advertiserSubSite;
 
+    // Bumped on every change so cached link fragments can tell they are stale
+    private volatile int version;
+
     /**
      * Constructor.
      * @param publisherId Publisher Id.
@@ -41,6 +44,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withOfferId(String offerId) {
         this.offerId = offerId;
+        version++;
         return this;
     }
 
@@ -51,6 +55,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withAgencyId(String agencyId) {
         this.agencyId = agencyId;
+        version++;
         return this;
     }
 
@@ -61,6 +66,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withPublisherReferenceId(String publisherReferenceId) {
         this.publisherReferenceId = publisherReferenceId;
+        version++;
         return this;
     }
 
@@ -71,6 +77,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withPublisherSub1(String publisherSub1) {
         this.publisherSub1 = publisherSub1;
+        version++;
         return this;
     }
 
@@ -81,6 +88,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withPublisherSub2(String publisherSub2) {
         this.publisherSub2 = publisherSub2;
+        version++;
         return this;
     }
 
@@ -91,6 +99,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withPublisherSub3(String publisherSub3) {
         this.publisherSub3 = publisherSub3;
+        version++;
         return this;
     }
 
@@ -101,6 +110,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withPublisherSub4(String publisherSub4) {
         this.publisherSub4 = publisherSub4;
+        version++;
         return this;
     }
 
@@ -111,6 +121,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withPublisherSub5(String publisherSub5) {
         this.publisherSub5 = publisherSub5;
+        version++;
         return this;
     }
 
@@ -121,6 +132,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withPublisherSubAd(String publisherSubAd) {
         this.publisherSubAd = publisherSubAd;
+        version++;
         return this;
     }
 
@@ -131,6 +143,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withPublisherSubAdgroup(String publisherSubAdgroup) {
         this.publisherSubAdgroup = publisherSubAdgroup;
+        version++;
         return this;
     }
 
@@ -141,6 +154,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withPublisherSubCampaign(String publisherSubCampaign) {
         this.publisherSubCampaign = publisherSubCampaign;
+        version++;
         return this;
     }
 
@@ -151,6 +165,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withPublisherSubKeyword(String publisherSubKeyword) {
         this.publisherSubKeyword = publisherSubKeyword;
+        version++;
         return this;
     }
 
@@ -161,6 +176,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withPublisherSubPublisher(String publisherSubPublisher) {
         this.publisherSubPublisher = publisherSubPublisher;
+        version++;
         return this;
     }
 
@@ -171,6 +187,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withPublisherSubSite(String publisherSubSite) {
         this.publisherSubSite = publisherSubSite;
+        version++;
         return this;
     }
 
@@ -181,6 +198,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withAdvertiserSubAd(String advertiserSubAd) {
         this.advertiserSubAd = advertiserSubAd;
+        version++;
         return this;
     }
 
@@ -191,6 +209,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withAdvertiserSubAdgroup(String advertiserSubAdgroup) {
         this.advertiserSubAdgroup = advertiserSubAdgroup;
+        version++;
         return this;
     }
 
@@ -201,6 +220,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withAdvertiserSubCampaign(String advertiserSubCampaign) {
         this.advertiserSubCampaign = advertiserSubCampaign;
+        version++;
         return this;
     }
 
@@ -211,6 +231,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withAdvertiserSubKeyword(String advertiserSubKeyword) {
         this.advertiserSubKeyword = advertiserSubKeyword;
+        version++;
         return this;
     }
 
@@ -221,6 +242,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withAdvertiserSubPublisher(String advertiserSubPublisher) {
         this.advertiserSubPublisher = advertiserSubPublisher;
+        version++;
         return this;
     }
 
@@ -231,6 +253,7 @@ public class TunePreloadData {
      */
     public TunePreloadData withAdvertiserSubSite(String advertiserSubSite) {
         this.advertiserSubSite = advertiserSubSite;
+        version++;
         return this;
     }
 
@@ -317,4 +340,8 @@ public class TunePreloadData {
     String getAdvertiserSubSite() {
         return advertiserSubSite;
     }
+
+    int getVersion() {
+        return version;
+    }
 }
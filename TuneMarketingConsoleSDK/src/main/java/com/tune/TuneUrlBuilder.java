@@ -3,8 +3,6 @@ package com.tune;
 import android.location.Location;
 import android.net.Uri;
 
-import com.tune.utils.TuneUtils;
-
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -12,6 +10,7 @@ import org.json.JSONObject;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
 
@@ -34,57 +33,61 @@ class TuneUrlBuilder {
         return builder.toString();
     }
 
+    /**
+     * Builds the link a connection is warmed up with before the first request.
+     * @return root URL string of the measurement host for this advertiser.
+     */
+    static String buildWarmUpLink(final TuneParameters params) {
+        return "https://" + params.getAdvertiserId() + "." + TuneConstants.TUNE_DOMAIN + "/";
+    }
+
+    /**
+     * Builds the link of the endpoint that accepts several queued events in one request.
+     * @return batch endpoint URL string for this advertiser.
+     */
+    static String buildBatchLink(final TuneParameters params) {
+        return "https://" + params.getAdvertiserId() + "." + TuneConstants.TUNE_DOMAIN + "/serve_batch";
+    }
+
+    // Pre-encoded parts of the last link built, reused until a value they hold changes
+    private static volatile LinkPrefix linkPrefix;
+
     /**
      * Builds a new link string based on parameter values.
+     * @param action action of the event, one of the TuneParameters ACTION values
      * @return encrypted URL string based on class settings.
      */
-    static String buildLink(final TuneParameters params, TuneEvent eventData, TunePreloadData preloaded, boolean debugMode) {
-        Set<String> redactKeys = TuneParameters.getRedactedKeys();
+    static String buildLink(final TuneParameters params, String action, TuneEvent eventData, TunePreloadData preloaded, boolean debugMode) {
+        return buildLink(params, params.getSnapshot(), action, eventData, preloaded, debugMode);
+    }
 
-        StringBuilder link = new StringBuilder("https://").append(params.getAdvertiserId()).append(".");
-        link.append(TuneConstants.TUNE_DOMAIN);
-        link.append("/serve?");
-        link.append(TuneUrlKeys.SDK_VER + "=").append(Tune.getSDKVersion());
-        link.append("&" + TuneUrlKeys.TRANSACTION_ID + "=").append(UUID.randomUUID().toString());
-        link.append("&" + TuneUrlKeys.SDK_RETRY_ATTEMPT + "=0");
+    /**
+     * Builds a new link string from a snapshot of the parameter values.
+     * @param snapshot values to build the link from
+     * @param action action of the event, one of the TuneParameters ACTION values
+     * @return encrypted URL string based on class settings.
+     */
+    static String buildLink(final TuneParameters params, TuneParameters.Snapshot snapshot, String action, TuneEvent eventData, TunePreloadData preloaded, boolean debugMode) {
+        Set<String> redactKeys = snapshot.redactKeys;
 
-        safeAppend(link, redactKeys, TuneUrlKeys.SDK, params.getSDKType().toString());
-        safeAppend(link, redactKeys, TuneUrlKeys.ACTION, params.getAction());
-        safeAppend(link, redactKeys, TuneUrlKeys.ADVERTISER_ID, params.getAdvertiserId());
-        safeAppend(link, redactKeys, TuneUrlKeys.PACKAGE_NAME, params.getPackageName());
-        safeAppend(link, redactKeys, TuneUrlKeys.REFERRAL_SOURCE, params.getReferralSource());
-        safeAppend(link, redactKeys, TuneUrlKeys.REFERRAL_URL, params.getReferralUrl());
-        safeAppend(link, redactKeys, TuneUrlKeys.TRACKING_ID, params.getTrackingId());
+        LinkPrefix prefix = linkPrefix;
+        if (prefix == null || !prefix.matches(params, snapshot, preloaded)) {
+            prefix = new LinkPrefix(params, snapshot, preloaded);
+            linkPrefix = prefix;
+        }
+
+        StringBuilder link = new StringBuilder(prefix.length() + 128);
+        link.append(prefix.head);
+        link.append("&" + TuneUrlKeys.TRANSACTION_ID + "=").append(UUID.randomUUID().toString());
+        link.append(prefix.sdk);
+        safeAppend(link, redactKeys, TuneUrlKeys.ACTION, action);
+        link.append(prefix.tail);
 
-        if (!TuneParameters.ACTION_SESSION.equals(params.getAction()) && !TuneParameters.ACTION_CLICK.equals(params.getAction())) {
+        if (!TuneParameters.ACTION_SESSION.equals(action) && !TuneParameters.ACTION_CLICK.equals(action)) {
             safeAppend(link, redactKeys, TuneUrlKeys.EVENT_NAME, eventData.getEventName());
         }
 
-        // Append preloaded params, must have attr_set=1 in order to attribute
-        if (preloaded != null) {
-            link.append("&attr_set=1");
-            safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_ID, preloaded.getPublisherId());
-            safeAppend(link, redactKeys, TuneUrlKeys.OFFER_ID, preloaded.getOfferId());
-            safeAppend(link, redactKeys, TuneUrlKeys.AGENCY_ID, preloaded.getAgencyId());
-            safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_REF_ID, preloaded.getPublisherReferenceId());
-            safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB_PUBLISHER, preloaded.getPublisherSubPublisher());
-            safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB_SITE, preloaded.getPublisherSubSite());
-            safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB_CAMPAIGN, preloaded.getPublisherSubCampaign());
-            safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB_ADGROUP, preloaded.getPublisherSubAdgroup());
-            safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB_AD, preloaded.getPublisherSubAd());
-            safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB_KEYWORD, preloaded.getPublisherSubKeyword());
-            safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB1, preloaded.getPublisherSub1());
-            safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB2, preloaded.getPublisherSub2());
-            safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB3, preloaded.getPublisherSub3());
-            safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB4, preloaded.getPublisherSub4());
-            safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB5, preloaded.getPublisherSub5());
-            safeAppend(link, redactKeys, TuneUrlKeys.ADVERTISER_SUB_PUBLISHER, preloaded.getAdvertiserSubPublisher());
-            safeAppend(link, redactKeys, TuneUrlKeys.ADVERTISER_SUB_SITE, preloaded.getAdvertiserSubSite());
-            safeAppend(link, redactKeys, TuneUrlKeys.ADVERTISER_SUB_CAMPAIGN, preloaded.getAdvertiserSubCampaign());
-            safeAppend(link, redactKeys, TuneUrlKeys.ADVERTISER_SUB_ADGROUP, preloaded.getAdvertiserSubAdgroup());
-            safeAppend(link, redactKeys, TuneUrlKeys.ADVERTISER_SUB_AD, preloaded.getAdvertiserSubAd());
-            safeAppend(link, redactKeys, TuneUrlKeys.ADVERTISER_SUB_KEYWORD, preloaded.getAdvertiserSubKeyword());
-        }
+        link.append(prefix.preload);
 
         // If logging on, use debug mode
         if (debugMode) {
@@ -94,59 +97,133 @@ class TuneUrlBuilder {
         return link.toString();
     }
 
+    /**
+     * Immutable, already encoded pieces of the event link that stay the same from one event to the next.
+     * The per-event fields (transaction id, action and event name) are appended between them in buildLink.
+     */
+    static final class LinkPrefix {
+        private final TuneParameters params;
+        private final int paramsVersion;
+        private final TunePreloadData preloaded;
+        private final int preloadedVersion;
+        private final Set<String> redactKeys;
+
+        final String head;
+        final String sdk;
+        final String tail;
+        final String preload;
+
+        LinkPrefix(final TuneParameters params, TuneParameters.Snapshot snapshot, TunePreloadData preloaded) {
+            // Read the preload version first, so a setter racing with this build leaves the prefix stale rather than wrong
+            this.params = params;
+            this.paramsVersion = snapshot.linkVersion;
+            this.preloaded = preloaded;
+            this.preloadedVersion = (preloaded == null ? 0 : preloaded.getVersion());
+            this.redactKeys = snapshot.redactKeys;
+
+            StringBuilder link = new StringBuilder("https://").append(snapshot.advertiserId).append(".");
+            link.append(TuneConstants.TUNE_DOMAIN);
+            link.append("/serve?");
+            link.append(TuneUrlKeys.SDK_VER + "=").append(Tune.getSDKVersion());
+            head = link.toString();
+
+            link.setLength(0);
+            safeAppend(link, redactKeys, TuneUrlKeys.SDK, snapshot.sdkType.toString());
+            sdk = link.toString();
+
+            link.setLength(0);
+            safeAppend(link, redactKeys, TuneUrlKeys.ADVERTISER_ID, snapshot.advertiserId);
+            safeAppend(link, redactKeys, TuneUrlKeys.PACKAGE_NAME, snapshot.packageName);
+            safeAppend(link, redactKeys, TuneUrlKeys.REFERRAL_SOURCE, snapshot.referralSource);
+            safeAppend(link, redactKeys, TuneUrlKeys.REFERRAL_URL, snapshot.referralUrl);
+            safeAppend(link, redactKeys, TuneUrlKeys.TRACKING_ID, snapshot.trackingId);
+            tail = link.toString();
+
+            link.setLength(0);
+            // Append preloaded params, must have attr_set=1 in order to attribute
+            if (preloaded != null) {
+                link.append("&attr_set=1");
+                safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_ID, preloaded.getPublisherId());
+                safeAppend(link, redactKeys, TuneUrlKeys.OFFER_ID, preloaded.getOfferId());
+                safeAppend(link, redactKeys, TuneUrlKeys.AGENCY_ID, preloaded.getAgencyId());
+                safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_REF_ID, preloaded.getPublisherReferenceId());
+                safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB_PUBLISHER, preloaded.getPublisherSubPublisher());
+                safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB_SITE, preloaded.getPublisherSubSite());
+                safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB_CAMPAIGN, preloaded.getPublisherSubCampaign());
+                safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB_ADGROUP, preloaded.getPublisherSubAdgroup());
+                safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB_AD, preloaded.getPublisherSubAd());
+                safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB_KEYWORD, preloaded.getPublisherSubKeyword());
+                safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB1, preloaded.getPublisherSub1());
+                safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB2, preloaded.getPublisherSub2());
+                safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB3, preloaded.getPublisherSub3());
+                safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB4, preloaded.getPublisherSub4());
+                safeAppend(link, redactKeys, TuneUrlKeys.PUBLISHER_SUB5, preloaded.getPublisherSub5());
+                safeAppend(link, redactKeys, TuneUrlKeys.ADVERTISER_SUB_PUBLISHER, preloaded.getAdvertiserSubPublisher());
+                safeAppend(link, redactKeys, TuneUrlKeys.ADVERTISER_SUB_SITE, preloaded.getAdvertiserSubSite());
+                safeAppend(link, redactKeys, TuneUrlKeys.ADVERTISER_SUB_CAMPAIGN, preloaded.getAdvertiserSubCampaign());
+                safeAppend(link, redactKeys, TuneUrlKeys.ADVERTISER_SUB_ADGROUP, preloaded.getAdvertiserSubAdgroup());
+                safeAppend(link, redactKeys, TuneUrlKeys.ADVERTISER_SUB_AD, preloaded.getAdvertiserSubAd());
+                safeAppend(link, redactKeys, TuneUrlKeys.ADVERTISER_SUB_KEYWORD, preloaded.getAdvertiserSubKeyword());
+            }
+            preload = link.toString();
+        }
+
+        boolean matches(final TuneParameters params, TuneParameters.Snapshot snapshot, TunePreloadData preloaded) {
+            return this.params == params
+                    && this.paramsVersion == snapshot.linkVersion
+                    && this.preloaded == preloaded
+                    && this.preloadedVersion == (preloaded == null ? 0 : preloaded.getVersion())
+                    && this.redactKeys.equals(snapshot.redactKeys);
+        }
+
+        int length() {
+            return head.length() + sdk.length() + tail.length() + preload.length();
+        }
+    }
+
+    // Already encoded device and user parts of the data, reused until a value they hold changes
+    private static volatile DataFragment deviceData;
+    private static volatile DataFragment userData;
+
     /**
      * Builds data in conversion link based on class member values, to be encrypted.
      * @return URL-encoded string based on class settings.
      */
-    static synchronized String buildDataUnencrypted(final TuneParameters params, final TuneEvent eventData) {
-        Set<String> redactKeys = TuneParameters.getRedactedKeys();
-        StringBuilder link = new StringBuilder();
+    static String buildDataUnencrypted(final TuneParameters params, final TuneEvent eventData) {
+        return buildDataUnencrypted(params, params.getSnapshot(), eventData);
+    }
 
-        link.append(TuneUrlKeys.CONNECTION_TYPE + "=").append(params.getConnectionType());
-        safeAppend(link, redactKeys, TuneUrlKeys.ANDROID_ID, params.getAndroidId());
-        safeAppend(link, redactKeys, TuneUrlKeys.ANDROID_ID_MD5, params.getAndroidIdMd5());
-        safeAppend(link, redactKeys, TuneUrlKeys.ANDROID_ID_SHA1, params.getAndroidIdSha1());
-        safeAppend(link, redactKeys, TuneUrlKeys.ANDROID_ID_SHA256, params.getAndroidIdSha256());
-
-        safeAppend(link, redactKeys, TuneUrlKeys.APP_NAME, params.getAppName());
-        safeAppend(link, redactKeys, TuneUrlKeys.APP_VERSION, params.getAppVersion());
-        safeAppend(link, redactKeys, TuneUrlKeys.APP_VERSION_NAME, params.getAppVersionName());
-        safeAppend(link, redactKeys, TuneUrlKeys.COUNTRY_CODE, params.getCountryCode());
-        safeAppend(link, redactKeys, TuneUrlKeys.DEVICE_BRAND, params.getDeviceBrand());
-        safeAppend(link, redactKeys, TuneUrlKeys.DEVICE_BUILD, params.getDeviceBuild());
-        safeAppend(link, redactKeys, TuneUrlKeys.DEVICE_CARRIER, params.getDeviceCarrier());
-        safeAppend(link, redactKeys, TuneUrlKeys.DEVICE_CPU_TYPE, params.getDeviceCpuType());
-        safeAppend(link, redactKeys, TuneUrlKeys.DEVICE_CPU_SUBTYPE, params.getDeviceCpuSubtype());
-        safeAppend(link, redactKeys, TuneUrlKeys.DEVICE_MODEL, params.getDeviceModel());
-        safeAppend(link, redactKeys, TuneUrlKeys.DEVICE_ID, params.getDeviceId());
-        safeAppend(link, redactKeys, TuneUrlKeys.FIRE_AID, params.getFireAdvertisingId());
-        safeAppend(link, redactKeys, TuneUrlKeys.GOOGLE_AID, params.getGoogleAdvertisingId());
-        safeAppend(link, redactKeys, TuneUrlKeys.INSTALL_DATE, params.getInstallDate());
-        safeAppend(link, redactKeys, TuneUrlKeys.INSTALL_BEGIN_TIMESTAMP, params.getInstallBeginTimestampSeconds());
-        safeAppend(link, redactKeys, TuneUrlKeys.REFERRER_CLICK_TIMESTAMP, params.getReferrerClickTimestampSeconds());
-        safeAppend(link, redactKeys, TuneUrlKeys.INSTALLER, params.getInstaller());
-        safeAppend(link, redactKeys, TuneUrlKeys.INSTALL_REFERRER, params.getInstallReferrer());
-        safeAppend(link, redactKeys, TuneUrlKeys.LANGUAGE, params.getLanguage());
-        safeAppend(link, redactKeys, TuneUrlKeys.LAST_OPEN_LOG_ID, params.getLastOpenLogId());
-        if (params.getLocation() != null) {
-            safeAppend(link, redactKeys, TuneUrlKeys.ALTITUDE, Double.toString(params.getLocation().getAltitude()));
-            safeAppend(link, redactKeys, TuneUrlKeys.LATITUDE, Double.toString(params.getLocation().getLatitude()));
-            safeAppend(link, redactKeys, TuneUrlKeys.LONGITUDE, Double.toString(params.getLocation().getLongitude()));
-        }
-        safeAppend(link, redactKeys, TuneUrlKeys.LOCALE, params.getLocale());
-        safeAppend(link, redactKeys, TuneUrlKeys.MAT_ID, params.getMatId());
-        safeAppend(link, redactKeys, TuneUrlKeys.MOBILE_COUNTRY_CODE, params.getMCC());
-        safeAppend(link, redactKeys, TuneUrlKeys.MOBILE_NETWORK_CODE, params.getMNC());
-        safeAppend(link, redactKeys, TuneUrlKeys.OPEN_LOG_ID, params.getOpenLogId());
-        safeAppend(link, redactKeys, TuneUrlKeys.OS_VERSION, params.getOsVersion());
-        safeAppend(link, redactKeys, TuneUrlKeys.SDK_PLUGIN, params.getPluginName());
-        safeAppend(link, redactKeys, TuneUrlKeys.PLATFORM_AID, params.getPlatformAdvertisingId());
-        safeAppend(link, redactKeys, TuneUrlKeys.PURCHASE_STATUS, params.getPurchaseStatus());
-        safeAppend(link, redactKeys, TuneUrlKeys.REFERRER_DELAY, params.getReferrerDelay());
-        safeAppend(link, redactKeys, TuneUrlKeys.SCREEN_DENSITY, params.getScreenDensity());
-        safeAppend(link, redactKeys, TuneUrlKeys.SCREEN_LAYOUT_SIZE, params.getScreenWidth() + "x" + params.getScreenHeight());
-        safeAppend(link, redactKeys, TuneUrlKeys.SDK_VERSION, Tune.getSDKVersion());
-        safeAppend(link, redactKeys, TuneUrlKeys.USER_AGENT, params.getUserAgent());
+    /**
+     * Builds data in conversion link from a snapshot of the parameter values, to be encrypted.
+     * Both cached fragments come from the same snapshot, so the data never mixes values from before and after a setter.
+     * @param snapshot values to build the data from
+     * @return URL-encoded string based on class settings.
+     */
+    static String buildDataUnencrypted(final TuneParameters params, TuneParameters.Snapshot snapshot, final TuneEvent eventData) {
+        Set<String> redactKeys = snapshot.redactKeys;
+
+        DataFragment device = deviceData;
+        if (device == null || !device.matches(params, snapshot.deviceDataVersion, redactKeys)) {
+            device = buildDeviceData(params, snapshot);
+            deviceData = device;
+        }
+
+        DataFragment user = userData;
+        if (user == null || !user.matches(params, snapshot.userDataVersion, redactKeys)) {
+            user = new DataFragment(params, snapshot.userDataVersion, redactKeys, buildUserData(snapshot));
+            userData = user;
+        }
+
+        StringBuilder link = new StringBuilder(device.value.length() + user.value.length() + 256);
+        link.append(device.value, 0, device.insertOffset);
+
+        // Location is refreshed before every send, so it is kept out of the device data and put in its place here
+        if (snapshot.location != null) {
+            safeAppend(link, redactKeys, TuneUrlKeys.ALTITUDE, Double.toString(snapshot.location.getAltitude()));
+            safeAppend(link, redactKeys, TuneUrlKeys.LATITUDE, Double.toString(snapshot.location.getLatitude()));
+            safeAppend(link, redactKeys, TuneUrlKeys.LONGITUDE, Double.toString(snapshot.location.getLongitude()));
+        }
+        link.append(device.value, device.insertOffset, device.value.length());
 
         // Append event-level params
         safeAppend(link, redactKeys, TuneUrlKeys.ATTRIBUTE1, eventData.getAttribute1());
@@ -180,142 +257,385 @@ class TuneUrlBuilder {
         safeAppend(link, redactKeys, TuneUrlKeys.REVENUE, Double.toString(eventData.getRevenue()));
         safeAppend(link, redactKeys, TuneUrlKeys.SEARCH_STRING, eventData.getSearchString());
 
-        // Append user information
-        safeAppend(link, redactKeys, TuneUrlKeys.AGE, params.getAge());
-        safeAppend(link, redactKeys, TuneUrlKeys.EXISTING_USER, params.getExistingUser());
-        safeAppend(link, redactKeys, TuneUrlKeys.FACEBOOK_USER_ID, params.getFacebookUserId());
-        safeAppend(link, redactKeys, TuneUrlKeys.GENDER, params.getGender());
-        safeAppend(link, redactKeys, TuneUrlKeys.GOOGLE_USER_ID, params.getGoogleUserId());
-        safeAppend(link, redactKeys, TuneUrlKeys.IS_PAYING_USER, params.isPayingUser());
-        safeAppend(link, redactKeys, TuneUrlKeys.TWITTER_USER_ID, params.getTwitterUserId());
-        safeAppend(link, redactKeys, TuneUrlKeys.USER_EMAIL_MD5, params.getUserEmailMd5());
-        safeAppend(link, redactKeys, TuneUrlKeys.USER_EMAIL_SHA1, params.getUserEmailSha1());
-        safeAppend(link, redactKeys, TuneUrlKeys.USER_EMAIL_SHA256, params.getUserEmailSha256());
-        safeAppend(link, redactKeys, TuneUrlKeys.USER_ID, params.getUserId());
-        safeAppend(link, redactKeys, TuneUrlKeys.USER_NAME_MD5, params.getUserNameMd5());
-        safeAppend(link, redactKeys, TuneUrlKeys.USER_NAME_SHA1, params.getUserNameSha1());
-        safeAppend(link, redactKeys, TuneUrlKeys.USER_NAME_SHA256, params.getUserNameSha256());
-        safeAppend(link, redactKeys, TuneUrlKeys.USER_PHONE_MD5, params.getPhoneNumberMd5());
-        safeAppend(link, redactKeys, TuneUrlKeys.USER_PHONE_SHA1, params.getPhoneNumberSha1());
-        safeAppend(link, redactKeys, TuneUrlKeys.USER_PHONE_SHA256, params.getPhoneNumberSha256());
+        link.append(user.value);
+
+        return link.toString();
+    }
+
+    /**
+     * Builds the device and app part of the data, which only changes when one of its parameters is set.
+     * @return URL-encoded string starting with the connection type, split where the location goes.
+     */
+    private static DataFragment buildDeviceData(final TuneParameters params, final TuneParameters.Snapshot snapshot) {
+        Set<String> redactKeys = snapshot.redactKeys;
+        StringBuilder link = new StringBuilder();
+
+        link.append(TuneUrlKeys.CONNECTION_TYPE + "=").append(snapshot.connectionType);
+        safeAppend(link, redactKeys, TuneUrlKeys.ANDROID_ID, snapshot.androidId);
+        safeAppend(link, redactKeys, TuneUrlKeys.ANDROID_ID_MD5, snapshot.androidIdMd5);
+        safeAppend(link, redactKeys, TuneUrlKeys.ANDROID_ID_SHA1, snapshot.androidIdSha1);
+        safeAppend(link, redactKeys, TuneUrlKeys.ANDROID_ID_SHA256, snapshot.androidIdSha256);
+
+        safeAppend(link, redactKeys, TuneUrlKeys.APP_NAME, snapshot.appName);
+        safeAppend(link, redactKeys, TuneUrlKeys.APP_VERSION, snapshot.appVersion);
+        safeAppend(link, redactKeys, TuneUrlKeys.APP_VERSION_NAME, snapshot.appVersionName);
+        safeAppend(link, redactKeys, TuneUrlKeys.COUNTRY_CODE, snapshot.countryCode);
+        safeAppend(link, redactKeys, TuneUrlKeys.DEVICE_BRAND, snapshot.deviceBrand);
+        safeAppend(link, redactKeys, TuneUrlKeys.DEVICE_BUILD, snapshot.deviceBuild);
+        safeAppend(link, redactKeys, TuneUrlKeys.DEVICE_CARRIER, snapshot.deviceCarrier);
+        safeAppend(link, redactKeys, TuneUrlKeys.DEVICE_CPU_TYPE, snapshot.deviceCpuType);
+        safeAppend(link, redactKeys, TuneUrlKeys.DEVICE_CPU_SUBTYPE, snapshot.deviceCpuSubtype);
+        safeAppend(link, redactKeys, TuneUrlKeys.DEVICE_MODEL, snapshot.deviceModel);
+        safeAppend(link, redactKeys, TuneUrlKeys.DEVICE_ID, snapshot.deviceId);
+        safeAppend(link, redactKeys, TuneUrlKeys.FIRE_AID, snapshot.fireAdvertisingId);
+        safeAppend(link, redactKeys, TuneUrlKeys.GOOGLE_AID, snapshot.googleAdvertisingId);
+        safeAppend(link, redactKeys, TuneUrlKeys.INSTALL_DATE, snapshot.installDate);
+        safeAppend(link, redactKeys, TuneUrlKeys.INSTALL_BEGIN_TIMESTAMP, snapshot.installBeginTimestampSeconds);
+        safeAppend(link, redactKeys, TuneUrlKeys.REFERRER_CLICK_TIMESTAMP, snapshot.referrerClickTimestampSeconds);
+        safeAppend(link, redactKeys, TuneUrlKeys.INSTALLER, snapshot.installer);
+        safeAppend(link, redactKeys, TuneUrlKeys.INSTALL_REFERRER, snapshot.installReferrer);
+        safeAppend(link, redactKeys, TuneUrlKeys.LANGUAGE, snapshot.language);
+        safeAppend(link, redactKeys, TuneUrlKeys.LAST_OPEN_LOG_ID, snapshot.lastOpenLogId);
+        int locationOffset = link.length();
+        safeAppend(link, redactKeys, TuneUrlKeys.LOCALE, snapshot.locale);
+        safeAppend(link, redactKeys, TuneUrlKeys.MAT_ID, snapshot.matId);
+        safeAppend(link, redactKeys, TuneUrlKeys.MOBILE_COUNTRY_CODE, snapshot.mcc);
+        safeAppend(link, redactKeys, TuneUrlKeys.MOBILE_NETWORK_CODE, snapshot.mnc);
+        safeAppend(link, redactKeys, TuneUrlKeys.OPEN_LOG_ID, snapshot.openLogId);
+        safeAppend(link, redactKeys, TuneUrlKeys.OS_VERSION, snapshot.osVersion);
+        safeAppend(link, redactKeys, TuneUrlKeys.SDK_PLUGIN, snapshot.pluginName);
+        safeAppend(link, redactKeys, TuneUrlKeys.PLATFORM_AID, snapshot.platformAdvertisingId);
+        safeAppend(link, redactKeys, TuneUrlKeys.PURCHASE_STATUS, snapshot.purchaseStatus);
+        safeAppend(link, redactKeys, TuneUrlKeys.REFERRER_DELAY, snapshot.referrerDelay);
+        safeAppend(link, redactKeys, TuneUrlKeys.SCREEN_DENSITY, snapshot.screenDensity);
+        safeAppend(link, redactKeys, TuneUrlKeys.SCREEN_LAYOUT_SIZE, snapshot.screenWidth + "x" + snapshot.screenHeight);
+        safeAppend(link, redactKeys, TuneUrlKeys.SDK_VERSION, Tune.getSDKVersion());
+        safeAppend(link, redactKeys, TuneUrlKeys.USER_AGENT, snapshot.userAgent);
+
+        return new DataFragment(params, snapshot.deviceDataVersion, redactKeys, link.toString(), locationOffset);
+    }
+
+    /**
+     * Builds the user and privacy part of the data, which only changes when one of its parameters is set.
+     * @return URL-encoded string of user parameters, each prefixed with an ampersand.
+     */
+    private static String buildUserData(final TuneParameters.Snapshot snapshot) {
+        Set<String> redactKeys = snapshot.redactKeys;
+        StringBuilder link = new StringBuilder();
+
+        safeAppend(link, redactKeys, TuneUrlKeys.AGE, snapshot.age);
+        safeAppend(link, redactKeys, TuneUrlKeys.EXISTING_USER, snapshot.existingUser);
+        safeAppend(link, redactKeys, TuneUrlKeys.FACEBOOK_USER_ID, snapshot.facebookUserId);
+        safeAppend(link, redactKeys, TuneUrlKeys.GENDER, snapshot.gender);
+        safeAppend(link, redactKeys, TuneUrlKeys.GOOGLE_USER_ID, snapshot.googleUserId);
+        safeAppend(link, redactKeys, TuneUrlKeys.IS_PAYING_USER, snapshot.payingUser);
+        safeAppend(link, redactKeys, TuneUrlKeys.TWITTER_USER_ID, snapshot.twitterUserId);
+        safeAppend(link, redactKeys, TuneUrlKeys.USER_EMAIL_MD5, snapshot.userEmailMd5);
+        safeAppend(link, redactKeys, TuneUrlKeys.USER_EMAIL_SHA1, snapshot.userEmailSha1);
+        safeAppend(link, redactKeys, TuneUrlKeys.USER_EMAIL_SHA256, snapshot.userEmailSha256);
+        safeAppend(link, redactKeys, TuneUrlKeys.USER_ID, snapshot.userId);
+        safeAppend(link, redactKeys, TuneUrlKeys.USER_NAME_MD5, snapshot.userNameMd5);
+        safeAppend(link, redactKeys, TuneUrlKeys.USER_NAME_SHA1, snapshot.userNameSha1);
+        safeAppend(link, redactKeys, TuneUrlKeys.USER_NAME_SHA256, snapshot.userNameSha256);
+        safeAppend(link, redactKeys, TuneUrlKeys.USER_PHONE_MD5, snapshot.phoneNumberMd5);
+        safeAppend(link, redactKeys, TuneUrlKeys.USER_PHONE_SHA1, snapshot.phoneNumberSha1);
+        safeAppend(link, redactKeys, TuneUrlKeys.USER_PHONE_SHA256, snapshot.phoneNumberSha256);
 
         // Age is handled differently with regards to COPPA.
-        safeAppend(link, redactKeys, TuneUrlKeys.IS_COPPA, (params.isPrivacyProtectedDueToAge() ? TuneConstants.PREF_SET : TuneConstants.PREF_UNSET));
+        safeAppend(link, redactKeys, TuneUrlKeys.IS_COPPA, (snapshot.privacyProtectedDueToAge ? TuneConstants.PREF_SET : TuneConstants.PREF_UNSET));
 
         // AppAdTracking is handled differently with regards to COPPA, but is defaulted "true" if it is not set on the server
-        if (params.isAppAdTrackingSet()) {
-            safeAppend(link, redactKeys, TuneUrlKeys.APP_AD_TRACKING, (params.getAppAdTrackingEnabled() ? TuneConstants.PREF_SET : TuneConstants.PREF_UNSET));
+        if (snapshot.appAdTrackingSet) {
+            safeAppend(link, redactKeys, TuneUrlKeys.APP_AD_TRACKING, (snapshot.appAdTrackingEnabled ? TuneConstants.PREF_SET : TuneConstants.PREF_UNSET));
         }
 
-        safeAppend(link, redactKeys, TuneUrlKeys.GOOGLE_AD_TRACKING_DISABLED, (params.getPlatformAdTrackingLimited() ? TuneConstants.PREF_SET : TuneConstants.PREF_UNSET)); // DEPRECATED
-        safeAppend(link, redactKeys, TuneUrlKeys.FIRE_AD_TRACKING_DISABLED, (params.getPlatformAdTrackingLimited() ? TuneConstants.PREF_SET : TuneConstants.PREF_UNSET));   // DEPRECATED
-        safeAppend(link, redactKeys, TuneUrlKeys.PLATFORM_AD_TRACKING_DISABLED, (params.getPlatformAdTrackingLimited() ? TuneConstants.PREF_SET : TuneConstants.PREF_UNSET));
+        safeAppend(link, redactKeys, TuneUrlKeys.GOOGLE_AD_TRACKING_DISABLED, (snapshot.platformAdTrackingLimited ? TuneConstants.PREF_SET : TuneConstants.PREF_UNSET)); // DEPRECATED
+        safeAppend(link, redactKeys, TuneUrlKeys.FIRE_AD_TRACKING_DISABLED, (snapshot.platformAdTrackingLimited ? TuneConstants.PREF_SET : TuneConstants.PREF_UNSET));   // DEPRECATED
+        safeAppend(link, redactKeys, TuneUrlKeys.PLATFORM_AD_TRACKING_DISABLED, (snapshot.platformAdTrackingLimited ? TuneConstants.PREF_SET : TuneConstants.PREF_UNSET));
 
         return link.toString();
     }
 
+    /**
+     * Immutable, already encoded part of the data along with the parameter version it was built from.
+     */
+    static final class DataFragment {
+        private final TuneParameters params;
+        private final int version;
+        private final Set<String> redactKeys;
+
+        final String value;
+        // Where values kept out of the fragment are inserted
+        final int insertOffset;
+
+        DataFragment(final TuneParameters params, int version, Set<String> redactKeys, String value) {
+            this(params, version, redactKeys, value, value.length());
+        }
+
+        DataFragment(final TuneParameters params, int version, Set<String> redactKeys, String value, int insertOffset) {
+            this.params = params;
+            this.version = version;
+            this.redactKeys = redactKeys;
+            this.value = value;
+            this.insertOffset = insertOffset;
+        }
+
+        boolean matches(final TuneParameters params, int version, Set<String> redactKeys) {
+            return this.params == params && this.version == version && this.redactKeys.equals(redactKeys);
+        }
+    }
 
     /**
      * Update the advertising ID and install referrer, if present, and encrypts the data string.
      * @return encrypted string
      */
-    static synchronized String updateAndEncryptData(final TuneParameters params, String data, final TuneEncryption encryption) {
-        if (data == null) {
-            data = "";
+    static String updateAndEncryptData(final TuneParameters params, String data, final TuneEncryption encryption) {
+        StringBuilder encData = new StringBuilder();
+        appendUpdatedAndEncryptedData(encData, params, data, encryption);
+        return encData.toString();
+    }
+
+    /**
+     * Update the advertising ID and install referrer, if present, and appends the encrypted data string,
+     * hex encoded, straight to the given link.
+     * @param link builder the encrypted string is appended to
+     */
+    static void appendUpdatedAndEncryptedData(StringBuilder link, final TuneParameters params, String data, final TuneEncryption encryption) {
+        TuneParameters.Snapshot snapshot = (params == null ? null : params.getSnapshot());
+        Set<String> redactKeys = (snapshot == null ? TuneParameters.getRedactedKeys() : snapshot.redactKeys);
+        DataParams updatedData = new DataParams(data);
+        putLateBoundData(updatedData, snapshot, redactKeys);
+        putSendTimeData(updatedData, snapshot, redactKeys);
+
+        try {
+            encryption.encryptToHex(updatedData.getData(), link);
+        } catch (Exception e) {
+            e.printStackTrace();
+            link.append(updatedData.getData());
+        }
+    }
+
+    /**
+     * Update the advertising ID and install referrer, if present, and encrypts the data string as far as
+     * it can be before it is sent.  The location and system date, which change from one attempt to the
+     * next, are left for {@link #appendPreparedData}.
+     * @return the prepared data, null if the data cannot be encrypted
+     */
+    static PreparedData prepareData(final TuneParameters params, String data, final TuneEncryption encryption) {
+        TuneParameters.Snapshot snapshot = (params == null ? null : params.getSnapshot());
+        Set<String> redactKeys = (snapshot == null ? TuneParameters.getRedactedKeys() : snapshot.redactKeys);
+        DataParams updatedData = new DataParams(data);
+        putLateBoundData(updatedData, snapshot, redactKeys);
+
+        try {
+            return new PreparedData(encryption.encryptPrefix(updatedData.getData()), updatedData.keys);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
         }
+    }
 
-        Set<String> redactKeys = TuneParameters.getRedactedKeys();
-        StringBuilder updatedData = new StringBuilder(data);
+    /**
+     * Adds the location and system date to data prepared by {@link #prepareData}, and appends the encrypted
+     * data string, hex encoded, straight to the given link.  Only the end of the data is encrypted here.
+     * @param link builder the encrypted string is appended to
+     * @param prepared data prepared from the given data
+     */
+    static void appendPreparedData(StringBuilder link, PreparedData prepared, final TuneParameters params, String data, final TuneEncryption encryption) {
+        TuneParameters.Snapshot snapshot = (params == null ? null : params.getSnapshot());
+        Set<String> redactKeys = (snapshot == null ? TuneParameters.getRedactedKeys() : snapshot.redactKeys);
+        DataParams sendTimeData = DataParams.appendingTo(prepared.keys);
+        putSendTimeData(sendTimeData, snapshot, redactKeys);
 
-        if (params != null) {
-            String gaid = params.getGoogleAdvertisingId();
-            if (gaid != null && !data.contains("&" + TuneUrlKeys.GOOGLE_AID + "=")) {
-                // DEPRECATED
-                safeAppend(updatedData, redactKeys, TuneUrlKeys.GOOGLE_AID, gaid);
-                safeAppend(updatedData, redactKeys, TuneUrlKeys.GOOGLE_AD_TRACKING_DISABLED, (params.getPlatformAdTrackingLimited() ? TuneConstants.PREF_SET : TuneConstants.PREF_UNSET));
-            }
+        try {
+            encryption.appendEncryptedHex(prepared.encrypted, sendTimeData.getData(), link);
+        } catch (Exception e) {
+            e.printStackTrace();
+            appendUpdatedAndEncryptedData(link, params, data, encryption);
+        }
+    }
 
-            String fireAid = params.getFireAdvertisingId();
-            if (fireAid != null && !data.contains("&" + TuneUrlKeys.FIRE_AID + "=")) {
-                // DEPRECATED
-                safeAppend(updatedData, redactKeys, TuneUrlKeys.FIRE_AID, fireAid);
-                safeAppend(updatedData, redactKeys, TuneUrlKeys.FIRE_AD_TRACKING_DISABLED, (params.getPlatformAdTrackingLimited() ? TuneConstants.PREF_SET : TuneConstants.PREF_UNSET));
-            }
+    /**
+     * Adds the parameters that may only be known after the event was queued, unless the data already holds them.
+     */
+    private static void putLateBoundData(DataParams updatedData, final TuneParameters.Snapshot snapshot, Set<String> redactKeys) {
+        if (snapshot == null) {
+            return;
+        }
 
-            String platformAid = params.getPlatformAdvertisingId();
-            if (platformAid != null && !data.contains("&" + TuneUrlKeys.PLATFORM_AID + "=")) {
-                safeAppend(updatedData, redactKeys, TuneUrlKeys.PLATFORM_AID, platformAid);
-                safeAppend(updatedData, redactKeys, TuneUrlKeys.PLATFORM_AD_TRACKING_DISABLED, (params.getPlatformAdTrackingLimited() ? TuneConstants.PREF_SET : TuneConstants.PREF_UNSET));
-            }
+        String gaid = snapshot.googleAdvertisingId;
+        if (gaid != null && !updatedData.contains(TuneUrlKeys.GOOGLE_AID)) {
+            // DEPRECATED
+            updatedData.put(redactKeys, TuneUrlKeys.GOOGLE_AID, gaid);
+            updatedData.put(redactKeys, TuneUrlKeys.GOOGLE_AD_TRACKING_DISABLED, (snapshot.platformAdTrackingLimited ? TuneConstants.PREF_SET : TuneConstants.PREF_UNSET));
+        }
 
-            String androidId = params.getAndroidId();
-            if (androidId != null && !data.contains("&" + TuneUrlKeys.ANDROID_ID + "=")) {
-                safeAppend(updatedData, redactKeys, TuneUrlKeys.ANDROID_ID, androidId);
-            }
+        String fireAid = snapshot.fireAdvertisingId;
+        if (fireAid != null && !updatedData.contains(TuneUrlKeys.FIRE_AID)) {
+            // DEPRECATED
+            updatedData.put(redactKeys, TuneUrlKeys.FIRE_AID, fireAid);
+            updatedData.put(redactKeys, TuneUrlKeys.FIRE_AD_TRACKING_DISABLED, (snapshot.platformAdTrackingLimited ? TuneConstants.PREF_SET : TuneConstants.PREF_UNSET));
+        }
 
-            String referrer = params.getInstallReferrer();
-            if (referrer != null && !data.contains("&" + TuneUrlKeys.INSTALL_REFERRER + "=")) {
-                safeAppend(updatedData, redactKeys, TuneUrlKeys.INSTALL_REFERRER, referrer);
-            }
-            String referralSource = params.getReferralSource();
-            if (referralSource != null && !data.contains("&" + TuneUrlKeys.REFERRAL_SOURCE + "=")) {
-                safeAppend(updatedData, redactKeys, TuneUrlKeys.REFERRAL_SOURCE, referralSource);
-            }
-            String referralUrl = params.getReferralUrl();
-            if (referralUrl != null && !data.contains("&" + TuneUrlKeys.REFERRAL_URL + "=")) {
-                safeAppend(updatedData, redactKeys, TuneUrlKeys.REFERRAL_URL, referralUrl);
-            }
-            String installBeginTimestamp = params.getInstallBeginTimestampSeconds();
-            if (installBeginTimestamp != null && !data.contains("&" + TuneUrlKeys.INSTALL_BEGIN_TIMESTAMP + "=")) {
-                safeAppend(updatedData, redactKeys, TuneUrlKeys.INSTALL_BEGIN_TIMESTAMP, installBeginTimestamp);
+        String platformAid = snapshot.platformAdvertisingId;
+        if (platformAid != null && !updatedData.contains(TuneUrlKeys.PLATFORM_AID)) {
+            updatedData.put(redactKeys, TuneUrlKeys.PLATFORM_AID, platformAid);
+            updatedData.put(redactKeys, TuneUrlKeys.PLATFORM_AD_TRACKING_DISABLED, (snapshot.platformAdTrackingLimited ? TuneConstants.PREF_SET : TuneConstants.PREF_UNSET));
+        }
+
+        String androidId = snapshot.androidId;
+        if (androidId != null && !updatedData.contains(TuneUrlKeys.ANDROID_ID)) {
+            updatedData.put(redactKeys, TuneUrlKeys.ANDROID_ID, androidId);
+        }
+
+        String referrer = snapshot.installReferrer;
+        if (referrer != null && !updatedData.contains(TuneUrlKeys.INSTALL_REFERRER)) {
+            updatedData.put(redactKeys, TuneUrlKeys.INSTALL_REFERRER, referrer);
+        }
+        String referralSource = snapshot.referralSource;
+        if (referralSource != null && !updatedData.contains(TuneUrlKeys.REFERRAL_SOURCE)) {
+            updatedData.put(redactKeys, TuneUrlKeys.REFERRAL_SOURCE, referralSource);
+        }
+        String referralUrl = snapshot.referralUrl;
+        if (referralUrl != null && !updatedData.contains(TuneUrlKeys.REFERRAL_URL)) {
+            updatedData.put(redactKeys, TuneUrlKeys.REFERRAL_URL, referralUrl);
+        }
+        String installBeginTimestamp = snapshot.installBeginTimestampSeconds;
+        if (installBeginTimestamp != null && !updatedData.contains(TuneUrlKeys.INSTALL_BEGIN_TIMESTAMP)) {
+            updatedData.put(redactKeys, TuneUrlKeys.INSTALL_BEGIN_TIMESTAMP, installBeginTimestamp);
+        }
+        String referrerClickTimestamp = snapshot.referrerClickTimestampSeconds;
+        if (referrerClickTimestamp != null && !updatedData.contains(TuneUrlKeys.REFERRER_CLICK_TIMESTAMP)) {
+            updatedData.put(redactKeys, TuneUrlKeys.REFERRER_CLICK_TIMESTAMP, referrerClickTimestamp);
+        }
+        String userAgent = snapshot.userAgent;
+        if (userAgent != null && !updatedData.contains(TuneUrlKeys.USER_AGENT)) {
+            updatedData.put(redactKeys, TuneUrlKeys.USER_AGENT, userAgent);
+        }
+        String fbUserId = snapshot.facebookUserId;
+        if (fbUserId != null && !updatedData.contains(TuneUrlKeys.FACEBOOK_USER_ID)) {
+            updatedData.put(redactKeys, TuneUrlKeys.FACEBOOK_USER_ID, fbUserId);
+        }
+    }
+
+    /**
+     * Adds the location and the system date of the attempt, unless the data already holds them.
+     */
+    private static void putSendTimeData(DataParams updatedData, final TuneParameters.Snapshot snapshot, Set<String> redactKeys) {
+        Location location = (snapshot == null ? null : snapshot.location);
+        if (location != null) {
+            if (!updatedData.contains(TuneUrlKeys.ALTITUDE)) {
+                updatedData.put(redactKeys, TuneUrlKeys.ALTITUDE, Double.toString(location.getAltitude()));
             }
-            String referrerClickTimestamp = params.getReferrerClickTimestampSeconds();
-            if (referrerClickTimestamp != null && !data.contains("&" + TuneUrlKeys.REFERRER_CLICK_TIMESTAMP + "=")) {
-                safeAppend(updatedData, redactKeys, TuneUrlKeys.REFERRER_CLICK_TIMESTAMP, referrerClickTimestamp);
+            if (!updatedData.contains(TuneUrlKeys.LATITUDE)) {
+                updatedData.put(redactKeys, TuneUrlKeys.LATITUDE, Double.toString(location.getLatitude()));
             }
-            String userAgent = params.getUserAgent();
-            if (userAgent != null && !data.contains("&" + TuneUrlKeys.USER_AGENT + "=")) {
-                safeAppend(updatedData, redactKeys, TuneUrlKeys.USER_AGENT, userAgent);
+            if (!updatedData.contains(TuneUrlKeys.LONGITUDE)) {
+                updatedData.put(redactKeys, TuneUrlKeys.LONGITUDE, Double.toString(location.getLongitude()));
             }
-            String fbUserId = params.getFacebookUserId();
-            if (fbUserId != null && !data.contains("&" + TuneUrlKeys.FACEBOOK_USER_ID + "=")) {
-                safeAppend(updatedData, redactKeys, TuneUrlKeys.FACEBOOK_USER_ID, fbUserId);
+        }
+
+        // Add system date of original request
+        if (!updatedData.contains(TuneUrlKeys.SYSTEM_DATE)) {
+            long now = new Date().getTime()/1000;
+            updatedData.put(redactKeys, TuneUrlKeys.SYSTEM_DATE, Long.toString(now));
+        }
+    }
+
+    /**
+     * Queued event data with the late-bound parameters merged in and encrypted as far as its last full block.
+     * It stays valid until one of the merged parameters changes.
+     */
+    static final class PreparedData {
+        private final TuneEncryption.Prefix encrypted;
+        // Keys the data holds, so the send time parameters don't repeat them
+        private final Set<String> keys;
+
+        private PreparedData(TuneEncryption.Prefix encrypted, Set<String> keys) {
+            this.encrypted = encrypted;
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * The URL-encoded data of a queued event, indexed by the keys it holds so late-bound parameters
+     * can be merged in with a lookup instead of a scan of the whole string.
+     */
+    static final class DataParams {
+        private final StringBuilder data;
+        private final Set<String> keys = new HashSet<>();
+
+        DataParams(String data) {
+            if (data == null) {
+                data = "";
             }
-            Location location = params.getLocation();
-            if (location != null) {
-                if (!data.contains("&" + TuneUrlKeys.ALTITUDE + "=")) {
-                    safeAppend(updatedData, redactKeys, TuneUrlKeys.ALTITUDE, Double.toString(location.getAltitude()));
-                }
-                if (!data.contains("&" + TuneUrlKeys.LATITUDE + "=")) {
-                    safeAppend(updatedData, redactKeys, TuneUrlKeys.LATITUDE, Double.toString(location.getLatitude()));
+            this.data = new StringBuilder(data.length() + 256).append(data);
+
+            // Index every key=value pair once
+            int start = 0;
+            while (start < data.length()) {
+                int end = data.indexOf('&', start);
+                if (end < 0) {
+                    end = data.length();
                 }
-                if (!data.contains("&" + TuneUrlKeys.LONGITUDE + "=")) {
-                    safeAppend(updatedData, redactKeys, TuneUrlKeys.LONGITUDE, Double.toString(location.getLongitude()));
+                int separator = data.indexOf('=', start);
+                if (separator > start && separator < end) {
+                    keys.add(data.substring(start, separator));
                 }
+                start = end + 1;
             }
+        }
 
+        /**
+         * @param keys keys already held
+         * @return empty data, to be appended to data holding the given keys
+         */
+        static DataParams appendingTo(Set<String> keys) {
+            DataParams dataParams = new DataParams("");
+            dataParams.keys.addAll(keys);
+            return dataParams;
         }
-        // Add system date of original request
-        if (!data.contains("&" + TuneUrlKeys.SYSTEM_DATE + "=")) {
-            long now = new Date().getTime()/1000;
-            safeAppend(updatedData, redactKeys, TuneUrlKeys.SYSTEM_DATE, Long.toString(now));
+
+        /**
+         * @param key URL key
+         * @return true if the data already holds a value for the key
+         */
+        boolean contains(String key) {
+            return keys.contains(key);
         }
 
-        String updatedDataStr = updatedData.toString();
-        try {
-            updatedDataStr = TuneUtils.bytesToHex(encryption.encrypt(updatedDataStr));
-        } catch (Exception e) {
-            e.printStackTrace();
+        /**
+         * Appends a value for the key, unless it is empty or redacted.
+         * @param redactKeys keys that must not be sent
+         * @param key URL key
+         * @param value unencoded value
+         */
+        void put(Set<String> redactKeys, String key, String value) {
+            int length = data.length();
+            safeAppend(data, redactKeys, key, value);
+            if (data.length() != length) {
+                keys.add(key);
+            }
         }
 
-        return updatedDataStr;
-}
+        /**
+         * @return the URL-encoded data, without copying it
+         */
+        CharSequence getData() {
+            return data;
+        }
+
+        @Override
+        public String toString() {
+            return data.toString();
+        }
+    }
 
     /**
      * Builds JSONObject for body of POST request
      * @return appropriately parameterized object
      */
-    static synchronized JSONObject buildBody(JSONArray eventItems, String iapData, String iapSignature, JSONArray emails) {
+    static JSONObject buildBody(JSONArray eventItems, String iapData, String iapSignature, JSONArray emails) {
         JSONObject postData = new JSONObject();
 
         try {
@@ -342,7 +662,7 @@ class TuneUrlBuilder {
     /*
      * URL builders
      */
-    private static synchronized void safeAppend(StringBuilder link, Set<String> redactKeys, String key, String value) {
+    private static void safeAppend(StringBuilder link, Set<String> redactKeys, String key, String value) {
         if (value != null && !value.equals("")) {
             if (redactKeys.contains(key)) {
                 // Key is redacted, and will not be appended.
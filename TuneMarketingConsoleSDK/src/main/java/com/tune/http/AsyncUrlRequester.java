@@ -0,0 +1,24 @@
+package com.tune.http;
+
+import com.tune.TuneDeeplinkListener;
+
+import org.json.JSONObject;
+
+/**
+ * Non-blocking counterpart of {@link UrlRequester}.
+ * <br>
+ * Implement this to send SDK requests through an HTTP stack the app already has running, such as
+ * OkHttp, Cronet or a shared connection pool.  Each method must return without waiting for the
+ * network, and later call the callback exactly once unless the request was cancelled, with
+ * {@link TuneRequestCallback#onFailure} if the request could not be made.
+ * {@link TuneAsyncUrlRequester} adapts a blocking {@link UrlRequester} to this interface.
+ */
+public interface AsyncUrlRequester {
+
+    TuneRequest requestDeeplink(String deeplinkURL, String conversionKey, TuneDeeplinkListener listener);
+
+    TuneRequest requestUrl(String url, JSONObject json, boolean debugMode, TuneRequestCallback callback);
+
+    TuneRequest requestBatch(String url, JSONObject batch, boolean debugMode, TuneRequestCallback callback);
+
+}
@@ -0,0 +1,15 @@
+package com.tune.http;
+
+import org.json.JSONObject;
+
+/**
+ * A {@link UrlRequester} that can also send several queued events in one request.
+ * <br>
+ * Optional, events queued with batch upload enabled go out one request each through
+ * {@link UrlRequester#requestUrl} when the requester doesn't implement this.
+ */
+public interface BatchUrlRequester extends UrlRequester {
+
+    JSONObject requestBatch(String url, JSONObject batch, boolean debugMode);
+
+}
@@ -0,0 +1,204 @@
+package com.tune.http;
+
+import com.tune.TuneDebugLog;
+import com.tune.TuneDeeplinkListener;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the requests of a blocking {@link UrlRequester} on background threads.
+ * <br>
+ * Cancelling a request interrupts its thread and drops its callback, but a blocking read already
+ * in progress runs until its socket timeout.
+ */
+public class TuneAsyncUrlRequester implements AsyncUrlRequester {
+    private final UrlRequester urlRequester;
+    private final ExecutorService executor;
+
+    /**
+     * Runs requests on threads that are only started for requests in flight, and exit once idle.
+     * @param urlRequester Requester to make the requests with
+     */
+    public TuneAsyncUrlRequester(UrlRequester urlRequester) {
+        this(urlRequester, Executors.newCachedThreadPool());
+    }
+
+    /**
+     * @param urlRequester Requester to make the requests with
+     * @param executor Executor to run the requests on
+     */
+    public TuneAsyncUrlRequester(UrlRequester urlRequester, ExecutorService executor) {
+        this.urlRequester = urlRequester;
+        this.executor = executor;
+    }
+
+    public UrlRequester getUrlRequester() {
+        return urlRequester;
+    }
+
+    @Override
+    public TuneRequest requestDeeplink(final String deeplinkURL, final String conversionKey, final TuneDeeplinkListener listener) {
+        final Request request = new Request() {
+            @Override
+            void fail(Exception error) {
+                if (listener != null) {
+                    listener.didFailDeeplink(error.toString());
+                }
+            }
+        };
+        return request.submit(new Runnable() {
+            @Override
+            public void run() {
+                urlRequester.requestDeeplink(deeplinkURL, conversionKey, new TuneDeeplinkListener() {
+                    @Override
+                    public void didReceiveDeeplink(String deeplink) {
+                        if (request.complete() && listener != null) {
+                            listener.didReceiveDeeplink(deeplink);
+                        }
+                    }
+
+                    @Override
+                    public void didFailDeeplink(String error) {
+                        if (request.complete() && listener != null) {
+                            listener.didFailDeeplink(error);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public TuneRequest requestUrl(final String url, final JSONObject json, final boolean debugMode, final TuneRequestCallback callback) {
+        final Request request = new CallbackRequest(callback);
+        return request.submit(new Runnable() {
+            @Override
+            public void run() {
+                JSONObject response = urlRequester.requestUrl(url, json, debugMode);
+                if (request.complete()) {
+                    callback.onResponse(response);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true if the wrapped requester can send batch requests
+     */
+    public boolean supportsBatchRequests() {
+        return urlRequester instanceof BatchUrlRequester;
+    }
+
+    /**
+     * Sends the batch through the wrapped requester.  A requester without batch support answers
+     * with an empty response, which leaves the events queued for retry.
+     */
+    @Override
+    public TuneRequest requestBatch(final String url, final JSONObject batch, final boolean debugMode, final TuneRequestCallback callback) {
+        final Request request = new CallbackRequest(callback);
+        return request.submit(new Runnable() {
+            @Override
+            public void run() {
+                JSONObject response;
+                if (urlRequester instanceof BatchUrlRequester) {
+                    response = ((BatchUrlRequester) urlRequester).requestBatch(url, batch, debugMode);
+                } else {
+                    TuneDebugLog.w("UrlRequester does not support batch requests");
+                    response = new JSONObject();
+                }
+                if (request.complete()) {
+                    callback.onResponse(response);
+                }
+            }
+        });
+    }
+
+    /**
+     * Shuts down the request threads.  Requests already running finish and call their callbacks,
+     * requests made afterwards are dropped.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private abstract class Request implements TuneRequest {
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile boolean cancelled;
+        private volatile Future<?> future;
+
+        /**
+         * Reports a request that could not be made.
+         * @param error What went wrong
+         */
+        abstract void fail(Exception error);
+
+        Request submit(final Runnable task) {
+            try {
+                future = executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            TuneDebugLog.e("Request failed", e);
+                            failOnce(e);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shut down, the request is never made
+                TuneDebugLog.w("Request dropped, requester is shut down", e);
+                failOnce(e);
+            }
+            return this;
+        }
+
+        private void failOnce(Exception error) {
+            if (complete()) {
+                fail(error);
+            }
+        }
+
+        /**
+         * @return true if the callback should be called, false if the request was cancelled
+         */
+        boolean complete() {
+            return finished.compareAndSet(false, true);
+        }
+
+        @Override
+        public void cancel() {
+            if (finished.compareAndSet(false, true)) {
+                cancelled = true;
+                Future<?> task = future;
+                if (task != null) {
+                    task.cancel(true);
+                }
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private class CallbackRequest extends Request {
+        private final TuneRequestCallback callback;
+
+        CallbackRequest(TuneRequestCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        void fail(Exception error) {
+            callback.onFailure(error);
+        }
+    }
+}
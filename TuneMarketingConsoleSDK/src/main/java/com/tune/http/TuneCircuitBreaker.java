@@ -0,0 +1,157 @@
+package com.tune.http;
+
+import com.tune.TuneConstants;
+import com.tune.TuneDebugLog;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending requests to a host that keeps failing.
+ * <br>
+ * Each host has a circuit, closed to start with.  After a number of consecutive failures the
+ * circuit opens and requests to the host fail fast, without opening a socket.  Once the circuit
+ * has been open for a while it is half-open: one request at a time is let through to probe the
+ * host, and the circuit closes if it succeeds or opens again if it fails.
+ */
+public class TuneCircuitBreaker {
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Notified when the circuit of a host changes state.
+     */
+    public interface Listener {
+        /**
+         * Called on the thread whose request changed the state, after the change.
+         * @param host Host name
+         * @param previous State before the change
+         * @param state State after the change
+         */
+        void onStateChanged(String host, State previous, State state);
+    }
+
+    private final Map<String, Circuit> circuits = new HashMap<>();
+    private final int failureThreshold;
+    private final long openTimeNanos;
+    private volatile Listener listener;
+
+    public TuneCircuitBreaker() {
+        this(TuneConstants.CIRCUIT_FAILURE_THRESHOLD, TuneConstants.CIRCUIT_OPEN_TIME);
+    }
+
+    /**
+     * @param failureThreshold Consecutive failures after which the circuit opens
+     * @param openTime Time in milliseconds the circuit stays open before probing the host
+     */
+    public TuneCircuitBreaker(int failureThreshold, long openTime) {
+        this.failureThreshold = failureThreshold;
+        this.openTimeNanos = TimeUnit.MILLISECONDS.toNanos(openTime);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Asks to send a request to a host.  Every request allowed must be followed by a call to
+     * {@link #recordSuccess} or {@link #recordFailure}.
+     * @param host Host name
+     * @return true if the request may be sent, false if it should fail fast
+     */
+    public boolean allowRequest(String host) {
+        boolean allowed;
+        State previous;
+        synchronized (this) {
+            Circuit circuit = circuits.get(host);
+            if (circuit == null || circuit.state == State.CLOSED) {
+                return true;
+            }
+            previous = circuit.state;
+            if (circuit.state == State.OPEN && System.nanoTime() - circuit.openedAt >= openTimeNanos) {
+                circuit.state = State.HALF_OPEN;
+            }
+            allowed = circuit.state == State.HALF_OPEN && !circuit.probing;
+            if (allowed) {
+                circuit.probing = true;
+            }
+        }
+        if (previous != State.HALF_OPEN && allowed) {
+            notifyStateChanged(host, previous, State.HALF_OPEN);
+        }
+        return allowed;
+    }
+
+    /**
+     * Records a request that reached the host.
+     * @param host Host name
+     */
+    public void recordSuccess(String host) {
+        Circuit circuit;
+        synchronized (this) {
+            circuit = circuits.remove(host);
+        }
+        if (circuit != null && circuit.state != State.CLOSED) {
+            notifyStateChanged(host, circuit.state, State.CLOSED);
+        }
+    }
+
+    /**
+     * Records a request that failed to reach the host, or that the host failed to answer.
+     * @param host Host name
+     */
+    public void recordFailure(String host) {
+        State previous;
+        synchronized (this) {
+            Circuit circuit = circuits.get(host);
+            if (circuit == null) {
+                circuit = new Circuit();
+                circuits.put(host, circuit);
+            }
+            previous = circuit.state;
+            circuit.failures++;
+            circuit.probing = false;
+            if (circuit.state == State.HALF_OPEN || (circuit.state == State.CLOSED && circuit.failures >= failureThreshold)) {
+                circuit.state = State.OPEN;
+                circuit.openedAt = System.nanoTime();
+            }
+            if (circuit.state == previous) {
+                return;
+            }
+        }
+        notifyStateChanged(host, previous, State.OPEN);
+    }
+
+    /**
+     * @param host Host name
+     * @return state of the circuit of the host
+     */
+    public synchronized State getState(String host) {
+        Circuit circuit = circuits.get(host);
+        return circuit == null ? State.CLOSED : circuit.state;
+    }
+
+    private void notifyStateChanged(String host, State previous, State state) {
+        TuneDebugLog.d("Circuit for " + host + " changed from " + previous + " to " + state);
+        Listener current = listener;
+        if (current != null) {
+            try {
+                current.onStateChanged(host, previous, state);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class Circuit {
+        State state = State.CLOSED;
+        int failures;
+        long openedAt;
+        // Whether the probe request of a half-open circuit is in flight
+        boolean probing;
+    }
+}
@@ -0,0 +1,64 @@
+package com.tune.http;
+
+/**
+ * Snapshot of the request latency observed on one type of network, for diagnostics.
+ */
+public class TuneLatencyEstimate {
+    private final String networkType;
+    private final long smoothedLatency;
+    private final long latencyVariation;
+    private final int sampleCount;
+    private final int timeoutCount;
+    private final int timeout;
+
+    TuneLatencyEstimate(String networkType, long smoothedLatency, long latencyVariation, int sampleCount, int timeoutCount, int timeout) {
+        this.networkType = networkType;
+        this.smoothedLatency = smoothedLatency;
+        this.latencyVariation = latencyVariation;
+        this.sampleCount = sampleCount;
+        this.timeoutCount = timeoutCount;
+        this.timeout = timeout;
+    }
+
+    public String getNetworkType() {
+        return networkType;
+    }
+
+    /**
+     * @return smoothed request latency in milliseconds, roughly the median, 0 before the first sample
+     */
+    public long getSmoothedLatency() {
+        return smoothedLatency;
+    }
+
+    /**
+     * @return smoothed mean deviation of the request latency in milliseconds
+     */
+    public long getLatencyVariation() {
+        return latencyVariation;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return number of requests that timed out since the last completed one
+     */
+    public int getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * @return connect and read timeout in milliseconds used for the next request on this network
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public String toString() {
+        return networkType + ": latency " + smoothedLatency + "ms +/- " + latencyVariation + "ms over " + sampleCount
+                + " samples, " + timeoutCount + " timeouts, timeout " + timeout + "ms";
+    }
+}
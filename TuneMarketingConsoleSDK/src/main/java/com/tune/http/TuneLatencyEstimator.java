@@ -0,0 +1,143 @@
+package com.tune.http;
+
+import com.tune.TuneConstants;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Derives request timeouts from the latency observed on each type of network.
+ * <br>
+ * Keeps a smoothed latency and mean deviation per network type the way TCP estimates its
+ * retransmission timeout (RFC 6298), and times requests out after the smoothed latency plus four
+ * deviations, which covers nearly all responses.  Each consecutive timeout doubles the timeout,
+ * and every timeout is kept between a floor and a ceiling.
+ */
+public class TuneLatencyEstimator {
+    // Network type used until one is set
+    public static final String NETWORK_UNKNOWN = "unknown";
+
+    private final Map<String, Estimate> estimates = new HashMap<>();
+    private String networkType = NETWORK_UNKNOWN;
+    private int floor;
+    private int ceiling;
+
+    public TuneLatencyEstimator() {
+        this(TuneConstants.TIMEOUT_FLOOR, TuneConstants.TIMEOUT);
+    }
+
+    /**
+     * @param floor Min timeout in milliseconds
+     * @param ceiling Max timeout in milliseconds
+     */
+    public TuneLatencyEstimator(int floor, int ceiling) {
+        setBounds(floor, ceiling);
+    }
+
+    /**
+     * Sets the range timeouts are kept in.
+     * @param floor Min timeout in milliseconds
+     * @param ceiling Max timeout in milliseconds
+     */
+    public synchronized void setBounds(int floor, int ceiling) {
+        if (floor <= 0 || ceiling < floor) {
+            throw new IllegalArgumentException("Timeout bounds must satisfy 0 < floor <= ceiling");
+        }
+        this.floor = floor;
+        this.ceiling = ceiling;
+    }
+
+    /**
+     * Sets the type of network requests currently go out on, e.g. "wifi" or "mobile_lte".
+     * @param networkType Network type
+     */
+    public synchronized void setNetworkType(String networkType) {
+        this.networkType = networkType != null ? networkType : NETWORK_UNKNOWN;
+    }
+
+    public synchronized String getNetworkType() {
+        return networkType;
+    }
+
+    /**
+     * @param networkType Network type the request goes out on
+     * @return connect and read timeout in milliseconds for a request
+     */
+    public synchronized int getTimeout(String networkType) {
+        Estimate estimate = estimates.get(networkType);
+        if (estimate == null) {
+            return bound(TuneConstants.TIMEOUT_INITIAL);
+        }
+        return bound(bound(estimate.baseTimeout()) << estimate.timeoutCount);
+    }
+
+    private int bound(long timeout) {
+        return (int) Math.max(floor, Math.min(ceiling, timeout));
+    }
+
+    /**
+     * Records the latency of a completed request.
+     * @param networkType Network type the request went out on
+     * @param latency Time from connecting to receiving the response headers, in milliseconds
+     */
+    public synchronized void recordLatency(String networkType, long latency) {
+        estimate(networkType).sample(Math.max(latency, 1));
+    }
+
+    /**
+     * Records a request that timed out.
+     * @param networkType Network type the request went out on
+     */
+    public synchronized void recordTimeout(String networkType) {
+        Estimate estimate = estimate(networkType);
+        // Stop doubling once the timeout has reached the ceiling
+        if (getTimeout(networkType) < ceiling) {
+            estimate.timeoutCount++;
+        }
+    }
+
+    /**
+     * @return the estimates for every network type seen so far
+     */
+    public synchronized Map<String, TuneLatencyEstimate> getEstimates() {
+        Map<String, TuneLatencyEstimate> snapshot = new HashMap<>();
+        for (Map.Entry<String, Estimate> entry : estimates.entrySet()) {
+            Estimate estimate = entry.getValue();
+            snapshot.put(entry.getKey(), new TuneLatencyEstimate(entry.getKey(), estimate.smoothedLatency, estimate.latencyVariation,
+                    estimate.sampleCount, estimate.timeoutCount, getTimeout(entry.getKey())));
+        }
+        return snapshot;
+    }
+
+    private Estimate estimate(String networkType) {
+        Estimate estimate = estimates.get(networkType);
+        if (estimate == null) {
+            estimate = new Estimate();
+            estimates.put(networkType, estimate);
+        }
+        return estimate;
+    }
+
+    private static class Estimate {
+        long smoothedLatency;
+        long latencyVariation;
+        int sampleCount;
+        int timeoutCount;
+
+        void sample(long latency) {
+            if (sampleCount == 0) {
+                smoothedLatency = latency;
+                latencyVariation = latency / 2;
+            } else {
+                latencyVariation = (3 * latencyVariation + Math.abs(smoothedLatency - latency)) / 4;
+                smoothedLatency = (7 * smoothedLatency + latency) / 8;
+            }
+            sampleCount++;
+            timeoutCount = 0;
+        }
+
+        long baseTimeout() {
+            return sampleCount == 0 ? TuneConstants.TIMEOUT_INITIAL : smoothedLatency + 4 * latencyVariation;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.tune.http;
+
+/**
+ * Handle to a request started by an {@link AsyncUrlRequester}.
+ */
+public interface TuneRequest {
+
+    /**
+     * Cancels the request.  Once cancelled, the request's callback is not called, even if a
+     * response arrives.  Cancelling a completed request has no effect.
+     */
+    void cancel();
+
+    boolean isCancelled();
+
+}
@@ -0,0 +1,29 @@
+package com.tune.http;
+
+import org.json.JSONObject;
+
+/**
+ * Completion callback for a request made through an {@link AsyncUrlRequester}.
+ */
+public interface TuneRequestCallback {
+
+    /**
+     * Called once when the request completes, on whichever thread the requester completes it on.
+     * The response follows the same contract as {@link UrlRequester#requestUrl}: null if the TUNE
+     * server rejected the request and it should not be retried, otherwise the parsed response.  A
+     * failed request that should be retried has no success field; it is empty, or holds only the
+     * HTTP status and any Retry-After wait under {@code TuneConstants.SERVER_RESPONSE_HTTP_STATUS}
+     * and {@code TuneConstants.SERVER_RESPONSE_RETRY_AFTER}.
+     * @param response Server response
+     */
+    void onResponse(JSONObject response);
+
+    /**
+     * Called once, instead of {@link #onResponse}, when the request could not be made at all, for
+     * example because the requester was shut down or threw.  The request is retried later, like one
+     * that failed on the network.
+     * @param error What went wrong
+     */
+    void onFailure(Exception error);
+
+}
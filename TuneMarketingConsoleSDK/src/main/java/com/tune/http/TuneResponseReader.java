@@ -0,0 +1,205 @@
+package com.tune.http;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.tune.TuneConstants;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Reads a TUNE server response as a stream, keeping only the fields the SDK looks at.
+ * <br>
+ * A measurement response can carry the whole attribution record, but the SDK only ever reads
+ * whether it succeeded, the open log ID, the invoke URL of a TUNE link, and a few status fields
+ * that are logged in debug mode.  Those are copied into a small {@link JSONObject} as the document
+ * streams by; everything else is skipped without being materialized.
+ */
+class TuneResponseReader {
+    private static final String KEY_LOG_ID = "log_id";
+    private static final String KEY_SITE_EVENT_TYPE = "site_event_type";
+    private static final String KEY_ERRORS = "errors";
+    private static final String KEY_LOG_ACTION = "log_action";
+    private static final String KEY_CONVERSION = "conversion";
+    private static final String KEY_STATUS = "status";
+    private static final String KEY_STATUS_CODE = "status_code";
+    private static final String KEY_OPTIONS = "options";
+    private static final String KEY_CONVERSION_STATUS = "conversion_status";
+
+    private TuneResponseReader() {
+    }
+
+    /**
+     * Reads a response document.
+     * @param stream Response body, already decompressed
+     * @param maxBytes Max number of bytes to read before giving up on the response
+     * @return the fields of the response the SDK uses
+     * @throws IOException if the response could not be read, is not a JSON object, or is too large
+     * @throws JSONException if a field could not be copied
+     */
+    static JSONObject read(InputStream stream, int maxBytes) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(new LimitedInputStream(stream, maxBytes), "UTF-8"));
+        try {
+            return readResponse(reader);
+        } catch (IllegalStateException | NumberFormatException e) {
+            // Thrown by JsonReader for a document of an unexpected shape
+            throw new IOException("Unexpected response: " + e.getMessage());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static JSONObject readResponse(JsonReader reader) throws IOException, JSONException {
+        JSONObject response = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (TuneConstants.SERVER_RESPONSE_SUCCESS.equals(name)
+                    || KEY_LOG_ID.equals(name)
+                    || KEY_SITE_EVENT_TYPE.equals(name)
+                    || TuneConstants.KEY_INVOKE_URL.equals(name)) {
+                response.put(name, readScalar(reader));
+            } else if (KEY_ERRORS.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                response.put(name, readErrors(reader));
+            } else if (KEY_LOG_ACTION.equals(name)) {
+                response.put(name, reader.peek() == JsonToken.BEGIN_OBJECT ? readFields(reader, KEY_CONVERSION) : readScalar(reader));
+            } else if (KEY_OPTIONS.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                response.put(name, readFields(reader, KEY_CONVERSION_STATUS));
+            } else if (TuneConstants.SERVER_RESPONSE_RESULTS.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                // Batch response, one result per event
+                JSONArray results = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        results.put(readResponse(reader));
+                    } else {
+                        reader.skipValue();
+                        results.put(new JSONObject());
+                    }
+                }
+                reader.endArray();
+                response.put(name, results);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return response;
+    }
+
+    /**
+     * Reads an object, keeping only the given field.  A {@code conversion} field is itself read
+     * for its status fields.
+     */
+    private static JSONObject readFields(JsonReader reader, String field) throws IOException, JSONException {
+        JSONObject object = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (!field.equals(name)) {
+                reader.skipValue();
+            } else if (KEY_CONVERSION.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                JSONObject conversion = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String conversionName = reader.nextName();
+                    if (KEY_STATUS.equals(conversionName) || KEY_STATUS_CODE.equals(conversionName)) {
+                        conversion.put(conversionName, readScalar(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                object.put(name, conversion);
+            } else {
+                object.put(name, readScalar(reader));
+            }
+        }
+        reader.endObject();
+        return object;
+    }
+
+    private static JSONArray readErrors(JsonReader reader) throws IOException {
+        JSONArray errors = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.STRING) {
+                errors.put(reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+        return errors;
+    }
+
+    /**
+     * Reads a value as the string {@link JSONObject#getString} would return for it.
+     */
+    private static Object readScalar(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BOOLEAN:
+                return Boolean.toString(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            default:
+                reader.skipValue();
+                return JSONObject.NULL;
+        }
+    }
+
+    /**
+     * Fails reads once more than a given number of bytes have been read.
+     */
+    static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long maxBytes) {
+            super(in);
+            this.remaining = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                consumed(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                consumed(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            consumed(skipped);
+            return skipped;
+        }
+
+        private void consumed(long count) throws IOException {
+            remaining -= count;
+            if (remaining < 0) {
+                throw new IOException("Response is larger than the limit");
+            }
+        }
+    }
+}
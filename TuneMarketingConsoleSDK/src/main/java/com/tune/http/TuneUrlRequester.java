@@ -7,15 +7,76 @@ import com.tune.utils.TuneUtils;
 
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
-public class TuneUrlRequester implements UrlRequester {
+public class TuneUrlRequester implements BatchUrlRequester {
+    // HTTP 415, returned by servers that can't read a compressed body
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+    private static final int GZIP_BUFFER_SIZE = 8192;
+
+    // Whether request bodies are compressed at all
+    private volatile boolean compressionEnabled = true;
+    // Hosts that rejected a compressed body, sent uncompressed bodies from then on
+    private final Set<String> uncompressedHosts = Collections.synchronizedSet(new HashSet<String>());
+    // Source of request timeouts
+    private final TuneLatencyEstimator latencyEstimator;
+    // Fails requests fast to hosts that keep failing
+    private final TuneCircuitBreaker circuitBreaker;
+
+    public TuneUrlRequester() {
+        this(new TuneLatencyEstimator());
+    }
+
+    /**
+     * @param latencyEstimator Estimator to take request timeouts from and report latencies to
+     */
+    public TuneUrlRequester(TuneLatencyEstimator latencyEstimator) {
+        this(latencyEstimator, new TuneCircuitBreaker());
+    }
+
+    /**
+     * @param latencyEstimator Estimator to take request timeouts from and report latencies to
+     * @param circuitBreaker Circuit breaker to check hosts with before sending requests to them
+     */
+    public TuneUrlRequester(TuneLatencyEstimator latencyEstimator, TuneCircuitBreaker circuitBreaker) {
+        this.latencyEstimator = latencyEstimator;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public TuneLatencyEstimator getLatencyEstimator() {
+        return latencyEstimator;
+    }
+
+    public TuneCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Whether to gzip-compress request bodies.  When enabled, which is the default, bodies of at
+     * least {@link TuneConstants#GZIP_THRESHOLD} characters and all batch requests are compressed,
+     * unless the server has rejected a compressed body before.
+     * @param enabled Whether to compress request bodies
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        compressionEnabled = enabled;
+    }
 
     @Override
     public void requestDeeplink(String deeplinkURL, String conversionKey, TuneDeeplinkListener listener) {
@@ -23,8 +84,15 @@ public class TuneUrlRequester implements UrlRequester {
             return; // no one is listening!
         }
 
+        String host = getHost(deeplinkURL);
+        if (host != null && !circuitBreaker.allowRequest(host)) {
+            notifyDeeplinkListener(listener, true, "Requests to " + host + " are failing, deeplink not requested");
+            return;
+        }
+
         BufferedInputStream is = null;
         boolean foundError = false;
+        boolean outcomeRecorded = false;
         String response;
 
         try {
@@ -39,6 +107,8 @@ public class TuneUrlRequester implements UrlRequester {
             conn.connect();
 
             int responseCode = conn.getResponseCode();
+            recordOutcome(host, responseCode);
+            outcomeRecorded = true;
             if (responseCode == HttpURLConnection.HTTP_OK) {
                 is = new BufferedInputStream(conn.getInputStream());
             } else {
@@ -53,6 +123,9 @@ public class TuneUrlRequester implements UrlRequester {
 
             e.printStackTrace();
         } finally {
+            if (host != null && !outcomeRecorded) {
+                circuitBreaker.recordFailure(host);
+            }
             try {
                 if (is != null) {
                     is.close();
@@ -62,6 +135,10 @@ public class TuneUrlRequester implements UrlRequester {
             }
         }
 
+        notifyDeeplinkListener(listener, foundError, response);
+    }
+
+    private static void notifyDeeplinkListener(TuneDeeplinkListener listener, boolean foundError, String response) {
         // Send the callback the response.  This is wrapped in a try/catch in case the callback
         // tries to throw an exception back through this API.
         try {
@@ -77,6 +154,60 @@ public class TuneUrlRequester implements UrlRequester {
         }
     }
 
+    /**
+     * Connects to the host of the url ahead of the first request to it, so that the DNS lookup, TCP
+     * connect and TLS handshake are already done and a kept-alive connection can be reused.
+     * Blocks until the host has answered.  Like any other request, it is skipped while requests to
+     * the host are failing fast, and its outcome is reported to the circuit breaker.
+     * @param url the url to hit with a HEAD request
+     * @return true if the host answered
+     */
+    public boolean warmUp(String url, boolean debugMode) {
+        String host = getHost(url);
+        if (host != null && !circuitBreaker.allowRequest(host)) {
+            TuneDebugLog.d("Requests to " + host + " are failing, connection not warmed up");
+            return false;
+        }
+
+        boolean outcomeRecorded = false;
+        long startTime = System.nanoTime();
+        try {
+            URL myurl = new URL(url);
+            InetAddress.getAllByName(myurl.getHost());
+            long resolvedTime = System.nanoTime();
+
+            HttpURLConnection conn = (HttpURLConnection) myurl.openConnection();
+            int timeout = latencyEstimator.getTimeout(latencyEstimator.getNetworkType());
+            conn.setReadTimeout(timeout);
+            conn.setConnectTimeout(timeout);
+            conn.setRequestMethod("HEAD");
+            int responseCode = conn.getResponseCode();
+            recordOutcome(host, responseCode);
+            outcomeRecorded = true;
+
+            // Reading the response to its end, without disconnecting, leaves the connection
+            // in the pool for the first request
+            InputStream is = responseCode < HttpURLConnection.HTTP_BAD_REQUEST ? conn.getInputStream() : conn.getErrorStream();
+            if (is != null) {
+                TuneUtils.readStream(new BufferedInputStream(is));
+                is.close();
+            }
+
+            if (debugMode) {
+                TuneDebugLog.d("Warmed up connection to " + myurl.getHost() + ": DNS " + TimeUnit.NANOSECONDS.toMillis(resolvedTime - startTime)
+                        + "ms, connect and first response " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - resolvedTime) + "ms");
+            }
+            return true;
+        } catch (Exception e) {
+            TuneDebugLog.d("Connection warm-up failed for " + url, e);
+            return false;
+        } finally {
+            if (host != null && !outcomeRecorded) {
+                circuitBreaker.recordFailure(host);
+            }
+        }
+    }
+
     /**
      * Does an HTTP request to the given url, GET or POST based on whether json was passed or not
      * @param url the url to hit
@@ -85,17 +216,60 @@ public class TuneUrlRequester implements UrlRequester {
      */
     @Override
     public JSONObject requestUrl(String url, JSONObject json, boolean debugMode) {
+        String body = null;
+        if (json != null && json.length() > 0) {
+            body = json.toString();
+        }
+        return request(url, body, body != null && body.length() >= TuneConstants.GZIP_THRESHOLD, debugMode);
+    }
+
+    /**
+     * POSTs several queued events to the batch endpoint as one request, gzip-compressed unless compression is disabled
+     * @param url the batch url to hit
+     * @param batch JSONObject with the array of events to send
+     * @return JSONObject of the server response, holding one result per event in request order,
+     * null if the server rejected the whole batch
+     */
+    @Override
+    public JSONObject requestBatch(String url, JSONObject batch, boolean debugMode) {
+        return request(url, batch.toString(), true, debugMode);
+    }
+
+    /**
+     * Does an HTTP request to the given url, GET or POST based on whether a body was passed or not
+     * @param url the url to hit
+     * @param body request body, if not null then will POST to url
+     * @param compress whether the body should be gzip-compressed, if compression is enabled and the server accepts it
+     * @return JSONObject of the server response, null if request failed
+     */
+    private JSONObject request(String url, String body, boolean compress, boolean debugMode) {
+        String host = getHost(url);
+        if (host != null && !circuitBreaker.allowRequest(host)) {
+            if (debugMode) {
+                TuneDebugLog.d("Requests to " + host + " are failing, not sending " + url);
+            }
+            return new JSONObject(); // marks this request for retry
+        }
+
         BufferedInputStream is = null;
+        boolean outcomeRecorded = false;
+        String networkType = null;
+        long startTime = System.nanoTime();
         
         try {
             URL myurl = new URL(url);
+            compress = compress && body != null && compressionEnabled && !uncompressedHosts.contains(myurl.getHost());
             HttpURLConnection conn = (HttpURLConnection) myurl.openConnection();
-            conn.setReadTimeout(TuneConstants.TIMEOUT);
-            conn.setConnectTimeout(TuneConstants.TIMEOUT);
+            networkType = latencyEstimator.getNetworkType();
+            int timeout = latencyEstimator.getTimeout(networkType);
+            conn.setReadTimeout(timeout);
+            conn.setConnectTimeout(timeout);
             conn.setDoInput(true);
+            // Setting this explicitly turns off transparent decompression, see decodedStream()
+            conn.setRequestProperty("Accept-Encoding", "gzip");
             
-            // If no JSON passed, do HttpGet
-            if (json == null || json.length() == 0) {
+            // If no body passed, do HttpGet
+            if (body == null) {
                 conn.setRequestMethod("GET");
             } else {
                 // Put JSON as entity for HttpPost
@@ -103,54 +277,92 @@ public class TuneUrlRequester implements UrlRequester {
                 conn.setRequestProperty("Content-Type", "application/json");
                 conn.setRequestProperty("Accept", "application/json");
                 conn.setRequestMethod("POST");
-                
-                OutputStream os = conn.getOutputStream();
-                os.write(json.toString().getBytes("UTF-8"));
-                os.close();
+
+                if (compress) {
+                    // The compressed length isn't known up front, so the body is sent in chunks
+                    // as the deflater produces them
+                    conn.setChunkedStreamingMode(0);
+                    conn.setRequestProperty("Content-Encoding", "gzip");
+                    Writer writer = new OutputStreamWriter(new GZIPOutputStream(conn.getOutputStream(), GZIP_BUFFER_SIZE), "UTF-8");
+                    writer.write(body);
+                    writer.close();
+                } else {
+                    byte[] bytes = body.getBytes("UTF-8");
+                    conn.setFixedLengthStreamingMode(bytes.length);
+                    OutputStream os = conn.getOutputStream();
+                    os.write(bytes);
+                    os.close();
+                }
             }
             
             conn.connect();
             int responseCode = conn.getResponseCode();
+            recordOutcome(host, responseCode);
+            outcomeRecorded = true;
+            latencyEstimator.recordLatency(networkType, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
             if (debugMode) {
                 TuneDebugLog.d("Request completed with status " + responseCode);
             }
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                is = new BufferedInputStream(conn.getInputStream());
-            } else {
-                is = new BufferedInputStream(conn.getErrorStream());
-            }
-            
-            String responseAsString = TuneUtils.readStream(is);
-            if (debugMode) {
-                // Output server response
-                TuneDebugLog.d("Server response: " + responseAsString);
+            if (compress && responseCode == HTTP_UNSUPPORTED_MEDIA_TYPE) {
+                // Server can't read compressed bodies, send this and later requests to it uncompressed
+                TuneDebugLog.w("Server rejected compressed request, retrying uncompressed");
+                uncompressedHosts.add(myurl.getHost());
+                conn.disconnect();
+                return request(url, body, false, debugMode);
             }
-
             String matResponderHeader = conn.getHeaderField("X-MAT-Responder");
             if (responseCode >= HttpURLConnection.HTTP_OK && responseCode < HttpURLConnection.HTTP_MULT_CHOICE) {
-                // Try to parse response and print
-                JSONTokener tokener = new JSONTokener(responseAsString);
-                JSONObject responseJson = new JSONObject(tokener);
+                // Stream the response, keeping only the fields the SDK reads
+                is = new BufferedInputStream(decodedStream(conn, conn.getInputStream()));
+                JSONObject responseJson = TuneResponseReader.read(is, TuneConstants.MAX_RESPONSE_SIZE);
                 if (debugMode) {
+                    // Output server response
+                    TuneDebugLog.d("Server response: " + responseJson);
                     logResponse(responseJson);
                 }
 
                 return responseJson;
             }
+
+            // The body of an error response is only of interest when debugging
+            InputStream errorStream = conn.getErrorStream();
+            if (debugMode && errorStream != null) {
+                is = new BufferedInputStream(new TuneResponseReader.LimitedInputStream(decodedStream(conn, errorStream), TuneConstants.MAX_RESPONSE_SIZE));
+                TuneDebugLog.d("Server response: " + TuneUtils.readStream(is));
+            }
+
             // for HTTP 400, if it's from our server, drop the request and don't retry
-            else if (responseCode == HttpURLConnection.HTTP_BAD_REQUEST && matResponderHeader != null) {
+            if (responseCode == HttpURLConnection.HTTP_BAD_REQUEST && matResponderHeader != null) {
                 if (debugMode) {
                     TuneDebugLog.d("Request received 400 error from TUNE server, won't be retried");
                 }
                 return null; // don't retry
             }
-            // for all other codes, assume the server/connection is broken and will be fixed later
+            // for all other codes, assume the server/connection is broken and will be fixed later,
+            // passing on the status and any wait the server asked for
+            JSONObject failure = new JSONObject();
+            failure.put(TuneConstants.SERVER_RESPONSE_HTTP_STATUS, responseCode);
+            long retryAfter = getRetryAfter(conn);
+            if (retryAfter >= 0) {
+                failure.put(TuneConstants.SERVER_RESPONSE_RETRY_AFTER, retryAfter);
+            }
+            return failure;
+        } catch (SocketTimeoutException e) {
+            // Wait longer on this network next time
+            latencyEstimator.recordTimeout(networkType);
+            if (debugMode) {
+                TuneDebugLog.d("Request timed out with URL " + url + ", timeouts on this network are now " + latencyEstimator.getTimeout(networkType) + "ms");
+            }
         } catch (Exception e) {
             if (debugMode) {
                 TuneDebugLog.d("Request error with URL " + url);
             }
             e.printStackTrace();
         } finally {
+            if (host != null && !outcomeRecorded) {
+                // No response at all, e.g. unreachable or timed out
+                circuitBreaker.recordFailure(host);
+            }
             if (is != null) {
                 try {
                     is.close();
@@ -163,6 +375,66 @@ public class TuneUrlRequester implements UrlRequester {
         return new JSONObject(); // marks this request for retry
     }
     
+    /**
+     * Reports the response of a request to the circuit breaker, server errors count as failures.
+     * @param host Host the request went to
+     * @param responseCode HTTP status of the response
+     */
+    private void recordOutcome(String host, int responseCode) {
+        if (host == null) {
+            return;
+        }
+        if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+            circuitBreaker.recordFailure(host);
+        } else {
+            circuitBreaker.recordSuccess(host);
+        }
+    }
+
+    /**
+     * @param url Url address
+     * @return host of the address, null if it can't be parsed
+     */
+    private static String getHost(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the Retry-After header, either a number of seconds or an HTTP date.
+     * @param conn Connection to read the header from
+     * @return the wait the server asked for in milliseconds, or -1 if it didn't ask for one
+     */
+    private static long getRetryAfter(HttpURLConnection conn) {
+        String retryAfter = conn.getHeaderField("Retry-After");
+        if (retryAfter == null) {
+            return -1;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(retryAfter.trim())));
+        } catch (NumberFormatException e) {
+            long date = conn.getHeaderFieldDate("Retry-After", -1);
+            return date < 0 ? -1 : Math.max(0, date - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Wraps a response stream in a gzip decoder if the server compressed it.
+     * @param conn Connection the stream belongs to
+     * @param stream Raw response stream
+     * @return Stream of the decoded response
+     * @throws IOException if the gzip header could not be read
+     */
+    private static InputStream decodedStream(HttpURLConnection conn, InputStream stream) throws IOException {
+        if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+            return new GZIPInputStream(stream);
+        }
+        return stream;
+    }
+
     // Helper to log request success/failure/errors
     private static void logResponse(JSONObject response) {
         if (response.length() > 0) {
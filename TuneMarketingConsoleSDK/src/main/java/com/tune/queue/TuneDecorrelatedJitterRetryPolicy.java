@@ -0,0 +1,58 @@
+package com.tune.queue;
+
+import com.tune.TuneConstants;
+
+import java.util.Random;
+
+/**
+ * Retry policy using "decorrelated jitter" backoff, where each delay is drawn at random between
+ * the base delay and three times the previous delay, capped at a max delay.  Delays grow about
+ * as fast as plain exponential backoff, but devices that failed together spread their retries out
+ * instead of retrying in lockstep.
+ * <br>
+ * Not used unless set with {@link com.tune.ITune#setRetryPolicy(TuneRetryPolicy)}.
+ */
+public class TuneDecorrelatedJitterRetryPolicy implements TuneRetryPolicy {
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+    private long previousDelay;
+    private int previousFailures;
+
+    public TuneDecorrelatedJitterRetryPolicy() {
+        this(TuneConstants.RETRY_BASE_DELAY, TuneConstants.RETRY_MAX_DELAY);
+    }
+
+    /**
+     * @param baseDelay Shortest delay in milliseconds
+     * @param maxDelay Longest delay in milliseconds
+     */
+    public TuneDecorrelatedJitterRetryPolicy(long baseDelay, long maxDelay) {
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    @Override
+    public synchronized long getRetryDelay(int failures) {
+        if (failures != previousFailures + 1 || previousDelay == 0) {
+            // Not continuing the last backoff, e.g. after a restart: pick up where an
+            // exponential backoff would be after this many failures
+            previousDelay = baseDelay << Math.min(Math.max(failures - 1, 0), 30);
+        }
+        previousDelay = nextDelay(random, baseDelay, maxDelay, previousDelay);
+        previousFailures = failures;
+        return previousDelay;
+    }
+
+    /**
+     * @param random Source of randomness
+     * @param baseDelay Shortest delay in milliseconds
+     * @param maxDelay Longest delay in milliseconds
+     * @param previousDelay Previous delay in milliseconds, the base delay for the first retry
+     * @return the next delay in milliseconds
+     */
+    static long nextDelay(Random random, long baseDelay, long maxDelay, long previousDelay) {
+        long upper = Math.max(baseDelay, Math.min(maxDelay, 3 * previousDelay));
+        return Math.min(maxDelay, baseDelay + (long) (random.nextDouble() * (upper - baseDelay)));
+    }
+}
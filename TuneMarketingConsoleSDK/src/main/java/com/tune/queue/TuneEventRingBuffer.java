@@ -0,0 +1,106 @@
+package com.tune.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free buffer for many producer threads and a single consumer thread.
+ * <br>
+ * Each slot carries a sequence number telling whose turn it is: a producer may fill slot
+ * {@code position & mask} once its sequence equals {@code position}, and publishes the element by
+ * setting it to {@code position + 1}; the consumer empties it and hands it back to producers one lap
+ * later by setting it to {@code position + capacity}.  Producers only contend on a single
+ * compare-and-set of the tail position, and neither side allocates or blocks.
+ * @param <E> Element type
+ */
+public class TuneEventRingBuffer<E> {
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray sequences;
+
+    // Next position to be claimed by a producer
+    private final AtomicLong tail = new AtomicLong();
+    // Next position to be read by the consumer, only ever touched by the consumer thread
+    private long head;
+
+    /**
+     * @param capacity Minimum number of elements the buffer holds, rounded up to a power of two
+     */
+    public TuneEventRingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return Number of elements the buffer holds
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Adds an element, from any thread.
+     * @param element Element to add, must not be null
+     * @return true if the element was added, false if the buffer is full
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException("Null buffer element");
+        }
+
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, element);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The slot still holds the element from one lap ago
+                return false;
+            } else {
+                // Another producer claimed this position first
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element.  Must only be called from the consumer thread.
+     * @return the element, or null if the buffer is empty
+     */
+    public E poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        E element = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, head + capacity);
+        head++;
+        return element;
+    }
+
+    /**
+     * Must only be called from the consumer thread.
+     * @return true if there is no element ready to be polled
+     */
+    public boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+}
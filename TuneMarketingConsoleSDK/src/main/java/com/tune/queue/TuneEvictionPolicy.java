@@ -0,0 +1,13 @@
+package com.tune.queue;
+
+/**
+ * What the event queue gives up once it is over its byte budget.
+ */
+public enum TuneEvictionPolicy {
+    // Drop the oldest queued sessions first, then the oldest events of the lowest priority lane
+    DROP_OLDEST_SESSIONS,
+    // Drop the oldest events of the lowest priority lane that still has events
+    DROP_LOWEST_PRIORITY,
+    // Keep everything already queued and drop the new event instead
+    REJECT_NEW
+}
@@ -0,0 +1,82 @@
+package com.tune.queue;
+
+import android.os.SystemClock;
+
+import com.tune.TuneConstants;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Backoff shared by every request to a host, set when the host pushes back with HTTP 429 or 503.
+ * <br>
+ * While a host is backed off, no queued event is sent to it.  The wait is the one the host asked
+ * for in a Retry-After header, or else a decorrelated jitter backoff that grows with each
+ * consecutive push back and is reset once the host accepts a request.
+ */
+public class TuneHostBackoff {
+    private final Map<String, Backoff> hosts = new HashMap<>();
+    private final Random random = new Random();
+
+    /**
+     * @param status HTTP status of a failed request
+     * @return true if the status asks clients to back off
+     */
+    public static boolean isBackpressure(int status) {
+        return status == 429 || status == 503;
+    }
+
+    /**
+     * Backs off from a host that pushed back.
+     * @param host Host name
+     * @param retryAfter Wait the host asked for in milliseconds, or a negative value if it didn't say
+     * @return the wait before the host is sent to again, in milliseconds
+     */
+    public synchronized long defer(String host, long retryAfter) {
+        Backoff backoff = hosts.get(host);
+        if (backoff == null) {
+            backoff = new Backoff();
+            hosts.put(host, backoff);
+        }
+
+        long delay;
+        if (retryAfter >= 0) {
+            delay = Math.min(retryAfter, TuneConstants.RETRY_MAX_DELAY);
+        } else {
+            long previousDelay = backoff.delay > 0 ? backoff.delay : TuneConstants.RETRY_BASE_DELAY;
+            delay = TuneDecorrelatedJitterRetryPolicy.nextDelay(random, TuneConstants.RETRY_BASE_DELAY, TuneConstants.RETRY_MAX_DELAY, previousDelay);
+        }
+        backoff.delay = delay;
+        // Never shorten a wait already in place
+        backoff.until = Math.max(backoff.until, SystemClock.elapsedRealtime() + delay);
+        return backoff.until - SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Ends the backoff from a host after it accepted a request.
+     * @param host Host name
+     */
+    public synchronized void reset(String host) {
+        hosts.remove(host);
+    }
+
+    /**
+     * @param host Host name
+     * @return the remaining wait before the host may be sent to, in milliseconds, 0 if none
+     */
+    public synchronized long getRemainingDelay(String host) {
+        Backoff backoff = hosts.get(host);
+        if (backoff == null) {
+            return 0;
+        }
+        return Math.max(0, backoff.until - SystemClock.elapsedRealtime());
+    }
+
+    private static class Backoff {
+        // Last wait, the base of the next jittered one
+        long delay;
+        // Time (SystemClock.elapsedRealtime) before which the host isn't sent to
+        long until;
+    }
+}
@@ -0,0 +1,24 @@
+package com.tune.queue;
+
+/**
+ * Default retry policy, that steps through 30s, 90s, 10m, 1h, 6h and then 24h for every later attempt,
+ * each stretched by up to 10% of random jitter so that devices don't retry in lockstep.
+ */
+public class TuneLadderRetryPolicy implements TuneRetryPolicy {
+    // Retry delays, in seconds
+    private static final long[] LADDER = {
+        30,
+        90,
+        10 * 60,
+        60 * 60,
+        6 * 60 * 60,
+        24 * 60 * 60
+    };
+
+    @Override
+    public long getRetryDelay(int failures) {
+        long retryTimeout = LADDER[Math.min(Math.max(failures, 1), LADDER.length) - 1];
+        // randomize and convert to milliseconds
+        return (long) ((1 + 0.1 * Math.random()) * retryTimeout * 1000.);
+    }
+}
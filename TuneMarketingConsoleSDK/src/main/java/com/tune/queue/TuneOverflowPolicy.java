@@ -0,0 +1,14 @@
+package com.tune.queue;
+
+/**
+ * What measuring an event does when the in-memory event buffer is full.
+ */
+public enum TuneOverflowPolicy {
+    // Drop the event
+    DROP,
+    // Wait for room in the buffer, up to a timeout, then drop the event.
+    // Events measured from an SDK callback can't wait for the buffer to drain, they are spilled to disk
+    BLOCK,
+    // Write the event to a spill file on disk, it is picked up once the buffer has drained
+    SPILL_TO_DISK
+}
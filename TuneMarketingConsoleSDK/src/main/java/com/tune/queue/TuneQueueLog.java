@@ -0,0 +1,874 @@
+package com.tune.queue;
+
+import com.tune.TuneDebugLog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented on-disk log backing the event queue.
+ * <br>
+ * Every write is a record of the form {@code [length][crc32][sequence][payload]} appended to the
+ * current segment file.  Records are addressed by their sequence number: writing a payload for a
+ * sequence that already exists supersedes the older copy, and writing an empty payload (a tombstone)
+ * removes it.  Nothing is ever rewritten in place, so adding or removing an item costs one small
+ * append no matter how many items are queued.
+ * <br>
+ * A record may also carry a small metadata blob, written as a separate record whose sequence number
+ * has {@link #METADATA_FLAG} set.  Metadata is kept in memory as well, so it can be read and
+ * replaced without touching the (larger) payload.
+ * <br>
+ * Segments are rotated once they reach {@link #DEFAULT_SEGMENT_SIZE} bytes.  A separate commit cursor
+ * records the oldest segment that still holds live records; segments below it are deleted and are
+ * never scanned again.  On open, the segments from the cursor onward are replayed to rebuild the
+ * in-memory index, and a torn or corrupt tail (e.g. from a process kill mid-write) is truncated.
+ * <br>
+ * A long-lived record pins its segment, and every later segment, on disk.  Once superseded records
+ * take up more than half of the files, the live records of the oldest segment are copied to the
+ * end of the log so the segment can be deleted, which keeps the files within a small multiple of
+ * {@link #byteSize()}.
+ */
+public class TuneQueueLog {
+    // Default maximum size of a single segment file, in bytes
+    public static final int DEFAULT_SEGMENT_SIZE = 128 * 1024;
+    // Upper bound on a single record, guards against reading garbage lengths
+    static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CURSOR_FILE = "cursor";
+    private static final String CURSOR_TEMP_FILE = "cursor.tmp";
+
+    // length (int) + crc (int)
+    private static final int HEADER_SIZE = 8;
+    // sequence number (long)
+    private static final int SEQUENCE_SIZE = 8;
+    // Set on the sequence number of a metadata record
+    private static final long METADATA_FLAG = Long.MIN_VALUE;
+
+    // Logs opened through open(), keyed by directory, so that every queue shares one index per directory
+    private static final Map<String, TuneQueueLog> openLogs = new HashMap<>();
+
+    private final File directory;
+    private final int maxSegmentSize;
+
+    // Live records, ordered by sequence number
+    private final TreeMap<Long, Location> index = new TreeMap<>();
+    // Current metadata of live records, and where it was written
+    private final Map<Long, Metadata> metadata = new HashMap<>();
+    // Metadata replayed before its record, held until the record turns up later in the log
+    private final Map<Long, Metadata> orphanMetadata = new HashMap<>();
+
+    private long nextSequence;
+    private long cursorSegment;
+    private long writeSegment;
+    private long writeOffset;
+    private FileOutputStream writer;
+
+    // Bytes taken by the current copies of live records and their metadata, headers included
+    private long liveBytes;
+    // Bytes taken by the segment files from the cursor onward
+    private long diskBytes;
+
+    private final CRC32 crc = new CRC32();
+    private final byte[] header = new byte[HEADER_SIZE + SEQUENCE_SIZE];
+
+    /**
+     * Location of the current copy of a record.
+     */
+    private static class Location {
+        final long segment;
+        final long offset;
+        final int length;
+
+        Location(long segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Returns the log for the given directory, opening it if this process has not done so yet.
+     * Two logs writing to the same directory would each miss the other's records, so callers
+     * sharing a directory should always go through here.
+     * @param directory Directory holding the segment and cursor files
+     * @return Log for the directory
+     */
+    public static TuneQueueLog open(File directory) {
+        String key = directory.getAbsolutePath();
+        synchronized (openLogs) {
+            TuneQueueLog log = openLogs.get(key);
+            if (log == null) {
+                log = new TuneQueueLog(directory);
+                openLogs.put(key, log);
+            }
+            return log;
+        }
+    }
+
+    /**
+     * Metadata attached to a record.
+     */
+    private static class Metadata {
+        final byte[] value;
+        final long segment;
+
+        Metadata(byte[] value, long segment) {
+            this.value = value;
+            this.segment = segment;
+        }
+    }
+
+    /**
+     * Opens (or creates) a log in the given directory, replaying any existing segments.
+     * @param directory Directory holding the segment and cursor files
+     */
+    public TuneQueueLog(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens (or creates) a log in the given directory, replaying any existing segments.
+     * @param directory Directory holding the segment and cursor files
+     * @param maxSegmentSize Size in bytes after which a new segment is started
+     */
+    public TuneQueueLog(File directory, int maxSegmentSize) {
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            TuneDebugLog.e("Could not create queue directory " + directory);
+        }
+
+        recover();
+    }
+
+    /**
+     * @return Number of live records
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return Bytes taken by the current copies of live records and their metadata, record headers included
+     */
+    public synchronized long byteSize() {
+        return liveBytes;
+    }
+
+    /**
+     * @return Bytes taken by the segment files, including superseded records not yet reclaimed
+     */
+    public synchronized long diskSize() {
+        return diskBytes;
+    }
+
+    /**
+     * Size on disk of a record with the given payload and metadata.
+     * @param payloadLength Record contents length
+     * @param metadataLength Record metadata length, or 0 for none
+     * @return Bytes the record would add to {@link #byteSize()}
+     */
+    public static long recordSize(int payloadLength, int metadataLength) {
+        long size = HEADER_SIZE + SEQUENCE_SIZE + payloadLength;
+        if (metadataLength > 0) {
+            size += HEADER_SIZE + SEQUENCE_SIZE + metadataLength;
+        }
+        return size;
+    }
+
+    /**
+     * Appends a new record to the end of the log.
+     * @param payload Record contents, must not be empty
+     * @return Sequence number assigned to the record
+     * @throws IOException if the record could not be written
+     */
+    public synchronized long append(byte[] payload) throws IOException {
+        return append(payload, null);
+    }
+
+    /**
+     * Appends a new record, with metadata, to the end of the log.
+     * @param payload Record contents, must not be empty
+     * @param metadata Record metadata, or null for none
+     * @return Sequence number assigned to the record
+     * @throws IOException if the record could not be written
+     */
+    public synchronized long append(byte[] payload, byte[] metadata) throws IOException {
+        if (payload == null || payload.length == 0) {
+            throw new IllegalArgumentException("Empty queue record");
+        }
+        long sequence = nextSequence++;
+        write(sequence, payload);
+        if (metadata != null) {
+            write(sequence | METADATA_FLAG, metadata);
+        }
+        return sequence;
+    }
+
+    /**
+     * Appends several new records, with metadata, to the end of the log in a single write
+     * (one per segment, if the records don't fit in the current one).
+     * @param payloads Record contents, none of them empty
+     * @param metadata Record metadata, in the same order as the payloads, with null entries for none
+     * @return Sequence numbers assigned to the records, in order
+     * @throws IOException if the records could not be written; records written before the failure stay in the log
+     */
+    public synchronized long[] appendAll(List<byte[]> payloads, List<byte[]> metadata) throws IOException {
+        int records = 0;
+        for (int i = 0; i < payloads.size(); i++) {
+            if (payloads.get(i) == null || payloads.get(i).length == 0) {
+                throw new IllegalArgumentException("Empty queue record");
+            }
+            records += metadata.get(i) != null ? 2 : 1;
+        }
+
+        long[] sequences = new long[payloads.size()];
+        long[] recordSequences = new long[records];
+        byte[][] recordBodies = new byte[records][];
+        int record = 0;
+        for (int i = 0; i < payloads.size(); i++) {
+            sequences[i] = nextSequence++;
+            recordSequences[record] = sequences[i];
+            recordBodies[record++] = payloads.get(i);
+            if (metadata.get(i) != null) {
+                recordSequences[record] = sequences[i] | METADATA_FLAG;
+                recordBodies[record++] = metadata.get(i);
+            }
+        }
+
+        writeAll(recordSequences, recordBodies);
+        return sequences;
+    }
+
+    /**
+     * Replaces the metadata of an existing record, leaving its payload as is.
+     * @param sequence Sequence number of the record
+     * @param metadata New metadata, must not be empty
+     * @throws IOException if the metadata could not be written
+     */
+    public synchronized void setMetadata(long sequence, byte[] metadata) throws IOException {
+        if (metadata == null || metadata.length == 0) {
+            throw new IllegalArgumentException("Empty queue record metadata");
+        }
+        if (!index.containsKey(sequence)) {
+            return;
+        }
+        write(sequence | METADATA_FLAG, metadata);
+        compactIfNeeded();
+    }
+
+    /**
+     * Replaces the metadata of several existing records in a single write, leaving their payloads as is.
+     * Records that no longer exist are skipped.
+     * @param sequences Sequence numbers of the records
+     * @param metadata New metadata of each record, none of it empty
+     * @throws IOException if the metadata could not be written
+     */
+    public synchronized void setMetadataAll(List<Long> sequences, List<byte[]> metadata) throws IOException {
+        int records = 0;
+        for (int i = 0; i < sequences.size(); i++) {
+            if (metadata.get(i) == null || metadata.get(i).length == 0) {
+                throw new IllegalArgumentException("Empty queue record metadata");
+            }
+            if (index.containsKey(sequences.get(i))) {
+                records++;
+            }
+        }
+
+        long[] recordSequences = new long[records];
+        byte[][] recordBodies = new byte[records][];
+        int record = 0;
+        for (int i = 0; i < sequences.size(); i++) {
+            if (index.containsKey(sequences.get(i))) {
+                recordSequences[record] = sequences.get(i) | METADATA_FLAG;
+                recordBodies[record++] = metadata.get(i);
+            }
+        }
+
+        writeAll(recordSequences, recordBodies);
+        compactIfNeeded();
+    }
+
+    /**
+     * Returns the current metadata of a record.
+     * @param sequence Sequence number of the record
+     * @return Record metadata, or null if the record does not exist or has no metadata
+     */
+    public synchronized byte[] readMetadata(long sequence) {
+        Metadata current = metadata.get(sequence);
+        return current == null ? null : current.value;
+    }
+
+    /**
+     * Replaces the contents of an existing record, keeping its position in the log order.
+     * @param sequence Sequence number of the record
+     * @param payload New record contents, must not be empty
+     * @throws IOException if the record could not be written
+     */
+    public synchronized void update(long sequence, byte[] payload) throws IOException {
+        if (payload == null || payload.length == 0) {
+            throw new IllegalArgumentException("Empty queue record");
+        }
+        if (!index.containsKey(sequence)) {
+            return;
+        }
+        write(sequence, payload);
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes a record from the log.
+     * @param sequence Sequence number of the record
+     * @throws IOException if the tombstone could not be written
+     */
+    public synchronized void remove(long sequence) throws IOException {
+        if (!index.containsKey(sequence)) {
+            return;
+        }
+        write(sequence, new byte[0]);
+        advanceCursor();
+        compactIfNeeded();
+    }
+
+    /**
+     * Reads the current contents of a record.
+     * @param sequence Sequence number of the record
+     * @return Record contents, or null if the record does not exist or could not be read
+     */
+    public synchronized byte[] read(long sequence) {
+        Location location = index.get(sequence);
+        if (location == null) {
+            return null;
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(segmentFile(location.segment), "r");
+            file.seek(location.offset + HEADER_SIZE + SEQUENCE_SIZE);
+            byte[] payload = new byte[location.length];
+            file.readFully(payload);
+            return payload;
+        } catch (IOException e) {
+            TuneDebugLog.e("Error reading queue record " + sequence, e);
+            return null;
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    /**
+     * Returns the sequence numbers of the oldest live records, in log order.
+     * @param max Maximum number of sequence numbers to return
+     * @return List of sequence numbers
+     */
+    public synchronized List<Long> peek(int max) {
+        List<Long> sequences = new ArrayList<>(Math.min(max, index.size()));
+        Iterator<Long> iterator = index.keySet().iterator();
+        while (iterator.hasNext() && sequences.size() < max) {
+            sequences.add(iterator.next());
+        }
+        return sequences;
+    }
+
+    /**
+     * Removes every record and deletes all files in the log directory.
+     */
+    public synchronized void clear() {
+        closeWriter();
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    TuneDebugLog.w("Could not delete queue file " + file);
+                }
+            }
+        }
+
+        index.clear();
+        metadata.clear();
+        nextSequence = 0;
+        cursorSegment = 0;
+        writeSegment = 0;
+        writeOffset = 0;
+        liveBytes = 0;
+        diskBytes = 0;
+    }
+
+    /**
+     * Closes the open segment.  The log reopens it on the next write.
+     */
+    public synchronized void close() {
+        closeWriter();
+    }
+
+    /* ========================================================================================== */
+    /* Writing                                                                                    */
+    /* ========================================================================================== */
+
+    private void write(long sequence, byte[] payload) throws IOException {
+        if (writeOffset > 0 && writeOffset + HEADER_SIZE + SEQUENCE_SIZE + payload.length > maxSegmentSize) {
+            closeWriter();
+            writeSegment++;
+            writeOffset = 0;
+        }
+        if (writer == null) {
+            writer = openSegment(segmentFile(writeSegment));
+        }
+
+        fillHeader(sequence, payload);
+        try {
+            writer.write(header);
+            writer.write(payload);
+            writer.flush();
+        } catch (IOException e) {
+            discardFailedWrite();
+            throw e;
+        }
+
+        apply(sequence, payload, writeSegment, writeOffset, payload.length);
+        writeOffset += HEADER_SIZE + SEQUENCE_SIZE + payload.length;
+        diskBytes += HEADER_SIZE + SEQUENCE_SIZE + payload.length;
+    }
+
+    /**
+     * Writes several records with one write and flush per segment touched.
+     */
+    private void writeAll(long[] sequences, byte[][] payloads) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        int first = 0;
+        for (int i = 0; i <= sequences.length; i++) {
+            boolean rotate = i < sequences.length && writeOffset + buffer.size() > 0
+                    && writeOffset + buffer.size() + HEADER_SIZE + SEQUENCE_SIZE + payloads[i].length > maxSegmentSize;
+            if (i == sequences.length || rotate) {
+                flushRecords(buffer, sequences, payloads, first, i);
+                buffer.reset();
+                first = i;
+                if (rotate) {
+                    closeWriter();
+                    writeSegment++;
+                    writeOffset = 0;
+                }
+            }
+            if (i < sequences.length) {
+                fillHeader(sequences[i], payloads[i]);
+                buffer.write(header);
+                buffer.write(payloads[i]);
+            }
+        }
+    }
+
+    /**
+     * Writes the encoded records {@code [from, to)} to the current segment and applies them.
+     */
+    private void flushRecords(ByteArrayOutputStream buffer, long[] sequences, byte[][] payloads, int from, int to) throws IOException {
+        if (from == to) {
+            return;
+        }
+        if (writer == null) {
+            writer = openSegment(segmentFile(writeSegment));
+        }
+
+        try {
+            buffer.writeTo(writer);
+            writer.flush();
+        } catch (IOException e) {
+            discardFailedWrite();
+            throw e;
+        }
+
+        for (int i = from; i < to; i++) {
+            apply(sequences[i], payloads[i], writeSegment, writeOffset, payloads[i].length);
+            writeOffset += HEADER_SIZE + SEQUENCE_SIZE + payloads[i].length;
+        }
+        diskBytes += buffer.size();
+    }
+
+    /**
+     * Removes whatever part of a failed write reached the current segment.  Replay stops at the first
+     * damaged record and drops the rest of its segment, so nothing may ever be appended after torn bytes;
+     * if the segment can't be cut back, writing moves on to a new segment instead.
+     */
+    private void discardFailedWrite() {
+        closeWriter();
+        File file = segmentFile(writeSegment);
+        RandomAccessFile segment = null;
+        try {
+            segment = new RandomAccessFile(file, "rw");
+            segment.setLength(writeOffset);
+            return;
+        } catch (IOException e) {
+            TuneDebugLog.e("Could not truncate queue segment " + file, e);
+        } finally {
+            closeQuietly(segment);
+        }
+
+        diskBytes += file.length() - writeOffset;
+        writeSegment++;
+        writeOffset = 0;
+    }
+
+    FileOutputStream openSegment(File file) throws IOException {
+        return new FileOutputStream(file, true);
+    }
+
+    private void fillHeader(long sequence, byte[] payload) {
+        crc.reset();
+        putLong(header, HEADER_SIZE, sequence);
+        crc.update(header, HEADER_SIZE, SEQUENCE_SIZE);
+        crc.update(payload, 0, payload.length);
+        putInt(header, 0, SEQUENCE_SIZE + payload.length);
+        putInt(header, 4, (int) crc.getValue());
+    }
+
+    /**
+     * Applies a written or replayed record to the in-memory index.
+     */
+    private void apply(long sequence, byte[] body, long segment, long offset, int payloadLength) {
+        if ((sequence & METADATA_FLAG) != 0) {
+            long recordSequence = sequence & ~METADATA_FLAG;
+            byte[] value = body.length == payloadLength ? body : Arrays.copyOfRange(body, body.length - payloadLength, body.length);
+            if (index.containsKey(recordSequence)) {
+                liveBytes -= metadataSize(metadata.put(recordSequence, new Metadata(value, segment)));
+                liveBytes += HEADER_SIZE + SEQUENCE_SIZE + payloadLength;
+            } else {
+                // Logs written before compaction copied metadata along with its record can hold
+                // the latest metadata in an earlier segment than the record it belongs to
+                orphanMetadata.put(recordSequence, new Metadata(value, segment));
+            }
+        } else if (payloadLength == 0) {
+            liveBytes -= locationSize(index.remove(sequence));
+            liveBytes -= metadataSize(metadata.remove(sequence));
+            orphanMetadata.remove(sequence);
+        } else {
+            liveBytes -= locationSize(index.put(sequence, new Location(segment, offset, payloadLength)));
+            liveBytes += HEADER_SIZE + SEQUENCE_SIZE + payloadLength;
+            Metadata orphan = orphanMetadata.remove(sequence);
+            if (orphan != null && !metadata.containsKey(sequence)) {
+                metadata.put(sequence, orphan);
+                liveBytes += metadataSize(orphan);
+            }
+        }
+    }
+
+    private static long locationSize(Location location) {
+        return location == null ? 0 : HEADER_SIZE + SEQUENCE_SIZE + location.length;
+    }
+
+    private static long metadataSize(Metadata current) {
+        return current == null ? 0 : HEADER_SIZE + SEQUENCE_SIZE + current.value.length;
+    }
+
+    /**
+     * Reclaims the oldest segment if superseded records take up more than half of the files.
+     * The segment's live records and metadata are copied to the end of the log, after which
+     * nothing references the segment and the cursor moves past it.  A copied record is followed
+     * by a copy of its current metadata, wherever that was, so replay never sees the metadata first.
+     */
+    private void compactIfNeeded() {
+        if (cursorSegment >= writeSegment || diskBytes - liveBytes <= liveBytes + maxSegmentSize) {
+            return;
+        }
+
+        long oldest = cursorSegment;
+        try {
+            List<Long> relocate = new ArrayList<>();
+            for (Map.Entry<Long, Location> entry : index.entrySet()) {
+                if (entry.getValue().segment == oldest) {
+                    relocate.add(entry.getKey());
+                }
+            }
+            for (Long sequence : relocate) {
+                byte[] payload = read(sequence);
+                if (payload == null) {
+                    return;
+                }
+                write(sequence, payload);
+                Metadata current = metadata.get(sequence);
+                if (current != null) {
+                    write(sequence | METADATA_FLAG, current.value);
+                }
+            }
+
+            relocate.clear();
+            for (Map.Entry<Long, Metadata> entry : metadata.entrySet()) {
+                if (entry.getValue().segment == oldest) {
+                    relocate.add(entry.getKey());
+                }
+            }
+            for (Long sequence : relocate) {
+                write(sequence | METADATA_FLAG, metadata.get(sequence).value);
+            }
+        } catch (IOException e) {
+            TuneDebugLog.w("Failed compacting queue segment " + oldest, e);
+            return;
+        }
+
+        advanceCursor();
+    }
+
+    /**
+     * Moves the commit cursor up to the oldest segment still referenced by a live record,
+     * and deletes the segments below it.
+     */
+    private void advanceCursor() {
+        long oldest = writeSegment;
+        for (Location location : index.values()) {
+            if (location.segment < oldest) {
+                oldest = location.segment;
+            }
+        }
+        for (Metadata current : metadata.values()) {
+            if (current.segment < oldest) {
+                oldest = current.segment;
+            }
+        }
+        if (oldest <= cursorSegment) {
+            return;
+        }
+
+        if (!writeCursor(oldest, nextSequence)) {
+            return;
+        }
+        for (long segment = cursorSegment; segment < oldest; segment++) {
+            File file = segmentFile(segment);
+            diskBytes -= file.length();
+            if (file.exists() && !file.delete()) {
+                TuneDebugLog.w("Could not delete queue segment " + file);
+            }
+        }
+        cursorSegment = oldest;
+    }
+
+    private boolean writeCursor(long segment, long sequence) {
+        File temp = new File(directory, CURSOR_TEMP_FILE);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(temp, false));
+            out.writeLong(segment);
+            out.writeLong(sequence);
+            crc.reset();
+            crc.update(longsToBytes(segment, sequence));
+            out.writeInt((int) crc.getValue());
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            TuneDebugLog.e("Error writing queue cursor", e);
+            return false;
+        } finally {
+            closeQuietly(out);
+        }
+
+        // rename is atomic, so a reader sees either the old or the new cursor
+        if (!temp.renameTo(new File(directory, CURSOR_FILE))) {
+            TuneDebugLog.e("Error committing queue cursor");
+            return false;
+        }
+        return true;
+    }
+
+    private void closeWriter() {
+        closeQuietly(writer);
+        writer = null;
+    }
+
+    /* ========================================================================================== */
+    /* Recovery                                                                                   */
+    /* ========================================================================================== */
+
+    private void recover() {
+        index.clear();
+        metadata.clear();
+        orphanMetadata.clear();
+        nextSequence = 0;
+        cursorSegment = 0;
+        liveBytes = 0;
+        diskBytes = 0;
+        readCursor();
+
+        long[] segments = listSegments();
+        writeSegment = cursorSegment;
+        writeOffset = 0;
+
+        for (long segment : segments) {
+            if (segment < cursorSegment) {
+                // Left behind by a crash between committing the cursor and deleting the segment
+                if (!segmentFile(segment).delete()) {
+                    TuneDebugLog.w("Could not delete stale queue segment " + segment);
+                }
+                continue;
+            }
+            writeSegment = segment;
+            writeOffset = replaySegment(segment);
+            diskBytes += writeOffset;
+        }
+        orphanMetadata.clear();
+    }
+
+    private void readCursor() {
+        File file = new File(directory, CURSOR_FILE);
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            long segment = in.readLong();
+            long sequence = in.readLong();
+            int checksum = in.readInt();
+            crc.reset();
+            crc.update(longsToBytes(segment, sequence));
+            if (checksum == (int) crc.getValue()) {
+                cursorSegment = segment;
+                nextSequence = sequence;
+            } else {
+                TuneDebugLog.w("Queue cursor is corrupt, replaying all segments");
+            }
+        } catch (IOException e) {
+            TuneDebugLog.w("Queue cursor could not be read, replaying all segments", e);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Replays one segment into the index.
+     * @return Offset of the end of the last valid record in the segment
+     */
+    private long replaySegment(long segment) {
+        File file = segmentFile(segment);
+        long validLength = 0;
+
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "rw");
+            long fileLength = in.length();
+            while (validLength + HEADER_SIZE + SEQUENCE_SIZE <= fileLength) {
+                in.seek(validLength);
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < SEQUENCE_SIZE || length > MAX_RECORD_SIZE || validLength + HEADER_SIZE + length > fileLength) {
+                    break;
+                }
+
+                byte[] body = new byte[length];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body, 0, length);
+                if (checksum != (int) crc.getValue()) {
+                    break;
+                }
+
+                long sequence = getLong(body, 0);
+                apply(sequence, body, segment, validLength, length - SEQUENCE_SIZE);
+                long recordSequence = sequence & ~METADATA_FLAG;
+                if (recordSequence >= nextSequence) {
+                    nextSequence = recordSequence + 1;
+                }
+                validLength += HEADER_SIZE + length;
+            }
+
+            if (validLength < fileLength) {
+                TuneDebugLog.w("Truncating " + (fileLength - validLength) + " bytes of damaged queue data in segment " + segment);
+                in.setLength(validLength);
+            }
+        } catch (EOFException e) {
+            TuneDebugLog.w("Unexpected end of queue segment " + segment, e);
+        } catch (IOException e) {
+            TuneDebugLog.e("Error replaying queue segment " + segment, e);
+        } finally {
+            closeQuietly(in);
+        }
+
+        return validLength;
+    }
+
+    private long[] listSegments() {
+        String[] names = directory.list();
+        if (names == null) {
+            return new long[0];
+        }
+
+        long[] segments = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    segments[count] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    count++;
+                } catch (NumberFormatException e) {
+                    TuneDebugLog.w("Ignoring unexpected queue file " + name);
+                }
+            }
+        }
+
+        segments = Arrays.copyOf(segments, count);
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /* ========================================================================================== */
+    /* Helpers                                                                                    */
+    /* ========================================================================================== */
+
+    private File segmentFile(long segment) {
+        return new File(directory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] buffer, int offset, long value) {
+        putInt(buffer, offset, (int) (value >>> 32));
+        putInt(buffer, offset + 4, (int) value);
+    }
+
+    private static long getLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static byte[] longsToBytes(long first, long second) {
+        byte[] bytes = new byte[16];
+        putLong(bytes, 0, first);
+        putLong(bytes, 8, second);
+        return bytes;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
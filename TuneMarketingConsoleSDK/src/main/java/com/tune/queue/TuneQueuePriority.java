@@ -0,0 +1,15 @@
+package com.tune.queue;
+
+/**
+ * Priority lanes of the event queue, in drain order.
+ * Each lane is kept in its own {@link TuneQueueLog} and is drained oldest first,
+ * and a lane is only drained once every lane before it is empty.
+ */
+public enum TuneQueuePriority {
+    // Events of the first session, like the install, always go out before anything else
+    FIRST_SESSION,
+    // Events our bidding depends on, like purchases with revenue
+    HIGH,
+    // Everything else, like sessions
+    NORMAL
+}
@@ -0,0 +1,137 @@
+package com.tune.queue;
+
+/**
+ * Retry bookkeeping for a queued event, stored as record metadata in the {@link TuneQueueLog}
+ * so that a retry never has to touch the event itself.
+ * <br>
+ * Together with the event record and its tombstone, this makes up the queue's commit protocol:
+ * the event is durable once appended, is marked as sent (with {@link #sendStarted}) before its
+ * request goes out, and is acknowledged by removing it.  An event still marked as sent when the
+ * queue is opened was interrupted mid-request and counts as a failed attempt.
+ */
+public class TuneRetryMetadata {
+    private static final byte VERSION_1 = 1;
+    private static final byte VERSION = 2;
+    // version (byte) + attempts (int) + first enqueue time (long) + next eligible time (long)
+    private static final int SIZE_1 = 1 + 4 + 8 + 8;
+    // version 1 + send start time (long)
+    private static final int SIZE = SIZE_1 + 8;
+
+    private final int attempts;
+    private final long firstEnqueueTime;
+    private final long nextEligibleTime;
+    private final long sendStartTime;
+
+    /**
+     * @param attempts Number of times sending the event has failed
+     * @param firstEnqueueTime Time the event was first queued, in milliseconds since the epoch
+     * @param nextEligibleTime Time before which the event should not be sent again, in milliseconds since the epoch
+     */
+    public TuneRetryMetadata(int attempts, long firstEnqueueTime, long nextEligibleTime) {
+        this(attempts, firstEnqueueTime, nextEligibleTime, 0);
+    }
+
+    /**
+     * @param attempts Number of times sending the event has failed
+     * @param firstEnqueueTime Time the event was first queued, in milliseconds since the epoch
+     * @param nextEligibleTime Time before which the event should not be sent again, in milliseconds since the epoch
+     * @param sendStartTime Time the request for the event went out, in milliseconds since the epoch, or 0 if it isn't in flight
+     */
+    public TuneRetryMetadata(int attempts, long firstEnqueueTime, long nextEligibleTime, long sendStartTime) {
+        this.attempts = attempts;
+        this.firstEnqueueTime = firstEnqueueTime;
+        this.nextEligibleTime = nextEligibleTime;
+        this.sendStartTime = sendStartTime;
+    }
+
+    /**
+     * Metadata for an event that is queued now and hasn't been attempted yet.
+     * @return new metadata
+     */
+    public static TuneRetryMetadata newlyQueued() {
+        return new TuneRetryMetadata(0, System.currentTimeMillis(), 0);
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public long getFirstEnqueueTime() {
+        return firstEnqueueTime;
+    }
+
+    public long getNextEligibleTime() {
+        return nextEligibleTime;
+    }
+
+    public long getSendStartTime() {
+        return sendStartTime;
+    }
+
+    /**
+     * @return true if a request for the event went out and has not been answered
+     */
+    public boolean isInFlight() {
+        return sendStartTime != 0;
+    }
+
+    /**
+     * Metadata once the request for the event is about to go out.
+     * @param sendStartTime Time the request goes out, in milliseconds since the epoch
+     * @return new metadata
+     */
+    public TuneRetryMetadata sendStarted(long sendStartTime) {
+        return new TuneRetryMetadata(attempts, firstEnqueueTime, nextEligibleTime, sendStartTime);
+    }
+
+    /**
+     * Metadata after one more failed attempt.
+     * @param nextEligibleTime Time before which the event should not be sent again, in milliseconds since the epoch
+     * @return new metadata
+     */
+    public TuneRetryMetadata failedAttempt(long nextEligibleTime) {
+        return new TuneRetryMetadata(attempts + 1, firstEnqueueTime, nextEligibleTime);
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = new byte[SIZE];
+        bytes[0] = VERSION;
+        putLong(bytes, 1, attempts, 4);
+        putLong(bytes, 5, firstEnqueueTime, 8);
+        putLong(bytes, 13, nextEligibleTime, 8);
+        putLong(bytes, 21, sendStartTime, 8);
+        return bytes;
+    }
+
+    /**
+     * @param bytes Serialized metadata
+     * @return the metadata, or null if the bytes are missing or in an unknown format
+     */
+    public static TuneRetryMetadata fromBytes(byte[] bytes) {
+        if (bytes == null || bytes.length < SIZE_1) {
+            return null;
+        }
+        if (bytes[0] == VERSION_1) {
+            return new TuneRetryMetadata((int) getLong(bytes, 1, 4), getLong(bytes, 5, 8), getLong(bytes, 13, 8));
+        }
+        if (bytes[0] != VERSION || bytes.length < SIZE) {
+            return null;
+        }
+        return new TuneRetryMetadata((int) getLong(bytes, 1, 4), getLong(bytes, 5, 8), getLong(bytes, 13, 8), getLong(bytes, 21, 8));
+    }
+
+    private static void putLong(byte[] buffer, int offset, long value, int size) {
+        for (int i = size - 1; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long getLong(byte[] buffer, int offset, int size) {
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,13 @@
+package com.tune.queue;
+
+/**
+ * Decides how long the event queue waits before retrying after a failed request.
+ */
+public interface TuneRetryPolicy {
+    /**
+     * Returns the delay before the next retry.
+     * @param failures Number of consecutive failed attempts, at least 1
+     * @return Delay in milliseconds
+     */
+    long getRetryDelay(int failures);
+}
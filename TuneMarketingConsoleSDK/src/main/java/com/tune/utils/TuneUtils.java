@@ -55,18 +55,27 @@ public class TuneUtils {
             return null;
         }
 
-        int len = data.length;
-        StringBuilder str = new StringBuilder();
-        for (byte dataByte : data) {
-            if ((dataByte & 0xFF) < 16) {
-                str.append("0").append(Integer.toHexString(dataByte & 0xFF));
-            } else {
-                str.append(Integer.toHexString(dataByte & 0xFF));
-            }
-        }
+        StringBuilder str = new StringBuilder(data.length * 2);
+        appendHex(str, data, 0, data.length);
         return str.toString();
     }
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Append bytes to a builder as a lowercase Hex String, two digits per byte.
+     * @param str Builder to append to
+     * @param data Byte array to convert to hex
+     * @param offset Index of the first byte to convert
+     * @param length Number of bytes to convert
+     */
+    public static void appendHex(StringBuilder str, byte[] data, int offset, int length) {
+        str.ensureCapacity(str.length() + length * 2);
+        for (int i = offset; i < offset + length; i++) {
+            str.append(HEX_DIGITS[(data[i] >> 4) & 0x0F]).append(HEX_DIGITS[data[i] & 0x0F]);
+        }
+    }
+
     /**
      * Convert a Hex String to a byte array.
      * @param str Hex string to convert to bytes